@@ -0,0 +1,148 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.doppler.DopplerClient;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.StreamRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Follows the doppler log stream of watched applications and keeps their last log message, so that inactivity can
+ * be assessed without downloading recent logs. Does nothing unless {@link Config.EnvKey#ACTIVITY_STREAM_ENABLED} is
+ * set.
+ */
+@Slf4j
+@Service
+public class ActivityStreamIngester {
+
+    private static class WatchedApplication {
+
+        /**
+         * Null while the stream is down: logs emitted meanwhile are not known.
+         */
+        volatile Instant connectedSince;
+
+        volatile LogMessage lastLog;
+
+        volatile Disposable subscription;
+
+        void onLog(LogMessage logMessage) {
+            LogMessage current = lastLog;
+            if (current == null || current.getTimestamp() < logMessage.getTimestamp()) {
+                lastLog = logMessage;
+            }
+        }
+
+    }
+
+    @Autowired
+    private DopplerClient dopplerClient;
+
+    private boolean enabled;
+
+    @Autowired
+    private Environment environment;
+
+    private final Map<String, WatchedApplication> watchedApplications = new ConcurrentHashMap<>();
+
+    @PreDestroy
+    void close() {
+        watchedApplications.keySet().forEach(this::unwatch);
+    }
+
+    /**
+     * Last log streamed for the application.
+     * @return the log, or null if none was received
+     */
+    public ApplicationInfo.DiagnosticInfo.ApplicationLog getLastLog(String appUid) {
+        WatchedApplication watchedApplication = watchedApplications.get(appUid);
+        return watchedApplication == null ? null : ReactiveCloudFoundryApi.buildAppLog(watchedApplication.lastLog);
+    }
+
+    @PostConstruct
+    void init() {
+        enabled = Boolean.parseBoolean(environment.getProperty(Config.EnvKey.ACTIVITY_STREAM_ENABLED,
+                Boolean.FALSE.toString()));
+        log.debug("activity stream ingestion enabled: {}", enabled);
+    }
+
+    /**
+     * Tells whether every log emitted by the application since the given instant is known.
+     * @return true if the stream of the application has been up since then
+     */
+    public boolean isCovering(String appUid, Instant since) {
+        WatchedApplication watchedApplication = watchedApplications.get(appUid);
+        Instant connectedSince = watchedApplication == null ? null : watchedApplication.connectedSince;
+        return connectedSince != null && !connectedSince.isAfter(since);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void unwatch(String appUid) {
+        WatchedApplication watchedApplication = watchedApplications.remove(appUid);
+        if (watchedApplication != null && watchedApplication.subscription != null) {
+            log.debug("stop streaming logs of {}", appUid);
+            watchedApplication.subscription.dispose();
+        }
+    }
+
+    public void watch(String appUid) {
+        if (!enabled) {
+            return;
+        }
+        watchedApplications.computeIfAbsent(appUid, applicationId -> {
+            log.debug("start streaming logs of {}", applicationId);
+            WatchedApplication watchedApplication = new WatchedApplication();
+            watchedApplication.subscription = dopplerClient.stream(StreamRequest.builder()
+                    .applicationId(applicationId)
+                    .build())
+                    .doOnSubscribe(subscription -> watchedApplication.connectedSince = Instant.now())
+                    .doOnError(throwable -> {
+                        log.warn("log stream of {} failed, reconnecting", applicationId, throwable);
+                        watchedApplication.connectedSince = null;
+                    })
+                    .doOnComplete(() -> watchedApplication.connectedSince = null)
+                    .retryWhen(errors -> errors.delayElements(Config.PERIOD_BETWEEN_STREAM_RECONNECTIONS))
+                    .repeatWhen(completions -> completions.delayElements(Config.PERIOD_BETWEEN_STREAM_RECONNECTIONS))
+                    .filter(envelope -> envelope.getLogMessage() != null
+                            && envelope.getLogMessage().getTimestamp() != null)
+                    .map(Envelope::getLogMessage)
+                    .subscribe(watchedApplication::onLog);
+            return watchedApplication;
+        });
+    }
+
+}
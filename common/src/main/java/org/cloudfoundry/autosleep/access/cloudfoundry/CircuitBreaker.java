@@ -0,0 +1,121 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling an endpoint that keeps failing. After a number of consecutive failures the circuit opens and calls
+ * fail immediately; once the open duration is elapsed a single trial call is let through, closing the circuit again
+ * if it succeeds.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private int consecutiveFailures;
+
+    private final int failureThreshold;
+
+    private final long openDurationNanos;
+
+    private long openedAtNanos;
+
+    private State state = State.CLOSED;
+
+    private final Scheduler timer;
+
+    private boolean trialInFlight;
+
+    /**
+     * Build a circuit breaker.
+     * @param failureThreshold number of consecutive failures opening the circuit
+     * @param openDuration time during which calls are not sent once the circuit is open
+     * @param timer gives the time
+     */
+    public CircuitBreaker(int failureThreshold, Duration openDuration, Scheduler timer) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationNanos = openDuration.toNanos();
+        this.timer = timer;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Called when the call was abandoned without any result.
+     */
+    public synchronized void onCancel() {
+        trialInFlight = false;
+    }
+
+    /**
+     * Called when the call failed.
+     * @param counted true if the failure is due to the endpoint, false if it is due to the request itself
+     */
+    public synchronized void onFailure(boolean counted) {
+        trialInFlight = false;
+        if (!counted) {
+            if (state == State.HALF_OPEN) {
+                state = State.CLOSED;
+                consecutiveFailures = 0;
+            }
+        } else if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAtNanos = timer.now(TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public synchronized void onSuccess() {
+        trialInFlight = false;
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Whether the call may be sent.
+     * @return false while the circuit is open, or while a trial call is pending
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && timer.now(TimeUnit.NANOSECONDS) - openedAtNanos >= openDurationNanos) {
+            state = State.HALF_OPEN;
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return false;
+                } else {
+                    trialInFlight = true;
+                    return true;
+                }
+            default:
+                return false;
+        }
+    }
+
+}
@@ -20,19 +20,41 @@
 package org.cloudfoundry.autosleep.access.cloudfoundry;
 
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationBindingResult;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 public interface CloudFoundryApiService {
 
-    void bindApplications(String serviceInstanceId, List<ApplicationIdentity> application) throws CloudFoundryException;
+    /**
+     * Bind the service instance to several applications, a few of them at a time. Every binding is attempted, even
+     * if some of them fail.
+     * @return results by application id. Failures are reported per application (see
+     * {@link ApplicationBindingResult#isFailed()}).
+     */
+    Map<String, ApplicationBindingResult> bindApplications(String serviceInstanceId,
+                                                           List<ApplicationIdentity> application)
+            throws CloudFoundryException;
 
     void bindRoutes(String serviceInstanceId, List<String> routeIds) throws CloudFoundryException;
 
     ApplicationActivity getApplicationActivity(String appUid) throws CloudFoundryException;
 
+    /**
+     * Retrieve activities of several applications with a few paged queries instead of one set of calls per app.
+     * @param appUids application ids
+     * @return activities by application id. Failures are reported per application (see
+     * {@link ApplicationActivity#isFailed()}).
+     * @throws CloudFoundryException if the whole retrieval failed
+     */
+    Map<String, ApplicationActivity> getApplicationActivities(Collection<String> appUids)
+            throws CloudFoundryException;
+
     String getApplicationState(String applicationUuid) throws CloudFoundryException;
 
     String getHost(String routeId) throws CloudFoundryException;
@@ -50,6 +72,15 @@ public interface CloudFoundryApiService {
 
     boolean stopApplication(String applicationUuid) throws CloudFoundryException;
 
+    /**
+     * Stop several applications known to be started, a few of them at a time. Unlike
+     * {@link #stopApplication(String)}, their state is not read first: stopping a stopped application does nothing.
+     * @param appUids application ids
+     * @return results by application id. Failures are reported per application (see
+     * {@link ApplicationStopResult#isFailed()}).
+     */
+    Map<String, ApplicationStopResult> stopApplications(Collection<String> appUids) throws CloudFoundryException;
+
     void unbind(String bindingId) throws CloudFoundryException;
 
     boolean isValidOrganization(String organizationGuid) throws CloudFoundryException;
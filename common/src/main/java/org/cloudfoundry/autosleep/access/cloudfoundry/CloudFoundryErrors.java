@@ -0,0 +1,119 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.AbstractCloudFoundryException;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v3.ClientV3Exception;
+import reactor.core.Exceptions;
+import reactor.ipc.netty.channel.AbortedException;
+import reactor.ipc.netty.http.client.HttpClientException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Classification of the errors signaled by cloudfoundry calls.
+ */
+public final class CloudFoundryErrors {
+
+    static final int HTTP_SERVER_ERROR = 500;
+
+    static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private CloudFoundryErrors() {
+    }
+
+    /**
+     * Short name of the error, for metrics: cloudfoundry error code when known (such as {@code CF-AppNotFound}), else
+     * http status, else {@code timeout} or the type of error.
+     */
+    public static String getErrorCode(Throwable throwable) {
+        Throwable cause = getRootCause(throwable);
+        Integer httpStatus = getHttpStatus(cause);
+        if (cause instanceof ClientV2Exception && ((ClientV2Exception) cause).getErrorCode() != null) {
+            return ((ClientV2Exception) cause).getErrorCode();
+        } else if (cause instanceof ClientV3Exception && !((ClientV3Exception) cause).getErrors().isEmpty()
+                && ((ClientV3Exception) cause).getErrors().get(0).getTitle() != null) {
+            return ((ClientV3Exception) cause).getErrors().get(0).getTitle();
+        } else if (httpStatus != null) {
+            return String.valueOf(httpStatus);
+        } else if (cause instanceof TimeoutException) {
+            return "timeout";
+        } else {
+            return cause.getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * Http status of the response that caused the error.
+     * @return the status, or null if the error was not caused by an http response
+     */
+    public static Integer getHttpStatus(Throwable throwable) {
+        Throwable cause = getRootCause(throwable);
+        if (cause instanceof AbstractCloudFoundryException) {
+            return ((AbstractCloudFoundryException) cause).getStatusCode();
+        } else if (cause instanceof HttpClientException) {
+            return ((HttpClientException) cause).status().code();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Error given by the client library, once unwrapped from {@link CloudFoundryException} and reactor exceptions.
+     */
+    public static Throwable getRootCause(Throwable throwable) {
+        Throwable cause = Exceptions.unwrap(throwable);
+        while (cause instanceof CloudFoundryException && cause.getCause() != null) {
+            cause = Exceptions.unwrap(cause.getCause());
+        }
+        return cause;
+    }
+
+    /**
+     * Whether the error shows that cloudfoundry is overloaded: it is throttling us, unavailable or too slow.
+     */
+    public static boolean isOverload(Throwable throwable) {
+        Integer httpStatus = getHttpStatus(throwable);
+        return getRootCause(throwable) instanceof TimeoutException
+                || httpStatus != null && (httpStatus == HTTP_TOO_MANY_REQUESTS
+                || httpStatus == HTTP_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Whether the same request may succeed if sent again: cloudfoundry is overloaded, failed on its side, or the
+     * connection was lost.
+     */
+    public static boolean isTransient(Throwable throwable) {
+        Integer httpStatus = getHttpStatus(throwable);
+        if (isOverload(throwable)) {
+            return true;
+        } else if (httpStatus != null) {
+            return httpStatus >= HTTP_SERVER_ERROR;
+        } else {
+            Throwable cause = getRootCause(throwable);
+            return cause instanceof IOException || cause instanceof AbortedException;
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import lombok.Getter;
+
+/**
+ * Remote operations of {@link ReactiveCloudFoundryApiService}, as seen by its decorators.
+ */
+@Getter
+public enum CloudFoundryOperation {
+
+    BIND_APPLICATIONS(Priority.BACKGROUND, false, false),
+    BIND_ROUTES(Priority.BACKGROUND, false, false),
+    GET_APPLICATION_ACTIVITIES(Priority.BACKGROUND, true, false),
+    GET_APPLICATION_ACTIVITY(Priority.BACKGROUND, true, false),
+    GET_APPLICATION_STATE(Priority.INTERACTIVE, true, true),
+    GET_HOST(Priority.BACKGROUND, true, false),
+    IS_APP_RUNNING(Priority.INTERACTIVE, true, true),
+    IS_VALID_ORGANIZATION(Priority.INTERACTIVE, true, false),
+    LIST_ALIVE_APPLICATIONS(Priority.BACKGROUND, true, false),
+    LIST_APPLICATION_ROUTES(Priority.BACKGROUND, true, false),
+    LIST_ROUTE_APPLICATIONS(Priority.BACKGROUND, true, false),
+    START_APPLICATION(Priority.INTERACTIVE, false, false),
+    STOP_APPLICATION(Priority.BACKGROUND, false, false),
+    STOP_APPLICATIONS(Priority.BACKGROUND, false, false),
+    UNBIND(Priority.BACKGROUND, false, false);
+
+    public enum Priority {
+        /**
+         * Someone is waiting for the result, such as a user request hitting a sleeping application.
+         */
+        INTERACTIVE,
+        /**
+         * Periodic checks and enrollments, that can wait.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Slow calls may be duplicated, the first answer being used.
+     */
+    private final boolean hedged;
+
+    /**
+     * Reads, that may be sent again when they fail.
+     */
+    private final boolean idempotent;
+
+    private final Priority priority;
+
+    CloudFoundryOperation(Priority priority, boolean idempotent, boolean hedged) {
+        this.hedged = hedged;
+        this.idempotent = idempotent;
+        this.priority = priority;
+    }
+
+}
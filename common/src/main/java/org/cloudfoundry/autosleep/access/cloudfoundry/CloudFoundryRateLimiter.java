@@ -0,0 +1,342 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryOperation.Priority;
+import org.cloudfoundry.autosleep.config.Config;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Global budget of cloudfoundry requests. Requests are sent at most at a fixed rate (token bucket), and at most a
+ * limited number of them are pending at the same time. This limit grows slowly while cloudfoundry answers, and is
+ * halved as soon as it throttles us, is unavailable or times out (AIMD), at most once per
+ * {@link Config#CF_LIMIT_DECREASE_COOLDOWN}. Waiting interactive requests always go before background ones.
+ * <p>
+ * An operation made of several requests, such as a bulk stop or a listing of several pages, is given a budget through
+ * its subscriber context (see {@link #budget(Priority)}): each of its requests sent with
+ * {@link #send(String, Supplier)} then takes a permit of its own.
+ */
+@Slf4j
+public class CloudFoundryRateLimiter implements PublicMetrics {
+
+    /**
+     * Right to send one request, to be released once its response is received.
+     */
+    public final class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Release the permit. Only the first release counts.
+         * @param overloaded true if the request failed because cloudfoundry is overloaded
+         */
+        public void release(boolean overloaded) {
+            if (released.compareAndSet(false, true)) {
+                onRelease(overloaded);
+            }
+        }
+
+    }
+
+    /**
+     * Limiter and priority of the requests of an operation, carried by its subscriber context.
+     */
+    private static final class Budget {
+
+        final Priority priority;
+
+        final CloudFoundryRateLimiter rateLimiter;
+
+        Budget(CloudFoundryRateLimiter rateLimiter, Priority priority) {
+            this.priority = priority;
+            this.rateLimiter = rateLimiter;
+        }
+
+    }
+
+    private static class Waiter {
+
+        Permit permit;
+
+        final MonoSink<Permit> sink;
+
+        Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+
+    }
+
+    private final double burst;
+
+    private final long decreaseCooldownNanos = Config.CF_LIMIT_DECREASE_COOLDOWN.toNanos();
+
+    private boolean drainScheduled;
+
+    private int inFlight;
+
+    private long lastDecreaseNanos;
+
+    private long lastRefillNanos;
+
+    private double limit;
+
+    private final double maxConcurrency;
+
+    private final int maxQueueSize;
+
+    private final Map<Priority, Deque<Waiter>> queues = new EnumMap<>(Priority.class);
+
+    private final Map<Priority, AtomicLong> rejections = new EnumMap<>(Priority.class);
+
+    /**
+     * Gives the time, and wakes waiters up when tokens are available again.
+     */
+    private final Scheduler timer;
+
+    private double tokens;
+
+    private final double tokensPerNano;
+
+    /**
+     * Build a limiter.
+     * @param requestsPerSecond rate at which requests may be sent
+     * @param burst max number of requests sent at once after an idle time
+     * @param maxConcurrency max number of pending requests, and initial limit
+     * @param maxQueueSize max number of waiting requests per priority, others are rejected
+     */
+    public CloudFoundryRateLimiter(double requestsPerSecond, int burst, int maxConcurrency, int maxQueueSize) {
+        this(requestsPerSecond, burst, maxConcurrency, maxQueueSize, Schedulers.parallel());
+    }
+
+    CloudFoundryRateLimiter(double requestsPerSecond, int burst, int maxConcurrency, int maxQueueSize,
+                            Scheduler timer) {
+        this.burst = Math.max(1, burst);
+        this.lastRefillNanos = timer.now(TimeUnit.NANOSECONDS);
+        this.lastDecreaseNanos = lastRefillNanos - decreaseCooldownNanos;
+        this.limit = Math.max(1, maxConcurrency);
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxQueueSize = maxQueueSize;
+        this.timer = timer;
+        this.tokens = this.burst;
+        this.tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+            rejections.put(priority, new AtomicLong());
+        }
+    }
+
+    /**
+     * Wait for the right to send a request. Cancelling the subscription gives up waiting, or releases the permit if
+     * already granted.
+     * @return the permit, or a {@link CloudFoundryException} if too many requests of this priority are waiting
+     */
+    public Mono<Permit> acquire(Priority priority) {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(sink);
+            boolean queued;
+            synchronized (this) {
+                Deque<Waiter> queue = queues.get(priority);
+                queued = queue.size() < maxQueueSize;
+                if (queued) {
+                    queue.addLast(waiter);
+                }
+            }
+            if (!queued) {
+                rejections.get(priority).incrementAndGet();
+                sink.error(new CloudFoundryException("too many pending " + priority.name().toLowerCase(Locale.ENGLISH)
+                        + " cloudfoundry requests", null));
+                return;
+            }
+            sink.onCancel(() -> {
+                Permit permit;
+                synchronized (this) {
+                    permit = queues.get(priority).remove(waiter) ? null : waiter.permit;
+                }
+                if (permit != null) {
+                    permit.release(false);
+                }
+            });
+            drain();
+        });
+    }
+
+    /**
+     * Context of the subscription to an operation, so that each request of the operation is sent within a permit of
+     * this limiter, with the given priority.
+     */
+    public Function<Context, Context> budget(Priority priority) {
+        Budget budget = new Budget(this, priority);
+        return context -> context.put(Budget.class, budget);
+    }
+
+    /**
+     * Send a single request within a permit of the budget given by the subscriber context, if any. The request is sent
+     * right away otherwise. Once sent, it is measured by the {@link InstrumentedCloudFoundryApi} of the context, if
+     * any, so that the wait for the permit is not part of its latency.
+     * @param endpoint the cloudfoundry endpoint called, measures being given by endpoint
+     * @param request the request, not sent before the permit is granted
+     */
+    public static <T> Mono<T> send(String endpoint, Supplier<Mono<T>> request) {
+        Supplier<Mono<T>> measuredRequest = () -> InstrumentedCloudFoundryApi.measure(endpoint, request);
+        return Mono.subscriberContext()
+                .flatMap(context -> context.<Budget>getOrEmpty(Budget.class)
+                        .map(budget -> budget.rateLimiter.send(budget.priority, measuredRequest))
+                        .orElseGet(() -> Mono.defer(measuredRequest)));
+    }
+
+    private <T> Mono<T> send(Priority priority, Supplier<Mono<T>> request) {
+        return acquire(priority)
+                .flatMap(permit -> Mono.defer(request)
+                        .doOnSuccess(result -> permit.release(false))
+                        .doOnError(throwable -> permit.release(CloudFoundryErrors.isOverload(throwable)))
+                        .doOnCancel(() -> permit.release(false)));
+    }
+
+    /**
+     * Grant permits to as many waiters as rate and limit allow, interactive ones first.
+     */
+    private void drain() {
+        List<Waiter> granted = new ArrayList<>();
+        long delayNanos = 0;
+        synchronized (this) {
+            refill();
+            while (inFlight < getEffectiveLimit()) {
+                Deque<Waiter> queue = getFirstNonEmptyQueue();
+                if (queue == null) {
+                    break;
+                } else if (tokens < 1) {
+                    delayNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+                    break;
+                }
+                Waiter waiter = queue.pollFirst();
+                tokens -= 1;
+                inFlight++;
+                waiter.permit = new Permit();
+                granted.add(waiter);
+            }
+            if (delayNanos > 0 && !drainScheduled) {
+                drainScheduled = true;
+            } else {
+                delayNanos = 0;
+            }
+        }
+        granted.forEach(waiter -> waiter.sink.success(waiter.permit));
+        if (delayNanos > 0) {
+            timer.schedule(() -> {
+                synchronized (this) {
+                    drainScheduled = false;
+                }
+                drain();
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private int getEffectiveLimit() {
+        return Math.max(1, (int) limit);
+    }
+
+    private Deque<Waiter> getFirstNonEmptyQueue() {
+        for (Priority priority : Priority.values()) {
+            Deque<Waiter> queue = queues.get(priority);
+            if (!queue.isEmpty()) {
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized double getLimit() {
+        return limit;
+    }
+
+    public synchronized int getQueueDepth(Priority priority) {
+        return queues.get(priority).size();
+    }
+
+    public long getRejectedCount(Priority priority) {
+        return rejections.get(priority).get();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        synchronized (this) {
+            metrics.add(new Metric<>("autosleep.cf.limiter.limit", limit));
+            metrics.add(new Metric<>("autosleep.cf.limiter.inflight", inFlight));
+            queues.forEach((priority, queue) -> metrics.add(new Metric<>("autosleep.cf.limiter.queue."
+                    + priority.name().toLowerCase(Locale.ENGLISH), queue.size())));
+        }
+        rejections.forEach((priority, count) -> metrics.add(new Metric<>("autosleep.cf.limiter.rejected."
+                + priority.name().toLowerCase(Locale.ENGLISH), count.get())));
+        return metrics;
+    }
+
+    private void onRelease(boolean overloaded) {
+        synchronized (this) {
+            inFlight--;
+            if (overloaded) {
+                //requests pending at once fail together: only the first one counts until the cooldown is over
+                long now = timer.now(TimeUnit.NANOSECONDS);
+                if (now - lastDecreaseNanos >= decreaseCooldownNanos) {
+                    double previous = limit;
+                    limit = Math.max(1, limit / 2);
+                    lastDecreaseNanos = now;
+                    log.warn("cloudfoundry overloaded, limiting pending requests from {} to {}", (int) previous,
+                            (int) limit);
+                }
+            } else {
+                limit = Math.min(maxConcurrency, limit + 1 / limit);
+            }
+        }
+        drain();
+    }
+
+    private void refill() {
+        long now = timer.now(TimeUnit.NANOSECONDS);
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+
+}
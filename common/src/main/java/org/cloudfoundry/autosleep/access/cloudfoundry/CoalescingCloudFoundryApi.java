@@ -0,0 +1,103 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.util.SingleFlight;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * Shares the state lookups made concurrently for the same application, such as the ones of a burst of requests
+ * reaching a sleeping application through the proxy: a single call is sent, and its result is also given to the
+ * lookups made shortly after. Application starts are shared while pending, so that a single start is requested;
+ * states known before a start are forgotten once it is done.
+ */
+public class CoalescingCloudFoundryApi extends ReactiveCloudFoundryApiDecorator implements PublicMetrics {
+
+    private final SingleFlight<String, String> applicationStates;
+
+    private final SingleFlight<String, Boolean> runningApplications;
+
+    private final SingleFlight<String, Boolean> startingApplications;
+
+    /**
+     * Build the decorator.
+     * @param timeToLive time during which a state received is given to new lookups
+     */
+    public CoalescingCloudFoundryApi(ReactiveCloudFoundryApiService delegate, Duration timeToLive) {
+        this(delegate, timeToLive, Schedulers.parallel());
+    }
+
+    CoalescingCloudFoundryApi(ReactiveCloudFoundryApiService delegate, Duration timeToLive, Scheduler timer) {
+        super(delegate);
+        this.applicationStates = new SingleFlight<>(timeToLive, timer);
+        this.runningApplications = new SingleFlight<>(timeToLive, timer);
+        this.startingApplications = new SingleFlight<>(Duration.ZERO, timer);
+    }
+
+    @Override
+    protected <T> Mono<T> decorate(CloudFoundryOperation operation, Supplier<Mono<T>> call) {
+        return Mono.defer(call);
+    }
+
+    @Override
+    public Mono<String> getApplicationState(String applicationUuid) {
+        return applicationStates.get(applicationUuid, () -> super.getApplicationState(applicationUuid));
+    }
+
+    /**
+     * Number of calls saved by sharing the result of another one.
+     */
+    public long getCoalescedCount() {
+        return applicationStates.getCoalescedCount() + runningApplications.getCoalescedCount()
+                + startingApplications.getCoalescedCount();
+    }
+
+    @Override
+    public Mono<Boolean> isAppRunning(String appUid) {
+        return runningApplications.get(appUid, () -> super.isAppRunning(appUid));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("autosleep.cf.coalesced.get_application_state", applicationStates.getCoalescedCount()),
+                new Metric<>("autosleep.cf.coalesced.is_app_running", runningApplications.getCoalescedCount()),
+                new Metric<>("autosleep.cf.coalesced.start_application", startingApplications.getCoalescedCount()));
+    }
+
+    @Override
+    public Mono<Boolean> startApplication(String applicationUuid) {
+        return startingApplications.get(applicationUuid, () -> super.startApplication(applicationUuid)
+                .doOnSuccess(changed -> {
+                    applicationStates.invalidate(applicationUuid);
+                    runningApplications.invalidate(applicationUuid);
+                }));
+    }
+
+}
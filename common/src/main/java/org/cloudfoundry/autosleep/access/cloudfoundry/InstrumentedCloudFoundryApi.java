@@ -0,0 +1,150 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.util.LatencyHistogram;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Measures every cloudfoundry request of the decorated operations: latency histogram, errors by cloudfoundry error
+ * code, and number of pending requests, by endpoint. Requests are only measured once sent (see
+ * {@link CloudFoundryRateLimiter#send(String, Supplier)}), so that waits for a turn are not mistaken for slow
+ * responses, and the several endpoints called by a single operation are told apart. Measures are published as
+ * {@code autosleep.cf.request.<endpoint>.*} metrics, latencies being given in milliseconds.
+ */
+public class InstrumentedCloudFoundryApi extends ReactiveCloudFoundryApiDecorator implements PublicMetrics {
+
+    /**
+     * Measures of a single endpoint.
+     */
+    public static class EndpointMetrics {
+
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public long getErrorCount(String errorCode) {
+            AtomicLong count = errors.get(errorCode);
+            return count == null ? 0 : count.get();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+    }
+
+    private static final double[] PUBLISHED_PERCENTILES = {50, 95, 99};
+
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    public InstrumentedCloudFoundryApi(ReactiveCloudFoundryApiService delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Measure a single request sent to an endpoint, with the {@link InstrumentedCloudFoundryApi} given by the
+     * subscriber context, if any. The request is only sent otherwise.
+     */
+    static <T> Mono<T> measure(String endpoint, Supplier<Mono<T>> request) {
+        return Mono.subscriberContext()
+                .flatMap(context -> context.<InstrumentedCloudFoundryApi>getOrEmpty(InstrumentedCloudFoundryApi.class)
+                        .map(api -> api.record(endpoint, request))
+                        .orElseGet(() -> Mono.defer(request)));
+    }
+
+    private static double toMillis(Duration duration) {
+        return duration.toNanos() / 1_000_000d;
+    }
+
+    @Override
+    protected <T> Mono<T> decorate(CloudFoundryOperation operation, Supplier<Mono<T>> call) {
+        return Mono.defer(call)
+                .subscriberContext(context -> context.put(InstrumentedCloudFoundryApi.class, this));
+    }
+
+    @Override
+    protected <T> Flux<T> decorateMany(CloudFoundryOperation operation, Supplier<Flux<T>> call) {
+        return Flux.defer(call)
+                .subscriberContext(context -> context.put(InstrumentedCloudFoundryApi.class, this));
+    }
+
+    private <T> Mono<T> record(String endpoint, Supplier<Mono<T>> request) {
+        EndpointMetrics metrics = getMetrics(endpoint);
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            metrics.inFlight.incrementAndGet();
+            return Mono.defer(request)
+                    .doOnSuccess(result -> metrics.latency.record(Duration.ofNanos(System.nanoTime() - start)))
+                    .doOnError(throwable -> {
+                        metrics.latency.record(Duration.ofNanos(System.nanoTime() - start));
+                        metrics.errors.computeIfAbsent(CloudFoundryErrors.getErrorCode(throwable),
+                                errorCode -> new AtomicLong()).incrementAndGet();
+                    })
+                    .doFinally(signal -> metrics.inFlight.decrementAndGet());
+        });
+    }
+
+    public EndpointMetrics getMetrics(String endpoint) {
+        return endpoints.computeIfAbsent(endpoint, name -> new EndpointMetrics());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        endpoints.forEach((endpoint, endpointMetrics) -> {
+            String prefix = "autosleep.cf.request." + endpoint + ".";
+            LatencyHistogram latency = endpointMetrics.latency;
+            metrics.add(new Metric<>(prefix + "calls", latency.getCount()));
+            metrics.add(new Metric<>(prefix + "inflight", endpointMetrics.inFlight.get()));
+            if (latency.getCount() > 0) {
+                metrics.add(new Metric<>(prefix + "latency.mean", toMillis(latency.getMean())));
+                for (double percentile : PUBLISHED_PERCENTILES) {
+                    metrics.add(new Metric<>(prefix + "latency.p" + (int) percentile,
+                            toMillis(latency.getPercentile(percentile))));
+                }
+                metrics.add(new Metric<>(prefix + "latency.max", toMillis(latency.getMax())));
+            }
+            endpointMetrics.errors.forEach((errorCode, count) -> metrics.add(new Metric<>(prefix + "errors."
+                    + errorCode, count.get())));
+        });
+        return metrics;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.function.Supplier;
+
+/**
+ * Sends every remote operation within the budget of a {@link CloudFoundryRateLimiter}, with the priority of the
+ * operation. The budget is given to the operation, and each request the operation sends takes a permit of its own.
+ */
+public class RateLimitedCloudFoundryApi extends ReactiveCloudFoundryApiDecorator {
+
+    private final CloudFoundryRateLimiter rateLimiter;
+
+    public RateLimitedCloudFoundryApi(ReactiveCloudFoundryApiService delegate, CloudFoundryRateLimiter rateLimiter) {
+        super(delegate);
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    protected <T> Mono<T> decorate(CloudFoundryOperation operation, Supplier<Mono<T>> call) {
+        return Mono.defer(call)
+                .subscriberContext(rateLimiter.budget(operation.getPriority()));
+    }
+
+    @Override
+    protected <T> Flux<T> decorateMany(CloudFoundryOperation operation, Supplier<Flux<T>> call) {
+        //pages are requested as needed, each of them within a permit
+        return Flux.defer(call)
+                .subscriberContext(rateLimiter.budget(operation.getPriority()));
+    }
+
+}
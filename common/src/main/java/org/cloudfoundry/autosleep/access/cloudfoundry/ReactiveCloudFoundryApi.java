@@ -0,0 +1,852 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationBindingResult;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.ExpiringCache;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.OrderDirection;
+import org.cloudfoundry.client.v2.PaginatedResponse;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesResponse;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationRoutesRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationsResponse;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.client.v2.events.EventEntity;
+import org.cloudfoundry.client.v2.events.EventResource;
+import org.cloudfoundry.client.v2.events.ListEventsRequest;
+import org.cloudfoundry.client.v2.events.ListEventsResponse;
+import org.cloudfoundry.client.v2.organizations.GetOrganizationRequest;
+import org.cloudfoundry.client.v2.organizations.GetOrganizationResponse;
+import org.cloudfoundry.client.v2.privatedomains.GetPrivateDomainRequest;
+import org.cloudfoundry.client.v2.routes.GetRouteRequest;
+import org.cloudfoundry.client.v2.routes.ListRouteApplicationsRequest;
+import org.cloudfoundry.client.v2.routes.RouteEntity;
+import org.cloudfoundry.client.v2.servicebindings.CreateServiceBindingRequest;
+import org.cloudfoundry.client.v2.servicebindings.DeleteServiceBindingRequest;
+import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteRequest;
+import org.cloudfoundry.client.v2.shareddomains.GetSharedDomainRequest;
+import org.cloudfoundry.doppler.DopplerClient;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.RecentLogsRequest;
+import org.cloudfoundry.util.PaginationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Cloudfoundry api relying on the v2 Cloud Controller api. Used unless {@link Config.EnvKey#CF_API_VERSION} selects
+ * another one.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = Config.EnvKey.CF_API_VERSION, havingValue = Config.CloudFoundryApiVersion.V2,
+        matchIfMissing = true)
+public class ReactiveCloudFoundryApi implements ReactiveCloudFoundryApiService {
+
+    /**
+     * Accumulates, for one application, the partial results of a batched activity retrieval.
+     */
+    static class ActivityCollector {
+
+        final String appUid;
+
+        volatile Throwable error;
+
+        volatile EventResource lastEvent;
+
+        volatile LogMessage lastLog;
+
+        volatile String name;
+
+        final ApplicationActivityQuery query;
+
+        volatile String state;
+
+        ActivityCollector(String appUid, ApplicationActivityQuery query) {
+            this.appUid = appUid;
+            this.query = query;
+        }
+
+        void fail(Throwable throwable) {
+            if (error == null) {
+                error = throwable;
+            }
+        }
+
+    }
+
+    /**
+     * Max number of application ids given in a single multi-actee or multi-space filter, to keep urls short.
+     */
+    static final int BATCH_FILTER_SIZE = 50;
+
+    /**
+     * Max number of single last event requests sent at the same time, for applications not found in the first pages.
+     */
+    static final int BATCH_LAST_EVENT_CONCURRENCY = 10;
+
+    /**
+     * Max number of pages of events read for a chunk of applications: an application without any recent event would
+     * otherwise make the whole event history of the others be read.
+     */
+    static final int BATCH_MAX_EVENT_PAGES = 5;
+
+    static final int BATCH_RECENT_LOGS_CONCURRENCY = 10;
+
+    static final int BATCH_RESULTS_PER_PAGE = 100;
+
+    /**
+     * Max number of single state requests sent at the same time, for applications missing from the state listings.
+     */
+    static final int BATCH_STATE_CONCURRENCY = 10;
+
+    static final int CF_DOMAIN_NOT_FOUND = 130_002;
+
+    static final int CF_INSTANCES_ERROR = 220_001;
+
+    static final int CF_STAGING_NOT_FINISHED = 170_002;
+
+    static final int CF_ORGANIZATION_NOT_FOUND = 30_003;
+
+    static final int DOMAIN_CACHE_SIZE = 1_000;
+
+    static final int ROUTE_CACHE_SIZE = 10_000;
+
+    /**
+     * Max time waited for the answer of a single remote call.
+     */
+    Duration apiTimeout = Config.CF_API_TIMEOUT;
+
+    /**
+     * Max number of bindings of a bulk binding created at the same time.
+     */
+    private int bindConcurrency = Config.DEFAULT_CF_BIND_CONCURRENCY;
+
+    @Autowired
+    CloudFoundryClient cfClient;
+
+    @Autowired(required = false)
+    private CounterService counterService;
+
+    /**
+     * Names of domains by id. Domains of a foundation are few and nearly static.
+     */
+    private final ExpiringCache<String, String> domainNames = new ExpiringCache<>("domains",
+            Config.DOMAIN_CACHE_TIME_TO_LIVE, DOMAIN_CACHE_SIZE, this::incrementCounter);
+
+    @Autowired
+    private DopplerClient dopplerClient;
+
+    @Autowired
+    private Environment environment;
+
+    /**
+     * Max number of pages of a listing requested at the same time.
+     */
+    private int listConcurrency = Config.DEFAULT_CF_LIST_CONCURRENCY;
+
+    /**
+     * Routes by id, also filled when routes of an application are listed.
+     */
+    private final ExpiringCache<String, RouteEntity> routes = new ExpiringCache<>("routes",
+            Config.ROUTE_CACHE_TIME_TO_LIVE, ROUTE_CACHE_SIZE, this::incrementCounter);
+
+    /**
+     * Max number of stops of a bulk stop sent at the same time.
+     */
+    private int stopConcurrency = Config.DEFAULT_CF_STOP_CONCURRENCY;
+
+    @PostConstruct
+    void init() {
+        listConcurrency = Math.max(1, environment.getProperty(Config.EnvKey.CF_LIST_CONCURRENCY, Integer.class,
+                Config.DEFAULT_CF_LIST_CONCURRENCY));
+        log.debug("cloudfoundry listing concurrency: {}", listConcurrency);
+        apiTimeout = Duration.ofMillis(environment.getProperty(Config.EnvKey.CF_READ_TIMEOUT_MILLIS, Long.class,
+                Config.CF_API_TIMEOUT.toMillis()));
+        log.debug("cloudfoundry read timeout: {}", apiTimeout);
+        bindConcurrency = Math.max(1, environment.getProperty(Config.EnvKey.CF_BIND_CONCURRENCY, Integer.class,
+                Config.DEFAULT_CF_BIND_CONCURRENCY));
+        log.debug("cloudfoundry bind concurrency: {}", bindConcurrency);
+        stopConcurrency = Math.max(1, environment.getProperty(Config.EnvKey.CF_STOP_CONCURRENCY, Integer.class,
+                Config.DEFAULT_CF_STOP_CONCURRENCY));
+        log.debug("cloudfoundry stop concurrency: {}", stopConcurrency);
+    }
+
+    /**
+     * Defers a single remote call, bounding it with the api timeout and signaling its errors as
+     * {@link CloudFoundryException}.
+     * @param endpoint the endpoint called, such as {@code applications.get}
+     */
+    <T> Mono<T> remoteCall(String endpoint, Supplier<Mono<T>> call) {
+        return request(endpoint, call)
+                .onErrorMap(ReactiveCloudFoundryApi::toCloudFoundryException);
+    }
+
+    /**
+     * Defers a single request, sent within the rate limiter budget of the operation, if any, and bounded with the api
+     * timeout once sent.
+     * @param endpoint the endpoint called, such as {@code applications.get}
+     */
+    <T> Mono<T> request(String endpoint, Supplier<Mono<T>> call) {
+        return CloudFoundryRateLimiter.send(endpoint, () -> Mono.defer(call)
+                .timeout(apiTimeout));
+    }
+
+    private static Throwable toCloudFoundryException(Throwable throwable) {
+        return throwable instanceof CloudFoundryException ? throwable : new CloudFoundryException(throwable);
+    }
+
+    private <T, U> Mono<Void> bind(String endpoint, List<T> objectsToBind, Function<T, Mono<U>> caller) {
+        log.debug("bind - {} objects", objectsToBind.size());
+        //every binding is attempted, even if some of them fail
+        return Flux.fromIterable(objectsToBind)
+                .flatMapDelayError(objectToBind -> remoteCall(endpoint, () -> caller.apply(objectToBind)),
+                        bindConcurrency, 1)
+                .then()
+                .onErrorMap(ReactiveCloudFoundryApi::toCloudFoundryException);
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationBindingResult>> bindApplications(String serviceInstanceId,
+                                                                        List<ApplicationIdentity> applications) {
+        log.debug("bindApplications - {} applications", applications.size());
+        //every binding is attempted, even if some of them fail
+        return Flux.fromIterable(applications)
+                .flatMap(application -> remoteCall("service_bindings.create", () -> cfClient.serviceBindingsV2()
+                                .create(CreateServiceBindingRequest.builder()
+                                        .applicationId(application.getGuid())
+                                        .serviceInstanceId(serviceInstanceId)
+                                        .build()))
+                                .then(Mono.fromCallable(() -> ApplicationBindingResult.builder()
+                                        .application(application)
+                                        .build()))
+                                .onErrorResume(throwable -> Mono.just(ApplicationBindingResult.builder()
+                                        .application(application)
+                                        .error((CloudFoundryException) throwable)
+                                        .build())),
+                        bindConcurrency)
+                .collectMap(result -> result.getApplication().getGuid())
+                .doOnNext(results -> log.debug("bindApplications - {} applications - {} failed", results.size(),
+                        results.values().stream().filter(ApplicationBindingResult::isFailed).count()));
+    }
+
+    @Override
+    public Mono<Void> bindRoutes(String serviceInstanceId, List<String> routeIds) {
+        return bind("service_instances.bind_route", routeIds,
+                routeId -> cfClient.serviceInstances()
+                        .bindRoute(
+                                BindServiceInstanceRouteRequest.builder()
+                                        .serviceInstanceId(serviceInstanceId)
+                                        .routeId(routeId)
+                                        .build()));
+    }
+
+    private ApplicationInfo.DiagnosticInfo.ApplicationEvent buildAppEvent(EventResource event) {
+        if (event == null) {
+            return null;
+        } else {
+            EventEntity cfEvent = event.getEntity();
+            return ApplicationInfo.DiagnosticInfo.ApplicationEvent.builder()
+                    .actee(cfEvent.getActee())
+                    .actor(cfEvent.getActor())
+                    .name(cfEvent.getType())
+                    .timestamp(Instant.parse(cfEvent.getTimestamp()).toEpochMilli())
+                    .type(cfEvent.getType())
+                    .build();
+        }
+    }
+
+    static ApplicationInfo.DiagnosticInfo.ApplicationLog buildAppLog(LogMessage logMessage) {
+        return logMessage == null ? null :
+                ApplicationInfo.DiagnosticInfo.ApplicationLog.builder()
+                .message(logMessage.getMessage())
+                .timestampNanos(getLogMessageTimestampNanos(logMessage))
+                .messageType(getLogMessageType(logMessage))
+                .sourceId(logMessage.getSourceInstance())
+                .sourceName(logMessage.getSourceType())
+                .build();
+    }
+
+    private static String getLogMessageType(LogMessage logMessage) {
+        return logMessage.getMessageType() != null ? logMessage.getMessageType().name() : null;
+    }
+
+    private Mono<Boolean> changeApplicationState(String applicationUuid, String targetState) {
+        log.debug("changeApplicationState to {}", targetState);
+        return getApplicationState(applicationUuid)
+                .flatMap(state -> {
+                    if (!targetState.equals(state)) {
+                        return remoteCall("applications.update",
+                                () -> updateApplicationState(applicationUuid, targetState))
+                                .then(Mono.just(true));
+                    } else {
+                        log.warn("application {} already in state {}, nothing to do", applicationUuid, targetState);
+                        return Mono.just(false);
+                    }
+                });
+    }
+
+    /**
+     * Read the name and the state of a single application.
+     */
+    Mono<Void> collectState(ActivityCollector collector) {
+        return cfClient.applicationsV2()
+                .get(GetApplicationRequest.builder()
+                        .applicationId(collector.appUid)
+                        .build())
+                .doOnNext(application -> {
+                    collector.name = application.getEntity().getName();
+                    collector.state = application.getEntity().getState();
+                })
+                .then();
+    }
+
+    @Override
+    public Mono<ApplicationActivity> getApplicationActivity(String appUid) {
+        return getApplicationActivity(appUid, ApplicationActivityQuery.builder().build());
+    }
+
+    @Override
+    public Mono<ApplicationActivity> getApplicationActivity(String appUid, ApplicationActivityQuery query) {
+        log.debug("getApplicationActivity -  {}", appUid);
+        final ApplicationInfo.DiagnosticInfo.ApplicationEvent lastKnownEvent = query.getLastKnownEvent();
+        final ApplicationInfo.DiagnosticInfo.ApplicationLog lastKnownLog = query.getLastKnownLog();
+        //We need to call for appState, lastlogs and lastEvents
+        final ActivityCollector collector = new ActivityCollector(appUid, query);
+        return Mono.zip(
+                remoteCall("applications.get", () -> collectState(collector).then(Mono.just(collector))),
+                remoteCall("events.list", () -> getLastEvent(appUid, getTimestamp(lastKnownEvent))
+                        .map(Optional::of)
+                        .defaultIfEmpty(Optional.ofNullable(lastKnownEvent))),
+                query.isSkipRecentLogs()
+                        ? Mono.just(Optional.ofNullable(lastKnownLog))
+                        : remoteCall("recent_logs", () -> getLastLogMessage(appUid, getTimestamp(lastKnownLog),
+                                query.getActiveSince())
+                                .map(ReactiveCloudFoundryApi::buildAppLog)
+                                .map(Optional::of)
+                                .defaultIfEmpty(Optional.ofNullable(lastKnownLog))))
+                .map(results -> ApplicationActivity.builder()
+                        .application(ApplicationIdentity.builder()
+                                .guid(appUid)
+                                .name(results.getT1().name)
+                                .build())
+                        .lastEvent(results.getT2().orElse(null))
+                        .lastLog(results.getT3().orElse(null))
+                        .state(results.getT1().state)
+                        .build())
+                .doOnNext(applicationActivity -> log.debug("getApplicationActivity -  {}  - resulted in {}", appUid,
+                        applicationActivity));
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationActivity>> getApplicationActivities(Collection<String> appUids) {
+        final ApplicationActivityQuery noQuery = ApplicationActivityQuery.builder().build();
+        return Mono.defer(() -> {
+            Map<String, ApplicationActivityQuery> queries = new HashMap<>();
+            appUids.forEach(appUid -> queries.put(appUid, noQuery));
+            return getApplicationActivities(queries);
+        });
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationActivity>> getApplicationActivities(
+            Map<String, ApplicationActivityQuery> queries) {
+        log.debug("getApplicationActivities - {} applications", queries.size());
+        final Map<String, ActivityCollector> collectors = new ConcurrentHashMap<>();
+        return Mono.defer(() -> {
+            queries.forEach((appUid, query) -> collectors.put(appUid, new ActivityCollector(appUid, query)));
+            final List<List<String>> appUidChunks = partition(new ArrayList<>(collectors.keySet()));
+            //last events give us the space of each application, used to list their states space by space
+            Mono<Void> eventsThenStates = Flux.fromIterable(appUidChunks)
+                    .concatMap(chunk -> collectLastEvents(chunk, collectors))
+                    .then(Mono.defer(() -> collectStates(collectors)));
+            Mono<Void> logs = Flux.fromIterable(collectors.values())
+                    .filter(collector -> !collector.query.isSkipRecentLogs())
+                    .flatMap(collector -> request("recent_logs", () -> getLastLogMessage(collector.appUid,
+                                    getTimestamp(collector.query.getLastKnownLog()),
+                                    collector.query.getActiveSince()))
+                                    .doOnNext(logMessage -> collector.lastLog = logMessage)
+                                    .onErrorResume(throwable -> {
+                                        collector.fail(throwable);
+                                        return Mono.empty();
+                                    }),
+                            BATCH_RECENT_LOGS_CONCURRENCY)
+                    .then();
+            return Mono.when(eventsThenStates, logs);
+        })
+                .then(Mono.fromCallable(() -> {
+                    Map<String, ApplicationActivity> result = new HashMap<>();
+                    collectors.values().forEach(collector -> result.put(collector.appUid, ApplicationActivity.builder()
+                            .application(ApplicationIdentity.builder()
+                                    .guid(collector.appUid)
+                                    .name(collector.name)
+                                    .build())
+                            .error(collector.error == null ? null : new CloudFoundryException(collector.error))
+                            .lastEvent(collector.lastEvent == null ? collector.query.getLastKnownEvent()
+                                    : buildAppEvent(collector.lastEvent))
+                            .lastLog(collector.lastLog == null ? collector.query.getLastKnownLog()
+                                    : buildAppLog(collector.lastLog))
+                            .state(collector.state)
+                            .build()));
+                    log.debug("getApplicationActivities - {} applications - {} failed", result.size(),
+                            result.values().stream().filter(ApplicationActivity::isFailed).count());
+                    return result;
+                }))
+                .onErrorMap(throwable -> new CloudFoundryException(
+                        "failed retrieving activities of " + queries.size() + " applications", throwable));
+    }
+
+    /**
+     * Request only the most recent event of an application.
+     * @param cursor only events at least as recent are requested (cloudfoundry filters on seconds), if not null
+     */
+    private Mono<ApplicationInfo.DiagnosticInfo.ApplicationEvent> getLastEvent(String appUid, Instant cursor) {
+        return requestLastEvent(appUid, cursor)
+                .map(this::buildAppEvent);
+    }
+
+    private Mono<EventResource> requestLastEvent(String appUid, Instant cursor) {
+        ListEventsRequest.Builder request = ListEventsRequest.builder()
+                .actee(appUid)
+                .orderDirection(OrderDirection.DESCENDING)
+                .resultsPerPage(1);
+        if (cursor != null) {
+            request.timestamp(cursor.truncatedTo(ChronoUnit.SECONDS).toString());
+        }
+        return cfClient.events()
+                .list(request.build())
+                .filter(response -> response.getResources() != null && !response.getResources().isEmpty())
+                .map(response -> response.getResources().get(0));
+    }
+
+    public Instant getInstantFromLogMessageTimestamp(Long logMessageTimestamp) {
+        return Instant.ofEpochSecond(0, logMessageTimestamp);
+    }
+
+    private Mono<ApplicationInstancesResponse> getApplicationInstances(String applicationUuid) {
+        log.debug("listApplicationRoutes");
+        return cfClient.applicationsV2()
+                .instances(
+                        ApplicationInstancesRequest.builder()
+                                .applicationId(applicationUuid)
+                                .build())
+                .onErrorResume(throwable -> {
+                    if (throwable instanceof org.cloudfoundry.client.v2.ClientV2Exception
+                            && isNoInstanceFoundError((org.cloudfoundry.client.v2.ClientV2Exception) throwable)) {
+                        return Mono.just(ApplicationInstancesResponse.builder().build());
+                    } else {
+                        return Mono.error(throwable);
+                    }
+                });
+    }
+
+    @Override
+    public Mono<String> getApplicationState(String applicationUuid) {
+        log.debug("getApplicationState");
+        return remoteCall("applications.get", () -> this.cfClient
+                .applicationsV2()
+                .get(GetApplicationRequest.builder()
+                        .applicationId(applicationUuid)
+                        .build()))
+                .map(response -> response.getEntity().getState());
+    }
+
+    /**
+     * Read events of a chunk of applications, most recent first, until the last event of each of them is known or
+     * {@link #BATCH_MAX_EVENT_PAGES} pages are read. The last event of the applications still unknown is then
+     * requested application by application, only if more recent than the one already known, if any.
+     */
+    private Mono<Void> collectLastEvents(List<String> appUids, Map<String, ActivityCollector> collectors) {
+        final Set<String> remaining = ConcurrentHashMap.newKeySet();
+        remaining.addAll(appUids);
+        return Flux.range(1, BATCH_MAX_EVENT_PAGES)
+                .concatMap(page -> request("events.list", () -> cfClient.events()
+                        .list(ListEventsRequest.builder()
+                                .actees(appUids)
+                                .orderDirection(OrderDirection.DESCENDING)
+                                .resultsPerPage(BATCH_RESULTS_PER_PAGE)
+                                .page(page)
+                                .build())), 1)
+                .takeUntil(response -> response.getNextUrl() == null)
+                .flatMapIterable(ListEventsResponse::getResources)
+                .filter(event -> remaining.remove(event.getEntity().getActee()))
+                .doOnNext(event -> collectors.get(event.getEntity().getActee()).lastEvent = event)
+                .takeUntil(event -> remaining.isEmpty())
+                .then()
+                .onErrorResume(throwable -> {
+                    appUids.forEach(appUid -> collectors.get(appUid).fail(throwable));
+                    remaining.clear();
+                    return Mono.empty();
+                })
+                .thenMany(Flux.defer(() -> Flux.fromIterable(remaining)))
+                .flatMap(appUid -> request("events.list", () -> requestLastEvent(appUid,
+                                getTimestamp(collectors.get(appUid).query.getLastKnownEvent())))
+                                .doOnNext(event -> collectors.get(appUid).lastEvent = event)
+                                .onErrorResume(throwable -> {
+                                    collectors.get(appUid).fail(throwable);
+                                    return Mono.empty();
+                                }),
+                        BATCH_LAST_EVENT_CONCURRENCY)
+                .then();
+    }
+
+    /**
+     * List applications of the spaces known from last events, and fall back on a single get for the others.
+     */
+    Mono<Void> collectStates(Map<String, ActivityCollector> collectors) {
+        final Set<String> spaceIds = new LinkedHashSet<>();
+        collectors.values().stream()
+                .filter(collector -> collector.lastEvent != null)
+                .forEach(collector -> spaceIds.add(collector.lastEvent.getEntity().getSpaceId()));
+        final Set<String> found = ConcurrentHashMap.newKeySet();
+        return Flux.fromIterable(partition(new ArrayList<>(spaceIds)))
+                .concatMap(spaceIdsChunk -> PaginationUtils
+                        .requestClientV2Resources(page -> request("applications.list", () -> cfClient.applicationsV2()
+                                .list(ListApplicationsRequest.builder()
+                                        .spaceIds(spaceIdsChunk)
+                                        .resultsPerPage(BATCH_RESULTS_PER_PAGE)
+                                        .page(page)
+                                        .build())))
+                        .onErrorResume(throwable -> {
+                            log.warn("failed listing applications of {} spaces, falling back on single gets",
+                                    spaceIdsChunk.size(), throwable);
+                            return Flux.empty();
+                        }))
+                .filter(application -> collectors.containsKey(application.getMetadata().getId()))
+                .doOnNext(application -> {
+                    ActivityCollector collector = collectors.get(application.getMetadata().getId());
+                    collector.name = application.getEntity().getName();
+                    collector.state = application.getEntity().getState();
+                    found.add(collector.appUid);
+                })
+                .thenMany(Flux.defer(() -> Flux.fromIterable(collectors.values())
+                        .filter(collector -> !found.contains(collector.appUid))))
+                .flatMap(collector -> request("applications.get", () -> collectState(collector))
+                                .onErrorResume(throwable -> {
+                                    collector.fail(throwable);
+                                    return Mono.empty();
+                                }),
+                        BATCH_STATE_CONCURRENCY)
+                .then();
+    }
+
+    private static Instant getTimestamp(ApplicationInfo.DiagnosticInfo.ApplicationEvent event) {
+        return event == null ? null : event.getTimestamp();
+    }
+
+    private static Instant getTimestamp(ApplicationInfo.DiagnosticInfo.ApplicationLog log) {
+        return log == null ? null : log.getTimestamp();
+    }
+
+    /**
+     * Scan recent logs for the most recent one.
+     * @param highWaterMark logs not more recent are skipped (already seen by a previous check), if not null
+     * @param activeSince the scan stops on the first log at least as recent, which is then returned, if not null
+     */
+    private Mono<LogMessage> getLastLogMessage(String appUid, Instant highWaterMark, Instant activeSince) {
+        final long highWaterMarkNanos = highWaterMark == null ? Long.MIN_VALUE : toNanos(highWaterMark);
+        final long activeSinceNanos = activeSince == null ? Long.MAX_VALUE : toNanos(activeSince);
+        return dopplerClient.recentLogs(RecentLogsRequest.builder()
+                .applicationId(appUid)
+                .build())
+                //Sometimes observed missing log envelope timestamp, rather relying on log message timestamp
+                .filter(envelope -> {
+                    if (envelope.getLogMessage() == null) {
+                        log.warn("recent log without log message. Skipping. Envelope: {}", envelope);
+                        return false;
+                    } else if (envelope.getLogMessage().getTimestamp() == null) {
+                        log.warn("recent log without log message timestamp. Skipping. Envelope: {}", envelope);
+                        return false;
+                    } else {
+                        return true;
+                    }
+                })
+                .map(Envelope::getLogMessage)
+                .filter(logMessage -> logMessage.getTimestamp() > highWaterMarkNanos)
+                //logs are not ordered: any log recent enough is enough to know the application is active
+                .takeUntil(logMessage -> logMessage.getTimestamp() >= activeSinceNanos)
+                //otherwise must find the most recent
+                .reduce((first, second) -> first.getTimestamp() >= second.getTimestamp() ? first : second);
+    }
+
+    /**
+     * Request every page of a listing. Once the first page gives their number, the other pages are requested at most
+     * {@link #listConcurrency} at a time, and emitted in order.
+     */
+    private <R extends PaginatedResponse<?>> Flux<R> requestPages(String endpoint,
+                                                                   Function<Integer, Mono<R>> pageRequester) {
+        Function<Integer, Mono<R>> boundedPageRequester = page -> remoteCall(endpoint, () -> pageRequester.apply(page));
+        return boundedPageRequester.apply(1)
+                .flatMapMany(firstPage -> {
+                    int totalPages = firstPage.getTotalPages() == null ? 1 : firstPage.getTotalPages();
+                    return Flux.just(firstPage)
+                            .concatWith(Flux.range(2, Math.max(0, totalPages - 1))
+                                    .flatMapSequential(boundedPageRequester, listConcurrency));
+                });
+    }
+
+    private static long toNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    static <T> List<List<T>> partition(List<T> items) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += BATCH_FILTER_SIZE) {
+            chunks.add(items.subList(start, Math.min(items.size(), start + BATCH_FILTER_SIZE)));
+        }
+        return chunks;
+    }
+
+    private static Long getLogMessageTimestampNanos(LogMessage logMessage) {
+        Long timestamp = logMessage.getTimestamp();
+        return (timestamp != null ? timestamp : 0L);
+    }
+
+    @Override
+    public Mono<String> getHost(String routeId) {
+        log.debug("getHost");
+        return routes.get(routeId, id -> remoteCall("routes.get", () -> cfClient.routes()
+                .get(GetRouteRequest.builder()
+                        .routeId(id)
+                        .build()))
+                .map(response -> response.getEntity()))
+                .flatMap(routeEntity -> {
+                    String route = routeEntity.getHost() + routeEntity.getPath();
+                    log.debug("route =  {}", route);
+                    return getDomain(routeEntity.getDomainId())
+                            .map(domain -> route + "." + domain)
+                            //the route may have been moved to another domain
+                            .doOnError(throwable -> routes.invalidate(routeId));
+                });
+    }
+
+    /**
+     * Read the name of a domain, shared domains being the most common ones.
+     */
+    private Mono<String> getDomain(String domainId) {
+        return domainNames.get(domainId, id -> remoteCall("shared_domains.get", () -> cfClient.sharedDomains()
+                .get(GetSharedDomainRequest.builder()
+                        .sharedDomainId(id)
+                        .build()))
+                .map(domainResponse -> domainResponse.getEntity().getName())
+                .onErrorResume(this::isNoDomainFoundError, throwable -> remoteCall("private_domains.get",
+                        () -> cfClient.privateDomains()
+                                .get(GetPrivateDomainRequest.builder()
+                                        .privateDomainId(id)
+                                        .build()))
+                        .map(domainResponse -> domainResponse.getEntity().getName()))
+                .doOnNext(domainName -> log.debug("domain = {}", domainName)));
+    }
+
+    private void incrementCounter(String metric) {
+        if (counterService != null) {
+            counterService.increment(metric);
+        }
+    }
+
+    @Override
+    public void invalidateRoute(String routeId) {
+        routes.invalidate(routeId);
+    }
+
+    @Override
+    public void invalidateRoutes() {
+        routes.invalidateAll();
+        domainNames.invalidateAll();
+    }
+
+    @Override
+    public Mono<Boolean> isAppRunning(String appUid) {
+        log.debug("isAppRunning");
+        return remoteCall("applications.instances", () -> getApplicationInstances(appUid))
+                .map(response -> response.getInstances().values().stream()
+                        .anyMatch(instanceInfo -> "RUNNING".equals(instanceInfo.getState())));
+    }
+
+    private boolean isNoDomainFoundError(Throwable throwable) {
+        Throwable cause = CloudFoundryErrors.getRootCause(throwable);
+        return cause instanceof ClientV2Exception && ((ClientV2Exception) cause).getCode() == CF_DOMAIN_NOT_FOUND;
+    }
+
+    private boolean isNoInstanceFoundError(ClientV2Exception cloudfoundryException) {
+        return cloudfoundryException.getCode() == CF_INSTANCES_ERROR
+                || cloudfoundryException.getCode() == CF_STAGING_NOT_FINISHED;
+    }
+
+    @Override
+    public Flux<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames) {
+        log.debug("listAliveApplications from space_guid {} excluding the ones with name matching {}", spaceUuid,
+                excludeNames);
+        return requestPages("applications.list", page -> cfClient.applicationsV2()
+                .list(ListApplicationsRequest.builder()
+                        .spaceId(spaceUuid)
+                        .resultsPerPage(BATCH_RESULTS_PER_PAGE)
+                        .page(page)
+                        .build()))
+                .flatMapIterable(ListApplicationsResponse::getResources)
+                //remove the ones that are not started (ie. that have no instance), without asking for their instances
+                .filter(applicationResource -> CloudFoundryAppState.STARTED.equals(
+                        applicationResource.getEntity().getState()))
+                //remove all filtered applications
+                .filter(applicationResource -> excludeNames == null
+                        || !excludeNames.matcher(applicationResource.getEntity().getName()).matches())
+                .map(applicationResource -> ApplicationIdentity.builder()
+                        .guid(applicationResource.getMetadata().getId())
+                        .name(applicationResource.getEntity().getName())
+                        .build())
+                .onErrorMap(throwable -> new CloudFoundryException("failed listing applications from space_id: "
+                        + spaceUuid, throwable));
+    }
+
+    @Override
+    public Flux<String> listApplicationRoutes(String applicationUuid) {
+        log.debug("listApplicationRoutes");
+        return remoteCall("applications.routes", () -> cfClient.applicationsV2()
+                .listRoutes(
+                        ListApplicationRoutesRequest.builder()
+                                .applicationId(applicationUuid)
+                                .build()))
+                .flatMapIterable(response -> response.getResources())
+                //hosts of these routes are likely to be asked next
+                .doOnNext(routeResource -> routes.put(routeResource.getMetadata().getId(), routeResource.getEntity()))
+                .map(routeResource -> routeResource.getMetadata().getId());
+    }
+
+    @Override
+    public Flux<String> listRouteApplications(String routeUuid) {
+        log.debug("listRouteApplications");
+        return remoteCall("routes.applications", () -> cfClient.routes()
+                .listApplications(
+                        ListRouteApplicationsRequest.builder()
+                                .routeId(routeUuid)
+                                .build()))
+                .flatMapIterable(response -> response.getResources())
+                .map(appResource -> appResource.getMetadata().getId());
+    }
+
+    @Override
+    public Mono<Boolean> startApplication(String applicationUuid) {
+        log.debug("startApplication");
+        return changeApplicationState(applicationUuid, CloudFoundryAppState.STARTED);
+    }
+
+    @Override
+    public Mono<Boolean> stopApplication(String applicationUuid) {
+        log.debug("stopApplication");
+        return changeApplicationState(applicationUuid, CloudFoundryAppState.STOPPED);
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationStopResult>> stopApplications(Collection<String> appUids) {
+        log.debug("stopApplications - {} applications", appUids.size());
+        //every stop is attempted, even if some of them fail
+        return Flux.fromIterable(new LinkedHashSet<>(appUids))
+                .flatMap(appUid -> remoteCall("applications.update",
+                        () -> updateApplicationState(appUid, CloudFoundryAppState.STOPPED))
+                                .then(Mono.fromCallable(() -> ApplicationStopResult.builder()
+                                        .appUid(appUid)
+                                        .build()))
+                                .onErrorResume(throwable -> Mono.just(ApplicationStopResult.builder()
+                                        .appUid(appUid)
+                                        .error((CloudFoundryException) throwable)
+                                        .build())),
+                        stopConcurrency)
+                .collectMap(ApplicationStopResult::getAppUid)
+                .doOnNext(results -> log.debug("stopApplications - {} applications - {} failed", results.size(),
+                        results.values().stream().filter(ApplicationStopResult::isFailed).count()));
+    }
+
+    @Override
+    public Mono<Void> unbind(String bindingId) {
+        return remoteCall("service_bindings.delete", () -> cfClient.serviceBindingsV2()
+                .delete(DeleteServiceBindingRequest.builder()
+                        .serviceBindingId(bindingId)
+                        .build()))
+                .then();
+    }
+
+    /**
+     * Ask cloudfoundry to start or stop an application.
+     */
+    Mono<Void> updateApplicationState(String applicationUuid, String targetState) {
+        return cfClient.applicationsV2()
+                .update(UpdateApplicationRequest.builder()
+                        .applicationId(applicationUuid)
+                        .state(targetState)
+                        .build())
+                .then();
+    }
+
+    @Override
+    public Mono<Boolean> isValidOrganization(String organizationGuid) {
+        return remoteCall("organizations.get", () -> cfClient.organizations()
+                .get(GetOrganizationRequest.builder().organizationId(organizationGuid).build())
+                .onErrorResume(throwable -> {
+                    if (throwable instanceof org.cloudfoundry.client.v2.ClientV2Exception
+                            && isNoOrganizationFoundError(
+                                    (org.cloudfoundry.client.v2.ClientV2Exception) throwable)) {
+                        return Mono.just(GetOrganizationResponse.builder().build());
+                    } else {
+                        return Mono.error(throwable);
+                    }
+                }))
+                .map(response -> response.getEntity() != null);
+    }
+
+    private boolean isNoOrganizationFoundError(
+            ClientV2Exception cloudfoundryException) {
+        return cloudfoundryException.getCode() == CF_ORGANIZATION_NOT_FOUND;
+    }
+
+}
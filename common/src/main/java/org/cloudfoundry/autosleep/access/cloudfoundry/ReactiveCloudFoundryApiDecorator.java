@@ -0,0 +1,167 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationBindingResult;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Base of the decorators of {@link ReactiveCloudFoundryApiService}: every remote operation is forwarded to the
+ * decorated api through {@link #decorate(CloudFoundryOperation, Supplier)}.
+ */
+public abstract class ReactiveCloudFoundryApiDecorator implements ReactiveCloudFoundryApiService {
+
+    private final ReactiveCloudFoundryApiService delegate;
+
+    protected ReactiveCloudFoundryApiDecorator(ReactiveCloudFoundryApiService delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationBindingResult>> bindApplications(String serviceInstanceId,
+                                                                        List<ApplicationIdentity> applications) {
+        return decorate(CloudFoundryOperation.BIND_APPLICATIONS,
+                () -> delegate.bindApplications(serviceInstanceId, applications));
+    }
+
+    @Override
+    public Mono<Void> bindRoutes(String serviceInstanceId, List<String> routeIds) {
+        return decorate(CloudFoundryOperation.BIND_ROUTES, () -> delegate.bindRoutes(serviceInstanceId, routeIds));
+    }
+
+    /**
+     * Decorate a single remote operation. The call must not be made before subscription.
+     */
+    protected abstract <T> Mono<T> decorate(CloudFoundryOperation operation, Supplier<Mono<T>> call);
+
+    /**
+     * Decorate a listing. Default implementation decorates the listing as a whole, once collected.
+     */
+    protected <T> Flux<T> decorateMany(CloudFoundryOperation operation, Supplier<Flux<T>> call) {
+        return decorate(operation, () -> call.get().collectList())
+                .flatMapIterable(items -> items);
+    }
+
+    @Override
+    public Mono<ApplicationActivity> getApplicationActivity(String appUid) {
+        return decorate(CloudFoundryOperation.GET_APPLICATION_ACTIVITY, () -> delegate.getApplicationActivity(appUid));
+    }
+
+    @Override
+    public Mono<ApplicationActivity> getApplicationActivity(String appUid, ApplicationActivityQuery query) {
+        return decorate(CloudFoundryOperation.GET_APPLICATION_ACTIVITY,
+                () -> delegate.getApplicationActivity(appUid, query));
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationActivity>> getApplicationActivities(Collection<String> appUids) {
+        return decorate(CloudFoundryOperation.GET_APPLICATION_ACTIVITIES,
+                () -> delegate.getApplicationActivities(appUids));
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationActivity>> getApplicationActivities(
+            Map<String, ApplicationActivityQuery> queries) {
+        return decorate(CloudFoundryOperation.GET_APPLICATION_ACTIVITIES,
+                () -> delegate.getApplicationActivities(queries));
+    }
+
+    @Override
+    public Mono<String> getApplicationState(String applicationUuid) {
+        return decorate(CloudFoundryOperation.GET_APPLICATION_STATE,
+                () -> delegate.getApplicationState(applicationUuid));
+    }
+
+    @Override
+    public Mono<String> getHost(String routeId) {
+        return decorate(CloudFoundryOperation.GET_HOST, () -> delegate.getHost(routeId));
+    }
+
+    @Override
+    public void invalidateRoute(String routeId) {
+        delegate.invalidateRoute(routeId);
+    }
+
+    @Override
+    public void invalidateRoutes() {
+        delegate.invalidateRoutes();
+    }
+
+    @Override
+    public Mono<Boolean> isAppRunning(String appUid) {
+        return decorate(CloudFoundryOperation.IS_APP_RUNNING, () -> delegate.isAppRunning(appUid));
+    }
+
+    @Override
+    public Flux<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames) {
+        return decorateMany(CloudFoundryOperation.LIST_ALIVE_APPLICATIONS,
+                () -> delegate.listAliveApplications(spaceUuid, excludeNames));
+    }
+
+    @Override
+    public Flux<String> listApplicationRoutes(String applicationUuid) {
+        return decorateMany(CloudFoundryOperation.LIST_APPLICATION_ROUTES,
+                () -> delegate.listApplicationRoutes(applicationUuid));
+    }
+
+    @Override
+    public Flux<String> listRouteApplications(String routeUuid) {
+        return decorateMany(CloudFoundryOperation.LIST_ROUTE_APPLICATIONS,
+                () -> delegate.listRouteApplications(routeUuid));
+    }
+
+    @Override
+    public Mono<Boolean> startApplication(String applicationUuid) {
+        return decorate(CloudFoundryOperation.START_APPLICATION, () -> delegate.startApplication(applicationUuid));
+    }
+
+    @Override
+    public Mono<Boolean> stopApplication(String applicationUuid) {
+        return decorate(CloudFoundryOperation.STOP_APPLICATION, () -> delegate.stopApplication(applicationUuid));
+    }
+
+    @Override
+    public Mono<Map<String, ApplicationStopResult>> stopApplications(Collection<String> appUids) {
+        return decorate(CloudFoundryOperation.STOP_APPLICATIONS, () -> delegate.stopApplications(appUids));
+    }
+
+    @Override
+    public Mono<Void> unbind(String bindingId) {
+        return decorate(CloudFoundryOperation.UNBIND, () -> delegate.unbind(bindingId));
+    }
+
+    @Override
+    public Mono<Boolean> isValidOrganization(String organizationGuid) {
+        return decorate(CloudFoundryOperation.IS_VALID_ORGANIZATION,
+                () -> delegate.isValidOrganization(organizationGuid));
+    }
+
+}
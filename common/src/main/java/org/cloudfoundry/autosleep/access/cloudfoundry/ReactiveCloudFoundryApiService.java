@@ -0,0 +1,104 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationBindingResult;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Non-blocking counterpart of {@link CloudFoundryApiService}: nothing is sent before subscription and no caller
+ * thread is held while waiting for cloudfoundry. Errors are signaled as {@link CloudFoundryException}.
+ */
+public interface ReactiveCloudFoundryApiService {
+
+    /**
+     * See {@link CloudFoundryApiService#bindApplications(String, List)}.
+     */
+    Mono<Map<String, ApplicationBindingResult>> bindApplications(String serviceInstanceId,
+                                                                 List<ApplicationIdentity> applications);
+
+    Mono<Void> bindRoutes(String serviceInstanceId, List<String> routeIds);
+
+    Mono<ApplicationActivity> getApplicationActivity(String appUid);
+
+    /**
+     * Retrieve activity, using what previous checks already know to read as few recent logs as possible.
+     * @param query known last log and activity threshold. The resulting last log may not be the most recent one when
+     *              a log newer than {@link ApplicationActivityQuery#getActiveSince()} was found
+     */
+    Mono<ApplicationActivity> getApplicationActivity(String appUid, ApplicationActivityQuery query);
+
+    /**
+     * See {@link CloudFoundryApiService#getApplicationActivities(Collection)}.
+     */
+    Mono<Map<String, ApplicationActivity>> getApplicationActivities(Collection<String> appUids);
+
+    /**
+     * Batched equivalent of {@link #getApplicationActivity(String, ApplicationActivityQuery)}.
+     * @param queries query of each application, keyed by application id
+     */
+    Mono<Map<String, ApplicationActivity>> getApplicationActivities(Map<String, ApplicationActivityQuery> queries);
+
+    Mono<String> getApplicationState(String applicationUuid);
+
+    Mono<String> getHost(String routeId);
+
+    /**
+     * Forget what is cached about a route, so that its next lookup asks cloudfoundry again.
+     */
+    void invalidateRoute(String routeId);
+
+    /**
+     * Forget every cached route and domain.
+     */
+    void invalidateRoutes();
+
+    Mono<Boolean> isAppRunning(String appUid);
+
+    Flux<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames);
+
+    Flux<String/**ids**/> listApplicationRoutes(String applicationUuid);
+
+    Flux<String/**ids**/> listRouteApplications(String routeUuid);
+
+    Mono<Boolean> startApplication(String applicationUuid);
+
+    Mono<Boolean> stopApplication(String applicationUuid);
+
+    /**
+     * See {@link CloudFoundryApiService#stopApplications(Collection)}.
+     */
+    Mono<Map<String, ApplicationStopResult>> stopApplications(Collection<String> appUids);
+
+    Mono<Void> unbind(String bindingId);
+
+    Mono<Boolean> isValidOrganization(String organizationGuid);
+
+}
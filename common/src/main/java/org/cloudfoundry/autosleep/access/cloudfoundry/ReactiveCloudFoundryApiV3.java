@@ -0,0 +1,187 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.client.v3.ClientV3Exception;
+import org.cloudfoundry.client.v3.applications.ApplicationState;
+import org.cloudfoundry.client.v3.applications.GetApplicationProcessStatisticsRequest;
+import org.cloudfoundry.client.v3.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v3.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v3.applications.StartApplicationRequest;
+import org.cloudfoundry.client.v3.applications.StopApplicationRequest;
+import org.cloudfoundry.client.v3.processes.ProcessState;
+import org.cloudfoundry.util.PaginationUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Cloudfoundry api relying on the v3 Cloud Controller api for applications: states of many applications are read
+ * with a single call filtering on their ids, and the ones of a space with large pages. Events, routes, domains and
+ * bindings have no v3 equivalent in the client library, and are still read with the v2 api.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = Config.EnvKey.CF_API_VERSION, havingValue = Config.CloudFoundryApiVersion.V3)
+public class ReactiveCloudFoundryApiV3 extends ReactiveCloudFoundryApi {
+
+    static final int HTTP_NOT_FOUND = 404;
+
+    static final int RESULTS_PER_PAGE = 1_000;
+
+    static final String WEB_PROCESS_TYPE = "web";
+
+    private static String getStateName(ApplicationState state) {
+        return state == null ? null : state.getValue();
+    }
+
+    private static boolean isNotFoundError(Throwable throwable) {
+        return throwable instanceof ClientV3Exception
+                && ((ClientV3Exception) throwable).getStatusCode() == HTTP_NOT_FOUND;
+    }
+
+    @Override
+    Mono<Void> collectState(ActivityCollector collector) {
+        return cfClient.applicationsV3()
+                .get(GetApplicationRequest.builder()
+                        .applicationId(collector.appUid)
+                        .build())
+                .doOnNext(application -> {
+                    collector.name = application.getName();
+                    collector.state = getStateName(application.getState());
+                })
+                .then();
+    }
+
+    /**
+     * List applications by their ids, and fall back on a single get for the ones missing from a failed listing.
+     */
+    @Override
+    Mono<Void> collectStates(Map<String, ActivityCollector> collectors) {
+        final Set<String> found = ConcurrentHashMap.newKeySet();
+        return Flux.fromIterable(partition(new ArrayList<>(collectors.keySet())))
+                .concatMap(appUidsChunk -> PaginationUtils
+                        .requestClientV3Resources(page -> request("applications.list", () -> cfClient.applicationsV3()
+                                .list(ListApplicationsRequest.builder()
+                                        .applicationIds(appUidsChunk)
+                                        .perPage(BATCH_FILTER_SIZE)
+                                        .page(page)
+                                        .build())))
+                        .onErrorResume(throwable -> {
+                            log.warn("failed listing {} applications, falling back on single gets",
+                                    appUidsChunk.size(), throwable);
+                            return Flux.empty();
+                        }))
+                .filter(application -> collectors.containsKey(application.getId()))
+                .doOnNext(application -> {
+                    ActivityCollector collector = collectors.get(application.getId());
+                    collector.name = application.getName();
+                    collector.state = getStateName(application.getState());
+                    found.add(collector.appUid);
+                })
+                .thenMany(Flux.defer(() -> Flux.fromIterable(collectors.values())
+                        .filter(collector -> !found.contains(collector.appUid))))
+                .flatMap(collector -> request("applications.get", () -> collectState(collector))
+                                .onErrorResume(throwable -> {
+                                    collector.fail(throwable);
+                                    return Mono.empty();
+                                }),
+                        BATCH_STATE_CONCURRENCY)
+                .then();
+    }
+
+    @Override
+    public Mono<String> getApplicationState(String applicationUuid) {
+        log.debug("getApplicationState");
+        return remoteCall("applications.get", () -> cfClient.applicationsV3()
+                .get(GetApplicationRequest.builder()
+                        .applicationId(applicationUuid)
+                        .build()))
+                .map(application -> getStateName(application.getState()));
+    }
+
+    @Override
+    public Mono<Boolean> isAppRunning(String appUid) {
+        log.debug("isAppRunning");
+        return remoteCall("processes.statistics", () -> cfClient.applicationsV3()
+                .getProcessStatistics(GetApplicationProcessStatisticsRequest.builder()
+                        .applicationId(appUid)
+                        .type(WEB_PROCESS_TYPE)
+                        .build())
+                //no web process yet: the application has never been staged
+                .onErrorResume(ReactiveCloudFoundryApiV3::isNotFoundError, throwable -> Mono.empty()))
+                .map(response -> response.getResources().stream()
+                        .anyMatch(statistics -> statistics.getState() == ProcessState.RUNNING))
+                .defaultIfEmpty(false);
+    }
+
+    @Override
+    public Flux<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames) {
+        log.debug("listAliveApplications from space_guid {} excluding the ones with name matching {}", spaceUuid,
+                excludeNames);
+        return PaginationUtils
+                .requestClientV3Resources(page -> remoteCall("applications.list", () -> cfClient.applicationsV3()
+                        .list(ListApplicationsRequest.builder()
+                                .spaceId(spaceUuid)
+                                .perPage(RESULTS_PER_PAGE)
+                                .page(page)
+                                .build())))
+                //remove the ones that are not started (ie. that have no instance), without asking for their instances
+                .filter(application -> CloudFoundryAppState.STARTED.equals(getStateName(application.getState())))
+                //remove all filtered applications
+                .filter(application -> excludeNames == null || !excludeNames.matcher(application.getName()).matches())
+                .map(application -> ApplicationIdentity.builder()
+                        .guid(application.getId())
+                        .name(application.getName())
+                        .build())
+                .onErrorMap(throwable -> new CloudFoundryException("failed listing applications from space_id: "
+                        + spaceUuid, throwable));
+    }
+
+    @Override
+    Mono<Void> updateApplicationState(String applicationUuid, String targetState) {
+        if (CloudFoundryAppState.STARTED.equals(targetState)) {
+            return cfClient.applicationsV3()
+                    .start(StartApplicationRequest.builder()
+                            .applicationId(applicationUuid)
+                            .build())
+                    .then();
+        } else {
+            return cfClient.applicationsV3()
+                    .stop(StopApplicationRequest.builder()
+                            .applicationId(applicationUuid)
+                            .build())
+                    .then();
+        }
+    }
+
+}
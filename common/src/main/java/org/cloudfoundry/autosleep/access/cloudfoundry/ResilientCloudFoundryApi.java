@@ -0,0 +1,222 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Makes remote operations resist cloudfoundry hiccups:
+ * <ul>
+ * <li>idempotent reads failing with a transient error are sent again, after an exponential and jittered delay,</li>
+ * <li>each operation has its own {@link CircuitBreaker}, so that a failing endpoint is not called in vain,</li>
+ * <li>hedged operations (the ones on the wake-up path) are sent a second time when the first call is slower than
+ * 95% of the previous ones, the first answer being used.</li>
+ * </ul>
+ * Each retry or hedged call goes through the decorated api, hence within the rate limit when decorating a
+ * {@link RateLimitedCloudFoundryApi}.
+ */
+@Slf4j
+public class ResilientCloudFoundryApi extends ReactiveCloudFoundryApiDecorator implements PublicMetrics {
+
+    /**
+     * Latencies of the last successful calls of an operation.
+     */
+    private static class LatencyWindow {
+
+        private int count;
+
+        private int next;
+
+        private final long[] samples = new long[LATENCY_WINDOW_SIZE];
+
+        synchronized Duration getPercentile95() {
+            if (count < LATENCY_MIN_SAMPLES) {
+                return null;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return Duration.ofNanos(sorted[(int) Math.ceil(count * 0.95) - 1]);
+        }
+
+        synchronized void record(long latencyNanos) {
+            samples[next] = latencyNanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+    }
+
+    static final int LATENCY_MIN_SAMPLES = 20;
+
+    static final int LATENCY_WINDOW_SIZE = 200;
+
+    static final Duration MAX_BACKOFF = Duration.ofSeconds(5);
+
+    static final Duration MIN_HEDGE_DELAY = Duration.ofMillis(50);
+
+    private final Duration backoff;
+
+    private final Map<CloudFoundryOperation, CircuitBreaker> circuitBreakers =
+            new EnumMap<>(CloudFoundryOperation.class);
+
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    private final boolean hedging;
+
+    private final Map<CloudFoundryOperation, LatencyWindow> latencies = new EnumMap<>(CloudFoundryOperation.class);
+
+    private final int maxAttempts;
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final Scheduler timer;
+
+    /**
+     * Build the decorator.
+     * @param delegate the decorated api
+     * @param backoff delay before the first retry, doubled for each following one
+     * @param circuitFailureThreshold number of consecutive transient failures opening the circuit of an operation
+     * @param circuitOpenDuration time during which an open circuit rejects calls
+     * @param hedging whether slow hedged operations are sent twice
+     * @param maxAttempts max number of calls of an idempotent read, including the first one
+     * @param timer gives the time, defaults to {@link Schedulers#parallel()}
+     */
+    @Builder
+    ResilientCloudFoundryApi(ReactiveCloudFoundryApiService delegate, Duration backoff, int circuitFailureThreshold,
+                             Duration circuitOpenDuration, boolean hedging, int maxAttempts, Scheduler timer) {
+        super(delegate);
+        this.backoff = backoff;
+        this.hedging = hedging;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.timer = timer != null ? timer : Schedulers.parallel();
+        for (CloudFoundryOperation operation : CloudFoundryOperation.values()) {
+            circuitBreakers.put(operation, new CircuitBreaker(circuitFailureThreshold, circuitOpenDuration,
+                    this.timer));
+            latencies.put(operation, new LatencyWindow());
+        }
+    }
+
+    private <T> Mono<T> call(CloudFoundryOperation operation, Supplier<Mono<T>> call) {
+        return Mono.defer(() -> {
+            CircuitBreaker circuitBreaker = circuitBreakers.get(operation);
+            if (!circuitBreaker.tryAcquire()) {
+                return Mono.error(new CloudFoundryException("too many failures of "
+                        + operation.name().toLowerCase(Locale.ENGLISH) + ", cloudfoundry is not called for now",
+                        null));
+            }
+            long start = timer.now(TimeUnit.NANOSECONDS);
+            return hedge(operation, call)
+                    .doOnSuccess(result -> {
+                        latencies.get(operation).record(timer.now(TimeUnit.NANOSECONDS) - start);
+                        circuitBreaker.onSuccess();
+                    })
+                    .doOnError(throwable -> circuitBreaker.onFailure(CloudFoundryErrors.isTransient(throwable)))
+                    .doOnCancel(circuitBreaker::onCancel);
+        });
+    }
+
+    @Override
+    protected <T> Mono<T> decorate(CloudFoundryOperation operation, Supplier<Mono<T>> call) {
+        Mono<T> result = call(operation, call);
+        if (operation.isIdempotent() && maxAttempts > 1) {
+            return result.retryWhen(errors -> errors
+                    .index()
+                    .flatMap(indexedError -> {
+                        long retry = indexedError.getT1();
+                        Throwable error = indexedError.getT2();
+                        if (retry + 1 >= maxAttempts || !CloudFoundryErrors.isTransient(error)) {
+                            return Mono.error(error);
+                        }
+                        Duration delay = getBackoff(retry);
+                        log.debug("{} failed ({}), retrying in {} ms", operation, error.getMessage(),
+                                delay.toMillis());
+                        retryCount.incrementAndGet();
+                        return Mono.delay(delay, timer);
+                    }));
+        } else {
+            return result;
+        }
+    }
+
+    /**
+     * Delay before a retry, picked at random between half and all of the exponential backoff.
+     */
+    Duration getBackoff(long retry) {
+        long maxNanos = Math.min(MAX_BACKOFF.toNanos(), backoff.toNanos() << Math.min(retry, 20));
+        return Duration.ofNanos(maxNanos / 2 + ThreadLocalRandom.current().nextLong(maxNanos / 2 + 1));
+    }
+
+    public CircuitBreaker.State getCircuitState(CloudFoundryOperation operation) {
+        return circuitBreakers.get(operation).getState();
+    }
+
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    private <T> Mono<T> hedge(CloudFoundryOperation operation, Supplier<Mono<T>> call) {
+        Duration percentile95 = hedging && operation.isHedged() ? latencies.get(operation).getPercentile95() : null;
+        if (percentile95 == null) {
+            return Mono.defer(call);
+        }
+        Duration delay = percentile95.compareTo(MIN_HEDGE_DELAY) > 0 ? percentile95 : MIN_HEDGE_DELAY;
+        return Mono.first(Mono.defer(call),
+                Mono.delay(delay, timer)
+                        .then(Mono.defer(() -> {
+                            hedgeCount.incrementAndGet();
+                            return call.get();
+                        })));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("autosleep.cf.retries", retryCount.get()));
+        metrics.add(new Metric<>("autosleep.cf.hedges", hedgeCount.get()));
+        circuitBreakers.forEach((operation, circuitBreaker) -> metrics.add(new Metric<>("autosleep.cf.circuit."
+                + operation.name().toLowerCase(Locale.ENGLISH) + ".open",
+                circuitBreaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1)));
+        return metrics;
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryRateLimiter;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CoalescingCloudFoundryApi;
+import org.cloudfoundry.autosleep.access.cloudfoundry.InstrumentedCloudFoundryApi;
+import org.cloudfoundry.autosleep.access.cloudfoundry.RateLimitedCloudFoundryApi;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApi;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ResilientCloudFoundryApi;
+import org.cloudfoundry.autosleep.config.Config;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+
+/**
+ * Wraps the cloudfoundry api with its decorators. The decorated api is the one injected in callers. Retries and
+ * hedged calls are made outside of the rate limiter, so that each of them is limited too. Concurrent lookups are
+ * coalesced before any of them. Each request is measured by endpoint once its permit is granted, so that latencies
+ * do not include the wait for a turn.
+ */
+@Configuration
+@Slf4j
+public class CloudFoundryApiConfig {
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private ReactiveCloudFoundryApi reactiveCloudFoundryApi;
+
+    @Bean
+    @Primary
+    public ReactiveCloudFoundryApiService decoratedCloudFoundryApi(ResilientCloudFoundryApi resilientCloudFoundryApi) {
+        long coalescingTtlMillis = env.getProperty(Config.EnvKey.CF_COALESCING_TTL_MILLIS, Long.class,
+                Config.DEFAULT_CF_COALESCING_TTL_MILLIS);
+        return new CoalescingCloudFoundryApi(resilientCloudFoundryApi, Duration.ofMillis(coalescingTtlMillis));
+    }
+
+    @Bean
+    public InstrumentedCloudFoundryApi instrumentedCloudFoundryApi() {
+        return new InstrumentedCloudFoundryApi(reactiveCloudFoundryApi);
+    }
+
+    @Bean
+    public CloudFoundryRateLimiter rateLimiter() {
+        double requestsPerSecond = env.getProperty(Config.EnvKey.CF_RATE_LIMIT, Double.class,
+                Config.DEFAULT_CF_RATE_LIMIT);
+        int burst = env.getProperty(Config.EnvKey.CF_RATE_BURST, Integer.class, Config.DEFAULT_CF_RATE_BURST);
+        int maxConcurrency = env.getProperty(Config.EnvKey.CF_MAX_CONCURRENCY, Integer.class,
+                Config.DEFAULT_CF_MAX_CONCURRENCY);
+        int maxQueueSize = env.getProperty(Config.EnvKey.CF_MAX_QUEUE_SIZE, Integer.class,
+                Config.DEFAULT_CF_MAX_QUEUE_SIZE);
+        log.debug("cloudfoundry rate limiter - {} requests/s, burst {}, max concurrency {}, max queue size {}",
+                requestsPerSecond, burst, maxConcurrency, maxQueueSize);
+        return new CloudFoundryRateLimiter(requestsPerSecond, burst, maxConcurrency, maxQueueSize);
+    }
+
+    @Bean
+    public ResilientCloudFoundryApi resilientCloudFoundryApi(InstrumentedCloudFoundryApi instrumentedCloudFoundryApi,
+                                                             CloudFoundryRateLimiter rateLimiter) {
+        int maxAttempts = env.getProperty(Config.EnvKey.CF_RETRY_MAX_ATTEMPTS, Integer.class,
+                Config.DEFAULT_CF_RETRY_MAX_ATTEMPTS);
+        long backoffMillis = env.getProperty(Config.EnvKey.CF_RETRY_BACKOFF_MILLIS, Long.class,
+                Config.DEFAULT_CF_RETRY_BACKOFF_MILLIS);
+        int failureThreshold = env.getProperty(Config.EnvKey.CF_CIRCUIT_FAILURE_THRESHOLD, Integer.class,
+                Config.DEFAULT_CF_CIRCUIT_FAILURE_THRESHOLD);
+        long openSeconds = env.getProperty(Config.EnvKey.CF_CIRCUIT_OPEN_SECONDS, Long.class,
+                Config.DEFAULT_CF_CIRCUIT_OPEN_SECONDS);
+        boolean hedging = env.getProperty(Config.EnvKey.CF_HEDGING_ENABLED, Boolean.class,
+                Config.DEFAULT_CF_HEDGING_ENABLED);
+        log.debug("cloudfoundry resilience - {} attempts, backoff {} ms, circuit opened {} s after {} failures, "
+                + "hedging {}", maxAttempts, backoffMillis, openSeconds, failureThreshold, hedging);
+        return ResilientCloudFoundryApi.builder()
+                .delegate(new RateLimitedCloudFoundryApi(instrumentedCloudFoundryApi, rateLimiter))
+                .maxAttempts(maxAttempts)
+                .backoff(Duration.ofMillis(backoffMillis))
+                .circuitFailureThreshold(failureThreshold)
+                .circuitOpenDuration(Duration.ofSeconds(openSeconds))
+                .hedging(hedging)
+                .build();
+    }
+
+}
@@ -33,12 +33,20 @@ import org.cloudfoundry.reactor.client.ReactorCloudFoundryClient;
 import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
 import org.cloudfoundry.reactor.tokenprovider.PasswordGrantTokenProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.context.ApplicationContextException;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
 @Configuration
 @Slf4j
 public class CloudfoundryClientBuilder {
@@ -47,15 +55,23 @@ public class CloudfoundryClientBuilder {
     @Getter
     private static class ClientContainer {
 
+        private PooledConnectionContext cloudControllerContext;
+
         private CloudFoundryClient cloudFoundryClient;
 
         private DopplerClient dopplerClient;
 
+        private PooledConnectionContext dopplerContext;
+
         @Builder
-        ClientContainer(CloudFoundryClient cloudFoundryClient,
-                        DopplerClient dopplerClient) {
+        ClientContainer(PooledConnectionContext cloudControllerContext,
+                        CloudFoundryClient cloudFoundryClient,
+                        DopplerClient dopplerClient,
+                        PooledConnectionContext dopplerContext) {
+            this.cloudControllerContext = cloudControllerContext;
             this.cloudFoundryClient = cloudFoundryClient;
             this.dopplerClient = dopplerClient;
+            this.dopplerContext = dopplerContext;
         }
     }
 
@@ -69,6 +85,8 @@ public class CloudfoundryClientBuilder {
     private synchronized ClientContainer buildIfNeeded() {
         if (clientContainer == null && initializationError == null) {
             final String targetHost = env.getProperty(Config.EnvKey.CF_HOST);
+            final Integer targetPort = env.getProperty(Config.EnvKey.CF_PORT, Integer.class);
+            final boolean secure = env.getProperty(Config.EnvKey.CF_SECURE, Boolean.class, Boolean.TRUE);
             final boolean skipSslValidation = Boolean.parseBoolean(env.getProperty(
                     Config.EnvKey.CF_SKIP_SSL_VALIDATION, Boolean.FALSE.toString()));
             final String username = env.getProperty(Config.EnvKey.CF_USERNAME);
@@ -79,12 +97,42 @@ public class CloudfoundryClientBuilder {
             try {
 
                 log.debug("buildClient - targetHost={}", targetHost);
+                log.debug("buildClient - targetPort={}", targetPort);
+                log.debug("buildClient - secure={}", secure);
                 log.debug("buildClient - skipSslValidation={}", skipSslValidation);
                 log.debug("buildClient - username={}", username);
                 ConnectionContext connectionContext = DefaultConnectionContext.builder()
                         .apiHost(targetHost)
+                        .port(Optional.ofNullable(targetPort))
+                        .secure(secure)
                         .skipSslValidation(skipSslValidation)
                         .build();
+                PooledConnectionContext.PooledConnectionContextBuilder pool = PooledConnectionContext.builder()
+                        .delegate(connectionContext)
+                        .acquireTimeout(Duration.ofMillis(env.getProperty(Config.EnvKey.CF_POOL_ACQUIRE_TIMEOUT_MILLIS,
+                                Long.class, Config.DEFAULT_CF_POOL_ACQUIRE_TIMEOUT_MILLIS)))
+                        .connectTimeout(Duration.ofMillis(env.getProperty(Config.EnvKey.CF_CONNECT_TIMEOUT_MILLIS,
+                                Long.class, Config.DEFAULT_CF_CONNECT_TIMEOUT_MILLIS)))
+                        .keepAlive(env.getProperty(Config.EnvKey.CF_KEEP_ALIVE, Boolean.class,
+                                Config.DEFAULT_CF_KEEP_ALIVE))
+                        .skipSslValidation(skipSslValidation);
+                //log downloads get their own connections and threads, not to starve cloud controller calls
+                PooledConnectionContext cloudControllerContext = pool
+                        .name("cc")
+                        .maxConnections(env.getProperty(Config.EnvKey.CF_CC_POOL_SIZE, Integer.class,
+                                Config.DEFAULT_CF_CC_POOL_SIZE))
+                        .threadCount(env.getProperty(Config.EnvKey.CF_CC_THREADS, Integer.class,
+                                Config.DEFAULT_CF_CLIENT_THREADS))
+                        .build();
+                PooledConnectionContext dopplerContext = pool
+                        .name("doppler")
+                        .maxConnections(env.getProperty(Config.EnvKey.CF_DOPPLER_POOL_SIZE, Integer.class,
+                                Config.DEFAULT_CF_DOPPLER_POOL_SIZE))
+                        .threadCount(env.getProperty(Config.EnvKey.CF_DOPPLER_THREADS, Integer.class,
+                                Config.DEFAULT_CF_CLIENT_THREADS))
+                        .build();
+                log.debug("buildClient - cc pool={}, doppler pool={}", cloudControllerContext.getMaxConnections(),
+                        dopplerContext.getMaxConnections());
                 TokenProvider tokenProvider = PasswordGrantTokenProvider.builder()
                         .username(username)
                         .password(password)
@@ -93,17 +141,19 @@ public class CloudfoundryClientBuilder {
                         .build();
 
                 CloudFoundryClient client = ReactorCloudFoundryClient.builder()
-                        .connectionContext(connectionContext)
+                        .connectionContext(cloudControllerContext)
                         .tokenProvider(tokenProvider)
                         .build();
                 DopplerClient dopplerClient = ReactorDopplerClient.builder()
-                        .connectionContext(connectionContext)
+                        .connectionContext(dopplerContext)
                         .tokenProvider(tokenProvider)
                         .build();
 
                 this.clientContainer = ClientContainer.builder()
+                        .cloudControllerContext(cloudControllerContext)
                         .cloudFoundryClient(client)
                         .dopplerClient(dopplerClient)
+                        .dopplerContext(dopplerContext)
                         .build();
                 return this.clientContainer;
             } catch (RuntimeException r) {
@@ -124,6 +174,30 @@ public class CloudfoundryClientBuilder {
         return buildIfNeeded().getCloudFoundryClient();
     }
 
+    /**
+     * Use of the connection pools, once clients are built.
+     */
+    @Bean
+    public PublicMetrics connectionPoolMetrics() {
+        return () -> {
+            ClientContainer clients = this.clientContainer;
+            List<Metric<?>> metrics = new ArrayList<>();
+            if (clients != null) {
+                metrics.addAll(clients.getCloudControllerContext().metrics());
+                metrics.addAll(clients.getDopplerContext().metrics());
+            }
+            return metrics;
+        };
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        if (clientContainer != null) {
+            clientContainer.getCloudControllerContext().dispose();
+            clientContainer.getDopplerContext().dispose();
+        }
+    }
+
     @Bean
     @ConditionalOnMissingBean(DopplerClient.class)
     public DopplerClient dopplerClient() {
@@ -0,0 +1,242 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.Builder;
+import lombok.Getter;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.RootProvider;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.http.client.HttpClient;
+import reactor.ipc.netty.resources.LoopResources;
+import reactor.ipc.netty.resources.PoolResources;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection context with its own connection pool and event loops, sharing the endpoints and json mapping of the
+ * context it wraps. Clients given different pooled contexts cannot starve each other of connections, so that log
+ * downloads do not delay state lookups.
+ * <p>
+ * The use of the pool is published as {@code autosleep.cf.pool.<name>.*} metrics.
+ */
+public class PooledConnectionContext implements ConnectionContext, PublicMetrics {
+
+    private class MeteredChannelPool implements ChannelPool {
+
+        private final ChannelPool delegate;
+
+        MeteredChannelPool(ChannelPool delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Future<Channel> acquire() {
+            return meterAcquire(delegate.acquire());
+        }
+
+        @Override
+        public Future<Channel> acquire(Promise<Channel> promise) {
+            return meterAcquire(delegate.acquire(promise));
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+
+        private Future<Channel> meterAcquire(Future<Channel> acquisition) {
+            pendingAcquires.incrementAndGet();
+            acquisition.addListener(future -> {
+                pendingAcquires.decrementAndGet();
+                if (future.isSuccess()) {
+                    activeConnections.incrementAndGet();
+                    acquireCount.incrementAndGet();
+                }
+            });
+            return acquisition;
+        }
+
+        /**
+         * Only count accepted releases: a channel may be released twice, the second release failing.
+         */
+        private Future<Void> meterRelease(Future<Void> release) {
+            release.addListener(future -> {
+                if (future.isSuccess()) {
+                    activeConnections.decrementAndGet();
+                }
+            });
+            return release;
+        }
+
+        @Override
+        public Future<Void> release(Channel channel) {
+            return meterRelease(delegate.release(channel));
+        }
+
+        @Override
+        public Future<Void> release(Channel channel, Promise<Void> promise) {
+            return meterRelease(delegate.release(channel, promise));
+        }
+
+    }
+
+    private static final int SOCKET_BUFFER_SIZE = 10 * 1024 * 1024;
+
+    private final AtomicLong acquireCount = new AtomicLong();
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    private final ConnectionContext delegate;
+
+    private final HttpClient httpClient;
+
+    private final LoopResources loopResources;
+
+    @Getter
+    private final int maxConnections;
+
+    @Getter
+    private final String name;
+
+    private final AtomicInteger pendingAcquires = new AtomicInteger();
+
+    private final PoolResources pool;
+
+    /**
+     * Wrap a context.
+     * @param delegate context giving endpoints and json mapping
+     * @param name name of the pool, used in thread names and metrics
+     * @param maxConnections max number of connections opened to each host
+     * @param acquireTimeout max time waited for a connection when all are in use
+     * @param threadCount number of event loop threads
+     * @param connectTimeout max time waited to open a connection
+     * @param keepAlive whether tcp keep-alive is enabled on connections
+     * @param skipSslValidation whether any certificate is trusted
+     */
+    @Builder
+    PooledConnectionContext(ConnectionContext delegate, String name, int maxConnections, Duration acquireTimeout,
+                            int threadCount, Duration connectTimeout, boolean keepAlive, boolean skipSslValidation) {
+        this.delegate = delegate;
+        this.maxConnections = maxConnections;
+        this.name = name;
+        this.loopResources = LoopResources.create("cloudfoundry-client-" + name, threadCount, true);
+        this.pool = PoolResources.fixed("cloudfoundry-client-" + name, maxConnections, acquireTimeout.toMillis());
+        Map<ChannelPool, ChannelPool> meteredPools = new ConcurrentHashMap<>();
+        PoolResources meteredPool = (address, bootstrap, onChannelCreate, group) -> meteredPools.computeIfAbsent(
+                pool.selectOrCreate(address, bootstrap, onChannelCreate, group), MeteredChannelPool::new);
+        //same options as the default context, but for the pool and event loops
+        this.httpClient = HttpClient.create(options -> {
+            options.compression(true)
+                    .loopResources(loopResources)
+                    .option(ChannelOption.SO_SNDBUF, SOCKET_BUFFER_SIZE)
+                    .option(ChannelOption.SO_RCVBUF, SOCKET_BUFFER_SIZE)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis())
+                    .option(ChannelOption.SO_KEEPALIVE, keepAlive);
+            options.poolResources(meteredPool)
+                    .sslSupport(ssl -> {
+                        if (skipSslValidation) {
+                            ssl.trustManager(InsecureTrustManagerFactory.INSTANCE);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Close the pooled connections and stop the event loops.
+     */
+    public void dispose() {
+        pool.dispose();
+        loopResources.dispose();
+    }
+
+    /**
+     * Number of connections acquired since the pool was created.
+     */
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    /**
+     * Number of connections currently used by a request.
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public Optional<Duration> getCacheDuration() {
+        return delegate.getCacheDuration();
+    }
+
+    @Override
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    @Override
+    public ObjectMapper getObjectMapper() {
+        return delegate.getObjectMapper();
+    }
+
+    /**
+     * Number of requests waiting for a connection.
+     */
+    public int getPendingAcquires() {
+        return pendingAcquires.get();
+    }
+
+    @Override
+    public RootProvider getRootProvider() {
+        return delegate.getRootProvider();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        String prefix = "autosleep.cf.pool." + name + ".";
+        return Arrays.asList(
+                new Metric<>(prefix + "active", getActiveConnections()),
+                new Metric<>(prefix + "pending", getPendingAcquires()),
+                new Metric<>(prefix + "max", maxConnections),
+                new Metric<>(prefix + "acquires", getAcquireCount()));
+    }
+
+    @Override
+    public Mono<Void> trust(String host, int port) {
+        return delegate.trust(host, port);
+    }
+
+}
@@ -22,6 +22,7 @@ package org.cloudfoundry.autosleep.access.cloudfoundry.model;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.ToString;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
 
 @Getter
@@ -30,6 +31,11 @@ public class ApplicationActivity {
 
     private final ApplicationIdentity application;
 
+    /**
+     * Set when the activity could not be fully retrieved (batch retrieval only), other fields may then be partial.
+     */
+    private final CloudFoundryException error;
+
     private final ApplicationInfo.DiagnosticInfo.ApplicationEvent lastEvent;
 
     private final ApplicationInfo.DiagnosticInfo.ApplicationLog lastLog;
@@ -39,13 +45,19 @@ public class ApplicationActivity {
 
     @Builder
     ApplicationActivity(ApplicationIdentity application,
+                        CloudFoundryException error,
                         ApplicationInfo.DiagnosticInfo.ApplicationEvent lastEvent,
                         ApplicationInfo.DiagnosticInfo.ApplicationLog lastLog,
                         String state) {
         this.application = application;
+        this.error = error;
         this.lastEvent = lastEvent;
         this.lastLog = lastLog;
         this.state = state;
     }
 
+    public boolean isFailed() {
+        return error != null;
+    }
+
 }
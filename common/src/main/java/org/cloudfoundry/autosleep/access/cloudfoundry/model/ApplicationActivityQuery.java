@@ -0,0 +1,70 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+
+import java.time.Instant;
+
+/**
+ * What is already known about an application before retrieving its activity, so that remote calls can stop early.
+ */
+@Getter
+@ToString
+public class ApplicationActivityQuery {
+
+    /**
+     * Recent logs are scanned until a log at least as recent is found: the application is then known to be active
+     * and the rest of the log buffer is ignored. Whole buffer is scanned when null.
+     */
+    private final Instant activeSince;
+
+    /**
+     * Last event seen by a previous check. Only events at least as recent are requested, and it is given as last event
+     * when none is found.
+     */
+    private final ApplicationInfo.DiagnosticInfo.ApplicationEvent lastKnownEvent;
+
+    /**
+     * Last log seen by a previous check. Older logs are skipped, and it is given as last log when no more recent one
+     * is found.
+     */
+    private final ApplicationInfo.DiagnosticInfo.ApplicationLog lastKnownLog;
+
+    /**
+     * Recent logs are not downloaded at all, the last known log is trusted to be the last one.
+     */
+    private final boolean skipRecentLogs;
+
+    @Builder
+    ApplicationActivityQuery(Instant activeSince,
+                             ApplicationInfo.DiagnosticInfo.ApplicationEvent lastKnownEvent,
+                             ApplicationInfo.DiagnosticInfo.ApplicationLog lastKnownLog,
+                             boolean skipRecentLogs) {
+        this.activeSince = activeSince;
+        this.lastKnownEvent = lastKnownEvent;
+        this.lastKnownLog = lastKnownLog;
+        this.skipRecentLogs = skipRecentLogs;
+    }
+
+}
@@ -42,6 +42,7 @@ import javax.persistence.Embedded;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Lob;
+import javax.persistence.Version;
 
 import java.time.Instant;
 import java.util.HashMap;
@@ -49,7 +50,7 @@ import java.util.HashMap;
 @Getter
 @Slf4j
 @Entity
-@EqualsAndHashCode
+@EqualsAndHashCode(exclude = "version")
 @ToString(of = {"uuid", "name", "diagnosticInfo"})
 public class ApplicationInfo {
 
@@ -265,6 +266,14 @@ public class ApplicationInfo {
     @Column(length = 40)
     private String uuid;
 
+    /**
+     * Incremented by each update, so that an update based on a stale read fails rather than overwriting a concurrent
+     * one, possibly made by another instance of autosleep.
+     */
+    @JsonIgnore
+    @Version
+    private Long version;
+
     private ApplicationInfo() {
         this.diagnosticInfo = new DiagnosticInfo();
         this.enrollmentState = new EnrollmentState();
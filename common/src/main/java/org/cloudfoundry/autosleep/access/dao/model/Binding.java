@@ -31,6 +31,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Version;
 
 @Getter
 @Setter
@@ -56,4 +57,7 @@ public class Binding {
 
     private String serviceInstanceId;
 
+    @Version
+    private Long version;
+
 }
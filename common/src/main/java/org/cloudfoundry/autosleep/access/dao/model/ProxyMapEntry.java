@@ -19,9 +19,9 @@
 
 package org.cloudfoundry.autosleep.access.dao.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
@@ -32,13 +32,12 @@ import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Version;
 
 @Getter
 @Setter
 @Slf4j
-@Builder
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
-@AllArgsConstructor(access = AccessLevel.PUBLIC)
 @ToString
 @EqualsAndHashCode(of = "host")
 @Entity
@@ -50,5 +49,15 @@ public class ProxyMapEntry {
 
     @JsonProperty
     private String appId;
-    
+
+    @JsonIgnore
+    @Version
+    private Long version;
+
+    @Builder
+    public ProxyMapEntry(String host, String appId) {
+        this.host = host;
+        this.appId = appId;
+    }
+
 }
@@ -23,6 +23,14 @@ import java.time.Duration;
 
 public interface Config {
 
+    interface CloudFoundryApiVersion {
+
+        String V2 = "v2";
+
+        String V3 = "v3";
+
+    }
+
     interface CloudFoundryAppState {
 
         String STARTED = "STARTED";
@@ -41,18 +49,70 @@ public interface Config {
 
     interface EnvKey {
 
+        String ACTIVITY_STREAM_ENABLED = "autosleep.activity.stream.enabled";
+
         String APPLICATION_DESCRIPTION_ENVIRONMENT_KEY = "VCAP_APPLICATION";
 
+        String APPLICATION_START_TIMEOUT_SECONDS = "autowakeup.start.timeout.seconds";
+
+        String CF_API_DEADLINE_MILLIS = "autosleep.cf.api.deadline.millis";
+
+        String CF_API_VERSION = "autosleep.cf.api.version";
+
+        String CF_BIND_CONCURRENCY = "autosleep.cf.bind.concurrency";
+
+        String CF_CC_POOL_SIZE = "cf.client.cc.pool.size";
+
+        String CF_CIRCUIT_FAILURE_THRESHOLD = "autosleep.cf.circuit.failure.threshold";
+
+        String CF_CIRCUIT_OPEN_SECONDS = "autosleep.cf.circuit.open.seconds";
+
+        String CF_CC_THREADS = "cf.client.cc.threads";
+
         String CF_CLIENT_ID = "cf.client.clientId";
 
         String CF_CLIENT_SECRET = "cf.client.clientSecret";
 
+        String CF_COALESCING_TTL_MILLIS = "autosleep.cf.coalescing.ttl.millis";
+
+        String CF_CONNECT_TIMEOUT_MILLIS = "cf.client.connect.timeout.millis";
+
+        String CF_DOPPLER_POOL_SIZE = "cf.client.doppler.pool.size";
+
+        String CF_DOPPLER_THREADS = "cf.client.doppler.threads";
+
         String CF_ENCODING_SECRET = "cf.security.password.encodingSecret";
 
+        String CF_HEDGING_ENABLED = "autosleep.cf.hedging.enabled";
+
         String CF_HOST = "cf.client.target.host";
 
+        String CF_KEEP_ALIVE = "cf.client.keep.alive";
+
+        String CF_LIST_CONCURRENCY = "autosleep.cf.list.concurrency";
+
+        String CF_MAX_CONCURRENCY = "autosleep.cf.max.concurrency";
+
+        String CF_MAX_QUEUE_SIZE = "autosleep.cf.max.queue.size";
+
         String CF_PASSWORD = "cf.client.password";
 
+        String CF_POOL_ACQUIRE_TIMEOUT_MILLIS = "cf.client.pool.acquire.timeout.millis";
+
+        String CF_PORT = "cf.client.target.port";
+
+        String CF_RATE_BURST = "autosleep.cf.rate.burst";
+
+        String CF_RATE_LIMIT = "autosleep.cf.rate.limit";
+
+        String CF_READ_TIMEOUT_MILLIS = "cf.client.read.timeout.millis";
+
+        String CF_RETRY_BACKOFF_MILLIS = "autosleep.cf.retry.backoff.millis";
+
+        String CF_RETRY_MAX_ATTEMPTS = "autosleep.cf.retry.max.attempts";
+
+        String CF_SECURE = "cf.client.target.secure";
+
         String CF_SERVICE_BROKER_ID = "cf.service.broker.id";
 
         String CF_SERVICE_BROKER_NAME = "cf.service.broker.name";
@@ -63,10 +123,54 @@ public interface Config {
 
         String CF_SKIP_SSL_VALIDATION = "cf.client.skip.ssl.validation";
 
+        String CF_STOP_CONCURRENCY = "autosleep.cf.stop.concurrency";
+
         String CF_USERNAME = "cf.client.username";
 
+        String EXECUTOR_CF_QUEUE_SIZE = "autosleep.executor.cf.queue.size";
+
+        String EXECUTOR_CF_THREADS = "autosleep.executor.cf.threads";
+
+        String EXECUTOR_ENROLLMENT_QUEUE_SIZE = "autosleep.executor.enrollment.queue.size";
+
+        String EXECUTOR_ENROLLMENT_THREADS = "autosleep.executor.enrollment.threads";
+
+        String EXECUTOR_PERSISTENCE_QUEUE_SIZE = "autosleep.executor.persistence.queue.size";
+
+        String EXECUTOR_PERSISTENCE_THREADS = "autosleep.executor.persistence.threads";
+
+        String EXECUTOR_TIMER_THREADS = "autosleep.executor.timer.threads";
+
+        String EXECUTOR_VIRTUAL_THREADS_ENABLED = "autosleep.executor.virtual.threads.enabled";
+
+        String RESTART_RAMP_WINDOW_SECONDS = "autosleep.restart.ramp.window.seconds";
+
+        String SCHEDULER_TICK_MILLIS = "autosleep.scheduler.tick.millis";
+
+        String SCHEDULER_TIMING_WHEEL_ENABLED = "autosleep.scheduler.timing.wheel.enabled";
+
+        String SCHEDULER_WHEEL_SIZE = "autosleep.scheduler.wheel.size";
+
         String SECURITY_PASSWORD = "security.user.password";
 
+        String SHARDING_ENABLED = "autosleep.sharding.enabled";
+
+        String SHARDING_HEARTBEAT_SECONDS = "autosleep.sharding.heartbeat.seconds";
+
+        String SHARDING_LEASE_SECONDS = "autosleep.sharding.lease.seconds";
+
+        String SHARDING_RECONCILE_SECONDS = "autosleep.sharding.reconcile.seconds";
+
+        String SHARDING_VIRTUAL_NODES = "autosleep.sharding.virtual.nodes";
+
+        String STOP_BATCH_SIZE = "autosleep.stop.batch.size";
+
+        String STOP_BATCH_WINDOW_MILLIS = "autosleep.stop.batch.window.millis";
+
+        String SWEEPER_WINDOW_MILLIS = "autosleep.sweeper.window.millis";
+
+        String WORKER_MODE = "autosleep.worker.mode";
+
     }
 
     interface Path {
@@ -114,15 +218,135 @@ public interface Config {
 
     }
 
+    interface WorkerMode {
+
+        /**
+         * An application stopper per enrolled application.
+         */
+        String STOPPER = "stopper";
+
+        /**
+         * A space sweeper per service instance, checking its applications together.
+         */
+        String SWEEPER = "sweeper";
+
+    }
+
+    /**
+     * Number of locks shared by the applications, which bounds the memory of the application locker.
+     */
+    int APPLICATION_LOCK_STRIPES = 1024;
+
+    Duration BIND_RETRY_BACKOFF = Duration.ofSeconds(2);
+
+    int BIND_RETRY_MAX_ATTEMPTS = 3;
+
     Duration CF_API_TIMEOUT = Duration.ofSeconds(8);
 
+    /**
+     * Min time between two decreases of the limit of pending cloudfoundry requests.
+     */
+    Duration CF_LIMIT_DECREASE_COOLDOWN = Duration.ofSeconds(1);
+
+    Duration CONFLICT_RETRY_BACKOFF = Duration.ofMillis(20);
+
+    int CONFLICT_RETRY_MAX_ATTEMPTS = 5;
+
+    long DEFAULT_APPLICATION_START_TIMEOUT_SECONDS = 60;
+
+    long DEFAULT_CF_API_DEADLINE_MILLIS = 120_000;
+
+    int DEFAULT_CF_BIND_CONCURRENCY = 8;
+
+    int DEFAULT_CF_CC_POOL_SIZE = 32;
+
+    int DEFAULT_CF_CIRCUIT_FAILURE_THRESHOLD = 5;
+
+    long DEFAULT_CF_CIRCUIT_OPEN_SECONDS = 30;
+
+    int DEFAULT_CF_CLIENT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    long DEFAULT_CF_COALESCING_TTL_MILLIS = 1000;
+
+    long DEFAULT_CF_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    int DEFAULT_CF_DOPPLER_POOL_SIZE = 16;
+
+    boolean DEFAULT_CF_HEDGING_ENABLED = true;
+
+    boolean DEFAULT_CF_KEEP_ALIVE = true;
+
+    int DEFAULT_CF_LIST_CONCURRENCY = 4;
+
+    int DEFAULT_CF_MAX_CONCURRENCY = 32;
+
+    int DEFAULT_CF_MAX_QUEUE_SIZE = 1000;
+
+    long DEFAULT_CF_POOL_ACQUIRE_TIMEOUT_MILLIS = 10_000;
+
+    int DEFAULT_CF_RATE_BURST = 40;
+
+    double DEFAULT_CF_RATE_LIMIT = 20;
+
+    long DEFAULT_CF_RETRY_BACKOFF_MILLIS = 200;
+
+    int DEFAULT_CF_RETRY_MAX_ATTEMPTS = 3;
+
+    int DEFAULT_CF_STOP_CONCURRENCY = 8;
+
+    int DEFAULT_EXECUTOR_CF_QUEUE_SIZE = 1000;
+
+    int DEFAULT_EXECUTOR_CF_THREADS = 8;
+
+    int DEFAULT_EXECUTOR_ENROLLMENT_QUEUE_SIZE = 100;
+
+    int DEFAULT_EXECUTOR_ENROLLMENT_THREADS = 2;
+
+    int DEFAULT_EXECUTOR_PERSISTENCE_QUEUE_SIZE = 1000;
+
+    int DEFAULT_EXECUTOR_PERSISTENCE_THREADS = 4;
+
+    int DEFAULT_EXECUTOR_TIMER_THREADS = 1;
+
+    boolean DEFAULT_EXECUTOR_VIRTUAL_THREADS_ENABLED = false;
+
     Boolean DEFAULT_IGNORE_SERVICE_ERROR = Boolean.FALSE;
 
     Duration DEFAULT_INACTIVITY_PERIOD = Duration.ofDays(1);
 
+    long DEFAULT_RESTART_RAMP_WINDOW_SECONDS = 300;
+
+    long DEFAULT_SCHEDULER_TICK_MILLIS = 1000;
+
+    boolean DEFAULT_SCHEDULER_TIMING_WHEEL_ENABLED = false;
+
+    int DEFAULT_SCHEDULER_WHEEL_SIZE = 512;
+
+    boolean DEFAULT_SHARDING_ENABLED = false;
+
+    long DEFAULT_SHARDING_HEARTBEAT_SECONDS = 10;
+
+    long DEFAULT_SHARDING_LEASE_SECONDS = 30;
+
+    long DEFAULT_SHARDING_RECONCILE_SECONDS = 60;
+
+    int DEFAULT_SHARDING_VIRTUAL_NODES = 100;
+
+    int DEFAULT_STOP_BATCH_SIZE = 100;
+
+    long DEFAULT_STOP_BATCH_WINDOW_MILLIS = 200;
+
+    long DEFAULT_SWEEPER_WINDOW_MILLIS = 10_000;
+
+    Duration DOMAIN_CACHE_TIME_TO_LIVE = Duration.ofHours(1);
+
     Duration DELAY_BEFORE_FIRST_SERVICE_CHECK = Duration.ofSeconds(10);
 
-    int NB_THREAD_FOR_TASK = 5;
+    Duration DELAY_BEFORE_REJECTED_TASK_RETRY = Duration.ofSeconds(5);
 
     Duration PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART = Duration.ofSeconds(3);
+
+    Duration PERIOD_BETWEEN_STREAM_RECONNECTIONS = Duration.ofSeconds(10);
+
+    Duration ROUTE_CACHE_TIME_TO_LIVE = Duration.ofMinutes(5);
 }
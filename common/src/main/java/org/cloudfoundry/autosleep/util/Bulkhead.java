@@ -0,0 +1,209 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.util;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of threads with a bounded number of waiting tasks, dedicated to a single kind of work. When the pool cannot
+ * keep up, new tasks are rejected instead of piling up, and other kinds of work, on their own pools, are not slowed
+ * down.
+ * <p>
+ * In virtual threads mode, each task is run on its own virtual thread as soon as it is submitted: the tasks that
+ * would have waited in the queue run at once, and the pool still rejects tasks past the same bound.
+ */
+@Slf4j
+public class Bulkhead implements Executor {
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * Fixed pool of platform threads, null in virtual threads mode.
+     */
+    private final ThreadPoolExecutor executor;
+
+    @Getter
+    private final String name;
+
+    /**
+     * Tasks that may run at once in virtual threads mode.
+     */
+    private final Semaphore permits;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Reactor view of the pool, to publish signals on it.
+     */
+    @Getter
+    private final Scheduler scheduler;
+
+    private volatile boolean shutdown;
+
+    private final int threadCount;
+
+    /**
+     * Creates a virtual thread per task, null in platform threads mode.
+     */
+    private final ThreadFactory virtualThreadFactory;
+
+    /**
+     * Build and start a bulkhead.
+     * @param name           name of the pool, prefix of its thread names
+     * @param threads        number of threads
+     * @param queueSize      number of tasks that may wait for a thread, before new ones are rejected
+     * @param virtualThreads run each task on its own virtual thread, if the runtime provides them. Otherwise, a pool
+     *                       of platform threads is used
+     */
+    @Builder
+    public Bulkhead(String name, int threads, int queueSize, boolean virtualThreads) {
+        this.name = name;
+        int boundedQueueSize = Math.max(1, queueSize);
+        this.virtualThreadFactory = virtualThreads ? VirtualThreads.factory(name).orElse(null) : null;
+        if (virtualThreadFactory != null) {
+            log.info("{} tasks run on virtual threads", name);
+            this.threadCount = threads + boundedQueueSize;
+            this.permits = new Semaphore(threadCount);
+            this.executor = null;
+        } else {
+            if (virtualThreads) {
+                log.warn("virtual threads not provided by this runtime, {} tasks run on {} platform threads", name,
+                        threads);
+            }
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.threadCount = threads;
+            this.permits = null;
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(boundedQueueSize),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (runnable, pool) -> reject());
+        }
+        this.scheduler = Schedulers.fromExecutor(this);
+    }
+
+    /**
+     * Run a task on the pool.
+     * @throws RejectedExecutionException if the queue is full, or the pool is shut down
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (virtualThreadFactory == null) {
+            executor.execute(() -> run(command));
+        } else if (shutdown || !permits.tryAcquire()) {
+            reject();
+        } else {
+            try {
+                virtualThreadFactory.newThread(() -> {
+                    try {
+                        run(command);
+                    } finally {
+                        permits.release();
+                    }
+                }).start();
+            } catch (RuntimeException | Error e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Number of threads running a task.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Number of tasks run so far.
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Number of tasks waiting for a thread.
+     */
+    public int getQueuedCount() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * Number of tasks refused because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Number of threads of the pool, or of tasks that may run at once in virtual threads mode.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public boolean isVirtual() {
+        return virtualThreadFactory != null;
+    }
+
+    private void reject() {
+        rejected.incrementAndGet();
+        throw new RejectedExecutionException(name + " executor saturated");
+    }
+
+    private void run(Runnable command) {
+        active.incrementAndGet();
+        try {
+            command.run();
+        } finally {
+            active.decrementAndGet();
+            completed.incrementAndGet();
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+}
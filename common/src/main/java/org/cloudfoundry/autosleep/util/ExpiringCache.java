@@ -0,0 +1,163 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Size bounded cache whose entries expire after a fixed time to live. Least recently used entries are evicted first.
+ * Hits and misses are counted, and reported as {@code autosleep.cache.<name>.hit} and
+ * {@code autosleep.cache.<name>.miss} metrics.
+ */
+@Slf4j
+public class ExpiringCache<K, V> {
+
+    private static class Entry<V> {
+
+        final long expirationNanos;
+
+        final V value;
+
+        Entry(V value, long expirationNanos) {
+            this.value = value;
+            this.expirationNanos = expirationNanos;
+        }
+
+    }
+
+    private final Map<K, Entry<V>> entries;
+
+    private final String hitMetric;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final Consumer<String> metricIncrementer;
+
+    private final String missMetric;
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final long timeToLiveNanos;
+
+    /**
+     * Build an empty cache.
+     * @param metricIncrementer called with the name of the metric to increment on each hit or miss, may be null
+     */
+    public ExpiringCache(String name, Duration timeToLive, int maxSize, Consumer<String> metricIncrementer) {
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.hitMetric = "autosleep.cache." + name + ".hit";
+        this.metricIncrementer = metricIncrementer;
+        this.missMetric = "autosleep.cache." + name + ".miss";
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    /**
+     * Get the cached value, or load it on subscription when missing or expired. Loaded values are cached, errors are
+     * not.
+     */
+    public Mono<V> get(K key, Function<K, Mono<V>> loader) {
+        return Mono.defer(() -> {
+            V value = getIfPresent(key);
+            if (value != null) {
+                count(hits, hitMetric);
+                return Mono.just(value);
+            } else {
+                count(misses, missMetric);
+                return loader.apply(key)
+                        .doOnNext(loaded -> put(key, loaded));
+            }
+        });
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Cached value, if any and not expired.
+     * @return the value, or null
+     */
+    public V getIfPresent(K key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            } else if (entry.expirationNanos - System.nanoTime() <= 0) {
+                entries.remove(key);
+                return null;
+            } else {
+                return entry.value;
+            }
+        }
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public void put(K key, V value) {
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, System.nanoTime() + timeToLiveNanos));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void count(AtomicLong counter, String metric) {
+        counter.incrementAndGet();
+        if (metricIncrementer != null) {
+            try {
+                metricIncrementer.accept(metric);
+            } catch (RuntimeException r) {
+                log.warn("failed incrementing metric {}", metric, r);
+            }
+        }
+    }
+
+}
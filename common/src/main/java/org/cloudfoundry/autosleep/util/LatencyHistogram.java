@@ -0,0 +1,116 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, with buckets of exponentially growing width (as HdrHistogram does): each power
+ * of two of microseconds is split in {@value #SUB_BUCKET_COUNT} buckets, so that percentiles are known with a
+ * precision of about 6%, from one microsecond to several days.
+ */
+public class LatencyHistogram {
+
+    private static final int MAX_EXPONENT = 41;
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKET_COUNT
+            + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    static int getBucketIndex(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        long subBucket = exponent == MAX_EXPONENT && micros >= 1L << (MAX_EXPONENT + 1)
+                ? SUB_BUCKET_COUNT - 1
+                : (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (int) (SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket);
+    }
+
+    /**
+     * Highest value, in microseconds, counted in the bucket.
+     */
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public Duration getMax() {
+        return Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(maxMicros.get()));
+    }
+
+    public Duration getMean() {
+        long recorded = count.get();
+        return recorded == 0 ? Duration.ZERO
+                : Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(totalMicros.get()) / recorded);
+    }
+
+    /**
+     * Latency under which the given share of the recorded ones are.
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket reached, or zero if nothing was recorded
+     */
+    public Duration getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            total += buckets.get(i);
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length() && total > 0; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                long micros = Math.min(getBucketUpperBound(i), maxMicros.get());
+                return Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+            }
+        }
+        return Duration.ZERO;
+    }
+
+    public void record(Duration latency) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(latency.toNanos()));
+        buckets.incrementAndGet(getBucketIndex(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Shares calls made concurrently for the same key: the first caller triggers the call, the following ones get the
+ * same result, including callers arriving shortly after it is received (within the time to live). Errors are shared
+ * with pending callers only.
+ */
+public class SingleFlight<K, V> {
+
+    private static class Flight<V> {
+
+        Mono<V> result;
+
+    }
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final Map<K, Flight<V>> flights = new HashMap<>();
+
+    private final Duration timeToLive;
+
+    private final Scheduler timer;
+
+    /**
+     * Build a single flight.
+     * @param timeToLive time during which a received result is given to new callers, may be zero
+     * @param timer schedules the expiration of received results
+     */
+    public SingleFlight(Duration timeToLive, Scheduler timer) {
+        this.timeToLive = timeToLive;
+        this.timer = timer;
+    }
+
+    /**
+     * Result of the pending or recent call for the key, or of a new call made on subscription.
+     */
+    public Mono<V> get(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            synchronized (flights) {
+                Flight<V> flight = flights.get(key);
+                if (flight != null) {
+                    coalesced.incrementAndGet();
+                    return flight.result;
+                }
+                Flight<V> created = new Flight<>();
+                created.result = Mono.defer(call)
+                        .doOnSuccess(value -> expire(key, created))
+                        .doOnError(throwable -> remove(key, created))
+                        .cache();
+                flights.put(key, created);
+                return created.result;
+            }
+        });
+    }
+
+    /**
+     * Number of callers that got the result of a call made for another one.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Forget the result received for the key, if any, so that next callers trigger a new call.
+     */
+    public void invalidate(K key) {
+        synchronized (flights) {
+            flights.remove(key);
+        }
+    }
+
+    public int size() {
+        synchronized (flights) {
+            return flights.size();
+        }
+    }
+
+    private void expire(K key, Flight<V> flight) {
+        if (timeToLive.isZero() || timeToLive.isNegative()) {
+            remove(key, flight);
+        } else {
+            timer.schedule(() -> remove(key, flight), timeToLive.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void remove(K key, Flight<V> flight) {
+        synchronized (flights) {
+            flights.remove(key, flight);
+        }
+    }
+
+}
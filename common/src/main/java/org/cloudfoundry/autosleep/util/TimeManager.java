@@ -19,28 +19,85 @@
 
 package org.cloudfoundry.autosleep.util;
 
+import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.EnvKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Duration;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 @Service
+@Slf4j
 public class TimeManager {
 
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Config.NB_THREAD_FOR_TASK);
+    @Autowired
+    private Environment environment;
+
+    private ScheduledThreadPoolExecutor scheduler = buildScheduler();
+
+    /**
+     * Alternative backend of {@link #schedule(Runnable, Duration)}, null when the scheduled thread pool is used.
+     */
+    private TimingWheel timingWheel;
+
+    private static ScheduledThreadPoolExecutor buildScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(Config.DEFAULT_EXECUTOR_TIMER_THREADS);
+        //cancelled tasks are removed from the queue right away, instead of waiting there until they are due
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    @PostConstruct
+    public void init() {
+        //tasks that do real work hand it over to their own executor, the timer threads only dispatch them
+        scheduler.setCorePoolSize(environment.getProperty(EnvKey.EXECUTOR_TIMER_THREADS, Integer.class,
+                Config.DEFAULT_EXECUTOR_TIMER_THREADS));
+        if (environment.getProperty(EnvKey.SCHEDULER_TIMING_WHEEL_ENABLED, Boolean.class,
+                Config.DEFAULT_SCHEDULER_TIMING_WHEEL_ENABLED)) {
+            Duration tick = Duration.ofMillis(environment.getProperty(EnvKey.SCHEDULER_TICK_MILLIS, Long.class,
+                    Config.DEFAULT_SCHEDULER_TICK_MILLIS));
+            int wheelSize = environment.getProperty(EnvKey.SCHEDULER_WHEEL_SIZE, Integer.class,
+                    Config.DEFAULT_SCHEDULER_WHEEL_SIZE);
+            log.info("scheduling tasks on a timing wheel of {} ticks of {}", wheelSize, tick);
+            //tasks are still run by the pool threads, the wheel only decides when
+            timingWheel = new TimingWheel(tick, wheelSize, scheduler, "timing-wheel");
+        }
+    }
 
     public ScheduledFuture<?> schedule(Runnable command,
                                        Duration duration) {
+        if (timingWheel != null) {
+            return timingWheel.schedule(command, duration.toMillis(), TimeUnit.MILLISECONDS);
+        }
         return scheduler.schedule(command, duration.toMillis(), TimeUnit.MILLISECONDS);
     }
 
+    @PreDestroy
+    public void shutdown() {
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
+        scheduler.shutdownNow();
+    }
+
     public void sleep(Duration duration) throws InterruptedException {
         Thread.sleep(duration.toMillis());
     }
 
+    /**
+     * Non-blocking counterpart of {@link #sleep(Duration)}: emits once the duration has elapsed.
+     */
+    public Mono<Long> delay(Duration duration) {
+        return Mono.delay(duration);
+    }
+
 }
 
@@ -0,0 +1,335 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel: a task is put in the bucket of the tick it is due on, modulo the number of buckets, along with
+ * the number of full turns of the wheel to wait. Scheduling and cancelling are constant time, whatever the number of
+ * pending tasks, at the price of running a task up to one tick late. A single thread moves the wheel, due tasks are
+ * run by the given executor.
+ */
+@Slf4j
+public class TimingWheel {
+
+    /**
+     * Doubly linked list of the timeouts of a tick. Only accessed by the wheel thread.
+     */
+    private static class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = timeout;
+                tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Run the timeouts due at the given time, and count a turn for the others.
+         */
+        void expire(long deadlineNanos) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadlineNanos <= deadlineNanos) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            if (timeout == head) {
+                head = timeout.next;
+            }
+            if (timeout == tail) {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    private class Timeout implements ScheduledFuture<Object> {
+
+        Bucket bucket;
+
+        /**
+         * Time the task is due at, relative to the start of the wheel.
+         */
+        final long deadlineNanos;
+
+        Timeout next;
+
+        Timeout previous;
+
+        /**
+         * Whether the task was counted out of the pending ones, either when cancelled or when run.
+         */
+        private final AtomicBoolean left = new AtomicBoolean();
+
+        long remainingRounds;
+
+        final FutureTask<Object> task;
+
+        Timeout(Runnable command, long deadlineNanos) {
+            this.task = new FutureTask<>(command, null);
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = task.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                leavePending();
+                //unlinked by the wheel thread, that owns the buckets
+                cancelledTimeouts.add(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        void expire() {
+            if (!task.isDone()) {
+                leavePending();
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException e) {
+                    log.error("task could not be run", e);
+                }
+            }
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            return task.get(timeout, unit);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineNanos - (System.nanoTime() - startTimeNanos), TimeUnit.NANOSECONDS);
+        }
+
+        private void leavePending() {
+            if (left.compareAndSet(false, true)) {
+                pending.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+    }
+
+    private final Bucket[] buckets;
+
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final Executor executor;
+
+    private final int mask;
+
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    private final long startTimeNanos = System.nanoTime();
+
+    /**
+     * Number of ticks elapsed. Only accessed by the wheel thread.
+     */
+    private long tick;
+
+    private final long tickNanos;
+
+    private final Thread worker;
+
+    /**
+     * Build and start a timing wheel.
+     * @param tick         resolution of the wheel: tasks are run at most this late
+     * @param bucketCount  number of buckets, rounded up to a power of two. A task due in more than a full turn waits
+     *                     for its turn in its bucket
+     * @param executor     runs the due tasks, so that a long task does not delay the wheel
+     * @param name         name of the wheel thread
+     */
+    public TimingWheel(Duration tick, int bucketCount, Executor executor, String name) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+        }
+        int size = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickNanos = tick.toNanos();
+        this.executor = executor;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Number of tasks waiting to be run.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long deadlineNanos = waitForNextTick();
+            if (deadlineNanos > 0) {
+                transferNewTimeouts();
+                removeCancelledTimeouts();
+                buckets[(int) (tick & mask)].expire(deadlineNanos);
+                tick++;
+            }
+        }
+    }
+
+    /**
+     * Schedule a single run of a task.
+     * @return a handle, that may be used to cancel the task before it runs
+     */
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("timing wheel stopped");
+        }
+        long deadlineNanos = System.nanoTime() - startTimeNanos + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(command, deadlineNanos);
+        pending.incrementAndGet();
+        //put in its bucket by the wheel thread on next tick
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel. Pending tasks are not run.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long dueTick = timeout.deadlineNanos / tickNanos;
+            timeout.remainingRounds = (dueTick - tick) / buckets.length;
+            //a task already due is run on the current tick
+            buckets[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Sleep until the end of the current tick.
+     * @return time elapsed since the start of the wheel, or -1 if interrupted
+     */
+    private long waitForNextTick() {
+        long deadlineNanos = tickNanos * (tick + 1);
+        while (true) {
+            long currentNanos = System.nanoTime() - startTimeNanos;
+            long sleepMillis = (deadlineNanos - currentNanos + 999_999) / 1_000_000;
+            if (sleepMillis <= 0) {
+                return currentNanos;
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                if (!running) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+}
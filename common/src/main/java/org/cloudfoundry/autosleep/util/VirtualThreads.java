@@ -0,0 +1,62 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of Java 21 and later runtimes, while autosleep is still built for Java 8: they are
+ * looked up by reflection, and are reported missing on older runtimes.
+ */
+@Slf4j
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Factory of named virtual threads.
+     * @param name prefix of the thread names, followed by a counter
+     * @return the factory, or empty if the runtime does not provide virtual threads
+     */
+    public static Optional<ThreadFactory> factory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method nameMethod = builderType.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, name + "-", 1L);
+            return Optional.of((ThreadFactory) builderType.getMethod("factory").invoke(builder));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //older runtime, or preview feature not enabled
+            log.debug("virtual threads not available: {}", e.toString());
+            return Optional.empty();
+        }
+    }
+
+    public static boolean isAvailable() {
+        return factory("probe").isPresent();
+    }
+
+}
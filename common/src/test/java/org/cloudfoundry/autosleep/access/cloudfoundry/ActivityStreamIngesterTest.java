@@ -0,0 +1,151 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.doppler.DopplerClient;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.cloudfoundry.doppler.StreamRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.core.env.Environment;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ActivityStreamIngesterTest {
+
+    private static final String APP_UID = "application-id";
+
+    @InjectMocks
+    private ActivityStreamIngester activityStream;
+
+    @Mock
+    private DopplerClient dopplerClient;
+
+    @Mock
+    private Environment environment;
+
+    private static Envelope logEnvelope(Instant timestamp) {
+        return Envelope.builder()
+                .eventType(EventType.LOG_MESSAGE)
+                .origin("rep")
+                .logMessage(LogMessage.builder()
+                        .message("message")
+                        .messageType(MessageType.OUT)
+                        .timestamp(timestamp.getEpochSecond() * 1_000_000_000L + timestamp.getNano())
+                        .build())
+                .build();
+    }
+
+    private void enable(boolean enabled) {
+        when(environment.getProperty(eq(Config.EnvKey.ACTIVITY_STREAM_ENABLED), anyString()))
+                .thenReturn(Boolean.toString(enabled));
+        activityStream.init();
+    }
+
+    @Test
+    public void test_nothing_is_streamed_when_disabled() {
+        //given ingestion is not enabled
+        enable(false);
+        //when an application is watched
+        activityStream.watch(APP_UID);
+        //then doppler is never called
+        verify(dopplerClient, never()).stream(any(StreamRequest.class));
+        //and no period is covered
+        assertFalse(activityStream.isCovering(APP_UID, Instant.now()));
+        assertNull(activityStream.getLastLog(APP_UID));
+    }
+
+    @Test
+    public void test_most_recent_streamed_log_is_kept() {
+        //given ingestion is enabled
+        enable(true);
+        Instant before = Instant.now().minusMillis(1);
+        Instant recent = Instant.now().minus(Duration.ofMinutes(1));
+        //and doppler streams unordered logs, without closing the stream
+        when(dopplerClient.stream(any(StreamRequest.class)))
+                .thenReturn(Flux.just(logEnvelope(recent.minus(Duration.ofMinutes(5))),
+                        logEnvelope(recent),
+                        logEnvelope(recent.minus(Duration.ofMinutes(2))))
+                        .concatWith(Flux.never()));
+        //when application is watched, twice
+        activityStream.watch(APP_UID);
+        activityStream.watch(APP_UID);
+        //then a single stream is opened
+        verify(dopplerClient, times(1)).stream(any(StreamRequest.class));
+        //and the most recent log is kept
+        assertEquals(recent, activityStream.getLastLog(APP_UID).getTimestamp());
+        //and stream covers the period since it was opened only
+        assertTrue(activityStream.isCovering(APP_UID, Instant.now()));
+        assertFalse(activityStream.isCovering(APP_UID, before));
+    }
+
+    @Test
+    public void test_period_is_not_covered_when_stream_fails() {
+        //given ingestion is enabled
+        enable(true);
+        //and doppler stream fails
+        when(dopplerClient.stream(any(StreamRequest.class)))
+                .thenReturn(Flux.error(new RuntimeException("stream failure")));
+        //when application is watched
+        activityStream.watch(APP_UID);
+        //then no period is covered until the stream is reconnected
+        assertFalse(activityStream.isCovering(APP_UID, Instant.now()));
+        activityStream.unwatch(APP_UID);
+    }
+
+    @Test
+    public void test_unwatch_closes_stream() {
+        //given ingestion is enabled
+        enable(true);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        when(dopplerClient.stream(any(StreamRequest.class)))
+                .thenReturn(Flux.<Envelope>never().doOnCancel(() -> cancelled.set(true)));
+        activityStream.watch(APP_UID);
+        //when application is not watched anymore
+        activityStream.unwatch(APP_UID);
+        //then stream is closed
+        assertTrue(cancelled.get());
+        assertFalse(activityStream.isCovering(APP_UID, Instant.now()));
+    }
+
+}
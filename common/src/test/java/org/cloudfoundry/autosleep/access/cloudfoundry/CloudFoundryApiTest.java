@@ -20,9 +20,14 @@
 package org.cloudfoundry.autosleep.access.cloudfoundry;
 
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationBindingResult;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.client.v2.Metadata;
+import org.cloudfoundry.client.v2.OrderDirection;
 import org.cloudfoundry.client.v2.applications.ApplicationEntity;
 import org.cloudfoundry.client.v2.applications.ApplicationInstanceInfo;
 import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
@@ -37,10 +42,6 @@ import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
 import org.cloudfoundry.client.v2.applications.ListApplicationsResponse;
 import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
 import org.cloudfoundry.client.v2.applications.UpdateApplicationResponse;
-import org.cloudfoundry.client.v2.domains.DomainEntity;
-import org.cloudfoundry.client.v2.domains.Domains;
-import org.cloudfoundry.client.v2.domains.GetDomainRequest;
-import org.cloudfoundry.client.v2.domains.GetDomainResponse;
 import org.cloudfoundry.client.v2.events.EventEntity;
 import org.cloudfoundry.client.v2.events.EventResource;
 import org.cloudfoundry.client.v2.events.Events;
@@ -50,6 +51,10 @@ import org.cloudfoundry.client.v2.organizations.GetOrganizationRequest;
 import org.cloudfoundry.client.v2.organizations.GetOrganizationResponse;
 import org.cloudfoundry.client.v2.organizations.OrganizationEntity;
 import org.cloudfoundry.client.v2.organizations.Organizations;
+import org.cloudfoundry.client.v2.privatedomains.GetPrivateDomainRequest;
+import org.cloudfoundry.client.v2.privatedomains.GetPrivateDomainResponse;
+import org.cloudfoundry.client.v2.privatedomains.PrivateDomainEntity;
+import org.cloudfoundry.client.v2.privatedomains.PrivateDomains;
 import org.cloudfoundry.client.v2.routes.GetRouteRequest;
 import org.cloudfoundry.client.v2.routes.GetRouteResponse;
 import org.cloudfoundry.client.v2.routes.ListRouteApplicationsRequest;
@@ -66,12 +71,17 @@ import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteReque
 import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteResponse;
 import org.cloudfoundry.client.v2.serviceinstances.ServiceInstanceEntity;
 import org.cloudfoundry.client.v2.serviceinstances.ServiceInstances;
+import org.cloudfoundry.client.v2.shareddomains.GetSharedDomainRequest;
+import org.cloudfoundry.client.v2.shareddomains.GetSharedDomainResponse;
+import org.cloudfoundry.client.v2.shareddomains.SharedDomainEntity;
+import org.cloudfoundry.client.v2.shareddomains.SharedDomains;
 import org.cloudfoundry.doppler.DopplerClient;
 import org.cloudfoundry.doppler.Envelope;
 import org.cloudfoundry.doppler.EventType;
 import org.cloudfoundry.doppler.LogMessage;
 import org.cloudfoundry.doppler.MessageType;
 import org.cloudfoundry.doppler.RecentLogsRequest;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -90,6 +100,7 @@ import static org.cloudfoundry.autosleep.util.TestUtils.verifyThrown;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -104,12 +115,32 @@ public class CloudFoundryApiTest {
     @Mock
     private CloudFoundryClient cfClient;
 
-    @InjectMocks
     private CloudFoundryApi cloudFoundryApi;
 
     @Mock
     private DopplerClient dopplerClient;
 
+    @InjectMocks
+    private ReactiveCloudFoundryApi reactiveCloudFoundryApi;
+
+    @Before
+    public void buildBlockingApi() {
+        cloudFoundryApi = new CloudFoundryApi(reactiveCloudFoundryApi);
+    }
+
+    private Envelope buildLogEnvelope(Instant timestamp, String message) {
+        long timestampNanos = timestamp.getEpochSecond() * 1_000_000_000L + timestamp.getNano();
+        return Envelope.builder()
+                .eventType(EventType.LOG_MESSAGE)
+                .origin("rep")
+                .logMessage(LogMessage.builder()
+                        .message(message)
+                        .messageType(MessageType.OUT)
+                        .timestamp(timestampNanos)
+                        .build())
+                .build();
+    }
+
     private void mockGetApplication(ApplicationsV2 mockApplications, String name, String applicationState) {
         when(mockApplications.get(any(GetApplicationRequest.class)))
                 .thenReturn(Mono.just(GetApplicationResponse.builder()
@@ -127,12 +158,42 @@ public class CloudFoundryApiTest {
         when(cfClient.serviceBindingsV2()).thenReturn(serviceBindings);
         when(serviceBindings.create(any(CreateServiceBindingRequest.class)))
                 .thenReturn(Mono.error(new RuntimeException("some error")));
-        verifyThrown(() -> cloudFoundryApi.bindApplications("service-instance-id",
+        Map<String, ApplicationBindingResult> results = cloudFoundryApi.bindApplications("service-instance-id",
                 Collections.singletonList(ApplicationIdentity.builder()
                         .guid("application-id")
                         .name("application-name")
-                        .build())),
-                CloudFoundryException.class);
+                        .build()));
+        assertTrue(results.get("application-id").isFailed());
+        assertTrue(results.get("application-id").getError() instanceof CloudFoundryException);
+    }
+
+    @Test
+    public void test_bind_applications_should_report_each_binding() throws CloudFoundryException {
+        ServiceBindingsV2 serviceBindings = mock(ServiceBindingsV2.class);
+        when(cfClient.serviceBindingsV2()).thenReturn(serviceBindings);
+        //given cloudfoundry refuses one of the bindings
+        when(serviceBindings.create(any(CreateServiceBindingRequest.class)))
+                .then(invocation -> "refused-id".equals(
+                        ((CreateServiceBindingRequest) invocation.getArguments()[0]).getApplicationId())
+                        ? Mono.error(new RuntimeException("binding refused"))
+                        : Mono.just(CreateServiceBindingResponse.builder()
+                                .metadata(Metadata.builder().build())
+                                .entity(ServiceBindingEntity.builder().build())
+                                .build()));
+
+        Map<String, ApplicationBindingResult> results = cloudFoundryApi.bindApplications("service-instance-id",
+                Arrays.asList(
+                        ApplicationIdentity.builder().guid("first-id").name("first").build(),
+                        ApplicationIdentity.builder().guid("refused-id").name("refused").build(),
+                        ApplicationIdentity.builder().guid("second-id").name("second").build()));
+
+        //then every binding is attempted, and only the refused one is reported as failed
+        verify(serviceBindings, times(3)).create(any(CreateServiceBindingRequest.class));
+        assertEquals(3, results.size());
+        assertFalse(results.get("first-id").isFailed());
+        assertTrue(results.get("refused-id").isFailed());
+        assertEquals("refused", results.get("refused-id").getApplication().getName());
+        assertFalse(results.get("second-id").isFailed());
     }
 
     @Test
@@ -200,7 +261,7 @@ public class CloudFoundryApiTest {
         // for which the API returned the following timestamp long
         long logMessageTimestamp = 1495200772630779308L;
         //then extracted instant should match including timezone conversion
-        Instant instantFromLogMessage = cloudFoundryApi.getInstantFromLogMessageTimestamp(logMessageTimestamp);
+        Instant instantFromLogMessage = reactiveCloudFoundryApi.getInstantFromLogMessageTimestamp(logMessageTimestamp);
         assertEquals("2017-05-19T13:32:52.630779308Z", instantFromLogMessage.toString());
     }
 
@@ -290,6 +351,294 @@ public class CloudFoundryApiTest {
         assertEquals("message-" + 4, activity.getLastLog().getMessage());
     }
 
+    @Test
+    public void test_get_application_activity_stops_reading_logs_on_first_active_one() {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        Events events = mock(Events.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(cfClient.events()).thenReturn(events);
+        mockGetApplication(applications, "application-name", "STARTED");
+        when(events.list(any(ListEventsRequest.class))).thenReturn(Mono.just(ListEventsResponse.builder()
+                .resources(Collections.emptyList())
+                .build()));
+        Instant activeSince = Instant.now().minus(Duration.ofMinutes(5));
+        //Given recent logs whose second one is more recent than the activity threshold
+        List<Envelope> envelopes = Arrays.asList(
+                buildLogEnvelope(activeSince.minus(Duration.ofMinutes(1)), "old"),
+                buildLogEnvelope(activeSince.plus(Duration.ofMinutes(1)), "active"),
+                buildLogEnvelope(activeSince.plus(Duration.ofMinutes(2)), "more-recent"));
+        List<Envelope> readEnvelopes = new ArrayList<>();
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class)))
+                .thenReturn(Flux.fromIterable(envelopes).doOnNext(readEnvelopes::add));
+        //When activity is retrieved
+        ApplicationActivity activity = reactiveCloudFoundryApi.getApplicationActivity("application-id",
+                ApplicationActivityQuery.builder()
+                        .activeSince(activeSince)
+                        .build())
+                .block();
+        //Then the first active log is returned
+        assertEquals("active", activity.getLastLog().getMessage());
+        //And following logs are not read
+        assertEquals(2, readEnvelopes.size());
+    }
+
+    @Test
+    public void test_get_application_activity_skips_logs_already_known() {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        Events events = mock(Events.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(cfClient.events()).thenReturn(events);
+        mockGetApplication(applications, "application-name", "STARTED");
+        when(events.list(any(ListEventsRequest.class))).thenReturn(Mono.just(ListEventsResponse.builder()
+                .resources(Collections.emptyList())
+                .build()));
+        Instant lastKnownLogTime = Instant.now().minus(Duration.ofMinutes(10));
+        ApplicationInfo.DiagnosticInfo.ApplicationLog lastKnownLog = ApplicationInfo.DiagnosticInfo.ApplicationLog
+                .builder()
+                .message("known")
+                .timestampNanos(lastKnownLogTime.getEpochSecond() * 1_000_000_000L + lastKnownLogTime.getNano())
+                .build();
+        //Given recent logs that are not more recent than the one known from previous check
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class)))
+                .thenReturn(Flux.just(
+                        buildLogEnvelope(lastKnownLogTime.minus(Duration.ofMinutes(1)), "older"),
+                        buildLogEnvelope(lastKnownLogTime, "same")));
+        //When activity is retrieved
+        ApplicationActivity activity = reactiveCloudFoundryApi.getApplicationActivity("application-id",
+                ApplicationActivityQuery.builder()
+                        .activeSince(Instant.now().minus(Duration.ofMinutes(5)))
+                        .lastKnownLog(lastKnownLog)
+                        .build())
+                .block();
+        //Then the known log is kept
+        assertEquals(lastKnownLog, activity.getLastLog());
+
+        //Given a log more recent than the known one, but not active
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class)))
+                .thenReturn(Flux.just(
+                        buildLogEnvelope(lastKnownLogTime.plus(Duration.ofMinutes(1)), "newer"),
+                        buildLogEnvelope(lastKnownLogTime.minus(Duration.ofMinutes(1)), "older")));
+        //When activity is retrieved
+        activity = reactiveCloudFoundryApi.getApplicationActivity("application-id",
+                ApplicationActivityQuery.builder()
+                        .activeSince(Instant.now().minus(Duration.ofMinutes(5)))
+                        .lastKnownLog(lastKnownLog)
+                        .build())
+                .block();
+        //Then it is returned
+        assertEquals("newer", activity.getLastLog().getMessage());
+    }
+
+    @Test
+    public void test_get_application_activity_only_requests_events_newer_than_known_one() {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        Events events = mock(Events.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(cfClient.events()).thenReturn(events);
+        mockGetApplication(applications, "application-name", "STARTED");
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class))).thenReturn(Flux.empty());
+        Instant lastKnownEventTime = Instant.parse("2017-03-14T08:21:22.500Z");
+        ApplicationInfo.DiagnosticInfo.ApplicationEvent lastKnownEvent = ApplicationInfo.DiagnosticInfo.ApplicationEvent
+                .builder()
+                .name("audit.app.update")
+                .timestamp(lastKnownEventTime.toEpochMilli())
+                .build();
+        //Given no event more recent than the known one
+        when(events.list(any(ListEventsRequest.class))).thenReturn(Mono.just(ListEventsResponse.builder()
+                .resources(Collections.emptyList())
+                .build()));
+        //When activity is retrieved
+        ApplicationActivity activity = reactiveCloudFoundryApi.getApplicationActivity("application-id",
+                ApplicationActivityQuery.builder()
+                        .lastKnownEvent(lastKnownEvent)
+                        .build())
+                .block();
+        //Then only the most recent event since the known one is requested
+        verify(events, times(1)).list(ListEventsRequest.builder()
+                .actee("application-id")
+                .orderDirection(OrderDirection.DESCENDING)
+                .resultsPerPage(1)
+                .timestamp("2017-03-14T08:21:22Z")
+                .build());
+        //And the known event is kept
+        assertEquals(lastKnownEvent, activity.getLastEvent());
+    }
+
+    @Test
+    public void test_get_application_activity_does_not_read_logs_when_skipped() {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        Events events = mock(Events.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(cfClient.events()).thenReturn(events);
+        mockGetApplication(applications, "application-name", "STARTED");
+        when(events.list(any(ListEventsRequest.class))).thenReturn(Mono.just(ListEventsResponse.builder()
+                .resources(Collections.emptyList())
+                .build()));
+        ApplicationInfo.DiagnosticInfo.ApplicationLog lastKnownLog = ApplicationInfo.DiagnosticInfo.ApplicationLog
+                .builder()
+                .message("known")
+                .timestampNanos(1L)
+                .build();
+        //When activity is retrieved without recent logs
+        ApplicationActivity activity = reactiveCloudFoundryApi.getApplicationActivity("application-id",
+                ApplicationActivityQuery.builder()
+                        .lastKnownLog(lastKnownLog)
+                        .skipRecentLogs(true)
+                        .build())
+                .block();
+        //Then recent logs are never requested
+        verify(dopplerClient, never()).recentLogs(any(RecentLogsRequest.class));
+        //And the known log is given
+        assertEquals(lastKnownLog, activity.getLastLog());
+    }
+
+    @Test
+    public void test_get_application_activities() throws CloudFoundryException {
+        final String spaceId = "space-id";
+        final String eventOnlyAppId = "application-with-event";
+        final String failingLogsAppId = "application-failing-logs";
+        final String noEventAppId = "application-without-event";
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        Events events = mock(Events.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(cfClient.events()).thenReturn(events);
+        Instant now = Instant.now();
+        Function<String, EventResource> eventBuilder = actee -> EventResource.builder()
+                .metadata(Metadata.builder().build())
+                .entity(EventEntity.builder()
+                        .actee(actee)
+                        .spaceId(spaceId)
+                        .timestamp(now.toString())
+                        .type("audit.app.update")
+                        .build())
+                .build();
+        //given events are returned most recent first, in a single call for all applications
+        //and application without event has none when asked alone
+        when(events.list(any(ListEventsRequest.class)))
+                .then(invocation -> {
+                    ListEventsRequest request = (ListEventsRequest) invocation.getArguments()[0];
+                    if (Integer.valueOf(1).equals(request.getResultsPerPage())) {
+                        return Mono.just(ListEventsResponse.builder().build());
+                    } else {
+                        return Mono.just(ListEventsResponse.builder()
+                                .resource(eventBuilder.apply(eventOnlyAppId))
+                                .resource(eventBuilder.apply(failingLogsAppId))
+                                .resource(eventBuilder.apply(eventOnlyAppId))
+                                .build());
+                    }
+                });
+        //and states are listed space by space
+        Function<String, ApplicationResource> applicationBuilder = id -> ApplicationResource.builder()
+                .metadata(Metadata.builder()
+                        .id(id)
+                        .build())
+                .entity(ApplicationEntity.builder()
+                        .name(id + "-name")
+                        .state("STARTED")
+                        .build())
+                .build();
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .thenReturn(Mono.just(ListApplicationsResponse.builder()
+                        .resource(applicationBuilder.apply(eventOnlyAppId))
+                        .resource(applicationBuilder.apply(failingLogsAppId))
+                        .resource(applicationBuilder.apply("some-other-application"))
+                        .totalPages(1)
+                        .build()));
+        //and application without event is retrieved alone
+        mockGetApplication(applications, noEventAppId + "-name", "STOPPED");
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class)))
+                .then(invocation -> {
+                    RecentLogsRequest request = (RecentLogsRequest) invocation.getArguments()[0];
+                    if (request.getApplicationId().equals(failingLogsAppId)) {
+                        return Flux.error(new RuntimeException("doppler failure"));
+                    } else {
+                        return Flux.just(Envelope.builder()
+                                .eventType(EventType.LOG_MESSAGE)
+                                .origin("rep")
+                                .logMessage(LogMessage.builder()
+                                        .message("message")
+                                        .messageType(MessageType.OUT)
+                                        .timestamp(now.getEpochSecond() * 1000000000)
+                                        .build())
+                                .build());
+                    }
+                });
+
+        Map<String, ApplicationActivity> activities = cloudFoundryApi.getApplicationActivities(
+                Arrays.asList(eventOnlyAppId, failingLogsAppId, noEventAppId));
+
+        assertEquals(3, activities.size());
+        verify(events, times(2)).list(any(ListEventsRequest.class));
+        verify(applications, times(1)).list(any(ListApplicationsRequest.class));
+        verify(applications, times(1)).get(any(GetApplicationRequest.class));
+
+        ApplicationActivity activity = activities.get(eventOnlyAppId);
+        assertFalse(activity.isFailed());
+        assertEquals(eventOnlyAppId + "-name", activity.getApplication().getName());
+        assertEquals("STARTED", activity.getState());
+        assertNotNull(activity.getLastEvent());
+        assertNotNull(activity.getLastLog());
+
+        activity = activities.get(failingLogsAppId);
+        assertTrue(activity.isFailed());
+        assertNotNull(activity.getLastEvent());
+
+        activity = activities.get(noEventAppId);
+        assertFalse(activity.isFailed());
+        assertEquals("STOPPED", activity.getState());
+        assertNull(activity.getLastEvent());
+        assertNotNull(activity.getLastLog());
+    }
+
+    @Test
+    public void test_get_application_activities_reads_a_bounded_number_of_event_pages() throws CloudFoundryException {
+        final String busyAppId = "busy-application";
+        final String quietAppId = "quiet-application";
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        Events events = mock(Events.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(cfClient.events()).thenReturn(events);
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .thenReturn(Mono.just(ListApplicationsResponse.builder()
+                        .totalPages(1)
+                        .build()));
+        mockGetApplication(applications, "name", "STARTED");
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class))).thenReturn(Flux.empty());
+        Function<String, EventResource> eventBuilder = actee -> EventResource.builder()
+                .metadata(Metadata.builder().build())
+                .entity(EventEntity.builder()
+                        .actee(actee)
+                        .spaceId("space-id")
+                        .timestamp(Instant.now().toString())
+                        .type("audit.app.update")
+                        .build())
+                .build();
+        //given events of a single application fill endless pages
+        //and the last event of the other one is only found when asked alone
+        when(events.list(any(ListEventsRequest.class)))
+                .then(invocation -> {
+                    ListEventsRequest request = (ListEventsRequest) invocation.getArguments()[0];
+                    if (Integer.valueOf(1).equals(request.getResultsPerPage())) {
+                        return Mono.just(ListEventsResponse.builder()
+                                .resource(eventBuilder.apply(request.getActees().get(0)))
+                                .build());
+                    } else {
+                        return Mono.just(ListEventsResponse.builder()
+                                .resource(eventBuilder.apply(busyAppId))
+                                .nextUrl("/v2/events?page=" + (request.getPage() + 1))
+                                .build());
+                    }
+                });
+
+        Map<String, ApplicationActivity> activities = cloudFoundryApi.getApplicationActivities(
+                Arrays.asList(busyAppId, quietAppId));
+
+        //then paging stops at the cap and the remaining application is asked alone
+        verify(events, times(ReactiveCloudFoundryApi.BATCH_MAX_EVENT_PAGES + 1)).list(any(ListEventsRequest.class));
+        assertNotNull(activities.get(busyAppId).getLastEvent());
+        assertEquals(quietAppId, activities.get(quietAppId).getLastEvent().getActee());
+    }
+
     @Test
     public void test_get_application_state_should_fail() throws CloudFoundryException {
         ApplicationsV2 applications = mock(ApplicationsV2.class);
@@ -312,12 +661,51 @@ public class CloudFoundryApiTest {
         assertEquals(applicationState, result);
     }
 
+    @Test
+    public void test_reactive_get_application_state_is_deferred_until_subscription() {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        mockGetApplication(applications, "name", "STARTED");
+
+        Mono<String> result = reactiveCloudFoundryApi.getApplicationState("application-id");
+        verify(applications, never()).get(any(GetApplicationRequest.class));
+
+        assertEquals("STARTED", result.block());
+        verify(applications, times(1)).get(any(GetApplicationRequest.class));
+    }
+
+    @Test
+    public void test_reactive_errors_are_signaled_as_cloudfoundry_exception() {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.get(any(GetApplicationRequest.class)))
+                .thenThrow(new RuntimeException("some error"));
+
+        Throwable error = reactiveCloudFoundryApi.getApplicationState("application-id")
+                .then(Mono.<Throwable>empty())
+                .onErrorResume(Mono::just)
+                .block();
+        assertTrue(error instanceof CloudFoundryException);
+    }
+
+    @Test
+    public void test_blocking_calls_fail_after_deadline() {
+        Events events = mock(Events.class);
+        when(cfClient.events()).thenReturn(events);
+        //given events of applications are never answered
+        when(events.list(any(ListEventsRequest.class))).thenReturn(Mono.never());
+        CloudFoundryApi boundedApi = new CloudFoundryApi(reactiveCloudFoundryApi, Duration.ofMillis(50));
+        //when activities are read, then the whole operation fails once late
+        verifyThrown(() -> boundedApi.getApplicationActivities(Collections.singletonList("application-id")),
+                CloudFoundryException.class);
+    }
+
     @Test
     public void test_get_host_by_route_id_should_fail() throws CloudFoundryException {
         Routes routes = mock(Routes.class);
         when(cfClient.routes()).thenReturn(routes);
-        Domains domains = mock(Domains.class);
-        when(cfClient.domains()).thenReturn(domains);
+        SharedDomains sharedDomains = mock(SharedDomains.class);
+        when(cfClient.sharedDomains()).thenReturn(sharedDomains);
         when(routes.get(any(GetRouteRequest.class)))
                 .thenThrow(new RuntimeException());
         verifyThrown(() -> cloudFoundryApi.getHost("route-id"),
@@ -332,8 +720,8 @@ public class CloudFoundryApiTest {
         final String domainId = "domain-id";
         Routes routes = mock(Routes.class);
         when(cfClient.routes()).thenReturn(routes);
-        Domains domains = mock(Domains.class);
-        when(cfClient.domains()).thenReturn(domains);
+        SharedDomains sharedDomains = mock(SharedDomains.class);
+        when(cfClient.sharedDomains()).thenReturn(sharedDomains);
         when(routes.get(any(GetRouteRequest.class)))
                 .thenReturn(Mono.just(GetRouteResponse.builder()
                         .metadata(Metadata.builder().build())
@@ -343,13 +731,13 @@ public class CloudFoundryApiTest {
                                 .domainId(domainId)
                                 .build())
                         .build()));
-        when(domains.get(any(GetDomainRequest.class)))
+        when(sharedDomains.get(any(GetSharedDomainRequest.class)))
                 .then(invocation -> {
-                    GetDomainRequest request = (GetDomainRequest) invocation.getArguments()[0];
-                    assertEquals(domainId, request.getDomainId());
-                    return Mono.just(GetDomainResponse.builder()
+                    GetSharedDomainRequest request = (GetSharedDomainRequest) invocation.getArguments()[0];
+                    assertEquals(domainId, request.getSharedDomainId());
+                    return Mono.just(GetSharedDomainResponse.builder()
                             .metadata(Metadata.builder().build())
-                            .entity(DomainEntity.builder()
+                            .entity(SharedDomainEntity.builder()
                                     .name(domain)
                                     .build())
                             .build());
@@ -359,6 +747,101 @@ public class CloudFoundryApiTest {
         assertEquals(host + path + "." + domain, result);
     }
 
+    @Test
+    public void test_get_host_caches_routes_and_domains() throws CloudFoundryException {
+        Routes routes = mock(Routes.class);
+        when(cfClient.routes()).thenReturn(routes);
+        SharedDomains sharedDomains = mock(SharedDomains.class);
+        when(cfClient.sharedDomains()).thenReturn(sharedDomains);
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(routes.get(any(GetRouteRequest.class)))
+                .thenReturn(Mono.just(GetRouteResponse.builder()
+                        .metadata(Metadata.builder().build())
+                        .entity(RouteEntity.builder()
+                                .host("host-1")
+                                .path("")
+                                .domainId("domain-id")
+                                .build())
+                        .build()));
+        when(sharedDomains.get(any(GetSharedDomainRequest.class)))
+                .thenReturn(Mono.just(GetSharedDomainResponse.builder()
+                        .metadata(Metadata.builder().build())
+                        .entity(SharedDomainEntity.builder()
+                                .name("domain")
+                                .build())
+                        .build()));
+        when(applications.listRoutes(any(ListApplicationRoutesRequest.class)))
+                .thenReturn(Mono.just(ListApplicationRoutesResponse.builder()
+                        .resource(RouteResource.builder()
+                                .metadata(Metadata.builder()
+                                        .id("route-2")
+                                        .build())
+                                .entity(RouteEntity.builder()
+                                        .host("host-2")
+                                        .path("")
+                                        .domainId("domain-id")
+                                        .build())
+                                .build())
+                        .build()));
+        //Given a route whose host was already asked
+        assertEquals("host-1.domain", cloudFoundryApi.getHost("route-1"));
+        //When its host is asked again
+        assertEquals("host-1.domain", cloudFoundryApi.getHost("route-1"));
+        //Then neither the route nor its domain are requested again
+        verify(routes, times(1)).get(any(GetRouteRequest.class));
+        verify(sharedDomains, times(1)).get(any(GetSharedDomainRequest.class));
+
+        //Given routes of an application were listed
+        cloudFoundryApi.listApplicationRoutes("application-id");
+        //When host of one of them is asked
+        assertEquals("host-2.domain", cloudFoundryApi.getHost("route-2"));
+        //Then the route is not requested
+        verify(routes, times(1)).get(any(GetRouteRequest.class));
+
+        //Given cached routes were invalidated
+        reactiveCloudFoundryApi.invalidateRoutes();
+        //When host of a route is asked
+        cloudFoundryApi.getHost("route-1");
+        //Then both route and domain are requested again
+        verify(routes, times(2)).get(any(GetRouteRequest.class));
+        verify(sharedDomains, times(2)).get(any(GetSharedDomainRequest.class));
+    }
+
+    @Test
+    public void test_get_host_reads_private_domain_when_not_shared() throws CloudFoundryException {
+        Routes routes = mock(Routes.class);
+        when(cfClient.routes()).thenReturn(routes);
+        SharedDomains sharedDomains = mock(SharedDomains.class);
+        when(cfClient.sharedDomains()).thenReturn(sharedDomains);
+        PrivateDomains privateDomains = mock(PrivateDomains.class);
+        when(cfClient.privateDomains()).thenReturn(privateDomains);
+        when(routes.get(any(GetRouteRequest.class)))
+                .thenReturn(Mono.just(GetRouteResponse.builder()
+                        .metadata(Metadata.builder().build())
+                        .entity(RouteEntity.builder()
+                                .host("host")
+                                .path("")
+                                .domainId("domain-id")
+                                .build())
+                        .build()));
+        //Given the domain of the route is not a shared one
+        when(sharedDomains.get(any(GetSharedDomainRequest.class)))
+                .thenReturn(Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(null,
+                        ReactiveCloudFoundryApi.CF_DOMAIN_NOT_FOUND, "", "")));
+        when(privateDomains.get(any(GetPrivateDomainRequest.class)))
+                .thenReturn(Mono.just(GetPrivateDomainResponse.builder()
+                        .metadata(Metadata.builder().build())
+                        .entity(PrivateDomainEntity.builder()
+                                .name("private.domain")
+                                .build())
+                        .build()));
+        //When its host is asked
+        String result = cloudFoundryApi.getHost("route-id");
+        //Then the private domain is read
+        assertEquals("host.private.domain", result);
+    }
+
     @Test
     public void test_is_app_running_should_fail() throws CloudFoundryException {
         ApplicationsV2 applications = mock(ApplicationsV2.class);
@@ -378,12 +861,12 @@ public class CloudFoundryApiTest {
 
     @Test
     public void test_is_app_running_should_return_false_due_to_instance_error() throws CloudFoundryException {
-        test_is_app_running_should_return_false(CloudFoundryApi.CF_INSTANCES_ERROR);
+        test_is_app_running_should_return_false(ReactiveCloudFoundryApi.CF_INSTANCES_ERROR);
     }
 
     @Test
     public void test_is_app_running_should_return_false_due_to_staging_not_finished() throws CloudFoundryException {
-        test_is_app_running_should_return_false(CloudFoundryApi.CF_STAGING_NOT_FINISHED);
+        test_is_app_running_should_return_false(ReactiveCloudFoundryApi.CF_STAGING_NOT_FINISHED);
     }
 
     @Test
@@ -427,6 +910,7 @@ public class CloudFoundryApiTest {
                                         .build())
                                 .entity(ApplicationEntity.builder()
                                         .name(returnedApplication)
+                                        .state("STARTED")
                                         .build())
                                 .build())
                         .resource(ApplicationResource.builder()
@@ -435,6 +919,7 @@ public class CloudFoundryApiTest {
                                         .build())
                                 .entity(ApplicationEntity.builder()
                                         .name(ignoredApplication)
+                                        .state("STARTED")
                                         .build())
                                 .build())
                         .resource(ApplicationResource.builder()
@@ -443,34 +928,53 @@ public class CloudFoundryApiTest {
                                         .build())
                                 .entity(ApplicationEntity.builder()
                                         .name(stoppedApplicationId)
+                                        .state("STOPPED")
                                         .build())
                                 .build())
                         .build()));
-        when(applications.instances(any(ApplicationInstancesRequest.class)))
-                .then(invocation -> {
-                    ApplicationInstancesRequest request = (ApplicationInstancesRequest) invocation.getArguments()[0];
-                    if (request.getApplicationId().equals(stoppedApplicationId)) {
-                        return Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(
-                                null,
-                                CloudFoundryApi.CF_INSTANCES_ERROR,
-                                "",
-                                ""));
-                    } else {
-                        return Mono.just(ApplicationInstancesResponse.builder()
-                                .instance("1", ApplicationInstanceInfo.builder()
-                                        .state("RUNNING")
-                                        .build())
-                                .build());
-                    }
-                });
         List<ApplicationIdentity> result = cloudFoundryApi
                 .listAliveApplications("space-id", excludePattern);
         assertNotNull(result);
         assertEquals(1, result.size());
         assertEquals(returnedApplication, result.get(0).getGuid());
+        //liveness is known without asking for instances
+        verify(applications, never()).instances(any(ApplicationInstancesRequest.class));
 
     }
 
+    @Test
+    public void test_list_alive_applications_reads_every_page() throws CloudFoundryException {
+        final int totalPages = 3;
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        //Given a space whose applications span several pages
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .then(invocation -> {
+                    ListApplicationsRequest request = (ListApplicationsRequest) invocation.getArguments()[0];
+                    return Mono.just(ListApplicationsResponse.builder()
+                            .totalPages(totalPages)
+                            .resource(ApplicationResource.builder()
+                                    .metadata(Metadata.builder()
+                                            .id("application-" + request.getPage())
+                                            .build())
+                                    .entity(ApplicationEntity.builder()
+                                            .name("application-" + request.getPage())
+                                            .state("STARTED")
+                                            .build())
+                                    .build())
+                            .build());
+                });
+        //When alive applications are listed
+        List<ApplicationIdentity> result = cloudFoundryApi.listAliveApplications("space-id", null);
+        //Then each page is requested once
+        verify(applications, times(totalPages)).list(any(ListApplicationsRequest.class));
+        //And applications of all pages are returned, in order
+        assertEquals(totalPages, result.size());
+        for (int page = 1; page <= totalPages; page++) {
+            assertEquals("application-" + page, result.get(page - 1).getGuid());
+        }
+    }
+
     @Test
     public void test_list_applications_of_route_should_fail() throws CloudFoundryException {
         Routes routes = mock(Routes.class);
@@ -632,6 +1136,29 @@ public class CloudFoundryApiTest {
 
     }
 
+    @Test
+    public void test_stop_applications_should_report_each_stop() throws CloudFoundryException {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        //given cloudfoundry refuses to stop one of the applications
+        when(applications.update(any(UpdateApplicationRequest.class)))
+                .then(invocation -> "refused-id".equals(
+                        ((UpdateApplicationRequest) invocation.getArguments()[0]).getApplicationId())
+                        ? Mono.error(new RuntimeException("stop refused"))
+                        : Mono.just(UpdateApplicationResponse.builder().build()));
+
+        Map<String, ApplicationStopResult> results = cloudFoundryApi.stopApplications(
+                Arrays.asList("first-id", "refused-id", "second-id"));
+
+        //then every application is stopped without reading its state first
+        assertEquals(3, results.size());
+        verify(applications, never()).get(any(GetApplicationRequest.class));
+        verify(applications, times(3)).update(any(UpdateApplicationRequest.class));
+        assertFalse(results.get("first-id").isFailed());
+        assertTrue(results.get("refused-id").isFailed());
+        assertFalse(results.get("second-id").isFailed());
+    }
+
     @Test
     public void test_unbind_application_should_fail() throws CloudFoundryException {
         ServiceBindingsV2 serviceBindings = mock(ServiceBindingsV2.class);
@@ -694,7 +1221,7 @@ public class CloudFoundryApiTest {
                 .build();
         when(organizations.get(request))
                 .thenReturn(Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(null,
-                        cloudFoundryApi.CF_ORGANIZATION_NOT_FOUND, fakeOrgId, fakeOrgId)));
+                        ReactiveCloudFoundryApi.CF_ORGANIZATION_NOT_FOUND, fakeOrgId, fakeOrgId)));
 
         assertFalse(cloudFoundryApi.isValidOrganization(fakeOrgId));
     }
@@ -0,0 +1,225 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryOperation.Priority;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import org.cloudfoundry.autosleep.config.Config;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CloudFoundryRateLimiterTest {
+
+    private VirtualTimeScheduler timer;
+
+    private List<CloudFoundryRateLimiter.Permit> acquireAll(CloudFoundryRateLimiter rateLimiter, Priority priority,
+                                                            int count) {
+        List<CloudFoundryRateLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rateLimiter.acquire(priority).subscribe(permits::add);
+        }
+        return permits;
+    }
+
+    @Before
+    public void buildTimer() {
+        timer = VirtualTimeScheduler.create();
+    }
+
+    @Test
+    public void test_cancelled_waiter_leaves_the_queue() {
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(10, 10, 1, 10, timer);
+        acquireAll(rateLimiter, Priority.BACKGROUND, 1);
+        //Given a waiting request
+        Disposable waiting = rateLimiter.acquire(Priority.BACKGROUND).subscribe();
+        assertEquals(1, rateLimiter.getQueueDepth(Priority.BACKGROUND));
+        //When it gives up
+        waiting.dispose();
+        //Then it is no longer waiting
+        assertEquals(0, rateLimiter.getQueueDepth(Priority.BACKGROUND));
+    }
+
+    @Test
+    public void test_interactive_requests_go_first() {
+        //Given a limiter allowing a single pending request, already used
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(100, 100, 1, 10, timer);
+        List<CloudFoundryRateLimiter.Permit> first = acquireAll(rateLimiter, Priority.BACKGROUND, 1);
+        assertEquals(1, first.size());
+        //And a background request waiting before an interactive one
+        List<CloudFoundryRateLimiter.Permit> background = acquireAll(rateLimiter, Priority.BACKGROUND, 1);
+        List<CloudFoundryRateLimiter.Permit> interactive = acquireAll(rateLimiter, Priority.INTERACTIVE, 1);
+        assertEquals(0, background.size());
+        assertEquals(0, interactive.size());
+        //When the pending request completes
+        first.get(0).release(false);
+        //Then the interactive request goes first
+        assertEquals(1, interactive.size());
+        assertEquals(0, background.size());
+    }
+
+    @Test
+    public void test_limit_is_halved_on_overload_and_grows_back() {
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(1000, 1000, 8, 10, timer);
+        assertEquals(8, rateLimiter.getLimit(), 0);
+        //When a request fails because cloudfoundry is overloaded
+        acquireAll(rateLimiter, Priority.BACKGROUND, 1).get(0).release(true);
+        //Then limit is halved
+        assertEquals(4, rateLimiter.getLimit(), 0);
+        //And only as many requests are sent at once
+        List<CloudFoundryRateLimiter.Permit> permits = acquireAll(rateLimiter, Priority.BACKGROUND, 6);
+        assertEquals(4, permits.size());
+        assertEquals(4, rateLimiter.getInFlight());
+        assertEquals(2, rateLimiter.getQueueDepth(Priority.BACKGROUND));
+        //When requests succeed
+        new ArrayList<>(permits).forEach(permit -> permit.release(false));
+        //Then limit grows back slowly
+        assertTrue(rateLimiter.getLimit() > 4);
+        assertTrue(rateLimiter.getLimit() < 8);
+    }
+
+    @Test
+    public void test_limit_is_halved_once_per_cooldown() {
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(1000, 1000, 32, 100, timer);
+        //When all pending requests fail together because cloudfoundry is overloaded
+        acquireAll(rateLimiter, Priority.BACKGROUND, 16).forEach(permit -> permit.release(true));
+        //Then limit is halved only once
+        assertEquals(16, rateLimiter.getLimit(), 0);
+        //When requests are still throttled after the cooldown
+        timer.advanceTimeBy(Config.CF_LIMIT_DECREASE_COOLDOWN);
+        acquireAll(rateLimiter, Priority.BACKGROUND, 1).get(0).release(true);
+        //Then limit is halved again
+        assertEquals(8, rateLimiter.getLimit(), 0);
+    }
+
+    @Test
+    public void test_each_request_of_an_operation_takes_a_permit() {
+        //Given a limiter allowing 1 request per second, with a burst of 2
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(1, 2, 100, 10, timer);
+        ReactiveCloudFoundryApiService delegate = mock(ReactiveCloudFoundryApiService.class);
+        //And a bulk stop sending a request per application
+        when(delegate.stopApplications(any()))
+                .thenReturn(Flux.range(0, 3)
+                        .flatMap(index -> CloudFoundryRateLimiter.send("applications.update",
+                                () -> Mono.just(index)))
+                        .then(Mono.just(Collections.emptyMap())));
+        RateLimitedCloudFoundryApi api = new RateLimitedCloudFoundryApi(delegate, rateLimiter);
+        //When the bulk stop is made
+        AtomicReference<Map<String, ApplicationStopResult>> result = new AtomicReference<>();
+        api.stopApplications(Arrays.asList("app-1", "app-2", "app-3")).subscribe(result::set);
+        //Then only the burst is sent at first
+        assertNull(result.get());
+        //And the last request is sent once a token comes back
+        timer.advanceTimeBy(Duration.ofSeconds(1));
+        assertNotNull(result.get());
+        assertEquals(0, rateLimiter.getInFlight());
+    }
+
+    @Test
+    public void test_permit_is_released_once() {
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(100, 100, 4, 10, timer);
+        CloudFoundryRateLimiter.Permit permit = acquireAll(rateLimiter, Priority.BACKGROUND, 1).get(0);
+        permit.release(true);
+        permit.release(true);
+        assertEquals(0, rateLimiter.getInFlight());
+        assertEquals(2, rateLimiter.getLimit(), 0);
+    }
+
+    @Test
+    public void test_requests_are_sent_at_limited_rate() {
+        //Given a limiter allowing 2 requests per second, with a burst of 2
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(2, 2, 100, 10, timer);
+        //When 5 requests are sent at once
+        List<CloudFoundryRateLimiter.Permit> permits = acquireAll(rateLimiter, Priority.BACKGROUND, 5);
+        //Then only the burst is sent
+        assertEquals(2, permits.size());
+        //And others are sent as tokens come back
+        timer.advanceTimeBy(Duration.ofMillis(500));
+        assertEquals(3, permits.size());
+        timer.advanceTimeBy(Duration.ofSeconds(1));
+        assertEquals(5, permits.size());
+    }
+
+    @Test
+    public void test_requests_are_rejected_when_queue_is_full() {
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(100, 100, 1, 1, timer);
+        acquireAll(rateLimiter, Priority.BACKGROUND, 2);
+        //When a request comes while queue is full
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        rateLimiter.acquire(Priority.BACKGROUND).subscribe(permit -> {
+        }, error::set);
+        //Then it is rejected
+        assertNotNull(error.get());
+        assertTrue(error.get() instanceof CloudFoundryException);
+        assertEquals(1, rateLimiter.getRejectedCount(Priority.BACKGROUND));
+        //And other priorities are not affected
+        assertEquals(0, rateLimiter.getRejectedCount(Priority.INTERACTIVE));
+    }
+
+    @Test
+    public void test_throttled_call_reduces_limit() {
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(100, 100, 8, 10, timer);
+        ReactiveCloudFoundryApiService delegate = mock(ReactiveCloudFoundryApiService.class);
+        when(delegate.getApplicationState("app"))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.get", () -> Mono.error(
+                        new CloudFoundryException(new ClientV2Exception(429, 0, "throttled", "")))));
+        RateLimitedCloudFoundryApi api = new RateLimitedCloudFoundryApi(delegate, rateLimiter);
+        //When a call is throttled
+        Throwable error = api.getApplicationState("app")
+                .then(Mono.<Throwable>empty())
+                .onErrorResume(Mono::just)
+                .block();
+        //Then error is given back
+        assertTrue(error instanceof CloudFoundryException);
+        //And the permit is released with the limit halved
+        assertEquals(0, rateLimiter.getInFlight());
+        assertEquals(4, rateLimiter.getLimit(), 0);
+        //When a call succeeds
+        when(delegate.getApplicationState("app"))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.get", () -> Mono.just("STARTED")));
+        assertEquals("STARTED", api.getApplicationState("app").block());
+        //Then its permit is released too
+        assertEquals(0, rateLimiter.getInFlight());
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CoalescingCloudFoundryApiTest {
+
+    private static final String APP_UID = "appUid";
+
+    private static final Duration TIME_TO_LIVE = Duration.ofSeconds(1);
+
+    private CoalescingCloudFoundryApi api;
+
+    @Mock
+    private ReactiveCloudFoundryApiService delegate;
+
+    @Before
+    public void buildApi() {
+        api = new CoalescingCloudFoundryApi(delegate, TIME_TO_LIVE, VirtualTimeScheduler.create());
+    }
+
+    @Test
+    public void test_burst_of_state_lookups_sends_one_call() {
+        //Given a pending state lookup
+        MonoProcessor<String> remote = MonoProcessor.create();
+        when(delegate.getApplicationState(anyString())).thenReturn(remote);
+        List<String> states = new ArrayList<>();
+        //When a burst of requests looks the application up
+        for (int i = 0; i < 500; i++) {
+            api.getApplicationState(APP_UID).subscribe(states::add);
+        }
+        remote.onNext(CloudFoundryAppState.STOPPED);
+        //Then a single call was sent
+        verify(delegate, times(1)).getApplicationState(APP_UID);
+        assertEquals(500, states.size());
+        assertEquals(499, api.getCoalescedCount());
+        //And a lookup made just after does not call again
+        api.getApplicationState(APP_UID).block();
+        verify(delegate, times(1)).getApplicationState(APP_UID);
+    }
+
+    @Test
+    public void test_concurrent_starts_send_one_call_and_forget_state() {
+        //Given a stopped application
+        when(delegate.getApplicationState(anyString())).thenReturn(Mono.just(CloudFoundryAppState.STOPPED));
+        api.getApplicationState(APP_UID).block();
+        //When several requests start it at once
+        MonoProcessor<Boolean> remote = MonoProcessor.create();
+        when(delegate.startApplication(anyString())).thenReturn(remote);
+        api.startApplication(APP_UID).subscribe();
+        api.startApplication(APP_UID).subscribe();
+        remote.onNext(true);
+        //Then it is started once
+        verify(delegate, times(1)).startApplication(APP_UID);
+        //And its state is read again
+        when(delegate.getApplicationState(anyString())).thenReturn(Mono.just(CloudFoundryAppState.STARTED));
+        assertEquals(CloudFoundryAppState.STARTED, api.getApplicationState(APP_UID).block());
+    }
+
+}
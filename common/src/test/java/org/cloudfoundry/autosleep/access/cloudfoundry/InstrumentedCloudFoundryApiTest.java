@@ -0,0 +1,143 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.Metric;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class InstrumentedCloudFoundryApiTest {
+
+    private static final String APP_UID = "appUid";
+
+    private InstrumentedCloudFoundryApi api;
+
+    @Mock
+    private ReactiveCloudFoundryApiService delegate;
+
+    @Before
+    public void buildApi() {
+        api = new InstrumentedCloudFoundryApi(delegate);
+    }
+
+    @Test
+    public void test_endpoints_of_an_operation_are_measured_apart() {
+        //Given an operation calling two endpoints
+        when(delegate.getApplicationActivities(anyCollectionOf(String.class)))
+                .thenReturn(Mono.when(CloudFoundryRateLimiter.send("events.list", () -> Mono.just("event")),
+                        CloudFoundryRateLimiter.send("recent_logs", () -> Mono.just("log")))
+                        .then(Mono.just(Collections.<String, ApplicationActivity>emptyMap())));
+        //When it is called
+        api.getApplicationActivities(Collections.singletonList(APP_UID)).block();
+        //Then each endpoint is measured once
+        assertEquals(1, api.getMetrics("events.list").getLatency().getCount());
+        assertEquals(1, api.getMetrics("recent_logs").getLatency().getCount());
+    }
+
+    @Test
+    public void test_errors_are_counted_by_error_code() {
+        when(delegate.stopApplication(anyString()))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.update", () -> Mono.error(
+                        new ClientV2Exception(404, 100004, "app not found", "CF-AppNotFound"))));
+        api.stopApplication(APP_UID).onErrorReturn(false).block();
+        when(delegate.stopApplication(anyString()))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.update", () -> Mono.error(
+                        new ClientV2Exception(502, null, "", null))));
+        api.stopApplication(APP_UID).onErrorReturn(false).block();
+        when(delegate.stopApplication(anyString()))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.update",
+                        () -> Mono.error(new TimeoutException())));
+        api.stopApplication(APP_UID).onErrorReturn(false).block();
+
+        InstrumentedCloudFoundryApi.EndpointMetrics metrics = api.getMetrics("applications.update");
+        assertEquals(1, metrics.getErrorCount("CF-AppNotFound"));
+        assertEquals(1, metrics.getErrorCount("502"));
+        assertEquals(1, metrics.getErrorCount("timeout"));
+        assertEquals(3, metrics.getLatency().getCount());
+    }
+
+    @Test
+    public void test_metrics_are_published() {
+        when(delegate.getApplicationState(anyString()))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.get", () -> Mono.just("STARTED")));
+        api.getApplicationState(APP_UID).block();
+
+        Map<String, Number> metrics = api.metrics().stream()
+                .collect(Collectors.toMap(Metric::getName, Metric::getValue));
+        assertEquals(1L, metrics.get("autosleep.cf.request.applications.get.calls"));
+        assertEquals(0, metrics.get("autosleep.cf.request.applications.get.inflight"));
+        assertTrue(metrics.containsKey("autosleep.cf.request.applications.get.latency.p99"));
+    }
+
+    @Test
+    public void test_pending_calls_are_counted() {
+        //Given a call that never ends
+        when(delegate.isAppRunning(anyString()))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.instances", Mono::never));
+        Disposable pending = api.isAppRunning(APP_UID).subscribe();
+        //Then it is in flight
+        assertEquals(1, api.getMetrics("applications.instances").getInFlight());
+        //When it is cancelled
+        pending.dispose();
+        //Then it is no longer
+        assertEquals(0, api.getMetrics("applications.instances").getInFlight());
+    }
+
+    @Test
+    public void test_wait_for_a_permit_is_not_measured() {
+        //Given a rate limiter letting a single request be sent at a time
+        CloudFoundryRateLimiter rateLimiter = new CloudFoundryRateLimiter(100, 100, 1, 10,
+                VirtualTimeScheduler.create());
+        RateLimitedCloudFoundryApi rateLimitedApi = new RateLimitedCloudFoundryApi(api, rateLimiter);
+        when(delegate.isAppRunning(anyString()))
+                .thenReturn(CloudFoundryRateLimiter.send("applications.instances", Mono::never));
+        //When a second call comes while the first one is pending
+        Disposable first = rateLimitedApi.isAppRunning(APP_UID).subscribe();
+        rateLimitedApi.isAppRunning(APP_UID).subscribe();
+        //Then only the first one is in flight
+        assertEquals(1, api.getMetrics("applications.instances").getInFlight());
+        //When the first one is cancelled
+        first.dispose();
+        //Then the second one is sent
+        assertEquals(1, api.getMetrics("applications.instances").getInFlight());
+        assertEquals(1, rateLimiter.getInFlight());
+    }
+
+}
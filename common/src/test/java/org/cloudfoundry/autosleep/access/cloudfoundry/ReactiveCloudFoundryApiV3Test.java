@@ -0,0 +1,337 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v3.BuildpackData;
+import org.cloudfoundry.client.v3.Lifecycle;
+import org.cloudfoundry.client.v3.LifecycleType;
+import org.cloudfoundry.client.v3.Pagination;
+import org.cloudfoundry.client.v2.events.Events;
+import org.cloudfoundry.client.v2.events.ListEventsRequest;
+import org.cloudfoundry.client.v2.events.ListEventsResponse;
+import org.cloudfoundry.client.v3.ClientV3Exception;
+import org.cloudfoundry.client.v3.Error;
+import org.cloudfoundry.client.v3.applications.ApplicationResource;
+import org.cloudfoundry.client.v3.applications.ApplicationState;
+import org.cloudfoundry.client.v3.applications.ApplicationsV3;
+import org.cloudfoundry.client.v3.applications.GetApplicationProcessStatisticsRequest;
+import org.cloudfoundry.client.v3.applications.GetApplicationProcessStatisticsResponse;
+import org.cloudfoundry.client.v3.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v3.applications.GetApplicationResponse;
+import org.cloudfoundry.client.v3.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v3.applications.ListApplicationsResponse;
+import org.cloudfoundry.client.v3.applications.StopApplicationRequest;
+import org.cloudfoundry.client.v3.applications.StopApplicationResponse;
+import org.cloudfoundry.client.v3.processes.ProcessState;
+import org.cloudfoundry.client.v3.processes.ProcessStatisticsResource;
+import org.cloudfoundry.client.v3.processes.ProcessUsage;
+import org.cloudfoundry.doppler.DopplerClient;
+import org.cloudfoundry.doppler.RecentLogsRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReactiveCloudFoundryApiV3Test {
+
+    private static final Lifecycle LIFECYCLE = Lifecycle.builder()
+            .type(LifecycleType.BUILDPACK)
+            .data(BuildpackData.builder().build())
+            .build();
+
+    private static final String TIMESTAMP = "2016-01-01T00:00:00Z";
+
+    private ApplicationsV3 applications;
+
+    @Mock
+    private CloudFoundryClient cfClient;
+
+    @Mock
+    private DopplerClient dopplerClient;
+
+    @InjectMocks
+    private ReactiveCloudFoundryApiV3 reactiveCloudFoundryApi;
+
+    private static ApplicationResource buildApplication(String id, ApplicationState state) {
+        return ApplicationResource.builder()
+                .createdAt(TIMESTAMP)
+                .id(id)
+                .lifecycle(LIFECYCLE)
+                .name(id + "-name")
+                .state(state)
+                .updatedAt(TIMESTAMP)
+                .build();
+    }
+
+    private static ProcessStatisticsResource buildStatistics(int index, ProcessState state) {
+        return ProcessStatisticsResource.builder()
+                .diskQuota(1024)
+                .fileDescriptorQuota(16384)
+                .host("10.0.0.1")
+                .index(index)
+                .memoryQuota(512)
+                .state(state)
+                .type("web")
+                .uptime(60)
+                .usage(ProcessUsage.builder()
+                        .cpu(0.0)
+                        .disk(0)
+                        .memory(0)
+                        .time(TIMESTAMP)
+                        .build())
+                .build();
+    }
+
+    @Before
+    public void mockApplications() {
+        applications = mock(ApplicationsV3.class);
+        when(cfClient.applicationsV3()).thenReturn(applications);
+    }
+
+    @Test
+    public void test_get_application_activities_lists_states_by_ids() {
+        //given no event nor log is known
+        Events events = mock(Events.class);
+        when(cfClient.events()).thenReturn(events);
+        when(events.list(any(ListEventsRequest.class)))
+                .thenReturn(Mono.just(ListEventsResponse.builder()
+                        .resources(Collections.emptyList())
+                        .build()));
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class))).thenReturn(Flux.empty());
+        //and states of all applications are given by a single listing
+        List<String> appUids = Arrays.asList("app-1", "app-2", "app-3");
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .thenReturn(Mono.just(ListApplicationsResponse.builder()
+                        .resource(buildApplication("app-1", ApplicationState.STARTED))
+                        .resource(buildApplication("app-2", ApplicationState.STOPPED))
+                        .resource(buildApplication("app-3", ApplicationState.STARTED))
+                        .pagination(Pagination.builder()
+                                .totalPages(1)
+                                .totalResults(3)
+                                .build())
+                        .build()));
+
+        //when activities are requested
+        Map<String, ApplicationActivity> activities = reactiveCloudFoundryApi.getApplicationActivities(appUids)
+                .block();
+
+        //then applications are neither listed by space nor read one by one
+        ArgumentCaptor<ListApplicationsRequest> request = ArgumentCaptor.forClass(ListApplicationsRequest.class);
+        verify(applications, times(1)).list(request.capture());
+        assertEquals(new HashSet<>(appUids), new HashSet<>(request.getValue().getApplicationIds()));
+        verify(applications, never()).get(any(GetApplicationRequest.class));
+        verify(cfClient, never()).applicationsV2();
+        assertEquals(3, activities.size());
+        assertFalse(activities.get("app-2").isFailed());
+        assertEquals("app-2-name", activities.get("app-2").getApplication().getName());
+        assertEquals("STOPPED", activities.get("app-2").getState());
+        assertEquals("STARTED", activities.get("app-3").getState());
+    }
+
+    @Test
+    public void test_get_application_activities_reads_only_what_is_unknown() {
+        //given no new event nor log happened
+        Events events = mock(Events.class);
+        when(cfClient.events()).thenReturn(events);
+        when(events.list(any(ListEventsRequest.class)))
+                .thenReturn(Mono.just(ListEventsResponse.builder()
+                        .resources(Collections.emptyList())
+                        .build()));
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class))).thenReturn(Flux.empty());
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .thenReturn(Mono.just(ListApplicationsResponse.builder()
+                        .resource(buildApplication("app-1", ApplicationState.STARTED))
+                        .resource(buildApplication("app-2", ApplicationState.STARTED))
+                        .pagination(Pagination.builder()
+                                .totalPages(1)
+                                .totalResults(2)
+                                .build())
+                        .build()));
+        //and the logs of the first application were streamed
+        Instant now = Instant.now();
+        ApplicationInfo.DiagnosticInfo.ApplicationEvent knownEvent =
+                BeanGenerator.createCloudEvent(now.minusSeconds(600));
+        ApplicationInfo.DiagnosticInfo.ApplicationLog knownLog = BeanGenerator.createAppLog(now.minusSeconds(60));
+        Map<String, ApplicationActivityQuery> queries = new HashMap<>();
+        queries.put("app-1", ApplicationActivityQuery.builder()
+                .activeSince(now.minusSeconds(3600))
+                .lastKnownEvent(knownEvent)
+                .lastKnownLog(knownLog)
+                .skipRecentLogs(true)
+                .build());
+        queries.put("app-2", ApplicationActivityQuery.builder()
+                .activeSince(now.minusSeconds(3600))
+                .build());
+
+        //when activities are requested
+        Map<String, ApplicationActivity> activities = reactiveCloudFoundryApi.getApplicationActivities(queries)
+                .block();
+
+        //then recent logs are only downloaded for the application not streamed
+        ArgumentCaptor<RecentLogsRequest> logsRequest = ArgumentCaptor.forClass(RecentLogsRequest.class);
+        verify(dopplerClient, times(1)).recentLogs(logsRequest.capture());
+        assertEquals("app-2", logsRequest.getValue().getApplicationId());
+        //and what was known is kept when nothing newer was found
+        assertEquals(knownEvent, activities.get("app-1").getLastEvent());
+        assertEquals(knownLog, activities.get("app-1").getLastLog());
+    }
+
+    @Test
+    public void test_get_application_state() {
+        //given the application is started
+        when(applications.get(any(GetApplicationRequest.class)))
+                .thenReturn(Mono.just(GetApplicationResponse.builder()
+                        .createdAt(TIMESTAMP)
+                        .id("app-id")
+                        .lifecycle(LIFECYCLE)
+                        .name("app-name")
+                        .updatedAt(TIMESTAMP)
+                        .state(ApplicationState.STARTED)
+                        .build()));
+
+        //when its state is read
+        String state = reactiveCloudFoundryApi.getApplicationState("app-id").block();
+
+        //then it is given with v2 values
+        assertEquals("STARTED", state);
+    }
+
+    @Test
+    public void test_is_app_running_reads_web_process_statistics() {
+        //given one of the web instances is running
+        when(applications.getProcessStatistics(any(GetApplicationProcessStatisticsRequest.class)))
+                .thenReturn(Mono.just(GetApplicationProcessStatisticsResponse.builder()
+                        .resource(buildStatistics(0, ProcessState.STARTING))
+                        .resource(buildStatistics(1, ProcessState.RUNNING))
+                        .build()));
+
+        //then the application is running
+        assertTrue(reactiveCloudFoundryApi.isAppRunning("app-id").block());
+        ArgumentCaptor<GetApplicationProcessStatisticsRequest> request =
+                ArgumentCaptor.forClass(GetApplicationProcessStatisticsRequest.class);
+        verify(applications).getProcessStatistics(request.capture());
+        assertEquals("web", request.getValue().getType());
+    }
+
+    @Test
+    public void test_is_app_running_returns_false_without_web_process() {
+        //given the application has never been staged
+        when(applications.getProcessStatistics(any(GetApplicationProcessStatisticsRequest.class)))
+                .thenReturn(Mono.error(new ClientV3Exception(404, Collections.singletonList(Error.builder()
+                        .code(10010)
+                        .detail("Process not found")
+                        .title("CF-ResourceNotFound")
+                        .build()))));
+
+        //then it is not running
+        assertFalse(reactiveCloudFoundryApi.isAppRunning("app-id").block());
+    }
+
+    @Test
+    public void test_list_alive_applications() {
+        //given a space with started, stopped and excluded applications
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .thenReturn(Mono.just(ListApplicationsResponse.builder()
+                        .resource(buildApplication("started", ApplicationState.STARTED))
+                        .resource(buildApplication("stopped", ApplicationState.STOPPED))
+                        .resource(buildApplication("excluded", ApplicationState.STARTED))
+                        .pagination(Pagination.builder()
+                                .totalPages(1)
+                                .totalResults(3)
+                                .build())
+                        .build()));
+
+        //when alive applications are listed
+        List<String> alive = reactiveCloudFoundryApi.listAliveApplications("space-id", Pattern.compile("excluded.*"))
+                .map(ApplicationIdentity::getGuid)
+                .collect(Collectors.toList())
+                .block();
+
+        //then only the started one not excluded is kept
+        assertEquals(Collections.singletonList("started"), alive);
+        ArgumentCaptor<ListApplicationsRequest> request = ArgumentCaptor.forClass(ListApplicationsRequest.class);
+        verify(applications).list(request.capture());
+        assertEquals(Collections.singletonList("space-id"), request.getValue().getSpaceIds());
+    }
+
+    @Test
+    public void test_stop_application_should_stop_a_started_application() {
+        //given the application is started
+        when(applications.get(any(GetApplicationRequest.class)))
+                .thenReturn(Mono.just(GetApplicationResponse.builder()
+                        .createdAt(TIMESTAMP)
+                        .id("app-id")
+                        .lifecycle(LIFECYCLE)
+                        .name("app-name")
+                        .updatedAt(TIMESTAMP)
+                        .state(ApplicationState.STARTED)
+                        .build()));
+        when(applications.stop(any(StopApplicationRequest.class)))
+                .thenReturn(Mono.just(StopApplicationResponse.builder()
+                        .createdAt(TIMESTAMP)
+                        .id("app-id")
+                        .lifecycle(LIFECYCLE)
+                        .name("app-name")
+                        .updatedAt(TIMESTAMP)
+                        .state(ApplicationState.STOPPED)
+                        .build()));
+
+        //when it is stopped
+        assertTrue(reactiveCloudFoundryApi.stopApplication("app-id").block());
+
+        //then the v3 stop action is used
+        verify(applications, times(1)).stop(any(StopApplicationRequest.class));
+        verify(cfClient, never()).applicationsV2();
+    }
+
+}
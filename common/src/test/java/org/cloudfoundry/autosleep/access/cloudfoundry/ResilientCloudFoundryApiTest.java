@@ -0,0 +1,192 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Mono;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResilientCloudFoundryApiTest {
+
+    private static final String APP_UID = "appUid";
+
+    private static final Duration BACKOFF = Duration.ofMillis(100);
+
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final Duration OPEN_DURATION = Duration.ofSeconds(30);
+
+    private ResilientCloudFoundryApi api;
+
+    @Mock
+    private ReactiveCloudFoundryApiService delegate;
+
+    private VirtualTimeScheduler timer;
+
+    @Before
+    public void buildApi() {
+        timer = VirtualTimeScheduler.create();
+        api = ResilientCloudFoundryApi.builder()
+                .delegate(delegate)
+                .backoff(BACKOFF)
+                .circuitFailureThreshold(FAILURE_THRESHOLD)
+                .circuitOpenDuration(OPEN_DURATION)
+                .hedging(true)
+                .maxAttempts(3)
+                .timer(timer)
+                .build();
+    }
+
+    private static ClientV2Exception buildError(int statusCode) {
+        return new ClientV2Exception(statusCode, 0, "error", "error");
+    }
+
+    @Test
+    public void test_backoff_grows_and_is_bounded() {
+        for (int retry = 0; retry < 3; retry++) {
+            Duration backoff = api.getBackoff(retry);
+            assertTrue(backoff.compareTo(BACKOFF.multipliedBy(1 << retry).dividedBy(2)) >= 0);
+            assertTrue(backoff.compareTo(BACKOFF.multipliedBy(1 << retry)) <= 0);
+        }
+        assertTrue(api.getBackoff(100).compareTo(ResilientCloudFoundryApi.MAX_BACKOFF) <= 0);
+    }
+
+    @Test
+    public void test_circuit_opens_after_consecutive_failures_and_closes_after_trial() {
+        //Given an operation failing on cloudfoundry side
+        when(delegate.startApplication(anyString())).thenReturn(Mono.error(buildError(502)));
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            api.startApplication(APP_UID).subscribe(result -> {
+            }, error::set);
+        }
+        //Then the circuit is opened
+        assertEquals(CircuitBreaker.State.OPEN, api.getCircuitState(CloudFoundryOperation.START_APPLICATION));
+        //And following calls fail without calling cloudfoundry
+        error.set(null);
+        api.startApplication(APP_UID).subscribe(result -> {
+        }, error::set);
+        assertTrue(error.get() instanceof CloudFoundryException);
+        verify(delegate, times(FAILURE_THRESHOLD)).startApplication(APP_UID);
+        //And other operations are still called
+        assertEquals(CircuitBreaker.State.CLOSED, api.getCircuitState(CloudFoundryOperation.STOP_APPLICATION));
+        //When open duration is elapsed and cloudfoundry answers again
+        timer.advanceTimeBy(OPEN_DURATION);
+        when(delegate.startApplication(anyString())).thenReturn(Mono.just(true));
+        //Then the trial call is sent and closes the circuit
+        assertEquals(true, api.startApplication(APP_UID).block());
+        verify(delegate, times(FAILURE_THRESHOLD + 1)).startApplication(APP_UID);
+        assertEquals(CircuitBreaker.State.CLOSED, api.getCircuitState(CloudFoundryOperation.START_APPLICATION));
+    }
+
+    @Test
+    public void test_client_errors_are_neither_retried_nor_counted() {
+        //Given a read failing because of the request itself
+        AtomicInteger calls = new AtomicInteger();
+        when(delegate.getApplicationState(anyString())).thenReturn(Mono.defer(() -> {
+            calls.incrementAndGet();
+            return Mono.error(buildError(404));
+        }));
+        //When it is called more than the circuit threshold
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            api.getApplicationState(APP_UID).subscribe(result -> {
+            }, error -> {
+            });
+        }
+        //Then each call is sent once
+        assertEquals(FAILURE_THRESHOLD, calls.get());
+        assertEquals(0, api.getRetryCount());
+        //And circuit stays closed
+        assertEquals(CircuitBreaker.State.CLOSED, api.getCircuitState(CloudFoundryOperation.GET_APPLICATION_STATE));
+    }
+
+    @Test
+    public void test_slow_hedged_read_is_sent_twice() {
+        //Given previous state reads answered quickly
+        when(delegate.getApplicationState(anyString())).thenReturn(Mono.just("STARTED"));
+        for (int i = 0; i < ResilientCloudFoundryApi.LATENCY_MIN_SAMPLES; i++) {
+            api.getApplicationState(APP_UID).block();
+        }
+        //And the next call hangs, while its duplicate answers
+        AtomicInteger calls = new AtomicInteger();
+        when(delegate.getApplicationState(anyString())).thenReturn(Mono.defer(() -> calls.incrementAndGet() == 1
+                ? Mono.never() : Mono.just("STOPPED")));
+        AtomicReference<String> state = new AtomicReference<>();
+        api.getApplicationState(APP_UID).subscribe(state::set);
+        assertNull(state.get());
+        //When it gets slower than the threshold
+        timer.advanceTimeBy(ResilientCloudFoundryApi.MIN_HEDGE_DELAY);
+        //Then the duplicate answer is used
+        assertEquals("STOPPED", state.get());
+        assertEquals(2, calls.get());
+        assertEquals(1, api.getHedgeCount());
+    }
+
+    @Test
+    public void test_transient_read_failure_is_retried() {
+        //Given a read failing twice with a transient error
+        AtomicInteger calls = new AtomicInteger();
+        when(delegate.isAppRunning(anyString())).thenReturn(Mono.defer(() -> calls.incrementAndGet() < 3
+                ? Mono.error(buildError(503)) : Mono.just(true)));
+        AtomicReference<Boolean> running = new AtomicReference<>();
+        //When it is called
+        api.isAppRunning(APP_UID).subscribe(running::set);
+        assertEquals(1, calls.get());
+        //Then it is sent again after backoff
+        timer.advanceTimeBy(BACKOFF.multipliedBy(3));
+        assertEquals(3, calls.get());
+        assertEquals(Boolean.TRUE, running.get());
+        assertEquals(2, api.getRetryCount());
+    }
+
+    @Test
+    public void test_writes_are_not_retried() {
+        AtomicInteger calls = new AtomicInteger();
+        when(delegate.stopApplication(anyString())).thenReturn(Mono.defer(() -> {
+            calls.incrementAndGet();
+            return Mono.error(buildError(503));
+        }));
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        api.stopApplication(APP_UID).subscribe(result -> {
+        }, error::set);
+        timer.advanceTimeBy(Duration.ofSeconds(10));
+        assertEquals(1, calls.get());
+        assertTrue(error.get() instanceof ClientV2Exception);
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.config;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.CloudFoundryStubServer;
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.StubFleet;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.DefaultConnectionContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class PooledConnectionContextTest {
+
+    private static final int MAX_CONNECTIONS = 2;
+
+    private static final int REQUEST_COUNT = 6;
+
+    private PooledConnectionContext cloudControllerContext;
+
+    private PooledConnectionContext dopplerContext;
+
+    private CloudFoundryStubServer server;
+
+    @Before
+    public void buildContexts() {
+        server = CloudFoundryStubServer.start(StubFleet.builder().applicationCount(1).build());
+        ConnectionContext connectionContext = DefaultConnectionContext.builder()
+                .apiHost("127.0.0.1")
+                .port(server.getPort())
+                .secure(false)
+                .build();
+        PooledConnectionContext.PooledConnectionContextBuilder pool = PooledConnectionContext.builder()
+                .delegate(connectionContext)
+                .maxConnections(MAX_CONNECTIONS)
+                .acquireTimeout(Duration.ofSeconds(5))
+                .connectTimeout(Duration.ofSeconds(5))
+                .threadCount(1);
+        cloudControllerContext = pool.name("cc").build();
+        dopplerContext = pool.name("doppler").build();
+    }
+
+    @After
+    public void dispose() {
+        cloudControllerContext.dispose();
+        dopplerContext.dispose();
+        server.close();
+    }
+
+    /**
+     * Send requests, then wait for their connections to go back to the pool.
+     */
+    private void request(PooledConnectionContext context, int count) throws InterruptedException {
+        Flux.range(0, count)
+                .flatMap(index -> context.getHttpClient()
+                        .get(server.getBaseUrl() + "/v2/info")
+                        .flatMap(response -> response.receive().aggregate().asString()))
+                .blockLast(Duration.ofSeconds(10));
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (context.getActiveConnections() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void test_metrics_are_published() throws Exception {
+        //Given requests sent through a context
+        request(cloudControllerContext, REQUEST_COUNT);
+        //When metrics are read
+        Map<String, Number> metrics = cloudControllerContext.metrics().stream()
+                .collect(Collectors.toMap(Metric::getName, Metric::getValue));
+        //Then they give the pool use
+        assertEquals(MAX_CONNECTIONS, metrics.get("autosleep.cf.pool.cc.max").intValue());
+        assertEquals(REQUEST_COUNT, metrics.get("autosleep.cf.pool.cc.acquires").intValue());
+        assertEquals(0, metrics.get("autosleep.cf.pool.cc.active").intValue());
+        assertEquals(0, metrics.get("autosleep.cf.pool.cc.pending").intValue());
+    }
+
+    @Test
+    public void test_pools_are_not_shared() throws Exception {
+        //Given requests sent through both contexts
+        request(cloudControllerContext, REQUEST_COUNT);
+        request(dopplerContext, 1);
+        //Then each pool only counts its own connections
+        assertEquals(REQUEST_COUNT, cloudControllerContext.getAcquireCount());
+        assertEquals(1, dopplerContext.getAcquireCount());
+        assertEquals(0, cloudControllerContext.getActiveConnections());
+        assertEquals(0, dopplerContext.getActiveConnections());
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.stub;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApi;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures enrollment (listing the alive applications of every space) and checks (reading the activity of every
+ * alive application) of a large synthetic fleet, served by a {@link CloudFoundryStubServer}. It is not part of the
+ * test suite; run it from the test classpath, with the optional system properties:
+ * <ul>
+ * <li>{@code benchmark.applications}: number of applications (50000)</li>
+ * <li>{@code benchmark.spaces}: number of spaces (100)</li>
+ * <li>{@code benchmark.batch}: number of applications checked by a single call (50)</li>
+ * <li>{@code benchmark.concurrency}: number of spaces listed, or of batches checked, at the same time (4)</li>
+ * <li>{@code benchmark.latency.millis}: latency of each cloudfoundry request (5)</li>
+ * <li>{@code benchmark.error.rate}: share of failed cloudfoundry requests (0)</li>
+ * </ul>
+ */
+@Slf4j
+public final class CloudFoundryApiBenchmark {
+
+    private CloudFoundryApiBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int applicationCount = Integer.getInteger("benchmark.applications", 50_000);
+        int spaceCount = Integer.getInteger("benchmark.spaces", 100);
+        int batchSize = Integer.getInteger("benchmark.batch", 50);
+        int concurrency = Integer.getInteger("benchmark.concurrency", 4);
+        StubFleet fleet = StubFleet.builder()
+                .applicationCount(applicationCount)
+                .spaceCount(spaceCount)
+                .startedRatio(0.8)
+                .eventsPerApplication(2)
+                .logsPerApplication(2)
+                .seed(1)
+                .build();
+        try (CloudFoundryStubServer server = CloudFoundryStubServer.start(fleet)) {
+            server.setLatency(Duration.ofMillis(Long.getLong("benchmark.latency.millis", 5)));
+            server.setErrorRate(Double.parseDouble(System.getProperty("benchmark.error.rate", "0")));
+            ReactiveCloudFoundryApi api = StubClients.buildApi(server);
+            //endpoints discovery and token are not measured
+            api.isValidOrganization(fleet.getOrganizationGuid()).block();
+
+            long start = System.nanoTime();
+            List<String> alive = Flux.fromIterable(fleet.getSpaceGuids())
+                    .flatMap(spaceId -> api.listAliveApplications(spaceId, null)
+                            .onErrorResume(error -> {
+                                log.warn("enrollment of space {} failed: {}", spaceId, error.getMessage());
+                                return Flux.empty();
+                            }), concurrency)
+                    .map(ApplicationIdentity::getGuid)
+                    .collectList()
+                    .block();
+            report("enrollment", start, alive.size(), server);
+
+            AtomicLong failures = new AtomicLong();
+            start = System.nanoTime();
+            long checked = Flux.fromIterable(alive)
+                    .buffer(batchSize)
+                    .flatMap(batch -> api.getApplicationActivities(batch)
+                            .onErrorResume(error -> {
+                                failures.addAndGet(batch.size());
+                                return Mono.empty();
+                            }), concurrency)
+                    .flatMapIterable(Map::values)
+                    .filter(activity -> {
+                        if (activity.getError() != null) {
+                            failures.incrementAndGet();
+                        }
+                        return activity.getError() == null;
+                    })
+                    .map(ApplicationActivity::getState)
+                    .count()
+                    .block();
+            report("checks", start, checked, server);
+            log.info("checks - {} failures", failures.get());
+        }
+    }
+
+    private static void report(String phase, long startNanos, long applications, CloudFoundryStubServer server) {
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - startNanos);
+        log.info("{} - {} applications in {} ms ({} applications/s)", phase, applications, elapsed.toMillis(),
+                elapsed.isZero() ? applications : applications * 1000 / Math.max(1, elapsed.toMillis()));
+        log.info("{} - requests so far by endpoint: {}", phase, new TreeMap<>(server.getRequestCounts()));
+    }
+
+}
@@ -0,0 +1,623 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.stub;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import lombok.extern.slf4j.Slf4j;
+import okio.ByteString;
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.StubFleet.StubApplication;
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.StubFleet.StubEvent;
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.StubFleet.StubLog;
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.StubFleet.StubRoute;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.dropsonde.events.Envelope;
+import org.cloudfoundry.dropsonde.events.LogMessage;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.NettyContext;
+import reactor.ipc.netty.http.server.HttpServer;
+import reactor.ipc.netty.http.server.HttpServerRequest;
+import reactor.ipc.netty.http.server.HttpServerResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * In-process cloud controller (v2), UAA and doppler, serving a {@link StubFleet} over plain http. It implements the
+ * endpoints used by autosleep: applications, events, routes, domains, organizations, service bindings and recent
+ * logs. Latency and errors (http 503) may be injected, and requests are counted by endpoint.
+ * <p>
+ * Clients built by {@link org.cloudfoundry.autosleep.access.cloudfoundry.config.CloudfoundryClientBuilder} reach it
+ * with the properties given by {@link #getClientProperties()}.
+ */
+@Slf4j
+public class CloudFoundryStubServer implements AutoCloseable {
+
+    private static class Call {
+
+        final String body;
+
+        final Matcher path;
+
+        final Map<String, List<String>> parameters;
+
+        Call(Matcher path, Map<String, List<String>> parameters, String body) {
+            this.body = body;
+            this.path = path;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Value of a {@code q} filter, such as {@code actee:guid} or {@code actee IN guid1,guid2}.
+         * @return the filtered values, or null if there is no such filter
+         */
+        List<String> getFilter(String name, String... operators) {
+            for (String filter : parameters.getOrDefault("q", Collections.emptyList())) {
+                for (String operator : operators) {
+                    if (filter.startsWith(name + operator)) {
+                        String value = filter.substring(name.length() + operator.length());
+                        return " IN ".equals(operator) ? java.util.Arrays.asList(value.split(","))
+                                : Collections.singletonList(value);
+                    }
+                }
+            }
+            return null;
+        }
+
+        int getIntParameter(String name, int defaultValue) {
+            List<String> values = parameters.get(name);
+            return values == null || values.isEmpty() ? defaultValue : Integer.parseInt(values.get(0));
+        }
+
+    }
+
+    private static class Endpoint {
+
+        final Function<Call, StubResponse> handler;
+
+        final HttpMethod method;
+
+        final String name;
+
+        final Pattern path;
+
+        /**
+         * Whether injected latency and errors apply: they do not to discovery and token endpoints.
+         */
+        final boolean remote;
+
+        Endpoint(String name, HttpMethod method, String path, boolean remote, Function<Call, StubResponse> handler) {
+            this.handler = handler;
+            this.method = method;
+            this.name = name;
+            this.path = Pattern.compile(path);
+            this.remote = remote;
+        }
+
+    }
+
+    private static class StubResponse {
+
+        final byte[] body;
+
+        final String contentType;
+
+        final int status;
+
+        StubResponse(int status, String contentType, byte[] body) {
+            this.body = body;
+            this.contentType = contentType;
+            this.status = status;
+        }
+
+    }
+
+    private static final String BOUNDARY = "autosleep-stub-" + UUID.randomUUID();
+
+    private static final int CF_APP_NOT_FOUND = 100_004;
+
+    private static final int CF_DOMAIN_NOT_FOUND = 130_002;
+
+    private static final int CF_INSTANCES_ERROR = 220_001;
+
+    private static final int CF_NOT_FOUND = 10_000;
+
+    private static final int CF_ORGANIZATION_NOT_FOUND = 30_003;
+
+    private static final int CF_ROUTE_NOT_FOUND = 210_002;
+
+    private static final int CF_SERVICE_UNAVAILABLE = 10_015;
+
+    private static final String CREATED_AT = "2016-01-01T00:00:00Z";
+
+    private static final int DEFAULT_RESULTS_PER_PAGE = 50;
+
+    private static final String JSON = "application/json";
+
+    public static final String PASSWORD = "stub-password";
+
+    public static final String USERNAME = "stub-user";
+
+    private final NettyContext context;
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    private volatile double errorRate;
+
+    private final StubFleet fleet;
+
+    private volatile Duration latency = Duration.ZERO;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    private CloudFoundryStubServer(StubFleet fleet) {
+        this.fleet = fleet;
+        endpoint("root", HttpMethod.GET, "/?", false, this::getRoot);
+        endpoint("info", HttpMethod.GET, "/v2/info", false, this::getInfo);
+        endpoint("token", HttpMethod.POST, "/oauth/token", false, this::getToken);
+        endpoint("list_applications", HttpMethod.GET, "/v2/apps", true, this::listApplications);
+        endpoint("get_application", HttpMethod.GET, "/v2/apps/([^/]+)", true, this::getApplication);
+        endpoint("update_application", HttpMethod.PUT, "/v2/apps/([^/]+)", true, this::updateApplication);
+        endpoint("application_instances", HttpMethod.GET, "/v2/apps/([^/]+)/instances", true,
+                this::getApplicationInstances);
+        endpoint("application_routes", HttpMethod.GET, "/v2/apps/([^/]+)/routes", true, this::listApplicationRoutes);
+        endpoint("list_events", HttpMethod.GET, "/v2/events", true, this::listEvents);
+        endpoint("get_route", HttpMethod.GET, "/v2/routes/([^/]+)", true, this::getRoute);
+        endpoint("route_applications", HttpMethod.GET, "/v2/routes/([^/]+)/apps", true, this::listRouteApplications);
+        endpoint("get_shared_domain", HttpMethod.GET, "/v2/shared_domains/([^/]+)", true, this::getDomain);
+        endpoint("get_organization", HttpMethod.GET, "/v2/organizations/([^/]+)", true, this::getOrganization);
+        endpoint("create_service_binding", HttpMethod.POST, "/v2/service_bindings", true, this::createBinding);
+        endpoint("delete_service_binding", HttpMethod.DELETE, "/v2/service_bindings/([^/]+)", true,
+                this::deleteBinding);
+        endpoint("bind_route", HttpMethod.PUT, "/v2/service_instances/([^/]+)/routes/([^/]+)", true, this::bindRoute);
+        endpoint("recent_logs", HttpMethod.GET, "/apps/([^/]+)/recentlogs", true, this::getRecentLogs);
+        this.context = HttpServer.create("127.0.0.1", 0)
+                .newHandler(this::handle)
+                .block();
+        log.info("cloudfoundry stub listening on port {}", getPort());
+    }
+
+    /**
+     * Start a server on a random local port.
+     */
+    public static CloudFoundryStubServer start(StubFleet fleet) {
+        return new CloudFoundryStubServer(fleet);
+    }
+
+    private static String toJwt(Map<String, Object> claims, ObjectMapper objectMapper) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        try {
+            return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                    + encoder.encodeToString(objectMapper.writeValueAsBytes(claims)) + ".";
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private StubResponse bindRoute(Call call) {
+        if (fleet.getRoute(call.path.group(2)) == null) {
+            return error(404, CF_ROUTE_NOT_FOUND, "CF-RouteNotFound");
+        }
+        Map<String, Object> entity = new LinkedHashMap<>();
+        entity.put("name", "autosleep");
+        return json(201, resource(call.path.group(1), "/v2/service_instances/", entity));
+    }
+
+    private Map<String, Object> buildApplication(StubApplication application) {
+        Map<String, Object> entity = new LinkedHashMap<>();
+        entity.put("name", application.getName());
+        entity.put("space_guid", application.getSpaceGuid());
+        entity.put("state", application.getState());
+        entity.put("instances", 1);
+        entity.put("package_state", "STAGED");
+        return resource(application.getGuid(), "/v2/apps/", entity);
+    }
+
+    private Map<String, Object> buildEvent(StubEvent event) {
+        StubApplication application = fleet.getApplication(event.getActee());
+        Map<String, Object> entity = new LinkedHashMap<>();
+        entity.put("type", event.getType());
+        entity.put("actor", StubFleet.guid(USERNAME));
+        entity.put("actor_type", "user");
+        entity.put("actor_name", USERNAME);
+        entity.put("actee", event.getActee());
+        entity.put("actee_type", "app");
+        entity.put("actee_name", application.getName());
+        entity.put("timestamp", event.getTimestamp().toString());
+        entity.put("metadata", Collections.emptyMap());
+        entity.put("space_guid", application.getSpaceGuid());
+        entity.put("organization_guid", fleet.getOrganizationGuid());
+        return resource(event.getGuid(), "/v2/events/", entity);
+    }
+
+    private Map<String, Object> buildRoute(StubRoute route) {
+        Map<String, Object> entity = new LinkedHashMap<>();
+        entity.put("host", route.getHost());
+        entity.put("path", "");
+        entity.put("domain_guid", fleet.getDomainGuid());
+        entity.put("space_guid", fleet.getApplication(route.getApplicationGuid()).getSpaceGuid());
+        return resource(route.getGuid(), "/v2/routes/", entity);
+    }
+
+    @Override
+    public void close() {
+        context.dispose();
+        context.onClose().block();
+    }
+
+    private void count(String endpoint) {
+        requestCounts.computeIfAbsent(endpoint, name -> new AtomicLong()).incrementAndGet();
+    }
+
+    private StubResponse createBinding(Call call) {
+        Map<?, ?> request = readJson(call.body);
+        String applicationGuid = (String) request.get("app_guid");
+        if (fleet.getApplication(applicationGuid) == null) {
+            return error(404, CF_APP_NOT_FOUND, "CF-AppNotFound");
+        }
+        String bindingGuid = UUID.randomUUID().toString();
+        fleet.getBindings().put(bindingGuid, applicationGuid);
+        Map<String, Object> entity = new LinkedHashMap<>();
+        entity.put("app_guid", applicationGuid);
+        entity.put("service_instance_guid", request.get("service_instance_guid"));
+        entity.put("credentials", Collections.emptyMap());
+        return json(201, resource(bindingGuid, "/v2/service_bindings/", entity));
+    }
+
+    private StubResponse deleteBinding(Call call) {
+        fleet.getBindings().remove(call.path.group(1));
+        return new StubResponse(204, JSON, new byte[0]);
+    }
+
+    private void endpoint(String name, HttpMethod method, String path, boolean remote,
+                          Function<Call, StubResponse> handler) {
+        endpoints.add(new Endpoint(name, method, path, remote, handler));
+    }
+
+    private StubResponse error(int status, int code, String errorCode) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("code", code);
+        payload.put("description", "stub error " + errorCode);
+        payload.put("error_code", errorCode);
+        return json(status, payload);
+    }
+
+    private StubResponse getApplication(Call call) {
+        StubApplication application = fleet.getApplication(call.path.group(1));
+        return application == null ? error(404, CF_APP_NOT_FOUND, "CF-AppNotFound")
+                : json(200, buildApplication(application));
+    }
+
+    private StubResponse getApplicationInstances(Call call) {
+        StubApplication application = fleet.getApplication(call.path.group(1));
+        if (application == null) {
+            return error(404, CF_APP_NOT_FOUND, "CF-AppNotFound");
+        } else if (!CloudFoundryAppState.STARTED.equals(application.getState())) {
+            return error(400, CF_INSTANCES_ERROR, "CF-InstancesError");
+        }
+        Map<String, Object> instance = new LinkedHashMap<>();
+        instance.put("state", "RUNNING");
+        instance.put("since", Instant.now().getEpochSecond());
+        return json(200, Collections.singletonMap("0", instance));
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * Properties pointing {@link org.cloudfoundry.autosleep.access.cloudfoundry.config.CloudfoundryClientBuilder} at
+     * this server.
+     */
+    public Map<String, Object> getClientProperties() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(Config.EnvKey.CF_HOST, "127.0.0.1");
+        properties.put(Config.EnvKey.CF_PORT, String.valueOf(getPort()));
+        properties.put(Config.EnvKey.CF_SECURE, "false");
+        properties.put(Config.EnvKey.CF_USERNAME, USERNAME);
+        properties.put(Config.EnvKey.CF_PASSWORD, PASSWORD);
+        return properties;
+    }
+
+    private StubResponse getDomain(Call call) {
+        if (!fleet.getDomainGuid().equals(call.path.group(1))) {
+            return error(404, CF_DOMAIN_NOT_FOUND, "CF-DomainNotFound");
+        }
+        return json(200, resource(fleet.getDomainGuid(), "/v2/shared_domains/",
+                Collections.singletonMap("name", StubFleet.DOMAIN_NAME)));
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    private StubResponse getInfo(Call call) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("name", "autosleep-stub");
+        info.put("api_version", "2.100.0");
+        info.put("authorization_endpoint", getBaseUrl());
+        info.put("token_endpoint", getBaseUrl());
+        info.put("doppler_logging_endpoint", "ws://127.0.0.1:" + getPort());
+        return json(200, info);
+    }
+
+    public Duration getLatency() {
+        return latency;
+    }
+
+    private StubResponse getOrganization(Call call) {
+        if (!fleet.getOrganizationGuid().equals(call.path.group(1))) {
+            return error(404, CF_ORGANIZATION_NOT_FOUND, "CF-OrganizationNotFound");
+        }
+        return json(200, resource(fleet.getOrganizationGuid(), "/v2/organizations/",
+                Collections.singletonMap("name", "stub-organization")));
+    }
+
+    public int getPort() {
+        return context.address().getPort();
+    }
+
+    private StubResponse getRecentLogs(Call call) {
+        StubApplication application = fleet.getApplication(call.path.group(1));
+        List<StubLog> logs = application == null ? Collections.emptyList() : application.getLogs();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            for (StubLog stubLog : logs) {
+                long timestamp = stubLog.getTimestamp().getEpochSecond() * 1_000_000_000L
+                        + stubLog.getTimestamp().getNano();
+                body.write(("\r\n--" + BOUNDARY + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                body.write(Envelope.ADAPTER.encode(new Envelope.Builder()
+                        .origin("autosleep-stub")
+                        .eventType(Envelope.EventType.LogMessage)
+                        .timestamp(timestamp)
+                        .logMessage(new LogMessage.Builder()
+                                .message(ByteString.encodeUtf8(stubLog.getMessage()))
+                                .message_type(LogMessage.MessageType.OUT)
+                                .timestamp(timestamp)
+                                .app_id(application.getGuid())
+                                .source_type("APP")
+                                .source_instance("0")
+                                .build())
+                        .build()));
+            }
+            body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new StubResponse(200, "multipart/x-protobuf; boundary=" + BOUNDARY, body.toByteArray());
+    }
+
+    /**
+     * Number of requests received by an endpoint, such as {@code get_application}.
+     */
+    public long getRequestCount(String endpoint) {
+        AtomicLong count = requestCounts.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Number of requests received by each endpoint.
+     */
+    public Map<String, Long> getRequestCounts() {
+        return requestCounts.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().get()));
+    }
+
+    private StubResponse getRoot(Call call) {
+        Map<String, Object> links = new LinkedHashMap<>();
+        links.put("self", Collections.singletonMap("href", getBaseUrl()));
+        links.put("cloud_controller_v2", Collections.singletonMap("href", getBaseUrl() + "/v2"));
+        links.put("logging", Collections.singletonMap("href", "ws://127.0.0.1:" + getPort()));
+        links.put("uaa", Collections.singletonMap("href", getBaseUrl()));
+        return json(200, Collections.singletonMap("links", links));
+    }
+
+    private StubResponse getRoute(Call call) {
+        StubRoute route = fleet.getRoute(call.path.group(1));
+        return route == null ? error(404, CF_ROUTE_NOT_FOUND, "CF-RouteNotFound") : json(200, buildRoute(route));
+    }
+
+    private StubResponse getToken(Call call) {
+        long expiration = Instant.now().plus(Duration.ofHours(12)).getEpochSecond();
+        Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("user_name", USERNAME);
+        claims.put("exp", expiration);
+        Map<String, Object> token = new LinkedHashMap<>();
+        token.put("access_token", toJwt(claims, objectMapper));
+        token.put("token_type", "bearer");
+        token.put("refresh_token", toJwt(claims, objectMapper));
+        token.put("expires_in", Duration.ofHours(12).getSeconds());
+        token.put("scope", "cloud_controller.read cloud_controller.write");
+        token.put("jti", UUID.randomUUID().toString());
+        return json(200, token);
+    }
+
+    private Publisher<Void> handle(HttpServerRequest request, HttpServerResponse response) {
+        QueryStringDecoder uri = new QueryStringDecoder(request.uri());
+        for (Endpoint endpoint : endpoints) {
+            Matcher path = endpoint.path.matcher(uri.path());
+            if (endpoint.method.equals(request.method()) && path.matches()) {
+                count(endpoint.name);
+                Duration delay = endpoint.remote ? latency : Duration.ZERO;
+                boolean failing = endpoint.remote && ThreadLocalRandom.current().nextDouble() < errorRate;
+                return request.receive()
+                        .aggregate()
+                        .asString(StandardCharsets.UTF_8)
+                        .defaultIfEmpty("")
+                        .map(body -> failing ? error(503, CF_SERVICE_UNAVAILABLE, "CF-ServiceUnavailable")
+                                : endpoint.handler.apply(new Call(path, uri.parameters(), body)))
+                        .onErrorResume(throwable -> {
+                            log.error("stub failed answering {} {}", request.method(), request.uri(), throwable);
+                            return Mono.just(error(500, CF_NOT_FOUND, "CF-ServerError"));
+                        })
+                        .delayElement(delay)
+                        .flatMap(answer -> send(response, answer));
+            }
+        }
+        count("unknown");
+        log.warn("stub has no endpoint for {} {}", request.method(), request.uri());
+        return send(response, error(404, CF_NOT_FOUND, "CF-NotFound"));
+    }
+
+    private StubResponse json(int status, Object payload) {
+        try {
+            return new StubResponse(status, JSON, objectMapper.writeValueAsBytes(payload));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private StubResponse listApplicationRoutes(Call call) {
+        StubApplication application = fleet.getApplication(call.path.group(1));
+        if (application == null) {
+            return error(404, CF_APP_NOT_FOUND, "CF-AppNotFound");
+        }
+        return page(call, application.getRouteGuids().stream()
+                .map(fleet::getRoute)
+                .map(this::buildRoute)
+                .collect(Collectors.toList()), "/v2/apps/" + application.getGuid() + "/routes");
+    }
+
+    private StubResponse listApplications(Call call) {
+        List<String> spaceGuids = call.getFilter("space_guid", ":", " IN ");
+        return page(call, fleet.getApplications(spaceGuids == null ? fleet.getSpaceGuids() : spaceGuids).stream()
+                .map(this::buildApplication)
+                .collect(Collectors.toList()), "/v2/apps");
+    }
+
+    private StubResponse listEvents(Call call) {
+        List<String> actees = call.getFilter("actee", ":", " IN ");
+        List<String> since = call.getFilter("timestamp", ">=");
+        Instant sinceTimestamp = since == null ? Instant.MIN : Instant.parse(since.get(0));
+        List<StubEvent> events = fleet.getEvents(actees == null ? fleet.getApplications().keySet() : actees).stream()
+                .filter(event -> !event.getTimestamp().isBefore(sinceTimestamp))
+                .collect(Collectors.toList());
+        List<String> orderDirection = call.parameters.get("order-direction");
+        if (orderDirection == null || !"desc".equals(orderDirection.get(0))) {
+            Collections.reverse(events);
+        }
+        return page(call, events.stream().map(this::buildEvent).collect(Collectors.toList()), "/v2/events");
+    }
+
+    private StubResponse listRouteApplications(Call call) {
+        StubRoute route = fleet.getRoute(call.path.group(1));
+        if (route == null) {
+            return error(404, CF_ROUTE_NOT_FOUND, "CF-RouteNotFound");
+        }
+        return page(call, Collections.singletonList(buildApplication(fleet.getApplication(route.getApplicationGuid()))),
+                "/v2/routes/" + route.getGuid() + "/apps");
+    }
+
+    private StubResponse page(Call call, List<Map<String, Object>> resources, String path) {
+        int resultsPerPage = call.getIntParameter("results-per-page", DEFAULT_RESULTS_PER_PAGE);
+        int page = call.getIntParameter("page", 1);
+        int totalPages = Math.max(1, (resources.size() + resultsPerPage - 1) / resultsPerPage);
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("total_results", resources.size());
+        payload.put("total_pages", totalPages);
+        payload.put("prev_url", page > 1 ? path + "?page=" + (page - 1) + "&results-per-page=" + resultsPerPage
+                : null);
+        payload.put("next_url", page < totalPages ? path + "?page=" + (page + 1) + "&results-per-page="
+                + resultsPerPage : null);
+        payload.put("resources", resources.subList(Math.min(resources.size(), (page - 1) * resultsPerPage),
+                Math.min(resources.size(), page * resultsPerPage)));
+        return json(200, payload);
+    }
+
+    private Map<?, ?> readJson(String body) {
+        try {
+            return objectMapper.readValue(body, Map.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Map<String, Object> resource(String guid, String path, Map<String, Object> entity) {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("guid", guid);
+        metadata.put("url", path + guid);
+        metadata.put("created_at", CREATED_AT);
+        metadata.put("updated_at", null);
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("metadata", metadata);
+        resource.put("entity", entity);
+        return resource;
+    }
+
+    private Mono<Void> send(HttpServerResponse response, StubResponse answer) {
+        return response.status(answer.status)
+                .header(HttpHeaderNames.CONTENT_TYPE, answer.contentType)
+                .sendByteArray(Mono.just(answer.body))
+                .then();
+    }
+
+    /**
+     * Share of the requests answered by an error (http 503), from 0 to 1. Discovery and token requests never fail.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Time waited before answering each request. Discovery and token requests are answered at once.
+     */
+    public void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    private StubResponse updateApplication(Call call) {
+        StubApplication application = fleet.getApplication(call.path.group(1));
+        if (application == null) {
+            return error(404, CF_APP_NOT_FOUND, "CF-AppNotFound");
+        }
+        Object state = readJson(call.body).get("state");
+        if (state != null) {
+            application.setState((String) state);
+        }
+        return json(201, buildApplication(application));
+    }
+
+}
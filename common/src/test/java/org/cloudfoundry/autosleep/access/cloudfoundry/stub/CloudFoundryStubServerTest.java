@@ -0,0 +1,170 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.stub;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApi;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.StubFleet.StubApplication;
+import org.cloudfoundry.autosleep.access.cloudfoundry.stub.StubFleet.StubRoute;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CloudFoundryStubServerTest {
+
+    private static final int APPLICATION_COUNT = 120;
+
+    private static final int EVENTS_PER_APPLICATION = 3;
+
+    private static final int LOGS_PER_APPLICATION = 2;
+
+    private ReactiveCloudFoundryApi api;
+
+    private StubFleet fleet;
+
+    private CloudFoundryStubServer server;
+
+    @Before
+    public void startServer() {
+        fleet = StubFleet.builder()
+                .applicationCount(APPLICATION_COUNT)
+                .spaceCount(2)
+                .startedRatio(0.5)
+                .eventsPerApplication(EVENTS_PER_APPLICATION)
+                .logsPerApplication(LOGS_PER_APPLICATION)
+                .seed(42)
+                .build();
+        server = CloudFoundryStubServer.start(fleet);
+        api = StubClients.buildApi(server);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void test_activity_is_read_from_events_and_recent_logs() {
+        //Given an application of the fleet
+        StubApplication application = fleet.getApplication(StubFleet.guid("application-7"));
+        //When its activity is read
+        ApplicationActivity activity = api.getApplicationActivity(application.getGuid()).block();
+        //Then it reports the state, the most recent event and the most recent log of the application
+        assertNotNull(activity);
+        assertEquals(application.getName(), activity.getApplication().getName());
+        assertEquals(application.getState(), activity.getState());
+        assertEquals(application.getEvents().get(0).getTimestamp(), activity.getLastEvent().getTimestamp());
+        assertTrue(application.getLogs().stream()
+                .anyMatch(log -> log.getMessage().equals(activity.getLastLog().getMessage())));
+    }
+
+    @Test
+    public void test_activities_are_read_in_bulk() {
+        //Given applications of a space
+        List<String> applicationIds = fleet.getApplications(Collections.singletonList(fleet.getSpaceGuids().get(0)))
+                .stream()
+                .map(StubApplication::getGuid)
+                .collect(Collectors.toList());
+        //When their activities are read at once
+        Map<String, ApplicationActivity> activities = api.getApplicationActivities(applicationIds).block();
+        //Then every application is reported
+        assertNotNull(activities);
+        assertEquals(applicationIds.size(), activities.size());
+        applicationIds.forEach(applicationId -> assertEquals(fleet.getApplication(applicationId).getName(),
+                activities.get(applicationId).getApplication().getName()));
+    }
+
+    @Test
+    public void test_alive_applications_are_listed_over_pages() {
+        //Given a space of the fleet
+        String spaceId = fleet.getSpaceGuids().get(1);
+        //When its alive applications are listed
+        List<String> names = api.listAliveApplications(spaceId, null)
+                .map(ApplicationIdentity::getName)
+                .collectList()
+                .block();
+        //Then they are the started applications of the space
+        assertEquals(fleet.getApplications(Collections.singletonList(spaceId)).stream()
+                .filter(application -> CloudFoundryAppState.STARTED.equals(application.getState()))
+                .map(StubApplication::getName)
+                .sorted()
+                .collect(Collectors.toList()), names.stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void test_application_is_stopped_then_started() {
+        //Given a started application
+        String applicationId = fleet.getStartedApplications().values().iterator().next();
+        //When it is stopped
+        StepVerifier.create(api.stopApplication(applicationId))
+                .expectNext(true)
+                .verifyComplete();
+        //Then it is not running any more
+        StepVerifier.create(api.isAppRunning(applicationId))
+                .expectNext(false)
+                .verifyComplete();
+        //And it may be started again
+        StepVerifier.create(api.startApplication(applicationId))
+                .expectNext(true)
+                .verifyComplete();
+        assertEquals(CloudFoundryAppState.STARTED, fleet.getApplication(applicationId).getState());
+        assertTrue(api.isAppRunning(applicationId).block());
+    }
+
+    @Test
+    public void test_errors_are_injected() {
+        //Given every call to cloudfoundry fails
+        server.setErrorRate(1);
+        //When an application state is read
+        StepVerifier.create(api.getApplicationState(StubFleet.guid("application-1")))
+                //Then the error is reported
+                .expectError(CloudFoundryException.class)
+                .verify();
+        assertTrue(server.getRequestCount("get_application") > 0);
+    }
+
+    @Test
+    public void test_host_is_resolved_from_route_and_domain() {
+        //Given a route of the fleet
+        StubRoute route = fleet.getRoute(StubFleet.guid("route-3"));
+        //When its host is resolved
+        String host = api.getHost(route.getGuid()).block(Duration.ofSeconds(10));
+        //Then it is built from the route host and its domain
+        assertEquals(route.getHost() + "." + StubFleet.DOMAIN_NAME, host);
+        assertFalse(api.isValidOrganization(StubFleet.guid("unknown")).block());
+        assertTrue(api.isValidOrganization(fleet.getOrganizationGuid()).block());
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.stub;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApi;
+import org.cloudfoundry.autosleep.access.cloudfoundry.config.CloudfoundryClientBuilder;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Wires the real cloudfoundry clients and {@link ReactiveCloudFoundryApi} to a {@link CloudFoundryStubServer}, as
+ * spring does in the service.
+ */
+final class StubClients {
+
+    private StubClients() {
+    }
+
+    static ReactiveCloudFoundryApi buildApi(CloudFoundryStubServer server) {
+        MockEnvironment environment = new MockEnvironment();
+        server.getClientProperties().forEach((key, value) -> environment.setProperty(key, value.toString()));
+        CloudfoundryClientBuilder clientBuilder = new CloudfoundryClientBuilder();
+        ReflectionTestUtils.setField(clientBuilder, "env", environment);
+        ReactiveCloudFoundryApi api = new ReactiveCloudFoundryApi();
+        ReflectionTestUtils.setField(api, "cfClient", clientBuilder.cloudFoundryClient());
+        ReflectionTestUtils.setField(api, "dopplerClient", clientBuilder.dopplerClient());
+        ReflectionTestUtils.setField(api, "environment", environment);
+        ReflectionTestUtils.invokeMethod(api, "init");
+        return api;
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.stub;
+
+import lombok.Builder;
+import lombok.Getter;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Synthetic foundation served by {@link CloudFoundryStubServer}: applications spread over spaces of a single
+ * organization, each with its routes, events and recent logs. Content is generated from a seed, so that two fleets
+ * built alike are identical.
+ */
+@Getter
+public class StubFleet {
+
+    @Getter
+    public static class StubApplication {
+
+        private final List<StubEvent> events;
+
+        private final String guid;
+
+        private final List<StubLog> logs;
+
+        private final String name;
+
+        private final List<String> routeGuids;
+
+        private final String spaceGuid;
+
+        private volatile String state;
+
+        StubApplication(String guid, String name, String spaceGuid, String state, List<String> routeGuids,
+                        List<StubEvent> events, List<StubLog> logs) {
+            this.events = events;
+            this.guid = guid;
+            this.logs = logs;
+            this.name = name;
+            this.routeGuids = routeGuids;
+            this.spaceGuid = spaceGuid;
+            this.state = state;
+        }
+
+        public void setState(String state) {
+            this.state = state;
+        }
+
+    }
+
+    @Getter
+    public static class StubEvent {
+
+        private final String actee;
+
+        private final String guid;
+
+        private final Instant timestamp;
+
+        private final String type;
+
+        StubEvent(String guid, String actee, String type, Instant timestamp) {
+            this.actee = actee;
+            this.guid = guid;
+            this.timestamp = timestamp;
+            this.type = type;
+        }
+
+    }
+
+    @Getter
+    public static class StubLog {
+
+        private final String message;
+
+        private final Instant timestamp;
+
+        StubLog(String message, Instant timestamp) {
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+
+    }
+
+    @Getter
+    public static class StubRoute {
+
+        private final String applicationGuid;
+
+        private final String guid;
+
+        private final String host;
+
+        StubRoute(String guid, String host, String applicationGuid) {
+            this.applicationGuid = applicationGuid;
+            this.guid = guid;
+            this.host = host;
+        }
+
+    }
+
+    public static final String DOMAIN_NAME = "stub.example.com";
+
+    private final Map<String, StubApplication> applications;
+
+    private final Map<String, String> bindings = new ConcurrentHashMap<>();
+
+    private final String domainGuid = guid("domain");
+
+    private final String organizationGuid = guid("organization");
+
+    private final Map<String, StubRoute> routes;
+
+    private final List<String> spaceGuids;
+
+    /**
+     * Build a fleet.
+     * @param applicationCount number of applications
+     * @param spaceCount number of spaces the applications are spread over
+     * @param startedRatio share of started applications, between 0 and 1
+     * @param eventsPerApplication number of events of each application, over the last idle period
+     * @param logsPerApplication number of recent logs of each application, over the last idle period
+     * @param idlePeriod time over which events and logs are spread, before now
+     * @param seed seed of the random content
+     */
+    @Builder
+    StubFleet(int applicationCount, int spaceCount, double startedRatio, int eventsPerApplication,
+              int logsPerApplication, Duration idlePeriod, long seed) {
+        Random random = new Random(seed);
+        Instant now = Instant.now();
+        long idleMillis = idlePeriod == null ? Duration.ofDays(1).toMillis() : idlePeriod.toMillis();
+        this.spaceGuids = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, spaceCount); i++) {
+            spaceGuids.add(guid("space-" + i));
+        }
+        Map<String, StubApplication> applications = new ConcurrentHashMap<>();
+        Map<String, StubRoute> routes = new ConcurrentHashMap<>();
+        for (int i = 0; i < applicationCount; i++) {
+            String applicationGuid = guid("application-" + i);
+            StubRoute route = new StubRoute(guid("route-" + i), "app-" + i, applicationGuid);
+            routes.put(route.guid, route);
+            List<StubEvent> events = new ArrayList<>();
+            for (int j = 0; j < eventsPerApplication; j++) {
+                events.add(new StubEvent(guid("event-" + i + "-" + j), applicationGuid, "audit.app.update",
+                        now.minusMillis((long) (random.nextDouble() * idleMillis)).truncatedTo(ChronoUnit.SECONDS)));
+            }
+            events.sort((first, second) -> second.timestamp.compareTo(first.timestamp));
+            List<StubLog> logs = new ArrayList<>();
+            for (int j = 0; j < logsPerApplication; j++) {
+                logs.add(new StubLog("log " + j + " of app-" + i,
+                        now.minusMillis((long) (random.nextDouble() * idleMillis))));
+            }
+            applications.put(applicationGuid, new StubApplication(applicationGuid, "app-" + i,
+                    spaceGuids.get(i % spaceGuids.size()),
+                    random.nextDouble() < startedRatio ? CloudFoundryAppState.STARTED : CloudFoundryAppState.STOPPED,
+                    Collections.singletonList(route.guid), Collections.unmodifiableList(events),
+                    Collections.unmodifiableList(logs)));
+        }
+        this.applications = applications;
+        this.routes = routes;
+    }
+
+    /**
+     * Stable identifier built from a name.
+     */
+    public static String guid(String name) {
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    public StubApplication getApplication(String guid) {
+        return applications.get(guid);
+    }
+
+    /**
+     * Applications of the given spaces, sorted by name.
+     */
+    public List<StubApplication> getApplications(Collection<String> spaceGuids) {
+        return applications.values().stream()
+                .filter(application -> spaceGuids.contains(application.spaceGuid))
+                .sorted((first, second) -> first.name.compareTo(second.name))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Events of the given applications, most recent first.
+     */
+    public List<StubEvent> getEvents(Collection<String> applicationGuids) {
+        return applicationGuids.stream()
+                .map(applications::get)
+                .filter(application -> application != null)
+                .flatMap(application -> application.events.stream())
+                .sorted((first, second) -> second.timestamp.compareTo(first.timestamp))
+                .collect(Collectors.toList());
+    }
+
+    public StubRoute getRoute(String guid) {
+        return routes.get(guid);
+    }
+
+    /**
+     * Ids of the started applications, by name.
+     */
+    public Map<String, String> getStartedApplications() {
+        return applications.values().stream()
+                .filter(application -> CloudFoundryAppState.STARTED.equals(application.state))
+                .collect(Collectors.toMap(StubApplication::getName, StubApplication::getGuid,
+                        (first, second) -> first));
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.access.cloudfoundry.stub;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApi;
+import org.cloudfoundry.autosleep.util.Bulkhead;
+import org.cloudfoundry.autosleep.util.VirtualThreads;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the throughput of blocking worker tasks, each waiting for a cloudfoundry call served by a
+ * {@link CloudFoundryStubServer}, run by a pool of platform threads and by virtual threads. The virtual threads
+ * measure is skipped on runtimes that do not provide them. It is not part of the test suite; run it from the test
+ * classpath, with the optional system properties:
+ * <ul>
+ * <li>{@code benchmark.applications}: number of applications, one task each (2000)</li>
+ * <li>{@code benchmark.threads}: number of platform threads (5)</li>
+ * <li>{@code benchmark.latency.millis}: latency of each cloudfoundry request (20)</li>
+ * </ul>
+ * The {@code cf.client.cc.pool.size} connection pool also bounds the number of calls in flight.
+ */
+@Slf4j
+public final class WorkerThreadsBenchmark {
+
+    private WorkerThreadsBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int applicationCount = Integer.getInteger("benchmark.applications", 2_000);
+        int threads = Integer.getInteger("benchmark.threads", 5);
+        StubFleet fleet = StubFleet.builder()
+                .applicationCount(applicationCount)
+                .spaceCount(1)
+                .startedRatio(1)
+                .eventsPerApplication(0)
+                .logsPerApplication(0)
+                .seed(1)
+                .build();
+        List<String> applicationIds = fleet.getApplications(fleet.getSpaceGuids()).stream()
+                .map(StubFleet.StubApplication::getGuid)
+                .collect(Collectors.toList());
+        try (CloudFoundryStubServer server = CloudFoundryStubServer.start(fleet)) {
+            server.setLatency(Duration.ofMillis(Long.getLong("benchmark.latency.millis", 20)));
+            ReactiveCloudFoundryApi api = StubClients.buildApi(server);
+            //endpoints discovery and token are not measured
+            api.isValidOrganization(fleet.getOrganizationGuid()).block();
+
+            measure("platform threads", api, applicationIds, threads, false);
+            if (VirtualThreads.isAvailable()) {
+                measure("virtual threads", api, applicationIds, threads, true);
+            } else {
+                log.info("virtual threads - skipped, not provided by this runtime");
+            }
+        }
+    }
+
+    private static void measure(String mode, ReactiveCloudFoundryApi api, List<String> applicationIds, int threads,
+                                boolean virtualThreads) throws InterruptedException {
+        Bulkhead bulkhead = Bulkhead.builder()
+                .name("benchmark")
+                .threads(threads)
+                .queueSize(applicationIds.size())
+                .virtualThreads(virtualThreads)
+                .build();
+        CountDownLatch done = new CountDownLatch(applicationIds.size());
+        AtomicLong failures = new AtomicLong();
+        long start = System.nanoTime();
+        try {
+            applicationIds.forEach(applicationId -> bulkhead.execute(() -> {
+                try {
+                    //blocking, as a worker task written without reactor would be
+                    api.getApplicationState(applicationId).block();
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }));
+            done.await(10, TimeUnit.MINUTES);
+        } finally {
+            bulkhead.shutdown();
+        }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        log.info("{} - {} tasks in {} ms ({} tasks/s), {} failures", mode, applicationIds.size(),
+                elapsed.toMillis(), applicationIds.size() * 1000 / Math.max(1, elapsed.toMillis()), failures.get());
+    }
+
+}
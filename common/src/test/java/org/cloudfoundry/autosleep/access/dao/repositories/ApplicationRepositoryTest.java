@@ -30,6 +30,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
@@ -112,4 +113,21 @@ public abstract class ApplicationRepositoryTest extends CrudRepositoryTest<Appli
 
     }
 
-}
\ No newline at end of file
+    @Test(expected = OptimisticLockingFailureException.class)
+    public void test_stale_update_is_rejected() {
+        //Given two writers read the same application
+        applicationRepository.save(build("staleId"));
+        ApplicationInfo first = applicationRepository.findOne("staleId");
+        ApplicationInfo second = applicationRepository.findOne("staleId");
+        //And the first one updates it
+        first.getEnrollmentState().addEnrollmentState("firstServiceId");
+        applicationRepository.save(first);
+
+        //When the second one updates what it read
+        second.getEnrollmentState().addEnrollmentState("secondServiceId");
+        applicationRepository.save(second);
+
+        //Then its update is rejected rather than overwriting the first one
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.dao.repositories;
+
+import org.cloudfoundry.autosleep.access.dao.config.RepositoryConfig;
+import org.cloudfoundry.autosleep.access.dao.model.InstanceMember;
+import org.cloudfoundry.autosleep.util.ApplicationConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {ApplicationConfiguration.class, RepositoryConfig.class, EnableJpaConfiguration.class})
+public abstract class InstanceMemberRepositoryTest extends CrudRepositoryTest<InstanceMember> {
+
+    private static final long NOW = 1_000_000L;
+
+    @Autowired
+    private InstanceMemberRepository repository;
+
+    @Override
+    protected InstanceMember build(String id) {
+        return InstanceMember.builder().id(id).leaseExpiry(NOW).build();
+    }
+
+    @Override
+    protected void compareReloaded(InstanceMember original, InstanceMember reloaded) {
+        assertThat(reloaded.getId(), is(equalTo(original.getId())));
+        assertThat(reloaded.getLeaseExpiry(), is(equalTo(original.getLeaseExpiry())));
+        assertThat(reloaded, is(equalTo(original)));
+    }
+
+    @Before
+    @After
+    public void setAndClearDao() {
+        setDao(repository);
+        repository.deleteAll();
+    }
+
+    @Test
+    public void test_expired_members_are_deleted() {
+        //Given an expired and a live member
+        repository.save(new InstanceMember("expired", NOW - 1));
+        repository.save(new InstanceMember("alive", NOW));
+
+        //When expired members are deleted
+        int deleted = repository.deleteExpired(NOW);
+
+        //Then the live one only remains
+        assertThat(deleted, is(equalTo(1)));
+        assertThat(repository.findByLeaseExpiryGreaterThanEqual(NOW).stream()
+                .map(InstanceMember::getId)
+                .collect(Collectors.toList()), is(equalTo(Collections.singletonList("alive"))));
+    }
+
+}
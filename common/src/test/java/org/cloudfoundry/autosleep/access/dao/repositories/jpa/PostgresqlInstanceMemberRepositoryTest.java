@@ -0,0 +1,11 @@
+package org.cloudfoundry.autosleep.access.dao.repositories.jpa;
+
+import org.cloudfoundry.autosleep.access.dao.repositories.InstanceMemberRepositoryTest;
+import org.springframework.test.annotation.IfProfileValue;
+import org.springframework.test.context.ActiveProfiles;
+
+@IfProfileValue(name = "integration-test", value = "true")
+@ActiveProfiles({"postgresql", "postgresql-local"})
+public class PostgresqlInstanceMemberRepositoryTest extends InstanceMemberRepositoryTest {
+
+}
\ No newline at end of file
@@ -0,0 +1,162 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class BulkheadTest {
+
+    private Bulkhead bulkhead;
+
+    @Before
+    public void buildBulkhead() {
+        bulkhead = Bulkhead.builder()
+                .name("test")
+                .threads(1)
+                .queueSize(2)
+                .build();
+    }
+
+    @After
+    public void shutdownBulkhead() {
+        bulkhead.shutdown();
+    }
+
+    @Test
+    public void test_saturated_bulkhead_rejects_tasks() throws Exception {
+        //Given the thread is busy and the queue is full
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        bulkhead.execute(() -> {
+            started.countDown();
+            awaitQuietly(release);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        bulkhead.execute(() -> {
+        });
+        bulkhead.execute(() -> {
+        });
+        assertEquals(1, bulkhead.getActiveCount());
+        assertEquals(2, bulkhead.getQueuedCount());
+        //When another task is submitted
+        try {
+            bulkhead.execute(() -> {
+            });
+            fail("task should have been rejected");
+        } catch (RejectedExecutionException e) {
+            //Then it is rejected and counted
+            assertEquals(1, bulkhead.getRejectedCount());
+        }
+        release.countDown();
+    }
+
+    @Test
+    public void test_tasks_run_on_named_threads() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        String[] threadName = new String[1];
+        bulkhead.execute(() -> {
+            threadName[0] = Thread.currentThread().getName();
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(threadName[0].startsWith("test-"));
+        assertEquals(1, bulkhead.getThreadCount());
+        assertEquals(0, bulkhead.getRejectedCount());
+    }
+
+    @Test
+    public void test_virtual_threads_fall_back_to_platform_threads() throws Exception {
+        Bulkhead virtual = Bulkhead.builder()
+                .name("virtual")
+                .threads(1)
+                .queueSize(2)
+                .virtualThreads(true)
+                .build();
+        try {
+            //the pool is virtual only where the runtime allows it, and runs tasks in both cases
+            assertEquals(VirtualThreads.isAvailable(), virtual.isVirtual());
+            CountDownLatch done = new CountDownLatch(1);
+            virtual.execute(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            virtual.shutdown();
+        }
+        assertFalse(bulkhead.isVirtual());
+    }
+
+    @Test
+    public void test_virtual_threads_run_queued_tasks_at_once() throws Exception {
+        assumeTrue(VirtualThreads.isAvailable());
+        //Given a virtual bulkhead of one thread and two queued tasks
+        Bulkhead virtual = Bulkhead.builder()
+                .name("virtual")
+                .threads(1)
+                .queueSize(2)
+                .virtualThreads(true)
+                .build();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        try {
+            //When three tasks are submitted
+            for (int i = 0; i < 3; i++) {
+                virtual.execute(() -> {
+                    started.countDown();
+                    awaitQuietly(release);
+                });
+            }
+            //Then they all run at once
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(3, virtual.getActiveCount());
+            //And the next one is rejected
+            try {
+                virtual.execute(() -> {
+                });
+                fail("task should have been rejected");
+            } catch (RejectedExecutionException e) {
+                assertEquals(1, virtual.getRejectedCount());
+            }
+        } finally {
+            release.countDown();
+            virtual.shutdown();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExpiringCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final List<String> metrics = new ArrayList<>();
+
+    private Mono<String> load(String key) {
+        return Mono.fromCallable(() -> key + "-" + loads.incrementAndGet());
+    }
+
+    @Test
+    public void test_entries_expire() {
+        //Given a cache whose entries expire immediately
+        ExpiringCache<String, String> cache = new ExpiringCache<>("test", Duration.ZERO, 10, metrics::add);
+        //When a key is asked twice
+        cache.get("key", this::load).block();
+        cache.get("key", this::load).block();
+        //Then it is loaded twice
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void test_errors_are_not_cached() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>("test", Duration.ofMinutes(1), 10, null);
+        //Given the first load fails
+        Throwable error = cache.get("key", key -> Mono.<String>error(new RuntimeException("failure")))
+                .then(Mono.<Throwable>empty())
+                .onErrorResume(Mono::just)
+                .block();
+        assertEquals("failure", error.getMessage());
+        //When key is asked again
+        String value = cache.get("key", this::load).block();
+        //Then it is loaded
+        assertEquals("key-1", value);
+    }
+
+    @Test
+    public void test_invalidated_entries_are_loaded_again() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>("test", Duration.ofMinutes(1), 10, metrics::add);
+        cache.get("key", this::load).block();
+        //When entry is invalidated
+        cache.invalidate("key");
+        //Then it is loaded again
+        assertNull(cache.getIfPresent("key"));
+        assertEquals("key-2", cache.get("key", this::load).block());
+    }
+
+    @Test
+    public void test_least_recently_used_entries_are_evicted() {
+        //Given a cache of 2 entries
+        ExpiringCache<String, String> cache = new ExpiringCache<>("test", Duration.ofMinutes(1), 2, metrics::add);
+        cache.put("first", "1");
+        cache.put("second", "2");
+        cache.getIfPresent("first");
+        //When a third entry is added
+        cache.put("third", "3");
+        //Then the least recently used is evicted
+        assertEquals(2, cache.size());
+        assertNull(cache.getIfPresent("second"));
+        assertEquals("1", cache.getIfPresent("first"));
+    }
+
+    @Test
+    public void test_values_are_loaded_once_and_counted() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>("test", Duration.ofMinutes(1), 10, metrics::add);
+        //When a key is asked twice
+        String first = cache.get("key", this::load).block();
+        String second = cache.get("key", this::load).block();
+        //Then it is loaded once
+        assertEquals("key-1", first);
+        assertEquals(first, second);
+        assertEquals(1, loads.get());
+        //And hit and miss are reported
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, metrics.size());
+        assertEquals("autosleep.cache.test.miss", metrics.get(0));
+        assertEquals("autosleep.cache.test.hit", metrics.get(1));
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LatencyHistogramTest {
+
+    @Test
+    public void test_bucket_bounds_contain_their_values() {
+        for (long micros : new long[]{0, 1, 15, 16, 17, 1000, 123_456, 8_000_000, Long.MAX_VALUE / 2}) {
+            int index = LatencyHistogram.getBucketIndex(micros);
+            if (micros < 1L << 42) {
+                assertTrue(LatencyHistogram.getBucketUpperBound(index) >= micros);
+                assertTrue(index == 0 || LatencyHistogram.getBucketUpperBound(index - 1) < micros);
+            }
+            //precision of a bucket is about 6%
+            assertTrue(LatencyHistogram.getBucketUpperBound(index)
+                    - (index == 0 ? 0 : LatencyHistogram.getBucketUpperBound(index - 1))
+                    <= Math.max(1, LatencyHistogram.getBucketUpperBound(index) / LatencyHistogram.SUB_BUCKET_COUNT));
+        }
+    }
+
+    @Test
+    public void test_empty_histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(Duration.ZERO, histogram.getPercentile(99));
+        assertEquals(Duration.ZERO, histogram.getMean());
+    }
+
+    @Test
+    public void test_percentiles() {
+        //Given 100 latencies of 1 to 100 ms
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(Duration.ofMillis(i));
+        }
+        //Then percentiles are known within bucket precision
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getPercentile(50).toMillis(), 50 / LatencyHistogram.SUB_BUCKET_COUNT);
+        assertEquals(95, histogram.getPercentile(95).toMillis(), 95 / LatencyHistogram.SUB_BUCKET_COUNT);
+        assertEquals(Duration.ofMillis(100), histogram.getPercentile(100));
+        assertEquals(Duration.ofMillis(100), histogram.getMax());
+        assertEquals(50.5, histogram.getMean().toNanos() / 1_000_000d, 0.01);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SingleFlightTest {
+
+    private static final Duration TIME_TO_LIVE = Duration.ofSeconds(1);
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private SingleFlight<String, String> singleFlight;
+
+    private VirtualTimeScheduler timer;
+
+    @Before
+    public void buildSingleFlight() {
+        timer = VirtualTimeScheduler.create();
+        singleFlight = new SingleFlight<>(TIME_TO_LIVE, timer);
+    }
+
+    private Mono<String> call(Mono<String> result) {
+        return Mono.defer(() -> {
+            calls.incrementAndGet();
+            return result;
+        });
+    }
+
+    @Test
+    public void test_concurrent_calls_share_pending_one() {
+        //Given a pending call
+        MonoProcessor<String> remote = MonoProcessor.create();
+        List<String> results = new ArrayList<>();
+        singleFlight.get("key", () -> call(remote)).subscribe(results::add);
+        //When other callers ask for the same key
+        singleFlight.get("key", () -> call(remote)).subscribe(results::add);
+        singleFlight.get("key", () -> call(remote)).subscribe(results::add);
+        //Then a single call is made
+        assertEquals(1, calls.get());
+        assertEquals(2, singleFlight.getCoalescedCount());
+        //And every caller gets its result
+        remote.onNext("value");
+        assertEquals(3, results.size());
+    }
+
+    @Test
+    public void test_errors_are_not_kept() {
+        singleFlight.get("key", () -> call(Mono.error(new IllegalStateException())))
+                .onErrorReturn("error")
+                .block();
+        singleFlight.get("key", () -> call(Mono.just("value"))).block();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void test_keys_are_independent() {
+        singleFlight.get("key", () -> call(Mono.never())).subscribe();
+        singleFlight.get("other", () -> call(Mono.never())).subscribe();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void test_result_is_kept_for_time_to_live() {
+        //Given a received result
+        singleFlight.get("key", () -> call(Mono.just("value"))).block();
+        //When asked again before it expires
+        singleFlight.get("key", () -> call(Mono.just("value"))).block();
+        //Then no call is made
+        assertEquals(1, calls.get());
+        //When it expires
+        timer.advanceTimeBy(TIME_TO_LIVE);
+        assertEquals(0, singleFlight.size());
+        singleFlight.get("key", () -> call(Mono.just("value"))).block();
+        //Then a new call is made
+        assertEquals(2, calls.get());
+    }
+
+}
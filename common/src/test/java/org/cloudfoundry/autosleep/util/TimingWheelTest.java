@@ -0,0 +1,113 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static final Duration TICK = Duration.ofMillis(10);
+
+    private TimingWheel timingWheel;
+
+    @Before
+    public void buildTimingWheel() {
+        //a small wheel, so that tasks wait for several turns
+        timingWheel = new TimingWheel(TICK, 8, Runnable::run, "test-timing-wheel");
+    }
+
+    @After
+    public void stopTimingWheel() {
+        timingWheel.stop();
+    }
+
+    @Test
+    public void test_cancelled_task_is_not_run() throws Exception {
+        //Given a scheduled task
+        AtomicInteger runs = new AtomicInteger();
+        ScheduledFuture<?> future = timingWheel.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+        //When it is cancelled before it is due
+        assertTrue(future.cancel(false));
+        //Then it is no longer pending
+        assertEquals(0, timingWheel.getPendingCount());
+        assertTrue(future.isCancelled());
+        //And it is never run
+        Thread.sleep(150);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void test_many_tasks_are_all_run() throws Exception {
+        int count = 1000;
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            timingWheel.schedule(latch::countDown, i % 100, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, timingWheel.getPendingCount());
+    }
+
+    @Test
+    public void test_task_due_after_several_turns_is_not_run_early() throws Exception {
+        //Given a task due after more than two turns of the wheel
+        long delayMillis = 8 * TICK.toMillis() * 2 + 35;
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        ScheduledFuture<?> future = timingWheel.schedule(latch::countDown, delayMillis, TimeUnit.MILLISECONDS);
+        //When it is run
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        //Then it was not run before its delay
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= delayMillis);
+        future.get(1, TimeUnit.SECONDS);
+        assertTrue(future.isDone());
+        assertFalse(future.cancel(false));
+    }
+
+    @Test
+    public void test_task_is_run_after_delay() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ScheduledFuture<?> future = timingWheel.schedule(latch::countDown, 20, TimeUnit.MILLISECONDS);
+        assertEquals(1, timingWheel.getPendingCount());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        future.get(1, TimeUnit.SECONDS);
+        assertEquals(0, timingWheel.getPendingCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_stopped_wheel_refuses_tasks() {
+        timingWheel.stop();
+        timingWheel.schedule(() -> {
+        }, 10, TimeUnit.MILLISECONDS);
+    }
+
+}
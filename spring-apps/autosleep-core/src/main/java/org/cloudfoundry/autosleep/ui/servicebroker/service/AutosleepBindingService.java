@@ -32,6 +32,7 @@ import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.ServiceInstanceParameters.Enrollment;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
 import org.cloudfoundry.autosleep.worker.WorkerManagerService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
@@ -60,6 +61,9 @@ public class AutosleepBindingService implements ServiceInstanceBindingService {
     @Autowired
     private ApplicationLocker applicationLocker;
 
+    @Autowired
+    private ConflictRetrier conflictRetrier;
+
     @Autowired
     private BindingRepository bindingRepository;
 
@@ -91,15 +95,22 @@ public class AutosleepBindingService implements ServiceInstanceBindingService {
         String route = (String) request.getBindResource()
                 .get(ServiceBindingResource.BIND_RESOURCE_KEY_ROUTE.toString());
 
-        Binding.BindingBuilder bindingBuilder = Binding.builder()
-                .serviceInstanceId(configId)
-                .serviceBindingId(bindingId);
-
         if (targetAppId != null) {
             log.info("Creating binding {} for app {}", bindingId, targetAppId);
-            bindingBuilder.resourceId(targetAppId)
-                    .resourceType(Application);
-            applicationLocker.executeThreadSafe(targetAppId, () -> {
+            //a binding request may be sent again with the same id: the existing binding is updated
+            conflictRetrier.execute(() -> {
+                Binding binding = bindingRepository.findOne(bindingId);
+                if (binding == null) {
+                    binding = Binding.builder()
+                            .serviceBindingId(bindingId)
+                            .build();
+                }
+                binding.setServiceInstanceId(configId);
+                binding.setResourceId(targetAppId);
+                binding.setResourceType(Application);
+                bindingRepository.save(binding);
+            });
+            conflictRetrier.execute(() -> applicationLocker.executeThreadSafe(targetAppId, () -> {
                 ApplicationInfo appInfo = appRepository.findOne(targetAppId);
                 if (appInfo == null) {
                     appInfo = ApplicationInfo.builder()
@@ -108,12 +119,10 @@ public class AutosleepBindingService implements ServiceInstanceBindingService {
                 }
 
                 appInfo.getEnrollmentState().addEnrollmentState(configId);
-
-                //retrieve service to return its params as credentials
-                bindingRepository.save(bindingBuilder.build());
                 appRepository.save(appInfo);
-                workerManager.registerApplicationStopper(spaceEnrollerConfig, targetAppId, bindingId);
-            });
+            }));
+            workerManager.registerApplicationStopper(spaceEnrollerConfig, targetAppId, bindingId);
+            //retrieve service to return its params as credentials
             return new CreateServiceInstanceAppBindingResponse().withCredentials(Collections.singletonMap(
                     Config.ServiceInstanceParameters.IDLE_DURATION, spaceEnrollerConfig.getIdleDuration().toString()));
         } else if (route != null) {
@@ -174,14 +183,15 @@ public class AutosleepBindingService implements ServiceInstanceBindingService {
                                 });
                     }
                 }
-                applicationLocker.executeThreadSafe(appId,
+                log.debug("deleteServiceInstanceBinding on app {}", appId);
+                conflictRetrier.execute(() -> applicationLocker.executeThreadSafe(appId,
                         () -> {
-                            log.debug("deleteServiceInstanceBinding on app {}", appId);
                             ApplicationInfo appInfo = appRepository.findOne(appId);
                             if (appInfo != null) {
                                 appInfo.getEnrollmentState().updateEnrollment(serviceInstance.getId(),
                                         serviceInstance.getEnrollment() != Enrollment.forced
-                                                && serviceInstance.getEnrollment() != Enrollment.transient_opt_out);
+                                                && serviceInstance.getEnrollment()
+                                                != Enrollment.transient_opt_out);
                                 if (appInfo.getEnrollmentState().getStates().isEmpty()) {
                                     appRepository.delete(appId);
                                     applicationLocker.removeApplication(appId);
@@ -192,10 +202,10 @@ public class AutosleepBindingService implements ServiceInstanceBindingService {
                                 log.error("Deleting a binding with no related application info. "
                                         + "This should never happen.");
                             }
-                            bindingRepository.delete(bindingId);
+                        }));
+                bindingRepository.delete(bindingId);
 
-                            //task launched will cancel by itself
-                        });
+                //task launched will cancel by itself
             } catch (CloudFoundryException e) {
                 throw new ServiceBrokerException("Couldn't clean related app bindings", e);
             }
@@ -30,6 +30,7 @@ import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
 import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterReader;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
 import org.cloudfoundry.autosleep.worker.WorkerManagerService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -66,6 +67,9 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
     @Autowired
     private ApplicationLocker applicationLocker;
 
+    @Autowired
+    private ConflictRetrier conflictRetrier;
+
     @Autowired
     @Qualifier(Config.ServiceInstanceParameters.AUTO_ENROLLMENT)
     private ParameterReader<Enrollment> autoEnrollmentReader;
@@ -186,7 +190,7 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
         //clean stored app linked to the service (already unbound)
         appRepository.findAll()
                 .forEach(
-                        aInfo -> applicationLocker.executeThreadSafe(aInfo.getUuid(),
+                        aInfo -> conflictRetrier.execute(() -> applicationLocker.executeThreadSafe(aInfo.getUuid(),
                                 () -> {
                                     ApplicationInfo applicationInfoReloaded = appRepository.findOne(aInfo.getUuid());
                                     if (applicationInfoReloaded != null
@@ -199,7 +203,7 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
                                             applicationLocker.removeApplication(applicationInfoReloaded.getUuid());
                                         }
                                     }
-                                }));
+                                })));
         return new DeleteServiceInstanceResponse().withAsync(false);
     }
 
@@ -19,30 +19,78 @@
 
 package org.cloudfoundry.autosleep.util;
 
+import org.cloudfoundry.autosleep.config.Config;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Serializes the actions on an application. Applications share a fixed number of lock stripes, chosen by the hash of
+ * their id, so that memory does not grow with the number of applications ever seen. Two applications of the same
+ * stripe are serialized too: an action must not lock another application.
+ */
 @Service
-public class ApplicationLocker {
+public class ApplicationLocker implements PublicMetrics {
+
+    private final LongAdder acquisitions = new LongAdder();
+
+    /**
+     * Number of acquisitions that had to wait, by stripe.
+     */
+    private final AtomicLongArray contentions;
+
+    private final int mask;
 
-    private Map<String, Lock> locks = new HashMap<>();
+    private final ReentrantLock[] stripes;
+
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * Time spent waiting for the lock, by stripe.
+     */
+    private final AtomicLongArray waitNanosByStripe;
+
+    public ApplicationLocker() {
+        this(Config.APPLICATION_LOCK_STRIPES);
+    }
+
+    /**
+     * @param stripeCount number of locks, rounded up to a power of two
+     */
+    public ApplicationLocker(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock(false);
+        }
+        mask = size - 1;
+        contentions = new AtomicLongArray(size);
+        waitNanosByStripe = new AtomicLongArray(size);
+    }
 
     public void executeThreadSafe(String applicationId, Runnable reneEbel) {
-        Lock lock = locks.get(applicationId);
-        if (lock == null) {
-            synchronized (locks) {
-                lock = locks.get(applicationId);
-                if (lock == null) {
-                    lock = new ReentrantLock(false);
-                    locks.put(applicationId, lock);
-                }
-            }
+        int stripe = getStripe(applicationId);
+        ReentrantLock lock = stripes[stripe];
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            long waited = System.nanoTime() - start;
+            contentions.incrementAndGet(stripe);
+            waitNanosByStripe.addAndGet(stripe, waited);
+            waitNanos.add(waited);
         }
-        lock.lock();
+        acquisitions.increment();
         try {
             reneEbel.run();
         } finally {
@@ -50,10 +98,58 @@ public class ApplicationLocker {
         }
     }
 
-    public void removeApplication(String applicationId) {
-        synchronized (locks) {
-            locks.remove(applicationId);
+    /**
+     * Number of acquisitions of a stripe that had to wait.
+     */
+    public long getContentionCount(int stripe) {
+        return contentions.get(stripe);
+    }
+
+    int getStripe(String applicationId) {
+        int hash = applicationId.hashCode();
+        //spread the high bits, as ids differing by their last characters only would share their low bits
+        return (hash ^ hash >>> 16) & mask;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Time spent waiting for a stripe, in nanoseconds.
+     */
+    public long getWaitNanos(int stripe) {
+        return waitNanosByStripe.get(stripe);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        long contended = 0;
+        int hottestStripe = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            long stripeContentions = contentions.get(i);
+            contended += stripeContentions;
+            if (stripeContentions > contentions.get(hottestStripe)) {
+                hottestStripe = i;
+            }
         }
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("autosleep.locker.stripes", stripes.length));
+        metrics.add(new Metric<>("autosleep.locker.acquisitions", acquisitions.sum()));
+        metrics.add(new Metric<>("autosleep.locker.contended", contended));
+        metrics.add(new Metric<>("autosleep.locker.wait.millis", TimeUnit.NANOSECONDS.toMillis(waitNanos.sum())));
+        metrics.add(new Metric<>("autosleep.locker.hottest.stripe", hottestStripe));
+        metrics.add(new Metric<>("autosleep.locker.hottest.stripe.contended", contentions.get(hottestStripe)));
+        metrics.add(new Metric<>("autosleep.locker.hottest.stripe.wait.millis",
+                TimeUnit.NANOSECONDS.toMillis(waitNanosByStripe.get(hottestStripe))));
+        return metrics;
+    }
+
+    /**
+     * Nothing to release: stripes are shared by the applications. Kept so that callers need not know it.
+     */
+    public void removeApplication(String applicationId) {
+        //locks are not held by application
     }
 
 }
@@ -0,0 +1,108 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.config.Config;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs a read-modify-write of versioned entities again when it conflicts with a concurrent write, possibly made by
+ * another instance of autosleep. The update must read the entities it writes, so that a new attempt works on fresh
+ * data. A failed insert is a conflict too: the same id was inserted concurrently. The update takes the lock of the
+ * application itself, if needed: run under that lock, the other applications of its stripe would wait for the backoff.
+ */
+@Component
+@Slf4j
+public class ConflictRetrier implements PublicMetrics {
+
+    private final LongAdder conflicts = new LongAdder();
+
+    private final LongAdder exhausted = new LongAdder();
+
+    private final LongAdder updates = new LongAdder();
+
+    private void backOff(int attempt) {
+        long maxBackoffMillis = Config.CONFLICT_RETRY_BACKOFF.toMillis() * attempt;
+        try {
+            //random, so that the conflicting writers do not meet again
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxBackoffMillis + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void execute(Runnable update) {
+        execute(() -> {
+            update.run();
+            return null;
+        });
+    }
+
+    public <T> T execute(Supplier<T> update) {
+        updates.increment();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return update.get();
+            } catch (OptimisticLockingFailureException | DataIntegrityViolationException e) {
+                conflicts.increment();
+                if (attempt >= Config.CONFLICT_RETRY_MAX_ATTEMPTS) {
+                    exhausted.increment();
+                    log.error("update still conflicting after {} attempts", attempt);
+                    throw e;
+                }
+                log.debug("conflicting update, attempt {} - {}", attempt, e.getMessage());
+                backOff(attempt);
+            }
+        }
+    }
+
+    public long getConflictCount() {
+        return conflicts.sum();
+    }
+
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        long updateCount = updates.sum();
+        long conflictCount = conflicts.sum();
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("autosleep.conflicts.updates", updateCount));
+        metrics.add(new Metric<>("autosleep.conflicts.detected", conflictCount));
+        metrics.add(new Metric<>("autosleep.conflicts.exhausted", exhausted.sum()));
+        metrics.add(new Metric<>("autosleep.conflicts.rate", updateCount == 0 ? 0 : conflictCount * 100 / updateCount));
+        return metrics;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.worker;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.UnicastProcessor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Gathers the stops decided by application stoppers within a short window, and sends them with a single bulk stop
+ * instead of reading then updating each application on its own.
+ */
+@Slf4j
+class ApplicationStopBatcher {
+
+    private static class PendingStop {
+
+        final String appUid;
+
+        final MonoProcessor<Void> result = MonoProcessor.create();
+
+        PendingStop(String appUid) {
+            this.appUid = appUid;
+        }
+
+    }
+
+    /**
+     * Max number of bulk stops pending at the same time.
+     */
+    static final int MAX_PENDING_BATCHES = 4;
+
+    private final ReactiveCloudFoundryApiService cloudFoundryApi;
+
+    private final FluxSink<PendingStop> pendingStops;
+
+    /**
+     * @param maxBatchSize a batch is sent as soon as it holds that many stops
+     * @param window       max time a stop waits for others before its batch is sent
+     */
+    @Builder
+    ApplicationStopBatcher(ReactiveCloudFoundryApiService cloudFoundryApi, int maxBatchSize, Duration window) {
+        this.cloudFoundryApi = cloudFoundryApi;
+        UnicastProcessor<PendingStop> processor = UnicastProcessor.create();
+        this.pendingStops = processor.sink();
+        processor
+                .bufferTimeout(Math.max(1, maxBatchSize), window)
+                .flatMap(this::stopAll, MAX_PENDING_BATCHES)
+                .subscribe();
+    }
+
+    /**
+     * Stop a started application along with the others stopped in the same window.
+     * @return completes once cloudfoundry accepted the stop, or signals a {@link CloudFoundryException}
+     */
+    Mono<Void> stop(String appUid) {
+        return Mono.defer(() -> {
+            PendingStop pendingStop = new PendingStop(appUid);
+            pendingStops.next(pendingStop);
+            return pendingStop.result;
+        });
+    }
+
+    private Mono<Void> stopAll(List<PendingStop> batch) {
+        log.debug("stopping {} applications at once", batch.size());
+        return cloudFoundryApi.stopApplications(batch.stream()
+                .map(pendingStop -> pendingStop.appUid)
+                .collect(Collectors.toList()))
+                .doOnNext(results -> batch.forEach(pendingStop -> {
+                    ApplicationStopResult result = results.get(pendingStop.appUid);
+                    if (result == null) {
+                        pendingStop.result.onError(new CloudFoundryException("no stop result for application "
+                                + pendingStop.appUid, null));
+                    } else if (result.isFailed()) {
+                        pendingStop.result.onError(result.getError());
+                    } else {
+                        pendingStop.result.onComplete();
+                    }
+                }))
+                .onErrorResume(throwable -> {
+                    batch.forEach(pendingStop -> pendingStop.result.onError(throwable));
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+}
@@ -21,26 +21,32 @@ package org.cloudfoundry.autosleep.worker;
 
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ActivityStreamIngester;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
-import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
 import org.cloudfoundry.autosleep.util.LastDateComputer;
 import org.cloudfoundry.autosleep.worker.scheduling.AbstractPeriodicTask;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.List;
+import java.util.concurrent.Executor;
 
 @Slf4j
 class ApplicationStopper extends AbstractPeriodicTask {
 
+    private final ActivityStreamIngester activityStream;
+
     private final String appUid;
 
     private final ApplicationLocker applicationLocker;
@@ -49,26 +55,43 @@ class ApplicationStopper extends AbstractPeriodicTask {
 
     private final String bindingId;
 
-    private final CloudFoundryApiService cloudFoundryApi;
+    private final ReactiveCloudFoundryApiService cloudFoundryApi;
+
+    /**
+     * Runs the updates of the application again when another instance of autosleep updated it concurrently.
+     */
+    private final ConflictRetrier conflictRetrier;
 
     private final Boolean ignoreRouteBindingError;
 
+    private final Scheduler persistenceScheduler;
+
     private final ProxyMapEntryRepository proxyMap;
 
     private final String spaceEnrollerConfigId;
 
+    /**
+     * Sends the stop along with the ones decided by other stoppers at the same time, if not null.
+     */
+    private final ApplicationStopBatcher stopBatcher;
+
     @Builder
     ApplicationStopper(Clock clock,
+                       Executor executor,
                        Duration period,
                        String appUid,
                        String spaceEnrollerConfigId,
                        String bindingId,
-                       CloudFoundryApiService cloudFoundryApi,
+                       ReactiveCloudFoundryApiService cloudFoundryApi,
                        ApplicationRepository applicationRepository,
                        ApplicationLocker applicationLocker,
                        boolean ignoreRouteBindingError,
-                       ProxyMapEntryRepository proxyMap) {
-        super(clock, period);
+                       ProxyMapEntryRepository proxyMap,
+                       Scheduler persistenceScheduler,
+                       ActivityStreamIngester activityStream,
+                       ApplicationStopBatcher stopBatcher,
+                       ConflictRetrier conflictRetrier) {
+        super(clock, executor, period);
         this.appUid = appUid;
         this.spaceEnrollerConfigId = spaceEnrollerConfigId;
         this.bindingId = bindingId;
@@ -77,12 +100,33 @@ class ApplicationStopper extends AbstractPeriodicTask {
         this.applicationLocker = applicationLocker;
         this.ignoreRouteBindingError = ignoreRouteBindingError;
         this.proxyMap = proxyMap;
+        this.persistenceScheduler = persistenceScheduler;
+        this.activityStream = activityStream;
+        this.stopBatcher = stopBatcher;
+        this.conflictRetrier = conflictRetrier;
+    }
+
+    /**
+     * Outcome of an asynchronous check, applied to the application info once back under the application lock.
+     */
+    private static class CheckResult {
+
+        final ApplicationActivity applicationActivity;
+
+        final boolean putToSleep;
+
+        final Duration rescheduleDelta;
+
+        CheckResult(ApplicationActivity applicationActivity, Duration rescheduleDelta, boolean putToSleep) {
+            this.applicationActivity = applicationActivity;
+            this.rescheduleDelta = rescheduleDelta;
+            this.putToSleep = putToSleep;
+        }
+
     }
 
-    private Duration checkActiveApplication(ApplicationInfo applicationInfo, ApplicationActivity applicationActivity)
-            throws CloudFoundryException {
+    private Mono<CheckResult> checkActiveApplication(ApplicationActivity applicationActivity) {
         //retrieve updated info
-        Duration delta = null;
         Instant lastEvent = LastDateComputer.computeLastDate(
                 applicationActivity.getLastLog(),
                 applicationActivity.getLastEvent());
@@ -91,15 +135,74 @@ class ApplicationStopper extends AbstractPeriodicTask {
             log.debug("last event:  {}", lastEvent.toString());
 
             if (nextIdleTime.isBefore(Instant.now())) {
-                putApplicationToSleep(applicationInfo, applicationActivity);
+                return putApplicationToSleep(applicationActivity)
+                        .then(Mono.just(new CheckResult(applicationActivity, null, true)));
             } else {
                 //rescheduled itself
-                delta = Duration.between(Instant.now(), nextIdleTime);
+                return Mono.just(new CheckResult(applicationActivity, Duration.between(Instant.now(), nextIdleTime),
+                        false));
             }
         } else {
             log.error("cannot find last event");
+            return Mono.just(new CheckResult(applicationActivity, null, false));
         }
-        return delta;
+    }
+
+    private void completeCheck(CheckResult checkResult) {
+        conflictRetrier.execute(() -> applicationLocker.executeThreadSafe(this.appUid,
+                () -> {
+                    //the application may have been unbound or blacklisted while the check was running
+                    ApplicationInfo applicationInfo = applicationRepository.findOne(appUid);
+                    if (applicationInfo == null) {
+                        handleApplicationNotFound();
+                    } else if (!applicationInfo.getEnrollmentState().isEnrolledByService(spaceEnrollerConfigId)) {
+                        handleApplicationBlackListed(applicationInfo);
+                    } else {
+                        ApplicationActivity applicationActivity = checkResult.applicationActivity;
+                        if (applicationActivity != null) {
+                            applicationInfo.updateDiagnosticInfo(
+                                    applicationActivity.getLastLog(),
+                                    applicationActivity.getLastEvent(),
+                                    applicationActivity.getApplication().getName(),
+                                    applicationActivity.getState());
+                        }
+                        if (checkResult.putToSleep) {
+                            applicationInfo.markAsPutToSleep();
+                        }
+                        Duration delta = checkResult.rescheduleDelta == null ? getPeriod()
+                                : checkResult.rescheduleDelta;
+                        //the task may have been handed over to another instance of autosleep meanwhile
+                        if (!rescheduleIfScheduled(delta)) {
+                            log.debug("task of app {} stopped during its check, not rescheduled", appUid);
+                        }
+                        applicationInfo.markAsChecked(Instant.now().plus(delta));
+                        applicationRepository.save(applicationInfo);
+                    }
+                }));
+    }
+
+    /**
+     * Only events more recent than the one seen by previous check are requested. Logs seen by previous checks are
+     * not read again, and reading recent logs stops as soon as one proves the application active. When the log
+     * stream covered the whole idle period, recent logs are not downloaded at all.
+     */
+    private Mono<ApplicationActivity> getApplicationActivity(ApplicationInfo applicationInfo) {
+        Instant activeSince = Instant.now().minus(getPeriod());
+        ApplicationInfo.DiagnosticInfo.ApplicationLog lastKnownLog = applicationInfo.getDiagnosticInfo().getLastLog();
+        boolean streamed = activityStream != null && activityStream.isCovering(appUid, activeSince);
+        if (streamed) {
+            log.debug("last log of app {} known from stream", appUid);
+            ApplicationInfo.DiagnosticInfo.ApplicationLog streamedLog = activityStream.getLastLog(appUid);
+            if (streamedLog != null) {
+                lastKnownLog = streamedLog;
+            }
+        }
+        return cloudFoundryApi.getApplicationActivity(appUid, ApplicationActivityQuery.builder()
+                .activeSince(activeSince)
+                .lastKnownEvent(applicationInfo.getDiagnosticInfo().getLastEvent())
+                .lastKnownLog(lastKnownLog)
+                .skipRecentLogs(streamed)
+                .build());
     }
 
     @Override
@@ -110,84 +213,106 @@ class ApplicationStopper extends AbstractPeriodicTask {
     protected void handleApplicationBlackListed(ApplicationInfo applicationInfo) {
         log.debug("Known application, but ignored (blacklisted). Cancelling task.");
         stopTask();
+        stopStreaming();
         applicationInfo.clearCheckInformation();
         applicationRepository.save(applicationInfo);
     }
 
+    /**
+     * Starts the remote check without waiting for it. Its result is applied by {@link #completeCheck(CheckResult)},
+     * on the persistence scheduler.
+     */
     protected void handleApplicationEnrolled(ApplicationInfo applicationInfo) {
-        Duration rescheduleDelta = null;
-        try {
-            ApplicationActivity applicationActivity = cloudFoundryApi.getApplicationActivity(appUid);
-            log.debug("Checking on app {} state", appUid);
-
-            applicationInfo.updateDiagnosticInfo(
-                    applicationActivity.getLastLog(),
-                    applicationActivity.getLastEvent(),
-                    applicationActivity.getApplication().getName(),
-                    applicationActivity.getState());
-            if (CloudFoundryAppState.STOPPED.equals(applicationActivity.getState())) {
-                log.debug("App already stopped.");
-            } else {
-                rescheduleDelta = checkActiveApplication(applicationInfo, applicationActivity);
-            }
-        } catch (CloudFoundryException c) {
-            log.error("error while requesting cloudfoundry api", c);
-        } catch (Throwable t) {
-            log.error("unsuspected error", t);
-        } finally {
-            Instant nextCheckTime;
-            if (rescheduleDelta == null) {
-                nextCheckTime = rescheduleWithDefaultPeriod();
-            } else {
-                nextCheckTime = reschedule(rescheduleDelta);
-            }
-            applicationInfo.markAsChecked(nextCheckTime);
-            applicationRepository.save(applicationInfo);
-        }
-
+        log.debug("Checking on app {} state", appUid);
+        getApplicationActivity(applicationInfo)
+                .flatMap(applicationActivity -> {
+                    if (CloudFoundryAppState.STOPPED.equals(applicationActivity.getState())) {
+                        log.debug("App already stopped.");
+                        return Mono.just(new CheckResult(applicationActivity, null, false));
+                    } else {
+                        return checkActiveApplication(applicationActivity)
+                                .onErrorResume(throwable -> {
+                                    logError(throwable);
+                                    return Mono.just(new CheckResult(applicationActivity, null, false));
+                                });
+                    }
+                })
+                .onErrorResume(throwable -> {
+                    logError(throwable);
+                    return Mono.just(new CheckResult(null, null, false));
+                })
+                .publishOn(persistenceScheduler)
+                .subscribe(checkResult -> {
+                    try {
+                        completeCheck(checkResult);
+                    } catch (Throwable t) {
+                        log.error("unsuspected error", t);
+                    }
+                }, throwable -> {
+                    //the persistence executor is saturated: check again later rather than never
+                    log.error("check result of app {} could not be saved", appUid, throwable);
+                    rescheduleIfScheduled(getPeriod());
+                });
     }
 
     protected void handleApplicationNotFound() {
         log.debug("Application unknown (must have unbound). Cancelling task.");
         stopTask();
+        stopStreaming();
+    }
+
+    private void logError(Throwable throwable) {
+        if (throwable instanceof CloudFoundryException) {
+            log.error("error while requesting cloudfoundry api", throwable);
+        } else {
+            log.error("unsuspected error", throwable);
+        }
     }
 
-    private void putApplicationToSleep(ApplicationInfo applicationInfo, ApplicationActivity applicationActivity) throws
-            CloudFoundryException {
+    private Mono<Void> putApplicationToSleep(ApplicationActivity applicationActivity) {
         log.info("Stopping app [{} / {}], last event: {}, last log: {}",
                 applicationActivity.getApplication().getName(), appUid,
                 applicationActivity.getLastEvent(), applicationActivity.getLastLog());
 
         //retrieve all routes for this app
-        List<String> routeIds = cloudFoundryApi.listApplicationRoutes(appUid);
-        /*TODO uncomment whenever route services handle stopped apps
-        try {
-            cloudFoundryApi.bindRoutes(spaceEnrollerConfigId, routeIds);
-        } catch (CloudFoundryException c) {
-            if (this.ignoreRouteBindingError == null || !this.ignoreRouteBindingError) {
-                throw c;
-            } else {
-                log.debug("Skip route binding error or {} on application {}.", spaceEnrollerConfigId, appUid);
-            }
-        }*/
-
-        routeIds.forEach(id -> {
-            try {
-                String host = cloudFoundryApi.getHost(id);
-                log.debug("Got host {}", host);
-                proxyMap.save(new ProxyMapEntry(host, appUid));
-            } catch (CloudFoundryException e) {
-                log.error("Couldn't get host corresponding to a route ", e);
-            }
-        });
+        return cloudFoundryApi.listApplicationRoutes(appUid)
+                /*TODO uncomment whenever route services handle stopped apps
+                .collectList()
+                .delayUntil(routeIds -> cloudFoundryApi.bindRoutes(spaceEnrollerConfigId, routeIds)
+                        .onErrorResume(throwable -> {
+                            if (this.ignoreRouteBindingError == null || !this.ignoreRouteBindingError) {
+                                return Mono.error(throwable);
+                            } else {
+                                log.debug("Skip route binding error or {} on application {}.",
+                                        spaceEnrollerConfigId, appUid);
+                                return Mono.empty();
+                            }
+                        }))
+                .flatMapIterable(routeIds -> routeIds)*/
+                .flatMap(id -> cloudFoundryApi.getHost(id)
+                        .onErrorResume(throwable -> {
+                            log.error("Couldn't get host corresponding to a route ", throwable);
+                            return Mono.empty();
+                        }))
+                .collectList()
+                .publishOn(persistenceScheduler)
+                .doOnNext(hosts -> hosts.forEach(host -> {
+                    log.debug("Got host {}", host);
+                    conflictRetrier.execute(() -> ProxyMapUpdater.save(proxyMap, host, appUid));
+                }))
+                .then(Mono.defer(() -> stopBatcher == null ? cloudFoundryApi.stopApplication(appUid).then()
+                        : stopBatcher.stop(appUid)));
+    }
 
-        cloudFoundryApi.stopApplication(appUid);
-        applicationInfo.markAsPutToSleep();
+    private void stopStreaming() {
+        if (activityStream != null) {
+            activityStream.unwatch(appUid);
+        }
     }
 
     @Override
     public void run() {
-        applicationLocker.executeThreadSafe(this.appUid,
+        conflictRetrier.execute(() -> applicationLocker.executeThreadSafe(this.appUid,
                 () -> {
                     ApplicationInfo applicationInfo = applicationRepository.findOne(appUid);
                     if (applicationInfo == null) {
@@ -199,7 +324,7 @@ class ApplicationStopper extends AbstractPeriodicTask {
                             handleApplicationBlackListed(applicationInfo);
                         }
                     }
-                });
+                }));
     }
 
 }
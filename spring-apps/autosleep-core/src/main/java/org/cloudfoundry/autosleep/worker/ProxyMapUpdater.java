@@ -0,0 +1,62 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
+import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the proxy map entries of the applications put to sleep. An entry may remain from a previous sleep, or have
+ * been written by another instance of autosleep: existing entries are read and updated rather than inserted again.
+ * Callers run it through the {@link org.cloudfoundry.autosleep.util.ConflictRetrier}.
+ */
+final class ProxyMapUpdater {
+
+    private ProxyMapUpdater() {
+    }
+
+    static void save(ProxyMapEntryRepository proxyMap, String host, String appId) {
+        ProxyMapEntry entry = proxyMap.findOne(host);
+        if (entry == null) {
+            entry = new ProxyMapEntry(host, appId);
+        } else {
+            entry.setAppId(appId);
+        }
+        proxyMap.save(entry);
+    }
+
+    static void saveAll(ProxyMapEntryRepository proxyMap, List<ProxyMapEntry> entries) {
+        Map<String, String> appIdByHost = new LinkedHashMap<>();
+        entries.forEach(entry -> appIdByHost.put(entry.getHost(), entry.getAppId()));
+        List<ProxyMapEntry> toSave = new ArrayList<>();
+        proxyMap.findAll(new ArrayList<>(appIdByHost.keySet())).forEach(existing -> {
+            existing.setAppId(appIdByHost.remove(existing.getHost()));
+            toSave.add(existing);
+        });
+        appIdByHost.forEach((host, appId) -> toSave.add(new ProxyMapEntry(host, appId)));
+        proxyMap.save(toSave);
+    }
+
+}
@@ -25,16 +25,18 @@ import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationBindingResult;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
 import org.cloudfoundry.autosleep.worker.scheduling.AbstractPeriodicTask;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import reactor.core.publisher.Mono;
 
 import java.time.Duration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -42,7 +44,17 @@ class SpaceEnroller extends AbstractPeriodicTask {
 
     private final ApplicationRepository applicationRepository;
 
-    private final CloudFoundryApiService cloudFoundryApi;
+    /**
+     * Delay before binding again the applications whose binding failed, doubled on each attempt.
+     */
+    private final Duration bindRetryBackoff;
+
+    /**
+     * Max number of attempts to bind an application within a single run, including the first one.
+     */
+    private final int bindRetryMaxAttempts;
+
+    private final ReactiveCloudFoundryApiService cloudFoundryApi;
 
     private final String spaceEnrollerConfigId;
 
@@ -52,13 +64,18 @@ class SpaceEnroller extends AbstractPeriodicTask {
 
     @Builder
     SpaceEnroller(Clock clock,
+                  Executor executor,
                   Duration period,
                   String spaceEnrollerConfigId,
-                  CloudFoundryApiService cloudFoundryApi,
+                  ReactiveCloudFoundryApiService cloudFoundryApi,
                   SpaceEnrollerConfigRepository spaceEnrollerConfigRepository,
                   ApplicationRepository applicationRepository,
-                  DeployedApplicationConfig.Deployment deployment) {
-        super(clock, period);
+                  DeployedApplicationConfig.Deployment deployment,
+                  Duration bindRetryBackoff,
+                  int bindRetryMaxAttempts) {
+        super(clock, executor, period);
+        this.bindRetryBackoff = bindRetryBackoff == null ? Duration.ZERO : bindRetryBackoff;
+        this.bindRetryMaxAttempts = Math.max(1, bindRetryMaxAttempts);
         this.spaceEnrollerConfigId = spaceEnrollerConfigId;
         this.cloudFoundryApi = cloudFoundryApi;
         this.spaceEnrollerConfigRepository = spaceEnrollerConfigRepository;
@@ -66,6 +83,36 @@ class SpaceEnroller extends AbstractPeriodicTask {
         this.deployment = deployment;
     }
 
+    /**
+     * Bind the applications, then bind again the ones that failed, after a growing delay, until they are all bound
+     * or attempts are exhausted.
+     */
+    private Mono<Void> bindApplications(String serviceInstanceId, List<ApplicationIdentity> applications,
+                                        int attempt) {
+        return cloudFoundryApi.bindApplications(serviceInstanceId, applications)
+                .flatMap(results -> {
+                    List<ApplicationBindingResult> failures = results.values().stream()
+                            .filter(ApplicationBindingResult::isFailed)
+                            .collect(Collectors.toList());
+                    if (failures.isEmpty()) {
+                        return Mono.empty();
+                    } else if (attempt >= bindRetryMaxAttempts) {
+                        ApplicationBindingResult failure = failures.get(0);
+                        log.error("{} applications could not be bound after {} attempts, error binding {}:",
+                                failures.size(), attempt, failure.getApplication().getName(), failure.getError());
+                        return Mono.empty();
+                    } else {
+                        Duration delay = bindRetryBackoff.multipliedBy(1L << (attempt - 1));
+                        log.warn("{} of {} applications could not be bound, binding them again in {}",
+                                failures.size(), results.size(), delay);
+                        return Mono.delay(delay)
+                                .then(bindApplications(serviceInstanceId, failures.stream()
+                                        .map(ApplicationBindingResult::getApplication)
+                                        .collect(Collectors.toList()), attempt + 1));
+                    }
+                });
+    }
+
     @Override
     protected String getTaskId() {
         return spaceEnrollerConfigId;
@@ -75,37 +122,41 @@ class SpaceEnroller extends AbstractPeriodicTask {
     public void run() {
         SpaceEnrollerConfig serviceInstance = spaceEnrollerConfigRepository.findOne(spaceEnrollerConfigId);
         if (serviceInstance != null) {
-            try {
-                Set<String> watchedOrIgnoredApplications = new HashSet<>();
-                applicationRepository.findAll()
-                        .forEach(applicationInfo -> {
-                            if (!applicationInfo.getEnrollmentState().isCandidate(spaceEnrollerConfigId)) {
-                                watchedOrIgnoredApplications.add(applicationInfo.getUuid());
-                            }
-                        });
-                log.debug("{} known applications (already enrolled, or blacklisted)",
-                        watchedOrIgnoredApplications.size());
-                List<ApplicationIdentity> applicationIdentities = cloudFoundryApi
-                        .listAliveApplications(serviceInstance.getSpaceId(),
-                                serviceInstance.getExcludeFromAutoEnrollment());
-                List<ApplicationIdentity> newApplications = applicationIdentities.stream()
-                        .filter(application ->
-                                deployment == null || !deployment.getApplicationId().equals(application.getGuid()))
-                        .filter(application -> !(watchedOrIgnoredApplications.contains(application.getGuid())))
-                        .collect(Collectors.toList());
-                if (!newApplications.isEmpty()) {
-                    log.debug("{} - new applications", newApplications.size());
-                    cloudFoundryApi.bindApplications(serviceInstance.getId(), newApplications);
-                } else {
-                    log.debug("No new started app to bind (all live apps are already enrolled or filtered out by regexp)");
-                }
-            } catch (CloudFoundryException c) {
-                /*a 409 "conflict" error is possible (if someone tries to delete a service at the same time
-                but without consequences
-                 */
-                log.error("cloudfoundry error", c);
-            }
-            rescheduleWithDefaultPeriod();
+            Set<String> watchedOrIgnoredApplications = new HashSet<>();
+            applicationRepository.findAll()
+                    .forEach(applicationInfo -> {
+                        if (!applicationInfo.getEnrollmentState().isCandidate(spaceEnrollerConfigId)) {
+                            watchedOrIgnoredApplications.add(applicationInfo.getUuid());
+                        }
+                    });
+            log.debug("{} known applications (already enrolled, or blacklisted)",
+                    watchedOrIgnoredApplications.size());
+            cloudFoundryApi
+                    .listAliveApplications(serviceInstance.getSpaceId(),
+                            serviceInstance.getExcludeFromAutoEnrollment())
+                    .filter(application ->
+                            deployment == null || !deployment.getApplicationId().equals(application.getGuid()))
+                    .filter(application -> !(watchedOrIgnoredApplications.contains(application.getGuid())))
+                    .collectList()
+                    .flatMap(newApplications -> {
+                        if (!newApplications.isEmpty()) {
+                            log.debug("{} - new applications", newApplications.size());
+                            return bindApplications(serviceInstance.getId(), newApplications, 1);
+                        } else {
+                            log.debug("No new started app to bind (all live apps are already enrolled or filtered "
+                                    + "out by regexp)");
+                            return Mono.empty();
+                        }
+                    })
+                    .subscribe(null,
+                            throwable -> {
+                                /*a 409 "conflict" error is possible (if someone tries to delete a service at the same
+                                time but without consequences
+                                 */
+                                log.error("cloudfoundry error", throwable);
+                                rescheduleWithDefaultPeriod();
+                            },
+                            this::rescheduleWithDefaultPeriod);
         } else {
             log.debug("service has been removed. Cancelling task");
             stopTask();
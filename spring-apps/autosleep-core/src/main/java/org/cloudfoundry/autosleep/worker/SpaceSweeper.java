@@ -0,0 +1,491 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.worker;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ActivityStreamIngester;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
+import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
+import org.cloudfoundry.autosleep.util.LastDateComputer;
+import org.cloudfoundry.autosleep.worker.scheduling.AbstractPeriodicTask;
+import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Checks all the applications enrolled by a service instance together, instead of an {@link ApplicationStopper} per
+ * application. The sweeper wakes up when the first application is due, and checks every application due within a
+ * window after it: their activities are read, idle ones are stopped, and check results are saved with a few calls
+ * whatever the number of applications.
+ */
+@Slf4j
+class SpaceSweeper extends AbstractPeriodicTask {
+
+    /**
+     * Outcome of the check of an application.
+     */
+    private static class CheckResult {
+
+        /**
+         * Null if it could not be read.
+         */
+        final ApplicationActivity applicationActivity;
+
+        /**
+         * Null to check again after the idle duration.
+         */
+        final Instant nextCheck;
+
+        final boolean putToSleep;
+
+        CheckResult(ApplicationActivity applicationActivity, Instant nextCheck, boolean putToSleep) {
+            this.applicationActivity = applicationActivity;
+            this.nextCheck = nextCheck;
+            this.putToSleep = putToSleep;
+        }
+
+    }
+
+    static final String TASK_ID_SUFFIX = "-sweeper";
+
+    private final ActivityStreamIngester activityStream;
+
+    private final ApplicationLocker applicationLocker;
+
+    private final ApplicationRepository applicationRepository;
+
+    private final ReactiveCloudFoundryApiService cloudFoundryApi;
+
+    private final ConflictRetrier conflictRetrier;
+
+    /**
+     * Ids of the applications enrolled by the service instance.
+     */
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+
+    private final Scheduler persistenceScheduler;
+
+    private final ProxyMapEntryRepository proxyMap;
+
+    private final String spaceEnrollerConfigId;
+
+    private final SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
+
+    private volatile boolean stopped;
+
+    /**
+     * Set when new applications must be checked right after the running sweep.
+     */
+    private final AtomicBoolean sweepRequested = new AtomicBoolean();
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private final Duration window;
+
+    @Builder
+    SpaceSweeper(Clock clock,
+                 Executor executor,
+                 Duration period,
+                 String spaceEnrollerConfigId,
+                 ReactiveCloudFoundryApiService cloudFoundryApi,
+                 ApplicationRepository applicationRepository,
+                 SpaceEnrollerConfigRepository spaceEnrollerConfigRepository,
+                 ApplicationLocker applicationLocker,
+                 ProxyMapEntryRepository proxyMap,
+                 Scheduler persistenceScheduler,
+                 Duration window,
+                 ConflictRetrier conflictRetrier,
+                 ActivityStreamIngester activityStream) {
+        super(clock, executor, period);
+        this.spaceEnrollerConfigId = spaceEnrollerConfigId;
+        this.cloudFoundryApi = cloudFoundryApi;
+        this.applicationRepository = applicationRepository;
+        this.spaceEnrollerConfigRepository = spaceEnrollerConfigRepository;
+        this.applicationLocker = applicationLocker;
+        this.proxyMap = proxyMap;
+        this.persistenceScheduler = persistenceScheduler;
+        this.window = window == null ? Duration.ZERO : window;
+        this.conflictRetrier = conflictRetrier;
+        this.activityStream = activityStream;
+    }
+
+    /**
+     * Apply the result of its check to an application, under its lock.
+     * @return the next check of the application, or null if it is no longer enrolled
+     */
+    private Instant applyCheckResult(ApplicationInfo applicationInfo, CheckResult checkResult,
+                                     List<ApplicationInfo> toSave) {
+        AtomicReference<Instant> nextCheck = new AtomicReference<>();
+        applicationLocker.executeThreadSafe(applicationInfo.getUuid(), () -> {
+            if (!applicationInfo.getEnrollmentState().isEnrolledByService(spaceEnrollerConfigId)) {
+                handleApplicationBlackListed(applicationInfo, toSave);
+                return;
+            }
+            if (checkResult != null && checkResult.applicationActivity != null) {
+                ApplicationActivity applicationActivity = checkResult.applicationActivity;
+                applicationInfo.updateDiagnosticInfo(
+                        applicationActivity.getLastLog(),
+                        applicationActivity.getLastEvent(),
+                        applicationActivity.getApplication().getName(),
+                        applicationActivity.getState());
+            }
+            if (checkResult != null && checkResult.putToSleep) {
+                applicationInfo.markAsPutToSleep();
+            }
+            nextCheck.set(checkResult == null || checkResult.nextCheck == null
+                    ? Instant.now().plus(getPeriod()) : checkResult.nextCheck);
+            applicationInfo.markAsChecked(nextCheck.get());
+            toSave.add(applicationInfo);
+        });
+        return nextCheck.get();
+    }
+
+    /**
+     * Saves the check results of the applications, then schedules the next sweep. The applications are read again
+     * when one of them was updated concurrently by another instance of autosleep.
+     */
+    private void completeSweep(List<String> checkedIds, Map<String, CheckResult> checkResults, Instant nextWakeUp) {
+        finishSweep(conflictRetrier.execute(() -> saveCheckResults(checkedIds, checkResults, nextWakeUp)));
+    }
+
+    private static Instant earliest(Instant first, Instant second) {
+        if (first == null) {
+            return second;
+        } else if (second == null || first.isBefore(second)) {
+            return first;
+        } else {
+            return second;
+        }
+    }
+
+    /**
+     * Evaluates the activities read, and stops the idle applications.
+     */
+    private Mono<Map<String, CheckResult>> evaluate(Map<String, ApplicationActivity> activities) {
+        Map<String, CheckResult> checkResults = new HashMap<>();
+        List<ApplicationActivity> idleApplications = new ArrayList<>();
+        Instant now = Instant.now();
+        activities.forEach((applicationId, applicationActivity) -> {
+            if (applicationActivity.isFailed()) {
+                log.error("error while requesting cloudfoundry api", applicationActivity.getError());
+                checkResults.put(applicationId, new CheckResult(null, null, false));
+            } else if (CloudFoundryAppState.STOPPED.equals(applicationActivity.getState())) {
+                checkResults.put(applicationId, new CheckResult(applicationActivity, null, false));
+            } else {
+                Instant lastEvent = LastDateComputer.computeLastDate(applicationActivity.getLastLog(),
+                        applicationActivity.getLastEvent());
+                if (lastEvent == null) {
+                    log.error("cannot find last event of app {}", applicationId);
+                    checkResults.put(applicationId, new CheckResult(applicationActivity, null, false));
+                } else if (lastEvent.plus(getPeriod()).isBefore(now)) {
+                    idleApplications.add(applicationActivity);
+                } else {
+                    checkResults.put(applicationId, new CheckResult(applicationActivity,
+                            lastEvent.plus(getPeriod()), false));
+                }
+            }
+        });
+        if (idleApplications.isEmpty()) {
+            return Mono.just(checkResults);
+        }
+        return putApplicationsToSleep(idleApplications)
+                .map(stopResults -> {
+                    idleApplications.forEach(applicationActivity -> {
+                        String applicationId = applicationActivity.getApplication().getGuid();
+                        ApplicationStopResult stopResult = stopResults.get(applicationId);
+                        checkResults.put(applicationId, new CheckResult(applicationActivity, null,
+                                stopResult != null && !stopResult.isFailed()));
+                    });
+                    return checkResults;
+                });
+    }
+
+    private void finishSweep(Instant nextWakeUp) {
+        sweeping.set(false);
+        if (stopped) {
+            return;
+        }
+        if (sweepRequested.get()) {
+            reschedule(Duration.ZERO);
+        } else if (nextWakeUp == null) {
+            rescheduleWithDefaultPeriod();
+        } else {
+            Duration delay = Duration.between(Instant.now(), nextWakeUp);
+            reschedule(delay.isNegative() ? Duration.ZERO : delay);
+        }
+    }
+
+    /**
+     * Same incremental query as {@link ApplicationStopper}: only what is newer than previous check is read, and
+     * recent logs are not downloaded when the log stream covered the whole idle period.
+     */
+    private ApplicationActivityQuery getActivityQuery(ApplicationInfo applicationInfo, Instant activeSince) {
+        String applicationId = applicationInfo.getUuid();
+        ApplicationInfo.DiagnosticInfo.ApplicationLog lastKnownLog = applicationInfo.getDiagnosticInfo().getLastLog();
+        boolean streamed = activityStream != null && activityStream.isCovering(applicationId, activeSince);
+        if (streamed) {
+            ApplicationInfo.DiagnosticInfo.ApplicationLog streamedLog = activityStream.getLastLog(applicationId);
+            if (streamedLog != null) {
+                lastKnownLog = streamedLog;
+            }
+        }
+        return ApplicationActivityQuery.builder()
+                .activeSince(activeSince)
+                .lastKnownEvent(applicationInfo.getDiagnosticInfo().getLastEvent())
+                .lastKnownLog(lastKnownLog)
+                .skipRecentLogs(streamed)
+                .build();
+    }
+
+    @Override
+    protected String getTaskId() {
+        return spaceEnrollerConfigId + TASK_ID_SUFFIX;
+    }
+
+    private void handleApplicationBlackListed(ApplicationInfo applicationInfo, List<ApplicationInfo> toSave) {
+        log.debug("Known application {}, but ignored (blacklisted).", applicationInfo.getUuid());
+        removeMember(applicationInfo.getUuid());
+        applicationInfo.clearCheckInformation();
+        toSave.add(applicationInfo);
+    }
+
+    private void handleApplicationNotFound(String applicationId) {
+        log.debug("Application {} unknown (must have unbound).", applicationId);
+        removeMember(applicationId);
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    boolean isWatching(String applicationId) {
+        return members.contains(applicationId);
+    }
+
+    /**
+     * Saves the routes of the applications, so that the proxy can wake them up, then stops them. Applications whose
+     * routes could not be read are not stopped.
+     */
+    private Mono<Map<String, ApplicationStopResult>> putApplicationsToSleep(List<ApplicationActivity> applications) {
+        Map<String, List<ProxyMapEntry>> proxyEntries = new ConcurrentHashMap<>();
+        return Flux.fromIterable(applications)
+                .flatMap(applicationActivity -> {
+                    String applicationId = applicationActivity.getApplication().getGuid();
+                    log.info("Stopping app [{} / {}], last event: {}, last log: {}",
+                            applicationActivity.getApplication().getName(), applicationId,
+                            applicationActivity.getLastEvent(), applicationActivity.getLastLog());
+                    return cloudFoundryApi.listApplicationRoutes(applicationId)
+                            .flatMap(routeId -> cloudFoundryApi.getHost(routeId)
+                                    .onErrorResume(throwable -> {
+                                        log.error("Couldn't get host corresponding to a route ", throwable);
+                                        return Mono.empty();
+                                    }))
+                            .map(host -> new ProxyMapEntry(host, applicationId))
+                            .collectList()
+                            .doOnNext(entries -> proxyEntries.put(applicationId, entries))
+                            .onErrorResume(throwable -> {
+                                log.error("Couldn't list routes of app {}, not stopping it", applicationId,
+                                        throwable);
+                                return Mono.empty();
+                            });
+                })
+                .then(Mono.defer(() -> {
+                    if (proxyEntries.isEmpty()) {
+                        return Mono.just(Collections.<String, ApplicationStopResult>emptyMap());
+                    }
+                    return Mono.fromRunnable(() -> conflictRetrier.execute(() -> ProxyMapUpdater.saveAll(proxyMap,
+                            proxyEntries.values().stream()
+                                    .flatMap(List::stream)
+                                    .collect(Collectors.toList()))))
+                            .subscribeOn(persistenceScheduler)
+                            .then(cloudFoundryApi.stopApplications(new ArrayList<>(proxyEntries.keySet())));
+                }));
+    }
+
+    private void removeMember(String applicationId) {
+        members.remove(applicationId);
+        if (activityStream != null) {
+            activityStream.unwatch(applicationId);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!sweeping.compareAndSet(false, true)) {
+            log.debug("sweep of {} already running", spaceEnrollerConfigId);
+            return;
+        }
+        sweepRequested.set(false);
+        try {
+            if (spaceEnrollerConfigRepository.findOne(spaceEnrollerConfigId) == null) {
+                log.debug("service has been removed. Cancelling sweeper");
+                stop();
+                sweeping.set(false);
+                return;
+            }
+            sweep();
+        } catch (RuntimeException e) {
+            log.error("unsuspected error", e);
+            finishSweep(null);
+        }
+    }
+
+    /**
+     * Clears the check information of the applications blacklisted since they were enrolled.
+     */
+    private void saveBlackListed(List<String> blackListedIds) {
+        List<ApplicationInfo> toSave = new ArrayList<>();
+        for (ApplicationInfo applicationInfo : applicationRepository.findAll(blackListedIds)) {
+            applicationLocker.executeThreadSafe(applicationInfo.getUuid(), () -> {
+                if (!applicationInfo.getEnrollmentState().isEnrolledByService(spaceEnrollerConfigId)) {
+                    handleApplicationBlackListed(applicationInfo, toSave);
+                }
+            });
+        }
+        applicationRepository.save(toSave);
+    }
+
+    private Instant saveCheckResults(List<String> checkedIds, Map<String, CheckResult> checkResults,
+                                     Instant nextWakeUp) {
+        List<ApplicationInfo> toSave = new ArrayList<>();
+        Set<String> found = new HashSet<>();
+        Instant next = nextWakeUp;
+        //the applications may have been unbound or blacklisted while they were checked
+        for (ApplicationInfo applicationInfo : applicationRepository.findAll(checkedIds)) {
+            found.add(applicationInfo.getUuid());
+            Instant nextCheck = applyCheckResult(applicationInfo, checkResults.get(applicationInfo.getUuid()),
+                    toSave);
+            next = earliest(next, nextCheck);
+        }
+        checkedIds.stream()
+                .filter(applicationId -> !found.contains(applicationId))
+                .forEach(this::handleApplicationNotFound);
+        applicationRepository.save(toSave);
+        log.debug("sweep of {} - {} applications checked", spaceEnrollerConfigId, toSave.size());
+        return next;
+    }
+
+    /**
+     * Cancel the sweeper, once its service instance is removed or handled by another instance of autosleep.
+     */
+    void stop() {
+        stopped = true;
+        new ArrayList<>(members).forEach(this::removeMember);
+        stopTask();
+    }
+
+    private void sweep() {
+        List<String> blackListedIds = new ArrayList<>();
+        Map<String, ApplicationActivityQuery> dueQueries = new HashMap<>();
+        Instant activeSince = Instant.now().minus(getPeriod());
+        Instant dueLimit = Instant.now().plus(window);
+        Instant nextWakeUp = null;
+        List<String> memberIds = new ArrayList<>(members);
+        Set<String> found = new HashSet<>();
+        if (!memberIds.isEmpty()) {
+            for (ApplicationInfo applicationInfo : applicationRepository.findAll(memberIds)) {
+                found.add(applicationInfo.getUuid());
+                Instant nextCheck = applicationInfo.getDiagnosticInfo().getNextCheck();
+                if (!applicationInfo.getEnrollmentState().isEnrolledByService(spaceEnrollerConfigId)) {
+                    blackListedIds.add(applicationInfo.getUuid());
+                } else if (nextCheck == null || !nextCheck.isAfter(dueLimit)) {
+                    dueQueries.put(applicationInfo.getUuid(), getActivityQuery(applicationInfo, activeSince));
+                } else {
+                    nextWakeUp = earliest(nextWakeUp, nextCheck);
+                }
+            }
+        }
+        memberIds.stream()
+                .filter(applicationId -> !found.contains(applicationId))
+                .forEach(this::handleApplicationNotFound);
+        if (!blackListedIds.isEmpty()) {
+            conflictRetrier.execute(() -> saveBlackListed(blackListedIds));
+        }
+        if (dueQueries.isEmpty()) {
+            finishSweep(nextWakeUp);
+            return;
+        }
+        log.debug("sweep of {} - {} applications due", spaceEnrollerConfigId, dueQueries.size());
+        final List<String> dueIds = new ArrayList<>(dueQueries.keySet());
+        final Instant notDueWakeUp = nextWakeUp;
+        cloudFoundryApi.getApplicationActivities(dueQueries)
+                .flatMap(this::evaluate)
+                .onErrorResume(throwable -> {
+                    log.error("error while requesting cloudfoundry api", throwable);
+                    return Mono.just(Collections.emptyMap());
+                })
+                .publishOn(persistenceScheduler)
+                .subscribe(checkResults -> {
+                    try {
+                        completeSweep(dueIds, checkResults, notDueWakeUp);
+                    } catch (Throwable t) {
+                        log.error("unsuspected error", t);
+                        finishSweep(null);
+                    }
+                }, throwable -> {
+                    //the persistence executor is saturated: sweep again later rather than never
+                    log.error("check results of {} could not be saved", spaceEnrollerConfigId, throwable);
+                    finishSweep(null);
+                });
+    }
+
+    /**
+     * Add an application to the ones checked by the sweeper. It is checked by the next sweep, that starts at once.
+     */
+    void watch(String applicationId) {
+        members.add(applicationId);
+        if (activityStream != null) {
+            activityStream.watch(applicationId);
+        }
+        sweepRequested.set(true);
+        if (!sweeping.get()) {
+            reschedule(Duration.ZERO);
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.worker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.EnvKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when the checks restored on startup run first. A check is run at the next check time persisted before the
+ * restart; checks already overdue are spread over a ramp window, most overdue first, each at a random time within its
+ * own slot, so that a restart does not check every application at once. Checks taken over from another instance of
+ * autosleep are spread the same way (see {@link #planTakeover(Map)}), without being counted in the progress of the
+ * startup ramp.
+ */
+@Component
+@Slf4j
+public class StartupRamp implements PublicMetrics {
+
+    @Autowired
+    private Environment environment;
+
+    /**
+     * Delays of the overdue checks, sorted, from the start of the ramp.
+     */
+    private volatile long[] rampOffsetsNanos = new long[0];
+
+    private volatile long rampStartNanos;
+
+    private Duration window;
+
+    /**
+     * Number of overdue checks whose time has come.
+     */
+    public int getStartedCount() {
+        long elapsedNanos = System.nanoTime() - rampStartNanos;
+        long[] offsets = rampOffsetsNanos;
+        int index = Arrays.binarySearch(offsets, elapsedNanos);
+        if (index < 0) {
+            return -index - 1;
+        }
+        //count every check at this offset
+        while (index < offsets.length && offsets[index] <= elapsedNanos) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Number of overdue checks spread by the last ramp.
+     */
+    public int getTotalCount() {
+        return rampOffsetsNanos.length;
+    }
+
+    @PostConstruct
+    public void init() {
+        window = Duration.ofSeconds(environment.getProperty(EnvKey.RESTART_RAMP_WINDOW_SECONDS, Long.class,
+                Config.DEFAULT_RESTART_RAMP_WINDOW_SECONDS));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        int total = getTotalCount();
+        int started = getStartedCount();
+        metrics.add(new Metric<>("autosleep.restart.ramp.total", total));
+        metrics.add(new Metric<>("autosleep.restart.ramp.started", started));
+        metrics.add(new Metric<>("autosleep.restart.ramp.progress", total == 0 ? 100 : started * 100 / total));
+        return metrics;
+    }
+
+    /**
+     * Compute the delay before the first run of each restored check, and start a new ramp.
+     * @param nextChecks next check times persisted before the restart, by task id. Null if unknown
+     * @return delay before the first run, by task id
+     */
+    public Map<String, Duration> plan(Map<String, Instant> nextChecks) {
+        Map<String, Duration> delays = new HashMap<>();
+        long[] offsets = spread(nextChecks, delays);
+        rampStartNanos = System.nanoTime();
+        rampOffsetsNanos = offsets;
+        log.info("{} checks restored at their next check time, {} overdue ones spread over {}",
+                delays.size() - offsets.length, offsets.length, window);
+        return delays;
+    }
+
+    /**
+     * Compute the delay before the first run of each check taken over from another instance, the startup ramp being
+     * left as is.
+     * @param nextChecks next check times persisted by the previous owner, by task id. Null if unknown
+     * @return delay before the first run, by task id
+     */
+    public Map<String, Duration> planTakeover(Map<String, Instant> nextChecks) {
+        Map<String, Duration> delays = new HashMap<>();
+        long[] offsets = spread(nextChecks, delays);
+        log.info("{} checks taken over at their next check time, {} overdue ones spread over {}",
+                delays.size() - offsets.length, offsets.length, window);
+        return delays;
+    }
+
+    /**
+     * Keep the time of future checks, and spread overdue ones over the window.
+     * @param delays filled with the delay before the first run, by task id
+     * @return delays of the overdue checks, sorted
+     */
+    private long[] spread(Map<String, Instant> nextChecks, Map<String, Duration> delays) {
+        Instant now = Instant.now();
+        List<Map.Entry<String, Instant>> overdue = new ArrayList<>();
+        nextChecks.entrySet().forEach(nextCheck -> {
+            if (nextCheck.getValue() == null || !nextCheck.getValue().isAfter(now)) {
+                overdue.add(nextCheck);
+            } else {
+                delays.put(nextCheck.getKey(), Duration.between(now, nextCheck.getValue()));
+            }
+        });
+        //most overdue first, unknown ones being the most overdue
+        overdue.sort(Comparator.comparing(Map.Entry::getValue, Comparator.nullsFirst(Comparator.naturalOrder())));
+        long slotNanos = window.toNanos() / Math.max(1, overdue.size());
+        long[] offsets = new long[overdue.size()];
+        for (int i = 0; i < overdue.size(); i++) {
+            offsets[i] = slotNanos * i + (slotNanos > 0 ? ThreadLocalRandom.current().nextLong(slotNanos) : 0);
+            delays.put(overdue.get(i).getKey(), Duration.ofNanos(offsets[i]));
+        }
+        return offsets;
+    }
+
+}
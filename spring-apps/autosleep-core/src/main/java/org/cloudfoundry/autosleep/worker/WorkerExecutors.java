@@ -0,0 +1,137 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.worker;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.EnvKey;
+import org.cloudfoundry.autosleep.util.Bulkhead;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Executors of the workers, one per kind of work, so that a slow cloudfoundry endpoint or a slow database only
+ * delays the work that depends on it.
+ */
+@Component
+@Slf4j
+public class WorkerExecutors implements PublicMetrics {
+
+    /**
+     * Application checks, that mostly wait for cloudfoundry.
+     */
+    @Getter
+    private Bulkhead cloudFoundryExecutor;
+
+    /**
+     * Space scans of the enrollers.
+     */
+    @Getter
+    private Bulkhead enrollmentExecutor;
+
+    @Autowired
+    private Environment environment;
+
+    /**
+     * Lease heartbeats of the instance, on their own thread so that a wave of check results to save does not delay
+     * them until the lease expires.
+     */
+    @Getter
+    private Bulkhead heartbeatExecutor;
+
+    /**
+     * Saves of check results.
+     */
+    @Getter
+    private Bulkhead persistenceExecutor;
+
+    private static void addMetrics(List<Metric<?>> metrics, String name, Bulkhead bulkhead) {
+        String prefix = "autosleep.executor." + name + ".";
+        metrics.add(new Metric<>(prefix + "threads", bulkhead.getThreadCount()));
+        metrics.add(new Metric<>(prefix + "active", bulkhead.getActiveCount()));
+        metrics.add(new Metric<>(prefix + "queued", bulkhead.getQueuedCount()));
+        metrics.add(new Metric<>(prefix + "completed", bulkhead.getCompletedCount()));
+        metrics.add(new Metric<>(prefix + "rejected", bulkhead.getRejectedCount()));
+    }
+
+    private Bulkhead buildBulkhead(String name, String threadsKey, int defaultThreads, String queueSizeKey,
+                                   int defaultQueueSize, boolean virtualThreads) {
+        int threads = environment.getProperty(threadsKey, Integer.class, defaultThreads);
+        int queueSize = environment.getProperty(queueSizeKey, Integer.class, defaultQueueSize);
+        log.debug("{} executor: {} threads, {} queued tasks at most", name, threads, queueSize);
+        return Bulkhead.builder()
+                .name("autosleep-" + name)
+                .threads(threads)
+                .queueSize(queueSize)
+                .virtualThreads(virtualThreads)
+                .build();
+    }
+
+    @PostConstruct
+    public void init() {
+        //tasks waiting for cloudfoundry may run on virtual threads. Database saves keep platform threads, bounded by
+        //the connection pool anyway
+        boolean virtualThreads = environment.getProperty(EnvKey.EXECUTOR_VIRTUAL_THREADS_ENABLED, Boolean.class,
+                Config.DEFAULT_EXECUTOR_VIRTUAL_THREADS_ENABLED);
+        cloudFoundryExecutor = buildBulkhead("cf", EnvKey.EXECUTOR_CF_THREADS, Config.DEFAULT_EXECUTOR_CF_THREADS,
+                EnvKey.EXECUTOR_CF_QUEUE_SIZE, Config.DEFAULT_EXECUTOR_CF_QUEUE_SIZE, virtualThreads);
+        enrollmentExecutor = buildBulkhead("enrollment", EnvKey.EXECUTOR_ENROLLMENT_THREADS,
+                Config.DEFAULT_EXECUTOR_ENROLLMENT_THREADS, EnvKey.EXECUTOR_ENROLLMENT_QUEUE_SIZE,
+                Config.DEFAULT_EXECUTOR_ENROLLMENT_QUEUE_SIZE, virtualThreads);
+        persistenceExecutor = buildBulkhead("persistence", EnvKey.EXECUTOR_PERSISTENCE_THREADS,
+                Config.DEFAULT_EXECUTOR_PERSISTENCE_THREADS, EnvKey.EXECUTOR_PERSISTENCE_QUEUE_SIZE,
+                Config.DEFAULT_EXECUTOR_PERSISTENCE_QUEUE_SIZE, false);
+        //heartbeats run one after the other
+        heartbeatExecutor = Bulkhead.builder()
+                .name("autosleep-heartbeat")
+                .threads(1)
+                .queueSize(1)
+                .virtualThreads(false)
+                .build();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        addMetrics(metrics, "cf", cloudFoundryExecutor);
+        addMetrics(metrics, "enrollment", enrollmentExecutor);
+        addMetrics(metrics, "heartbeat", heartbeatExecutor);
+        addMetrics(metrics, "persistence", persistenceExecutor);
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Stream.of(cloudFoundryExecutor, enrollmentExecutor, heartbeatExecutor, persistenceExecutor).forEach(Bulkhead::shutdown);
+    }
+
+}
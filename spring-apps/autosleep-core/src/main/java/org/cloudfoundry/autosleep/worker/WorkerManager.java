@@ -23,18 +23,34 @@ import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
+import org.cloudfoundry.autosleep.access.dao.model.Binding;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.BindingRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ActivityStreamIngester;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.cloudfoundry.autosleep.worker.sharding.ClusterMembership;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType.Application;
 
@@ -42,6 +58,9 @@ import static org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType.A
 @Service
 public class WorkerManager implements WorkerManagerService {
 
+    @Autowired
+    private ActivityStreamIngester activityStream;
+
     @Autowired
     private ApplicationLocker applicationLocker;
 
@@ -55,57 +74,256 @@ public class WorkerManager implements WorkerManagerService {
     private Clock clock;
 
     @Autowired
-    private CloudFoundryApiService cloudFoundryApi;
+    private ReactiveCloudFoundryApiService cloudFoundryApi;
+
+    /**
+     * Decides which applications and service instances are handled by this instance of autosleep.
+     */
+    @Autowired
+    private ClusterMembership clusterMembership;
+
+    @Autowired
+    private ConflictRetrier conflictRetrier;
 
     @Autowired
     private DeployedApplicationConfig.Deployment deployment;
 
+    @Autowired
+    private Environment environment;
+
+    /**
+     * Workers get their cloudfoundry results on netty threads, that must not wait for the database: results are
+     * saved by the persistence executor.
+     */
+    @Autowired
+    private WorkerExecutors executors;
+
     @Autowired
     private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
 
+    @Autowired
+    private StartupRamp startupRamp;
+
     @Autowired
     private ProxyMapEntryRepository proxyMapEntryRepository;
 
+    private ApplicationStopBatcher stopBatcher;
+
+    /**
+     * Sweepers by service instance id, in sweeper mode.
+     */
+    private final ConcurrentMap<String, SpaceSweeper> sweepers = new ConcurrentHashMap<>();
+
+    private Duration sweeperWindow;
+
+    private boolean sweeperMode;
+
     @PostConstruct
     public void init() {
+        int stopBatchSize = environment.getProperty(Config.EnvKey.STOP_BATCH_SIZE, Integer.class,
+                Config.DEFAULT_STOP_BATCH_SIZE);
+        long stopBatchWindowMillis = environment.getProperty(Config.EnvKey.STOP_BATCH_WINDOW_MILLIS, Long.class,
+                Config.DEFAULT_STOP_BATCH_WINDOW_MILLIS);
+        log.debug("stops sent by batches of at most {}, gathered during {} ms", stopBatchSize, stopBatchWindowMillis);
+        stopBatcher = ApplicationStopBatcher.builder()
+                .cloudFoundryApi(cloudFoundryApi)
+                .maxBatchSize(stopBatchSize)
+                .window(Duration.ofMillis(stopBatchWindowMillis))
+                .build();
+        sweeperMode = Config.WorkerMode.SWEEPER.equals(environment.getProperty(Config.EnvKey.WORKER_MODE,
+                Config.WorkerMode.STOPPER));
+        sweeperWindow = Duration.ofMillis(environment.getProperty(Config.EnvKey.SWEEPER_WINDOW_MILLIS, Long.class,
+                Config.DEFAULT_SWEEPER_WINDOW_MILLIS));
         log.debug("Initializer watchers for every app already enrolled (except if handle by another instance of "
                 + "autosleep)");
-        bindingRepository.findAllByResourceType(Application).forEach(applicationBinding -> {
+        List<Binding> applicationBindings = bindingRepository.findAllByResourceType(Application).stream()
+                .filter(this::isOwner)
+                .collect(Collectors.toList());
+        //sweepers already check applications at their next check time, and overdue ones together
+        Map<String, Duration> firstCheckDelays = sweeperMode ? Collections.emptyMap()
+                : planFirstChecks(applicationBindings, startupRamp::plan);
+        applicationBindings.forEach(applicationBinding -> {
             SpaceEnrollerConfig spaceEnrollerConfig =
                     spaceEnrollerConfigRepository.findOne(applicationBinding.getServiceInstanceId());
             if (spaceEnrollerConfig != null) {
                 registerApplicationStopper(spaceEnrollerConfig,
                         applicationBinding.getResourceId(),
-                        applicationBinding.getServiceBindingId());
+                        applicationBinding.getServiceBindingId(),
+                        firstCheckDelays.getOrDefault(applicationBinding.getServiceBindingId(), Duration.ZERO));
             }
         });
         spaceEnrollerConfigRepository.findAll().forEach(this::registerSpaceEnroller);
+        clusterMembership.addListener(this::rebalance);
+    }
+
+    private SpaceSweeper buildSpaceSweeper(String spaceEnrollerConfigId, Duration interval) {
+        return SpaceSweeper.builder()
+                .activityStream(activityStream)
+                .applicationLocker(applicationLocker)
+                .applicationRepository(applicationRepository)
+                .clock(clock)
+                .cloudFoundryApi(cloudFoundryApi)
+                .conflictRetrier(conflictRetrier)
+                .executor(executors.getCloudFoundryExecutor())
+                .period(interval)
+                .persistenceScheduler(executors.getPersistenceExecutor().getScheduler())
+                .proxyMap(proxyMapEntryRepository)
+                .spaceEnrollerConfigId(spaceEnrollerConfigId)
+                .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
+                .window(sweeperWindow)
+                .build();
+    }
+
+    private boolean isOwner(Binding applicationBinding) {
+        return clusterMembership.isOwner(sweeperMode ? applicationBinding.getServiceInstanceId()
+                : applicationBinding.getResourceId());
+    }
+
+    private boolean isSwept(Binding applicationBinding) {
+        SpaceSweeper sweeper = sweepers.get(applicationBinding.getServiceInstanceId());
+        return sweeper != null && !sweeper.isStopped() && sweeper.isWatching(applicationBinding.getResourceId());
+    }
+
+    /**
+     * Restore the checks of enrolled applications at their persisted next check time, overdue ones being spread by
+     * the startup ramp.
+     * @param planner plan of the startup ramp, either for a restart or a takeover
+     * @return delay before the first check, by binding id
+     */
+    private Map<String, Duration> planFirstChecks(List<Binding> applicationBindings,
+                                                  Function<Map<String, Instant>, Map<String, Duration>> planner) {
+        if (applicationBindings.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Instant> nextCheckByApplication = new HashMap<>();
+        applicationRepository.findAll(applicationBindings.stream()
+                .map(Binding::getResourceId)
+                .collect(Collectors.toList()))
+                .forEach(applicationInfo -> nextCheckByApplication.put(applicationInfo.getUuid(),
+                        applicationInfo.getDiagnosticInfo().getNextCheck()));
+        Map<String, Instant> nextChecks = new HashMap<>();
+        applicationBindings.forEach(applicationBinding -> nextChecks.put(applicationBinding.getServiceBindingId(),
+                nextCheckByApplication.get(applicationBinding.getResourceId())));
+        return planner.apply(nextChecks);
+    }
+
+    /**
+     * Start the workers this instance now owns, and stop the ones now owned by another instance of autosleep.
+     */
+    void rebalance() {
+        Set<String> taskIds = clock.listTaskIds();
+        int started = 0;
+        int stopped = 0;
+        List<Binding> takenOver = new ArrayList<>();
+        for (Binding applicationBinding : bindingRepository.findAllByResourceType(Application)) {
+            String applicationId = applicationBinding.getResourceId();
+            String bindingId = applicationBinding.getServiceBindingId();
+            if (!isOwner(applicationBinding)) {
+                if (!sweeperMode && taskIds.contains(bindingId)) {
+                    clock.removeTask(bindingId);
+                    activityStream.unwatch(applicationId);
+                    stopped++;
+                }
+                continue;
+            }
+            boolean running = sweeperMode ? isSwept(applicationBinding) : taskIds.contains(bindingId);
+            if (!running) {
+                takenOver.add(applicationBinding);
+            }
+        }
+        //taken over applications keep their next check time, as on startup
+        Map<String, Duration> firstCheckDelays = sweeperMode ? Collections.emptyMap()
+                : planFirstChecks(takenOver, startupRamp::planTakeover);
+        for (Binding applicationBinding : takenOver) {
+            SpaceEnrollerConfig spaceEnrollerConfig =
+                    spaceEnrollerConfigRepository.findOne(applicationBinding.getServiceInstanceId());
+            if (spaceEnrollerConfig != null) {
+                registerApplicationStopper(spaceEnrollerConfig,
+                        applicationBinding.getResourceId(),
+                        applicationBinding.getServiceBindingId(),
+                        firstCheckDelays.getOrDefault(applicationBinding.getServiceBindingId(), Duration.ZERO));
+                started++;
+            }
+        }
+        for (SpaceEnrollerConfig spaceEnrollerConfig : spaceEnrollerConfigRepository.findAll()) {
+            String spaceEnrollerConfigId = spaceEnrollerConfig.getId();
+            boolean running = taskIds.contains(spaceEnrollerConfigId);
+            if (clusterMembership.isOwner(spaceEnrollerConfigId) && !running) {
+                registerSpaceEnroller(spaceEnrollerConfig);
+                started++;
+            } else if (!clusterMembership.isOwner(spaceEnrollerConfigId) && running) {
+                clock.removeTask(spaceEnrollerConfigId);
+                stopped++;
+            }
+        }
+        for (String spaceEnrollerConfigId : sweepers.keySet()) {
+            if (!clusterMembership.isOwner(spaceEnrollerConfigId)) {
+                SpaceSweeper sweeper = sweepers.remove(spaceEnrollerConfigId);
+                if (sweeper != null) {
+                    sweeper.stop();
+                    stopped++;
+                }
+            }
+        }
+        if (started > 0 || stopped > 0) {
+            log.info("rebalance - {} workers started, {} workers stopped", started, stopped);
+        }
     }
 
     @Override
     public void registerApplicationStopper(SpaceEnrollerConfig config, String applicationId, String appBindingId) {
+        registerApplicationStopper(config, applicationId, appBindingId, Duration.ZERO);
+    }
+
+    void registerApplicationStopper(SpaceEnrollerConfig config, String applicationId, String appBindingId,
+                                    Duration firstCheckDelay) {
+        if (!clusterMembership.isOwner(sweeperMode ? config.getId() : applicationId)) {
+            log.debug("App {} handled by another instance of autosleep", applicationId);
+            return;
+        }
         Duration interval = spaceEnrollerConfigRepository.findOne(config.getId()).getIdleDuration();
+        if (sweeperMode) {
+            log.debug("Adding app {} to the sweeper of {}", applicationId, config.getId());
+            sweepers.compute(config.getId(), (spaceEnrollerConfigId, sweeper) ->
+                    sweeper == null || sweeper.isStopped() ? buildSpaceSweeper(spaceEnrollerConfigId, interval)
+                            : sweeper)
+                    .watch(applicationId);
+            return;
+        }
         log.debug("Initializing a watch on app {}, for an idleDuration of {} ", applicationId,
                 interval.toString());
+        activityStream.watch(applicationId);
         ApplicationStopper checker = ApplicationStopper.builder()
+                .activityStream(activityStream)
                 .applicationLocker(applicationLocker)
                 .applicationRepository(applicationRepository)
                 .appUid(applicationId)
                 .bindingId(appBindingId)
                 .clock(clock)
                 .cloudFoundryApi(cloudFoundryApi)
+                .conflictRetrier(conflictRetrier)
+                .executor(executors.getCloudFoundryExecutor())
                 .ignoreRouteBindingError(config.isIgnoreRouteServiceError())
                 .period(interval)
                 .spaceEnrollerConfigId(config.getId())
                 .proxyMap(proxyMapEntryRepository)
+                .persistenceScheduler(executors.getPersistenceExecutor().getScheduler())
+                .stopBatcher(stopBatcher)
                 .build();
-        checker.startNow();
+        checker.start(firstCheckDelay);
     }
 
     @Override
     public void registerSpaceEnroller(SpaceEnrollerConfig service) {
+        if (!clusterMembership.isOwner(service.getId())) {
+            log.debug("Service instance {} handled by another instance of autosleep", service.getId());
+            return;
+        }
         SpaceEnroller spaceEnroller = SpaceEnroller.builder()
+                .bindRetryBackoff(Config.BIND_RETRY_BACKOFF)
+                .bindRetryMaxAttempts(Config.BIND_RETRY_MAX_ATTEMPTS)
                 .clock(clock)
+                .executor(executors.getEnrollmentExecutor())
                 .period(service.getIdleDuration())
                 .spaceEnrollerConfigId(service.getId())
                 .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
@@ -23,9 +23,12 @@ import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.config.Config;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 @Slf4j
 @AllArgsConstructor(access = AccessLevel.PROTECTED)
@@ -33,24 +36,51 @@ public abstract class AbstractPeriodicTask implements Runnable {
 
     private final Clock clock;
 
+    /**
+     * Runs the task once due, so that the timer thread only dispatches it. The timer thread runs it when null.
+     */
+    private final Executor executor;
+
     @Getter(value = AccessLevel.PROTECTED)
     private final Duration period;
 
+    private void dispatch() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            log.warn("task {} rejected, will try again in {}", getTaskId(), Config.DELAY_BEFORE_REJECTED_TASK_RETRY);
+            clock.scheduleTask(getTaskId(), Config.DELAY_BEFORE_REJECTED_TASK_RETRY, getDueAction());
+        }
+    }
+
+    private Runnable getDueAction() {
+        return executor == null ? this : this::dispatch;
+    }
+
     protected abstract String getTaskId();
 
     public Instant reschedule(Duration delta) {
         log.debug("Rescheduling in {}", delta.toString());
-        clock.scheduleTask(getTaskId(), delta, this);
+        clock.scheduleTask(getTaskId(), delta, getDueAction());
         return Instant.now().plus(delta);
     }
 
+    /**
+     * Same as {@link #reschedule(Duration)}, unless the task was stopped meanwhile, possibly by another component.
+     * @return false if the task was stopped, and is not run again
+     */
+    public boolean rescheduleIfScheduled(Duration delta) {
+        log.debug("Rescheduling in {} if still scheduled", delta.toString());
+        return clock.rescheduleTask(getTaskId(), delta, getDueAction());
+    }
+
     public Instant rescheduleWithDefaultPeriod() {
         return reschedule(period);
     }
 
     public void start(Duration delay) {
         log.debug("start - {}", delay);
-        clock.scheduleTask(getTaskId(), delay == null ? Duration.ofSeconds(0) : delay, this);
+        clock.scheduleTask(getTaskId(), delay == null ? Duration.ofSeconds(0) : delay, getDueAction());
     }
 
     public void startNow() {
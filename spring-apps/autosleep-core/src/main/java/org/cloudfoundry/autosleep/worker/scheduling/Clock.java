@@ -25,20 +25,61 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledFuture;
 
 @Service
 @Slf4j
 public class Clock {
 
+    /**
+     * Pending run of a task.
+     */
+    private static class ScheduledTask {
+
+        private final ScheduledFuture<?> handle;
+
+        private final Instant nextFireTime;
+
+        ScheduledTask(ScheduledFuture<?> handle, Instant nextFireTime) {
+            this.handle = handle;
+            this.nextFireTime = nextFireTime;
+        }
+
+        void cancel() {
+            //the task may be the one rescheduling itself: it must not be interrupted
+            if (handle != null && !handle.isDone()) {
+                handle.cancel(false);
+            }
+        }
+
+    }
+
+    private final ConcurrentMap<String/*taskId*/, ScheduledTask> tasks = new ConcurrentHashMap<>();
+
     @Autowired
     private TimeManager timeManager;
 
-    private final Map<String/*taskId*/, ScheduledFuture<?>> tasks = new HashMap<>();
+    /**
+     * Next time a task will be run.
+     * @param id task id
+     * @return the time of the next run, or empty if the task is not scheduled
+     */
+    public Optional<Instant> getNextFireTime(String id) {
+        return Optional.ofNullable(tasks.get(id)).map(task -> task.nextFireTime);
+    }
+
+    /**
+     * Number of scheduled tasks.
+     */
+    public int getTaskCount() {
+        return tasks.size();
+    }
 
     /**
      * Access to the task ids.
@@ -49,24 +90,46 @@ public class Clock {
     }
 
     /**
-     * Remove a task by its id.
+     * Remove a task by its id, cancelling its pending run.
      * @param id task id, will be used to cancel it
      */
     public void removeTask(String id) {
         log.debug("removeTask - task {}", id);
-        tasks.remove(id);
+        ScheduledTask removed = tasks.remove(id);
+        if (removed != null) {
+            removed.cancel();
+        }
+    }
+
+    /**
+     * Schedule the next run of a task, unless it was removed meanwhile.
+     * @param id       task id
+     * @param duration the time to wait before execution
+     * @param action   Runnable to call
+     * @return false if the task was removed, and is not scheduled again
+     */
+    public boolean rescheduleTask(String id, Duration duration, Runnable action) {
+        log.debug("rescheduleTask - task {}", id);
+        return tasks.computeIfPresent(id, (taskId, superseded) -> {
+            superseded.cancel();
+            return new ScheduledTask(timeManager.schedule(action, duration), Instant.now().plus(duration));
+        }) != null;
     }
 
     /**
-     * Schedule a Runnable to be run after a certain delay.
+     * Schedule a Runnable to be run after a certain delay. A pending run of a task with the same id is cancelled.
      * @param id       task id, will be used to remove it
      * @param duration the time to wait before execution
      * @param action   Runnable to call
      */
     public void scheduleTask(String id, Duration duration, Runnable action) {
         log.debug("scheduleTask - task {}", id);
-        ScheduledFuture<?> handle = timeManager.schedule(action, duration);
-        tasks.put(id, handle);
+        ScheduledTask scheduled = new ScheduledTask(timeManager.schedule(action, duration),
+                Instant.now().plus(duration));
+        ScheduledTask superseded = tasks.put(id, scheduled);
+        if (superseded != null) {
+            superseded.cancel();
+        }
     }
 
 }
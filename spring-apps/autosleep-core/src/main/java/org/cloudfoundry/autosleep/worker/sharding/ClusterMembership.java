@@ -0,0 +1,242 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.worker.sharding;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.dao.model.InstanceMember;
+import org.cloudfoundry.autosleep.access.dao.repositories.InstanceMemberRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.EnvKey;
+import org.cloudfoundry.autosleep.util.TimeManager;
+import org.cloudfoundry.autosleep.worker.WorkerExecutors;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Shares the workers between the running instances of autosleep. Each instance renews its lease in database by a
+ * periodic heartbeat, and the instances whose lease is still valid are placed on a consistent hash ring: an
+ * application or a service instance is handled by the owner of its id only. When an instance joins or leaves, the
+ * listeners are told to rebalance their workers.
+ * Leases are compared with the clock of each instance: they must be longer than the heartbeat period plus the clock
+ * skew between instances. When sharding is disabled, the instance owns every id.
+ */
+@Component
+@Slf4j
+public class ClusterMembership implements PublicMetrics {
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private WorkerExecutors executors;
+
+    private final AtomicLong heartbeatFailures = new AtomicLong();
+
+    private Duration heartbeatPeriod;
+
+    private volatile ScheduledFuture<?> heartbeatHandle;
+
+    @Getter
+    private boolean enabled;
+
+    @Getter
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Autowired
+    private InstanceMemberRepository instanceMemberRepository;
+
+    private volatile long lastNotificationNanos;
+
+    private Duration leaseDuration;
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong rebalances = new AtomicLong();
+
+    private Duration reconcilePeriod;
+
+    /**
+     * Until its first heartbeat, the instance owns every id rather than none.
+     */
+    private volatile HashRing ring = new HashRing(Collections.singleton(instanceId), 1);
+
+    private volatile boolean stopped;
+
+    @Autowired
+    private TimeManager timeManager;
+
+    private int virtualNodes;
+
+    /**
+     * Register an action run when the owners change, and at least once per reconcile period so that workers created
+     * by other instances are picked up by their owner.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    private void dispatchHeartbeat() {
+        try {
+            executors.getHeartbeatExecutor().execute(() -> {
+                heartbeat();
+                scheduleHeartbeat();
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("heartbeat rejected, will try again in {}", heartbeatPeriod);
+            heartbeatFailures.incrementAndGet();
+            scheduleHeartbeat();
+        }
+    }
+
+    /**
+     * Ids of the instances sharing the workers, as seen by the last heartbeat.
+     */
+    public Set<String> getMembers() {
+        return ring.getMembers();
+    }
+
+    /**
+     * Renew the lease of the instance, forget the expired ones, and rebuild the ring if its members changed.
+     */
+    void heartbeat() {
+        if (stopped) {
+            return;
+        }
+        boolean changed;
+        try {
+            long now = System.currentTimeMillis();
+            instanceMemberRepository.save(new InstanceMember(instanceId, now + leaseDuration.toMillis()));
+            int expired = instanceMemberRepository.deleteExpired(now);
+            if (expired > 0) {
+                log.info("{} autosleep instances left", expired);
+            }
+            Set<String> members = instanceMemberRepository.findByLeaseExpiryGreaterThanEqual(now).stream()
+                    .map(InstanceMember::getId)
+                    .collect(Collectors.toSet());
+            members.add(instanceId);
+            changed = !members.equals(ring.getMembers());
+            if (changed) {
+                log.info("{} autosleep instances sharing the workers, rebalancing", members.size());
+                ring = new HashRing(members, virtualNodes);
+                rebalances.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            //the previous owners are kept: the lease of this instance may expire, its ids being handled twice
+            log.error("heartbeat of instance {} failed", instanceId, e);
+            heartbeatFailures.incrementAndGet();
+            return;
+        }
+        if (changed || System.nanoTime() - lastNotificationNanos >= reconcilePeriod.toNanos()) {
+            lastNotificationNanos = System.nanoTime();
+            listeners.forEach(listener -> {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    log.error("rebalance failed", e);
+                }
+            });
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        enabled = environment.getProperty(EnvKey.SHARDING_ENABLED, Boolean.class, Config.DEFAULT_SHARDING_ENABLED);
+        if (!enabled) {
+            return;
+        }
+        heartbeatPeriod = Duration.ofSeconds(environment.getProperty(EnvKey.SHARDING_HEARTBEAT_SECONDS, Long.class,
+                Config.DEFAULT_SHARDING_HEARTBEAT_SECONDS));
+        leaseDuration = Duration.ofSeconds(environment.getProperty(EnvKey.SHARDING_LEASE_SECONDS, Long.class,
+                Config.DEFAULT_SHARDING_LEASE_SECONDS));
+        reconcilePeriod = Duration.ofSeconds(environment.getProperty(EnvKey.SHARDING_RECONCILE_SECONDS, Long.class,
+                Config.DEFAULT_SHARDING_RECONCILE_SECONDS));
+        virtualNodes = environment.getProperty(EnvKey.SHARDING_VIRTUAL_NODES, Integer.class,
+                Config.DEFAULT_SHARDING_VIRTUAL_NODES);
+        log.info("instance {} shares the workers, heartbeat every {} for a lease of {}", instanceId, heartbeatPeriod,
+                leaseDuration);
+        //workers are restored on startup with the owners known to the first heartbeat
+        lastNotificationNanos = System.nanoTime();
+        heartbeat();
+        scheduleHeartbeat();
+    }
+
+    /**
+     * @param id id of an application or a service instance
+     * @return true if the workers of the id must be run by this instance
+     */
+    public boolean isOwner(String id) {
+        return !enabled || instanceId.equals(ring.getOwner(id));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("autosleep.sharding.members", enabled ? ring.getMembers().size() : 1));
+        metrics.add(new Metric<>("autosleep.sharding.rebalances", rebalances.get()));
+        metrics.add(new Metric<>("autosleep.sharding.heartbeat.failures", heartbeatFailures.get()));
+        return metrics;
+    }
+
+    private void scheduleHeartbeat() {
+        if (!stopped) {
+            heartbeatHandle = timeManager.schedule(this::dispatchHeartbeat, heartbeatPeriod);
+        }
+    }
+
+    /**
+     * Leave the ring, so that the other instances take the workers over without waiting for the lease to expire.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        stopped = true;
+        ScheduledFuture<?> handle = heartbeatHandle;
+        if (handle != null) {
+            handle.cancel(false);
+        }
+        try {
+            instanceMemberRepository.delete(instanceId);
+        } catch (RuntimeException e) {
+            log.warn("instance {} could not leave, its lease will expire in {}", instanceId, leaseDuration, e);
+        }
+    }
+
+}
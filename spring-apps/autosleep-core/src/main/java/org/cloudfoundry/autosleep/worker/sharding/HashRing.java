@@ -0,0 +1,89 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.worker.sharding;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring: each member is placed on the ring at several points (virtual nodes), and a key is owned by
+ * the member of the first point following its hash. When a member joins or leaves, only the keys of its points change
+ * owner.
+ */
+class HashRing {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is supported by every java platform", e);
+        }
+    });
+
+    private final Set<String> members;
+
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+
+    HashRing(Collection<String> members, int virtualNodes) {
+        this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+        //members are placed in a fixed order, so that every instance resolves a collision the same way
+        this.members.forEach(member -> {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.putIfAbsent(hash(member + "#" + i), member);
+            }
+        });
+    }
+
+    Set<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @param key id of the resource
+     * @return the member owning the key, or null if the ring is empty
+     */
+    String getOwner(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point == null ? points.firstEntry().getValue() : point.getValue();
+    }
+
+    static long hash(String value) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        byte[] bytes = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = hash << Byte.SIZE | bytes[i] & 0xFF;
+        }
+        return hash;
+    }
+
+}
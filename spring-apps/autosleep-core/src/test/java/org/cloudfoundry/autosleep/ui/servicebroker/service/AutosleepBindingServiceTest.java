@@ -34,28 +34,35 @@ import org.cloudfoundry.autosleep.config.Config.ServiceInstanceParameters.Enroll
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
 import org.cloudfoundry.autosleep.worker.WorkerManagerService;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceBindingRequest;
 import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceBindingRequest;
 import org.springframework.cloud.servicebroker.model.ServiceBindingResource;
+import org.springframework.dao.DataIntegrityViolationException;
 
 import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import static java.util.Collections.singletonList;
 import static org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType.Application;
 import static org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType.Route;
 import static org.cloudfoundry.autosleep.util.TestUtils.verifyThrown;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
@@ -87,6 +94,9 @@ public class AutosleepBindingServiceTest {
     @Mock
     private ApplicationLocker applicationLocker;
 
+    @Spy
+    private ConflictRetrier conflictRetrier = new ConflictRetrier();
+
     @Mock
     private BindingRepository bindingRepository;
 
@@ -299,6 +309,60 @@ public class AutosleepBindingServiceTest {
                 anyString());
     }
 
+    @Test
+    public void same_app_binding_sent_twice_should_update_the_stored_binding() {
+        //given that the application is unknown
+        when(appRepo.findOne(APP_UID)).thenReturn(null);
+        //and that the binding is stored by the first request
+        Map<String, Binding> storedBindings = new HashMap<>();
+        when(bindingRepository.findOne("Bid")).thenAnswer(invocationOnMock -> storedBindings.get("Bid"));
+        when(bindingRepository.save(any(Binding.class))).thenAnswer(invocationOnMock -> {
+            Binding binding = (Binding) invocationOnMock.getArguments()[0];
+            storedBindings.put(binding.getServiceBindingId(), binding);
+            return binding;
+        });
+        bindingService.createServiceInstanceBinding(createAppBindingTemplate.withServiceInstanceId("Sid")
+                .withBindingId("Bid"));
+        Binding firstBinding = storedBindings.get("Bid");
+
+        //when the same binding is received again
+        bindingService.createServiceInstanceBinding(createAppBindingTemplate.withServiceInstanceId("Sid")
+                .withBindingId("Bid"));
+
+        //then the stored binding is updated rather than inserted again
+        ArgumentCaptor<Binding> saved = ArgumentCaptor.forClass(Binding.class);
+        verify(bindingRepository, times(2)).save(saved.capture());
+        assertSame(firstBinding, saved.getAllValues().get(1));
+        assertEquals(APP_UID, firstBinding.getResourceId());
+        assertEquals("Sid", firstBinding.getServiceInstanceId());
+    }
+
+    @Test
+    public void app_binding_inserted_concurrently_should_be_updated() {
+        //given that the application is unknown
+        when(appRepo.findOne(APP_UID)).thenReturn(null);
+        //and that the same binding is inserted concurrently
+        Binding concurrentBinding = Binding.builder()
+                .serviceBindingId("Bid")
+                .build();
+        when(bindingRepository.findOne("Bid")).thenReturn(null).thenReturn(concurrentBinding);
+        when(bindingRepository.save(any(Binding.class)))
+                .thenThrow(new DataIntegrityViolationException("duplicate key"))
+                .thenReturn(concurrentBinding);
+
+        //when receive the binding
+        bindingService.createServiceInstanceBinding(createAppBindingTemplate.withServiceInstanceId("Sid")
+                .withBindingId("Bid"));
+
+        //then the binding inserted concurrently is updated
+        ArgumentCaptor<Binding> saved = ArgumentCaptor.forClass(Binding.class);
+        verify(bindingRepository, times(2)).save(saved.capture());
+        assertSame(concurrentBinding, saved.getAllValues().get(1));
+        assertEquals(APP_UID, concurrentBinding.getResourceId());
+        verify(workerManager, times(1)).registerApplicationStopper(any(SpaceEnrollerConfig.class), anyString(),
+                anyString());
+    }
+
     @Test
     public void new_binding_raise_exception_if_unknow_routing_type() {
 
@@ -32,6 +32,7 @@ import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterR
 import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterReaderFactory;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
 import org.cloudfoundry.autosleep.worker.WorkerManagerService;
 import org.junit.Before;
 import org.junit.Test;
@@ -99,6 +100,9 @@ public class AutosleepServiceInstanceServiceTest {
     @Mock
     private ApplicationLocker applicationLocker;
 
+    @Spy
+    private ConflictRetrier conflictRetrier = new ConflictRetrier();
+
     @Mock
     private ApplicationRepository applicationRepository;
 
@@ -27,10 +27,17 @@ import org.junit.Test;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -104,6 +111,80 @@ public class ApplicationLockerTest {
         //Then no exception is thrown
     }
 
+    @Test
+    public void test_many_threads_on_many_applications_are_serialized() throws Exception {
+        //Given many threads running an unsafe increment on each of many applications
+        int threadCount = 16;
+        int applicationCount = 200_000;
+        int[] counters = new int[applicationCount];
+        ApplicationLocker locker = new ApplicationLocker(64);
+        ExecutorService threads = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> runs = new ArrayList<>();
+        try {
+            for (int t = 0; t < threadCount; t++) {
+                int offset = t * applicationCount / threadCount;
+                runs.add(threads.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < applicationCount; i++) {
+                        int application = (i + offset) % applicationCount;
+                        locker.executeThreadSafe("application-" + application, () -> counters[application]++);
+                    }
+                    return null;
+                }));
+            }
+            //When they all run together
+            start.countDown();
+            for (Future<?> run : runs) {
+                run.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        //Then no increment is lost
+        for (int i = 0; i < applicationCount; i++) {
+            assertEquals("application-" + i, threadCount, counters[i]);
+        }
+        //And the locker did not grow with the applications
+        assertEquals(64, locker.getStripeCount());
+    }
 
+    @Test
+    public void test_waiting_for_a_lock_is_measured() throws Exception {
+        ApplicationLocker locker = new ApplicationLocker(16);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        //Given a thread holding the lock of an application
+        Thread holder = new Thread(() -> locker.executeThreadSafe("someId", () -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        holder.start();
+        locked.await();
+        //When another thread waits for it
+        Thread waiter = new Thread(() -> locker.executeThreadSafe("someId", () -> log.debug("passed")));
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        release.countDown();
+        holder.join();
+        waiter.join();
+        //Then the contention of its stripe is recorded
+        int contendedStripes = 0;
+        for (int i = 0; i < locker.getStripeCount(); i++) {
+            if (locker.getContentionCount(i) > 0) {
+                contendedStripes++;
+                assertEquals(1, locker.getContentionCount(i));
+                assertTrue(locker.getWaitNanos(i) >= TimeUnit.MILLISECONDS.toNanos(50));
+            }
+        }
+        assertEquals(1, contendedStripes);
+    }
 
-}
\ No newline at end of file
+}
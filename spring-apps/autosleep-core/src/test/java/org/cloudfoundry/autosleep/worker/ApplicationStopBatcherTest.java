@@ -0,0 +1,145 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApplicationStopBatcherTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    @Mock
+    private ReactiveCloudFoundryApiService cloudFoundryApi;
+
+    private ApplicationStopBatcher buildBatcher(int maxBatchSize, Duration window) {
+        return ApplicationStopBatcher.builder()
+                .cloudFoundryApi(cloudFoundryApi)
+                .maxBatchSize(maxBatchSize)
+                .window(window)
+                .build();
+    }
+
+    /**
+     * Error of a stop, if any.
+     */
+    private static Mono<Optional<Throwable>> getOutcome(Mono<Void> stop) {
+        return stop.then(Mono.just(Optional.<Throwable>empty()))
+                .onErrorResume(throwable -> Mono.just(Optional.of(throwable)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockStops(String... failingAppUids) {
+        when(cloudFoundryApi.stopApplications(anyCollectionOf(String.class))).thenAnswer(invocation -> {
+            Map<String, ApplicationStopResult> results = new HashMap<>();
+            ((Collection<String>) invocation.getArguments()[0]).forEach(appUid -> results.put(appUid,
+                    ApplicationStopResult.builder()
+                            .appUid(appUid)
+                            .error(Arrays.asList(failingAppUids).contains(appUid)
+                                    ? new CloudFoundryException(new RuntimeException("stop refused")) : null)
+                            .build()));
+            return Mono.just(results);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_stops_of_the_same_window_are_sent_at_once() {
+        //given a batcher gathering stops during a long window
+        mockStops();
+        ApplicationStopBatcher batcher = buildBatcher(3, Duration.ofSeconds(30));
+
+        //when three applications are stopped at the same time
+        Mono.when(batcher.stop("app-1"), batcher.stop("app-2"), batcher.stop("app-3")).block(TIMEOUT);
+
+        //then a single bulk stop is sent, as soon as the batch is full
+        ArgumentCaptor<Collection> appUids = ArgumentCaptor.forClass(Collection.class);
+        verify(cloudFoundryApi, times(1)).stopApplications(appUids.capture());
+        assertEquals(new HashSet<>(Arrays.asList("app-1", "app-2", "app-3")), new HashSet<>(appUids.getValue()));
+    }
+
+    @Test
+    public void test_stop_is_sent_once_window_is_over() {
+        //given a batcher gathering stops during a short window
+        mockStops();
+        ApplicationStopBatcher batcher = buildBatcher(100, Duration.ofMillis(50));
+
+        //when a single application is stopped
+        batcher.stop("app-1").block(TIMEOUT);
+
+        //then it is not kept waiting for others
+        verify(cloudFoundryApi, times(1)).stopApplications(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void test_failed_stop_is_signaled_to_its_application_only() {
+        //given cloudfoundry refuses to stop one of the applications
+        mockStops("app-2");
+        ApplicationStopBatcher batcher = buildBatcher(2, Duration.ofSeconds(30));
+
+        //when both are stopped together
+        Tuple2<Optional<Throwable>, Optional<Throwable>> outcomes = Mono.zip(getOutcome(batcher.stop("app-1")),
+                getOutcome(batcher.stop("app-2")))
+                .block(TIMEOUT);
+
+        //then only the refused one fails
+        assertFalse(outcomes.getT1().isPresent());
+        assertTrue(outcomes.getT2().get() instanceof CloudFoundryException);
+    }
+
+    @Test
+    public void test_failed_bulk_stop_is_signaled_to_every_application() {
+        //given the bulk stop fails as a whole
+        when(cloudFoundryApi.stopApplications(anyCollectionOf(String.class)))
+                .thenReturn(Mono.error(new CloudFoundryException(new RuntimeException("rejected"))));
+        ApplicationStopBatcher batcher = buildBatcher(100, Duration.ofMillis(50));
+
+        //then the stop fails
+        Optional<Throwable> outcome = getOutcome(batcher.stop("app-1")).block(TIMEOUT);
+        assertTrue(outcome.get() instanceof CloudFoundryException);
+    }
+
+}
@@ -20,35 +20,52 @@
 package org.cloudfoundry.autosleep.worker;
 
 import lombok.extern.slf4j.Slf4j;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ActivityStreamIngester;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
 import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.OptimisticLockingFailureException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyObject;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -69,6 +86,9 @@ public class ApplicationStopperTest {
 
     private static final Duration INTERVAL = Duration.ofMillis(300);
 
+    @Mock
+    private ActivityStreamIngester activityStream;
+
     @Mock
     private ApplicationIdentity application;
 
@@ -80,6 +100,9 @@ public class ApplicationStopperTest {
     @Mock
     private ApplicationLocker applicationLocker;
 
+    @Spy
+    private ConflictRetrier conflictRetrier = new ConflictRetrier();
+
     @Mock
     private ApplicationRepository applicationRepository;
 
@@ -89,7 +112,7 @@ public class ApplicationStopperTest {
     private Clock clock;
 
     @Mock
-    private CloudFoundryApiService cloudFoundryApi;
+    private ReactiveCloudFoundryApiService cloudFoundryApi;
 
     @Mock
     private ProxyMapEntryRepository proxyMapEntryRepository;
@@ -109,7 +132,12 @@ public class ApplicationStopperTest {
                 CloudFoundryAppState.STARTED));
         applicationInfo.getEnrollmentState().addEnrollmentState(INSTANCE_ID);
 
-        when(cloudFoundryApi.getApplicationActivity(APP_UID)).thenReturn(applicationActivity);
+        when(cloudFoundryApi.getApplicationActivity(eq(APP_UID), any(ApplicationActivityQuery.class)))
+                .thenReturn(Mono.just(applicationActivity));
+        when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(Flux.empty());
+        when(cloudFoundryApi.getHost(anyString())).thenAnswer(invocationOnMock ->
+                Mono.just(invocationOnMock.getArguments()[0] + ".domain"));
+        when(cloudFoundryApi.stopApplication(APP_UID)).thenReturn(Mono.just(true));
 
         when(applicationRepository.findOne(APP_UID)).thenReturn(
                 applicationInfo
@@ -128,9 +156,12 @@ public class ApplicationStopperTest {
                 .bindingId(BINDING_ID)
                 .clock(clock)
                 .cloudFoundryApi(cloudFoundryApi)
+                .conflictRetrier(conflictRetrier)
                 .ignoreRouteBindingError(Boolean.TRUE)
                 .period(INTERVAL)
                 .spaceEnrollerConfigId(INSTANCE_ID)
+                .persistenceScheduler(Schedulers.immediate())
+                .activityStream(activityStream)
                 .build());
     }
 
@@ -145,7 +176,7 @@ public class ApplicationStopperTest {
         //and it never stopped the application
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
         //and it schedules task on default period
-        verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(INTERVAL);
         // and application is saved at the end
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
@@ -162,17 +193,18 @@ public class ApplicationStopperTest {
         //and it never called stop application
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
         //and it rescheduled with default period
-        verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(INTERVAL);
         //and application is saved
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
 
     @Test
     public void test_application_is_not_stopped_when_active() throws Exception {
-        //given the application is started and active
+        //given the application is started and active a little while ago
+        Instant lastActivity = Instant.now().minus(INTERVAL.dividedBy(3));
         when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STARTED);
-        when(applicationActivity.getLastEvent()).thenReturn(BeanGenerator.createCloudEvent());
-        when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog());
+        when(applicationActivity.getLastEvent()).thenReturn(BeanGenerator.createCloudEvent(lastActivity));
+        when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog(lastActivity));
         //when task is run
         applicationStopper.run();
 
@@ -180,14 +212,73 @@ public class ApplicationStopperTest {
         verify(applicationStopper, times(1)).handleApplicationEnrolled(applicationInfo);
         //and it never stopped the application
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
-        //and it schedules task on default period
-        verify(clock, times(1)).scheduleTask(any(), anyObject(), any());
-        verify(applicationStopper, never()).rescheduleWithDefaultPeriod();
+        //and it schedules task when the application may become idle, before the default period
+        verify(clock, times(1)).rescheduleTask(any(), anyObject(), any());
+        ArgumentCaptor<Duration> delay = ArgumentCaptor.forClass(Duration.class);
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(delay.capture());
+        assertTrue(delay.getValue().compareTo(INTERVAL) < 0);
+        assertFalse(delay.getValue().isNegative());
         // and application is saved at the end
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
 
     }
 
+    @Test
+    public void test_application_activity_is_queried_from_last_known_log() throws Exception {
+        //given the application is started and active
+        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STARTED);
+        when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog());
+        //and log stream does not cover the idle period
+        when(activityStream.isCovering(eq(APP_UID), any(Instant.class))).thenReturn(false);
+        //and previous check saw some event and log
+        ApplicationInfo.DiagnosticInfo.ApplicationEvent knownEvent = applicationInfo.getDiagnosticInfo().getLastEvent();
+        ApplicationInfo.DiagnosticInfo.ApplicationLog knownLog = applicationInfo.getDiagnosticInfo().getLastLog();
+        Instant beforeRun = Instant.now();
+        //when task is run
+        applicationStopper.run();
+        //then events are requested from the one known by previous check
+        ArgumentCaptor<ApplicationActivityQuery> query = ArgumentCaptor.forClass(ApplicationActivityQuery.class);
+        verify(cloudFoundryApi, times(1)).getApplicationActivity(eq(APP_UID), query.capture());
+        assertSame(knownEvent, query.getValue().getLastKnownEvent());
+        //and recent logs are read from the log known by previous check
+        assertFalse(query.getValue().isSkipRecentLogs());
+        assertSame(knownLog, query.getValue().getLastKnownLog());
+        //and stop on the first log more recent than the idle period
+        assertFalse(query.getValue().getActiveSince().isBefore(beforeRun.minus(INTERVAL)));
+        assertFalse(query.getValue().getActiveSince().isAfter(Instant.now().minus(INTERVAL)));
+    }
+
+    @Test
+    public void test_application_is_not_stopped_when_active_according_to_log_stream() throws Exception {
+        //given the application is started, with no recent event
+        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STARTED);
+        when(applicationActivity.getLastEvent()).thenReturn(BeanGenerator.createCloudEvent(Instant.now().minus(
+                INTERVAL.multipliedBy(2))));
+        //and log stream covers the whole idle period, with a recent log
+        when(activityStream.isCovering(eq(APP_UID), any(Instant.class))).thenReturn(true);
+        ApplicationInfo.DiagnosticInfo.ApplicationLog streamedLog = BeanGenerator.createAppLog(Instant.now()
+                .minus(INTERVAL.dividedBy(3)));
+        when(activityStream.getLastLog(APP_UID)).thenReturn(streamedLog);
+        when(applicationActivity.getLastLog()).thenReturn(streamedLog);
+        //when task is run
+        applicationStopper.run();
+        //then it never downloads recent logs
+        ArgumentCaptor<ApplicationActivityQuery> query = ArgumentCaptor.forClass(ApplicationActivityQuery.class);
+        verify(cloudFoundryApi, times(1)).getApplicationActivity(eq(APP_UID), query.capture());
+        assertTrue(query.getValue().isSkipRecentLogs());
+        //and gives the streamed log as last log
+        assertEquals(streamedLog, query.getValue().getLastKnownLog());
+        //and it never stopped the application
+        verify(cloudFoundryApi, never()).stopApplication(APP_UID);
+        //and it schedules task according to streamed log, before the default period
+        ArgumentCaptor<Duration> delay = ArgumentCaptor.forClass(Duration.class);
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(delay.capture());
+        assertTrue(delay.getValue().compareTo(INTERVAL) < 0);
+        assertFalse(delay.getValue().isNegative());
+        // and application is saved at the end
+        verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
+    }
+
     @Test
     public void test_application_is_stopped_when_bind_route_fails_and_ignore_route_error() throws Exception {
         //given the application is started but not active and does skip route error
@@ -197,9 +288,9 @@ public class ApplicationStopperTest {
                 INTERVAL.multipliedBy(2))));
         when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog(Instant.now()
                 .minus(INTERVAL.multipliedBy(2))));
-        when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(applicationsRoutes);
-        doThrow(new CloudFoundryException(new Exception("test")))
-                .when(cloudFoundryApi).bindRoutes(INSTANCE_ID, applicationsRoutes);
+        when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(Flux.fromIterable(applicationsRoutes));
+        when(cloudFoundryApi.bindRoutes(INSTANCE_ID, applicationsRoutes))
+                .thenReturn(Mono.error(new CloudFoundryException(new Exception("test"))));
 
         //when task is run
         applicationStopper.run();
@@ -209,11 +300,45 @@ public class ApplicationStopperTest {
         verify(cloudFoundryApi, times(1)).stopApplication(APP_UID);
         verify(applicationInfo, times(1)).markAsPutToSleep();
         //and it schedules task on default period
-        verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(INTERVAL);
         // and application is saved at the end
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
 
+    @Test
+    public void test_application_is_stopped_with_others_when_batched() throws Exception {
+        //given the application is started but not active, and stops are batched
+        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STARTED);
+        when(applicationActivity.getLastEvent()).thenReturn(BeanGenerator.createCloudEvent(Instant.now().minus(
+                INTERVAL.multipliedBy(2))));
+        when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog(Instant.now()
+                .minus(INTERVAL.multipliedBy(2))));
+        ApplicationStopBatcher stopBatcher = mock(ApplicationStopBatcher.class);
+        when(stopBatcher.stop(APP_UID)).thenReturn(Mono.empty());
+        applicationStopper = spy(ApplicationStopper.builder()
+                .proxyMap(proxyMapEntryRepository)
+                .applicationLocker(applicationLocker)
+                .applicationRepository(applicationRepository)
+                .appUid(APP_UID)
+                .bindingId(BINDING_ID)
+                .clock(clock)
+                .cloudFoundryApi(cloudFoundryApi)
+                .conflictRetrier(conflictRetrier)
+                .period(INTERVAL)
+                .spaceEnrollerConfigId(INSTANCE_ID)
+                .persistenceScheduler(Schedulers.immediate())
+                .stopBatcher(stopBatcher)
+                .build());
+
+        //when task is run
+        applicationStopper.run();
+
+        //then the stop is handed to the batcher, without reading the state again
+        verify(stopBatcher, times(1)).stop(APP_UID);
+        verify(cloudFoundryApi, never()).stopApplication(APP_UID);
+        verify(applicationInfo, times(1)).markAsPutToSleep();
+    }
+
     @Test
     public void test_application_is_stopped_when_inactive() throws Exception {
         //given the application is started but not active and supports route and has some routes
@@ -223,7 +348,7 @@ public class ApplicationStopperTest {
                 INTERVAL.multipliedBy(2))));
         when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog(Instant.now()
                 .minus(INTERVAL.multipliedBy(2))));
-        when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(applicationsRoutes);
+        when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(Flux.fromIterable(applicationsRoutes));
         //when task is run
         applicationStopper.run();
         //then it see the application as monitored
@@ -240,11 +365,28 @@ public class ApplicationStopperTest {
         verify(cloudFoundryApi, times(1)).stopApplication(APP_UID);
         verify(applicationInfo, times(1)).markAsPutToSleep();
         //and it schedules task on default period
-        verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(INTERVAL);
         // and application is saved at the end
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
 
+    @Test
+    public void test_conflicting_check_result_is_applied_again_on_fresh_data() throws Exception {
+        //given the application is stopped
+        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STOPPED);
+        //and another instance of autosleep updates it while it is checked
+        when(applicationRepository.save(any(ApplicationInfo.class)))
+                .thenThrow(new OptimisticLockingFailureException("concurrent update"))
+                .thenReturn(applicationInfo);
+        //when task is run
+        applicationStopper.run();
+        //then the result is applied to the application read again
+        verify(applicationRepository, times(3)).findOne(APP_UID);
+        verify(applicationRepository, times(2)).save(any(ApplicationInfo.class));
+        //and the lock is released while backing off, then taken again
+        verify(applicationLocker, times(3)).executeThreadSafe(eq(APP_UID), any(Runnable.class));
+    }
+
     @Test
     public void test_task_is_removed_when_application_not_watched_by_service() throws Exception {
         //given application is marked as ignored
@@ -258,7 +400,7 @@ public class ApplicationStopperTest {
         //and clears information
         verify(applicationInfo, times(1)).clearCheckInformation();
         //and it never reschedules task
-        verify(applicationStopper, never()).rescheduleWithDefaultPeriod();
+        verify(applicationStopper, never()).rescheduleIfScheduled(INTERVAL);
         //and it removes task from known tasks
         verify(clock, times(1)).removeTask(BINDING_ID);
         //and it saves application current information
@@ -280,22 +422,44 @@ public class ApplicationStopperTest {
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
         //and removes the task from known tasks
         verify(clock, times(1)).removeTask(BINDING_ID);
+        //and stops streaming its logs
+        verify(activityStream, times(1)).unwatch(APP_UID);
 
     }
 
+    @Test
+    public void test_task_is_removed_when_application_unbound_during_check() throws Exception {
+        //given the application is stopped
+        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STOPPED);
+        //and application is unbound while its activity is requested
+        when(applicationRepository.findOne(APP_UID))
+                .thenReturn(applicationInfo)
+                .thenReturn(null);
+        //when task is run
+        applicationStopper.run();
+        //then it handles application as not found
+        verify(applicationStopper, times(1)).handleApplicationNotFound();
+        //and it never reschedules task
+        verify(clock, never()).scheduleTask(anyObject(), anyObject(), anyObject());
+        //and it does not save the application back
+        verify(applicationRepository, never()).save(any(ApplicationInfo.class));
+        //and removes the task from known tasks
+        verify(clock, times(1)).removeTask(BINDING_ID);
+    }
+
     @Test
     public void test_task_is_reschedule_even_when_not_found_remotely() throws Exception {
         //given cloudfoundry application is not found
-        when(cloudFoundryApi.getApplicationActivity(APP_UID))
-                .thenThrow(
+        when(cloudFoundryApi.getApplicationActivity(eq(APP_UID), any(ApplicationActivityQuery.class)))
+                .thenReturn(Mono.error(
                         new CloudFoundryException(
-                                new org.cloudfoundry.client.v2.ClientV2Exception(null, 666 , "", "")));
+                                new org.cloudfoundry.client.v2.ClientV2Exception(null, 666 , "", ""))));
         //when task is run
         applicationStopper.run();
         //then it never stopped application
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
         //and task is rescheduled
-        verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(INTERVAL);
         //and application is saved
         verify(applicationStopper, times(1)).handleApplicationEnrolled(applicationInfo);
     }
@@ -303,14 +467,14 @@ public class ApplicationStopperTest {
     @Test
     public void test_task_is_reschedule_even_when_remote_error() throws Exception {
         //given cloudfoundry call fails for some reason
-        when(cloudFoundryApi.getApplicationActivity(APP_UID))
-                .thenThrow(new CloudFoundryException(new Exception("Mock call")));
+        when(cloudFoundryApi.getApplicationActivity(eq(APP_UID), any(ApplicationActivityQuery.class)))
+                .thenReturn(Mono.error(new CloudFoundryException(new Exception("Mock call"))));
         //when task is run
         applicationStopper.run();
         //then it never stopped application
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
         //and task is rescheduled
-        verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
+        verify(applicationStopper, times(1)).rescheduleIfScheduled(INTERVAL);
         //and application is saved
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
@@ -330,4 +494,36 @@ public class ApplicationStopperTest {
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test_task_rejected_by_its_executor_is_retried_later() throws Exception {
+        //given an executor that cannot take more tasks
+        Executor executor = mock(Executor.class);
+        doThrow(new RejectedExecutionException("saturated")).when(executor).execute(any(Runnable.class));
+        applicationStopper = ApplicationStopper.builder()
+                .applicationLocker(applicationLocker)
+                .applicationRepository(applicationRepository)
+                .appUid(APP_UID)
+                .bindingId(BINDING_ID)
+                .clock(clock)
+                .cloudFoundryApi(cloudFoundryApi)
+                .conflictRetrier(conflictRetrier)
+                .executor(executor)
+                .period(INTERVAL)
+                .spaceEnrollerConfigId(INSTANCE_ID)
+                .persistenceScheduler(Schedulers.immediate())
+                .build();
+        doAnswer(invocationOnMock -> {
+            ((Runnable) invocationOnMock.getArguments()[2]).run();
+            return null;
+        }).when(clock).scheduleTask(eq(BINDING_ID), eq(Duration.ofSeconds(0)), any(Runnable.class));
+        //when the task is due
+        applicationStopper.startNow();
+        //then it is handed to the executor instead of being run by the timer
+        verify(executor, times(1)).execute(applicationStopper);
+        verify(applicationRepository, never()).findOne(APP_UID);
+        //and it is scheduled again once rejected
+        verify(clock, times(1)).scheduleTask(eq(BINDING_ID), eq(Config.DELAY_BEFORE_REJECTED_TASK_RETRY),
+                any(Runnable.class));
+    }
+
+}
@@ -29,14 +29,25 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -45,7 +56,7 @@ import static org.mockito.Mockito.verify;
 public class ClockTest {
 
     private static final Duration PERIOD = Duration.ofMillis(200);
-    
+
     private static final String TEST_ID = "93847";
 
     @InjectMocks
@@ -89,4 +100,99 @@ public class ClockTest {
         //It does not run immediately
         verify(timeManager, times(1)).schedule(eq(runnable), eq(PERIOD));
     }
+
+    @Test
+    public void test_concurrent_schedules_keep_a_single_handle_per_task() throws Exception {
+        //Given tasks rescheduled concurrently from several threads
+        doReturn(mock(ScheduledFuture.class)).when(timeManager).schedule(any(Runnable.class), any(Duration.class));
+        int threads = 4;
+        int taskCount = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int thread = 0; thread < threads; thread++) {
+            executor.execute(() -> {
+                for (int i = 0; i < taskCount * 10; i++) {
+                    clock.scheduleTask("task-" + i % taskCount, PERIOD, runnable);
+                }
+                done.countDown();
+            });
+        }
+        //When they are all scheduled
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        //Then each task is registered once
+        assertThat(clock.getTaskCount(), is(equalTo(taskCount)));
+        assertThat(clock.listTaskIds().size(), is(equalTo(taskCount)));
+    }
+
+    @Test
+    public void test_next_fire_time() throws Exception {
+        //Given nothing is scheduled
+        assertFalse(clock.getNextFireTime(TEST_ID).isPresent());
+        //When we schedule a task
+        Instant before = Instant.now();
+        clock.scheduleTask(TEST_ID, PERIOD, runnable);
+        //Then its next run is known
+        Instant nextFireTime = clock.getNextFireTime(TEST_ID).get();
+        assertFalse(nextFireTime.isBefore(before.plus(PERIOD)));
+        assertFalse(nextFireTime.isAfter(Instant.now().plus(PERIOD)));
+        assertThat(clock.getTaskCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void test_remove_task_cancels_pending_run() throws Exception {
+        //Given scheduler contains a task
+        ScheduledFuture<?> handle = mock(ScheduledFuture.class);
+        doReturn(handle).when(timeManager).schedule(runnable, PERIOD);
+        clock.scheduleTask(TEST_ID, PERIOD, runnable);
+        //When we remove the task
+        clock.removeTask(TEST_ID);
+        //Then its pending run is cancelled
+        verify(handle, times(1)).cancel(false);
+        assertFalse(clock.getNextFireTime(TEST_ID).isPresent());
+    }
+
+    @Test
+    public void test_reschedule_cancels_superseded_run() throws Exception {
+        //Given scheduler contains a task
+        ScheduledFuture<?> first = mock(ScheduledFuture.class);
+        ScheduledFuture<?> second = mock(ScheduledFuture.class);
+        doReturn(first).doReturn(second).when(timeManager).schedule(runnable, PERIOD);
+        clock.scheduleTask(TEST_ID, PERIOD, runnable);
+        //When it is scheduled again
+        clock.scheduleTask(TEST_ID, PERIOD, runnable);
+        //Then only the last run remains
+        verify(first, times(1)).cancel(false);
+        verify(second, never()).cancel(false);
+        assertThat(clock.getTaskCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void test_reschedule_task_keeps_removed_task_removed() throws Exception {
+        //Given a task removed while it was running
+        clock.scheduleTask(TEST_ID, PERIOD, runnable);
+        clock.removeTask(TEST_ID);
+        //When it reschedules itself
+        boolean rescheduled = clock.rescheduleTask(TEST_ID, PERIOD, runnable);
+        //Then it is not run again
+        assertFalse(rescheduled);
+        assertFalse(clock.getNextFireTime(TEST_ID).isPresent());
+        verify(timeManager, times(1)).schedule(eq(runnable), eq(PERIOD));
+    }
+
+    @Test
+    public void test_reschedule_task_schedules_next_run() throws Exception {
+        //Given a running task
+        ScheduledFuture<?> first = mock(ScheduledFuture.class);
+        doReturn(first).when(timeManager).schedule(runnable, PERIOD);
+        clock.scheduleTask(TEST_ID, PERIOD, runnable);
+        //When it reschedules itself
+        boolean rescheduled = clock.rescheduleTask(TEST_ID, PERIOD, runnable);
+        //Then it runs again
+        assertTrue(rescheduled);
+        verify(timeManager, times(2)).schedule(eq(runnable), eq(PERIOD));
+        verify(first, times(1)).cancel(false);
+        assertThat(clock.getTaskCount(), is(equalTo(1)));
+    }
+
 }
@@ -0,0 +1,93 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
+import org.junit.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ConflictRetrierTest {
+
+    private ConflictRetrier conflictRetrier = new ConflictRetrier();
+
+    @Test
+    public void test_conflicting_update_is_run_again() {
+        //Given an update conflicting twice with concurrent ones
+        AtomicInteger attempts = new AtomicInteger();
+        //When it is run
+        String result = conflictRetrier.execute(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new OptimisticLockingFailureException("concurrent update");
+            } else if (attempts.get() == 2) {
+                throw new DataIntegrityViolationException("concurrent insert");
+            }
+            return "saved";
+        });
+        //Then it succeeds on its third attempt
+        assertEquals("saved", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, conflictRetrier.getConflictCount());
+        assertEquals(0, conflictRetrier.getExhaustedCount());
+    }
+
+    @Test
+    public void test_update_conflicting_too_often_fails() {
+        //Given an update that always conflicts
+        AtomicInteger attempts = new AtomicInteger();
+        //When it is run
+        try {
+            conflictRetrier.execute(() -> {
+                attempts.incrementAndGet();
+                throw new OptimisticLockingFailureException("concurrent update");
+            });
+            fail("conflict should have been thrown");
+        } catch (OptimisticLockingFailureException e) {
+            //Then the conflict is thrown once the attempts are exhausted
+            assertEquals(Config.CONFLICT_RETRY_MAX_ATTEMPTS, attempts.get());
+            assertEquals(1, conflictRetrier.getExhaustedCount());
+        }
+    }
+
+    @Test
+    public void test_other_errors_are_not_retried() {
+        //Given an update failing for another reason
+        AtomicInteger attempts = new AtomicInteger();
+        //When it is run
+        try {
+            conflictRetrier.execute(() -> {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("not a conflict");
+            });
+            fail("error should have been thrown");
+        } catch (IllegalStateException e) {
+            //Then it is run once
+            assertEquals(1, attempts.get());
+            assertEquals(0, conflictRetrier.getConflictCount());
+        }
+    }
+
+}
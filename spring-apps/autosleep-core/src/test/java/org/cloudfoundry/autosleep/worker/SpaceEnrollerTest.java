@@ -19,8 +19,9 @@
 
 package org.cloudfoundry.autosleep.worker;
 
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationBindingResult;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
@@ -34,12 +35,15 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -48,9 +52,9 @@ import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -75,7 +79,7 @@ public class SpaceEnrollerTest {
     private Clock clock;
 
     @Mock
-    private CloudFoundryApiService cloudFoundryApi;
+    private ReactiveCloudFoundryApiService cloudFoundryApi;
 
     @Mock
     private DeployedApplicationConfig.Deployment deployment;
@@ -110,6 +114,8 @@ public class SpaceEnrollerTest {
         when(spaceEnrollerConfig.getId()).thenReturn(SERVICE_ID);
 
         when(deployment.getApplicationId()).thenReturn(APP_ID);
+        when(cloudFoundryApi.bindApplications(anyString(), anyListOf(ApplicationIdentity.class)))
+                .thenReturn(Mono.empty());
 
         spaceEnroller = spy(SpaceEnroller.builder()
                 .clock(clock)
@@ -137,12 +143,12 @@ public class SpaceEnrollerTest {
                 .collect(Collectors.toList()));
         //And cloudfoundry applications contain the same applications
         when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null)))
-                .thenReturn(remoteApplicationIds.stream()
+                .thenReturn(Flux.fromIterable(remoteApplicationIds.stream()
                         .map(applicationId -> ApplicationIdentity.builder()
                                 .guid(applicationId)
                                 .name(applicationId)
                                 .build())
-                        .collect(Collectors.toList()));
+                        .collect(Collectors.toList())));
         //When we run the task
         spaceEnroller.run();
         //Then it reschedule itself
@@ -169,12 +175,12 @@ public class SpaceEnrollerTest {
                 .collect(Collectors.toList()));
         //And cloudfoundry applications contain the all applications
         when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null)))
-                .thenReturn(remoteApplicationIds.stream()
+                .thenReturn(Flux.fromIterable(remoteApplicationIds.stream()
                         .map(applicationId -> ApplicationIdentity.builder()
                                 .guid(applicationId)
                                 .name(applicationId)
                                 .build())
-                        .collect(Collectors.toList()));
+                        .collect(Collectors.toList())));
         //When we run the task
         spaceEnroller.run();
         //Then it reschedule itself
@@ -210,12 +216,12 @@ public class SpaceEnrollerTest {
                 .collect(Collectors.toList()));
         //And cloudfoundry applications contain the all applications
         when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class)))
-                .thenReturn(remoteApplicationIds.stream()
+                .thenReturn(Flux.fromIterable(remoteApplicationIds.stream()
                         .map(applicationId -> ApplicationIdentity.builder()
                                 .guid(applicationId)
                                 .name(applicationId)
                                 .build())
-                        .collect(Collectors.toList()));
+                        .collect(Collectors.toList())));
         //When we run the task
         spaceEnroller.run();
         //Then it reschedule itself
@@ -235,23 +241,84 @@ public class SpaceEnrollerTest {
         when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
         //And list of application returns some applications
         when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class)))
-                .thenReturn(remoteApplicationIds.stream()
+                .thenReturn(Flux.fromIterable(remoteApplicationIds.stream()
                         .map(applicationId -> ApplicationIdentity.builder()
                                 .guid(applicationId)
                                 .name(applicationId)
                                 .build())
-                        .collect(Collectors.toList()));
+                        .collect(Collectors.toList())));
         //And binding will throw an error
-        doThrow(new CloudFoundryException(
-                new org.cloudfoundry.client.v2.ClientV2Exception(null, 666, "", "")))
-                .when(cloudFoundryApi)
-                .bindApplications(eq(SERVICE_ID), anyListOf(ApplicationIdentity.class));
+        when(cloudFoundryApi.bindApplications(eq(SERVICE_ID), anyListOf(ApplicationIdentity.class)))
+                .thenReturn(Mono.error(new CloudFoundryException(
+                        new org.cloudfoundry.client.v2.ClientV2Exception(null, 666, "", ""))));
         //When task is run
         spaceEnroller.run();
         //Then it rescheduled itself with default period
         verify(spaceEnroller, times(1)).rescheduleWithDefaultPeriod();
     }
 
+    @Test
+    public void test_enroller_binds_again_only_applications_whose_binding_failed() throws CloudFoundryException {
+        //Given the service exist
+        when(spaceEnrollerConfigRepository.findOne(eq(SERVICE_ID))).thenReturn(spaceEnrollerConfig);
+        //And local repository is empty
+        when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
+        //And list of application returns some applications
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class)))
+                .thenReturn(Flux.fromIterable(remoteApplicationIds.stream()
+                        .map(applicationId -> ApplicationIdentity.builder()
+                                .guid(applicationId)
+                                .name(applicationId)
+                                .build())
+                        .collect(Collectors.toList())));
+        //And binding of the first application fails once
+        String failingApplicationId = remoteApplicationIds.get(0);
+        AtomicInteger attempts = new AtomicInteger();
+        when(cloudFoundryApi.bindApplications(eq(SERVICE_ID), anyListOf(ApplicationIdentity.class)))
+                .then(invocation -> {
+                    @SuppressWarnings("unchecked")
+                    List<ApplicationIdentity> applications = (List<ApplicationIdentity>) invocation.getArguments()[1];
+                    boolean firstAttempt = attempts.getAndIncrement() == 0;
+                    return Mono.just(applications.stream().collect(Collectors.toMap(ApplicationIdentity::getGuid,
+                            application -> ApplicationBindingResult.builder()
+                                    .application(application)
+                                    .error(firstAttempt && application.getGuid().equals(failingApplicationId)
+                                            ? new CloudFoundryException(new RuntimeException("binding refused"))
+                                            : null)
+                                    .build())));
+                });
+        spaceEnroller = spy(SpaceEnroller.builder()
+                .bindRetryBackoff(Duration.ofMillis(10))
+                .bindRetryMaxAttempts(3)
+                .clock(clock)
+                .period(INTERVAL)
+                .spaceEnrollerConfigId(SERVICE_ID)
+                .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
+                .cloudFoundryApi(cloudFoundryApi)
+                .applicationRepository(applicationRepository)
+                .deployment(deployment)
+                .build());
+
+        //When task is run
+        spaceEnroller.run();
+
+        //Then the failed application is bound again alone, right away
+        verify(spaceEnroller, timeout(1000).times(1)).rescheduleWithDefaultPeriod();
+        verify(cloudFoundryApi, times(2)).bindApplications(eq(SERVICE_ID), anyListOf(ApplicationIdentity.class));
+        verify(cloudFoundryApi, times(1))
+                .bindApplications(eq(SERVICE_ID), argThat(anyListOfSize(remoteApplicationIds.size() - 1)));
+        verify(cloudFoundryApi, times(1)).bindApplications(eq(SERVICE_ID),
+                argThat(new ArgumentMatcher<List<ApplicationIdentity>>() {
+
+                    @Override
+                    public boolean matches(Object object) {
+                        List<?> applications = (List<?>) object;
+                        return applications.size() == 1 && failingApplicationId.equals(
+                                ((ApplicationIdentity) applications.get(0)).getGuid());
+                    }
+                }));
+    }
+
     @Test
     public void test_enroller_reschedule_itself_when_remote_error_occurs_on_remote_application_list()
             throws CloudFoundryException {
@@ -261,7 +328,7 @@ public class SpaceEnrollerTest {
         when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
         //And list of application will fail
         when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class)))
-                .thenThrow(new CloudFoundryException(null));
+                .thenReturn(Flux.error(new CloudFoundryException(null)));
         //When task is run
         spaceEnroller.run();
         //Then it rescheduled itself with default period
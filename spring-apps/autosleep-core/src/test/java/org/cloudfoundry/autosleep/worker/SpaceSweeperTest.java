@@ -0,0 +1,310 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.ActivityStreamIngester;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivityQuery;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationStopResult;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.util.ConflictRetrier;
+import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.OptimisticLockingFailureException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpaceSweeperTest {
+
+    private static final String ACTIVE_APP_UID = "active-app";
+
+    private static final String IDLE_APP_UID = "idle-app";
+
+    private static final String INSTANCE_ID = "instance-id";
+
+    private static final Duration INTERVAL = Duration.ofHours(1);
+
+    private static final String LATER_APP_UID = "later-app";
+
+    private static final Duration WINDOW = Duration.ofSeconds(10);
+
+    private final Map<String, ApplicationInfo> applicationInfos = new HashMap<>();
+
+    @Mock
+    private ActivityStreamIngester activityStream;
+
+    @Mock
+    private ApplicationLocker applicationLocker;
+
+    @Spy
+    private ConflictRetrier conflictRetrier = new ConflictRetrier();
+
+    @Mock
+    private ApplicationRepository applicationRepository;
+
+    @Mock
+    private Clock clock;
+
+    @Mock
+    private ReactiveCloudFoundryApiService cloudFoundryApi;
+
+    @Mock
+    private ProxyMapEntryRepository proxyMapEntryRepository;
+
+    @Mock
+    private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
+
+    private SpaceSweeper spaceSweeper;
+
+    private static ApplicationActivity activity(String appUid, Instant lastActivity) {
+        return ApplicationActivity.builder()
+                .application(BeanGenerator.createAppIdentity(appUid))
+                .lastEvent(BeanGenerator.createCloudEvent(lastActivity))
+                .lastLog(BeanGenerator.createAppLog(lastActivity))
+                .state(CloudFoundryAppState.STARTED)
+                .build();
+    }
+
+    private void addApplication(String appUid, Instant nextCheck) {
+        ApplicationInfo applicationInfo = BeanGenerator.createAppInfoLinkedToService(appUid, INSTANCE_ID);
+        applicationInfo.markAsChecked(nextCheck);
+        applicationInfos.put(appUid, applicationInfo);
+        spaceSweeper.watch(appUid);
+    }
+
+    @Before
+    public void buildMocks() {
+        when(spaceEnrollerConfigRepository.findOne(INSTANCE_ID)).thenReturn(
+                BeanGenerator.createServiceInstance(INSTANCE_ID));
+        when(applicationRepository.findAll(anyListOf(String.class))).thenAnswer(invocationOnMock -> {
+            List<ApplicationInfo> result = new ArrayList<>();
+            ((Iterable<?>) invocationOnMock.getArguments()[0]).forEach(id -> {
+                if (applicationInfos.containsKey(id)) {
+                    result.add(applicationInfos.get(id));
+                }
+            });
+            return result;
+        });
+        doAnswer(invocationOnMock -> {
+            ((Runnable) invocationOnMock.getArguments()[1]).run();
+            return null;
+        }).when(applicationLocker).executeThreadSafe(anyString(), any(Runnable.class));
+        when(cloudFoundryApi.listApplicationRoutes(anyString())).thenReturn(Flux.empty());
+        when(cloudFoundryApi.stopApplications(anyCollectionOf(String.class))).thenAnswer(invocationOnMock -> {
+            Map<String, ApplicationStopResult> results = new HashMap<>();
+            ((Collection<?>) invocationOnMock.getArguments()[0]).forEach(id -> results.put((String) id,
+                    ApplicationStopResult.builder().appUid((String) id).build()));
+            return Mono.just(results);
+        });
+        spaceSweeper = SpaceSweeper.builder()
+                .activityStream(activityStream)
+                .applicationLocker(applicationLocker)
+                .applicationRepository(applicationRepository)
+                .clock(clock)
+                .cloudFoundryApi(cloudFoundryApi)
+                .conflictRetrier(conflictRetrier)
+                .period(INTERVAL)
+                .persistenceScheduler(Schedulers.immediate())
+                .proxyMap(proxyMapEntryRepository)
+                .spaceEnrollerConfigId(INSTANCE_ID)
+                .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
+                .window(WINDOW)
+                .build();
+    }
+
+    @Test
+    public void test_due_applications_are_checked_together() {
+        //Given an idle application and an active one, both due, and one due in two hours
+        Instant now = Instant.now();
+        addApplication(IDLE_APP_UID, now.minusSeconds(1));
+        addApplication(ACTIVE_APP_UID, now.plusSeconds(5));
+        addApplication(LATER_APP_UID, now.plus(Duration.ofHours(2)));
+        Map<String, ApplicationActivity> activities = new HashMap<>();
+        activities.put(IDLE_APP_UID, activity(IDLE_APP_UID, now.minus(INTERVAL.multipliedBy(2))));
+        activities.put(ACTIVE_APP_UID, activity(ACTIVE_APP_UID, now.minus(Duration.ofMinutes(20))));
+        when(cloudFoundryApi.getApplicationActivities(anyMapOf(String.class, ApplicationActivityQuery.class)))
+                .thenReturn(Mono.just(activities));
+        //When the sweeper runs
+        spaceSweeper.run();
+        //Then the activities of the due applications are read with a single call
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, ApplicationActivityQuery>> requested = ArgumentCaptor.forClass((Class) Map.class);
+        verify(cloudFoundryApi, times(1)).getApplicationActivities(requested.capture());
+        assertEquals(new HashSet<>(Arrays.asList(IDLE_APP_UID, ACTIVE_APP_UID)), requested.getValue().keySet());
+        //And only the idle one is stopped
+        verify(cloudFoundryApi, times(1)).stopApplications(Collections.singletonList(IDLE_APP_UID));
+        assertEquals(CloudFoundryAppState.STOPPED,
+                applicationInfos.get(IDLE_APP_UID).getDiagnosticInfo().getAppState());
+        assertEquals(CloudFoundryAppState.STARTED,
+                applicationInfos.get(ACTIVE_APP_UID).getDiagnosticInfo().getAppState());
+        //And results are saved together
+        verify(applicationRepository, times(1)).save(anyListOf(ApplicationInfo.class));
+        //And the sweeper wakes up when the active application may become idle
+        ArgumentCaptor<Duration> delay = ArgumentCaptor.forClass(Duration.class);
+        verify(clock, times(4)).scheduleTask(eq(INSTANCE_ID + SpaceSweeper.TASK_ID_SUFFIX), delay.capture(),
+                any(Runnable.class));
+        Duration nextSweep = delay.getValue();
+        assertTrue(nextSweep.compareTo(Duration.ofMinutes(39)) > 0);
+        assertTrue(nextSweep.compareTo(Duration.ofMinutes(40)) <= 0);
+    }
+
+    @Test
+    public void test_no_due_application_waits_for_the_first_one() {
+        //Given an application due in two hours
+        addApplication(LATER_APP_UID, Instant.now().plus(Duration.ofHours(2)));
+        //When the sweeper runs
+        spaceSweeper.run();
+        //Then cloudfoundry is not called
+        verify(cloudFoundryApi, never())
+                .getApplicationActivities(anyMapOf(String.class, ApplicationActivityQuery.class));
+        //And the sweeper wakes up when the application is due
+        ArgumentCaptor<Duration> delay = ArgumentCaptor.forClass(Duration.class);
+        verify(clock, times(2)).scheduleTask(eq(INSTANCE_ID + SpaceSweeper.TASK_ID_SUFFIX), delay.capture(),
+                any(Runnable.class));
+        assertTrue(delay.getValue().compareTo(Duration.ofHours(2).minusMinutes(1)) > 0);
+    }
+
+    @Test
+    public void test_sweeper_is_cancelled_when_service_is_removed() {
+        //Given the service instance was removed
+        addApplication(LATER_APP_UID, null);
+        when(spaceEnrollerConfigRepository.findOne(INSTANCE_ID)).thenReturn(null);
+        //When the sweeper runs
+        spaceSweeper.run();
+        //Then it is cancelled
+        verify(clock, times(1)).removeTask(INSTANCE_ID + SpaceSweeper.TASK_ID_SUFFIX);
+        assertTrue(spaceSweeper.isStopped());
+        verify(cloudFoundryApi, never())
+                .getApplicationActivities(anyMapOf(String.class, ApplicationActivityQuery.class));
+    }
+
+    @Test
+    public void test_unbound_and_blacklisted_applications_are_dropped() {
+        //Given an application no longer known, and a blacklisted one
+        addApplication(IDLE_APP_UID, null);
+        addApplication(ACTIVE_APP_UID, null);
+        applicationInfos.remove(IDLE_APP_UID);
+        applicationInfos.get(ACTIVE_APP_UID).getEnrollmentState().updateEnrollment(INSTANCE_ID, true);
+        //When the sweeper runs
+        spaceSweeper.run();
+        //Then none of them is checked
+        verify(cloudFoundryApi, never())
+                .getApplicationActivities(anyMapOf(String.class, ApplicationActivityQuery.class));
+        //And the blacklisted one is no longer scheduled
+        assertNull(applicationInfos.get(ACTIVE_APP_UID).getDiagnosticInfo().getNextCheck());
+        //And neither is read by next sweeps
+        spaceSweeper.run();
+        verify(applicationRepository, times(2)).findAll(anyListOf(String.class));
+        verify(activityStream, times(1)).unwatch(IDLE_APP_UID);
+        verify(activityStream, times(1)).unwatch(ACTIVE_APP_UID);
+        assertFalse(spaceSweeper.isStopped());
+    }
+
+    @Test
+    public void test_blacklisted_applications_are_saved_again_on_conflict() {
+        //Given a blacklisted application, whose first save conflicts with another instance
+        addApplication(ACTIVE_APP_UID, null);
+        applicationInfos.get(ACTIVE_APP_UID).getEnrollmentState().updateEnrollment(INSTANCE_ID, true);
+        doThrow(new OptimisticLockingFailureException("conflict"))
+                .doReturn(Collections.emptyList())
+                .when(applicationRepository).save(anyListOf(ApplicationInfo.class));
+        //When the sweeper runs
+        spaceSweeper.run();
+        //Then the application is read and saved again
+        verify(applicationRepository, times(2)).save(anyListOf(ApplicationInfo.class));
+        assertNull(applicationInfos.get(ACTIVE_APP_UID).getDiagnosticInfo().getNextCheck());
+        assertFalse(spaceSweeper.isStopped());
+    }
+
+    @Test
+    public void test_due_applications_are_read_incrementally() {
+        //Given a due application whose last event and last log are known, and whose logs were streamed
+        Instant now = Instant.now();
+        addApplication(ACTIVE_APP_UID, now.minusSeconds(1));
+        ApplicationInfo.DiagnosticInfo.ApplicationEvent knownEvent =
+                BeanGenerator.createCloudEvent(now.minus(Duration.ofMinutes(40)));
+        applicationInfos.get(ACTIVE_APP_UID).updateDiagnosticInfo(
+                BeanGenerator.createAppLog(now.minus(Duration.ofMinutes(30))), knownEvent, ACTIVE_APP_UID,
+                CloudFoundryAppState.STARTED);
+        ApplicationInfo.DiagnosticInfo.ApplicationLog streamedLog =
+                BeanGenerator.createAppLog(now.minus(Duration.ofMinutes(10)));
+        when(activityStream.isCovering(eq(ACTIVE_APP_UID), any(Instant.class))).thenReturn(true);
+        when(activityStream.getLastLog(ACTIVE_APP_UID)).thenReturn(streamedLog);
+        when(cloudFoundryApi.getApplicationActivities(anyMapOf(String.class, ApplicationActivityQuery.class)))
+                .thenReturn(Mono.just(Collections.singletonMap(ACTIVE_APP_UID,
+                        activity(ACTIVE_APP_UID, now.minus(Duration.ofMinutes(10))))));
+        //When the sweeper runs
+        spaceSweeper.run();
+        //Then only what is newer than the previous check is requested, without downloading recent logs
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, ApplicationActivityQuery>> requested = ArgumentCaptor.forClass((Class) Map.class);
+        verify(cloudFoundryApi, times(1)).getApplicationActivities(requested.capture());
+        ApplicationActivityQuery query = requested.getValue().get(ACTIVE_APP_UID);
+        assertEquals(knownEvent, query.getLastKnownEvent());
+        assertEquals(streamedLog, query.getLastKnownLog());
+        assertTrue(query.isSkipRecentLogs());
+        assertTrue(query.getActiveSince().isBefore(now.minus(INTERVAL).plusSeconds(1)));
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.config.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StartupRampTest {
+
+    private static final Duration WINDOW = Duration.ofSeconds(100);
+
+    @Spy
+    private MockEnvironment environment = new MockEnvironment();
+
+    @InjectMocks
+    private StartupRamp startupRamp;
+
+    @Before
+    public void init() {
+        environment.setProperty(Config.EnvKey.RESTART_RAMP_WINDOW_SECONDS, String.valueOf(WINDOW.getSeconds()));
+        startupRamp.init();
+    }
+
+    @Test
+    public void test_future_checks_keep_their_time() {
+        //Given a check persisted one hour ahead
+        Map<String, Instant> nextChecks = new HashMap<>();
+        nextChecks.put("future", Instant.now().plus(Duration.ofHours(1)));
+        //When the restart is planned
+        Duration delay = startupRamp.plan(nextChecks).get("future");
+        //Then it is run at its time
+        assertTrue(delay.compareTo(Duration.ofMinutes(59)) > 0);
+        assertTrue(delay.compareTo(Duration.ofHours(1)) <= 0);
+        //And it is not part of the ramp
+        assertEquals(0, startupRamp.getTotalCount());
+    }
+
+    @Test
+    public void test_overdue_checks_are_spread_over_the_window() {
+        //Given overdue and unknown checks
+        int count = 10;
+        Map<String, Instant> nextChecks = new HashMap<>();
+        Instant now = Instant.now();
+        for (int i = 0; i < count - 1; i++) {
+            nextChecks.put("overdue-" + i, now.minus(Duration.ofMinutes(i + 1)));
+        }
+        nextChecks.put("unknown", null);
+        //When the restart is planned
+        Map<String, Duration> delays = startupRamp.plan(nextChecks);
+        //Then each one gets its own slot in the window
+        List<Duration> sorted = delays.values().stream().sorted().collect(Collectors.toList());
+        Duration slot = WINDOW.dividedBy(count);
+        for (int i = 0; i < count; i++) {
+            assertTrue(sorted.get(i).compareTo(slot.multipliedBy(i)) >= 0);
+            assertTrue(sorted.get(i).compareTo(slot.multipliedBy(i + 1)) < 0);
+        }
+        //And the most overdue ones come first
+        assertTrue(delays.get("unknown").compareTo(slot) < 0);
+        assertTrue(delays.get("overdue-" + (count - 2)).compareTo(slot.multipliedBy(2)) < 0);
+        assertTrue(delays.get("overdue-0").compareTo(slot.multipliedBy(count - 1)) >= 0);
+        //And the ramp progress is exposed
+        assertEquals(count, startupRamp.getTotalCount());
+        assertTrue(startupRamp.getStartedCount() <= 1);
+    }
+
+    @Test
+    public void test_takeover_does_not_reset_the_ramp() {
+        //Given a restart with overdue checks
+        Map<String, Instant> nextChecks = new HashMap<>();
+        nextChecks.put("overdue-0", Instant.now().minus(Duration.ofMinutes(1)));
+        nextChecks.put("overdue-1", Instant.now().minus(Duration.ofMinutes(2)));
+        startupRamp.plan(nextChecks);
+        //When overdue checks are taken over from another instance
+        Map<String, Instant> takenOver = new HashMap<>();
+        takenOver.put("takenOver", Instant.now().minus(Duration.ofMinutes(1)));
+        Duration delay = startupRamp.planTakeover(takenOver).get("takenOver");
+        //Then they are spread over the window too
+        assertTrue(delay.compareTo(WINDOW) < 0);
+        //And the progress of the startup ramp is kept
+        assertEquals(2, startupRamp.getTotalCount());
+    }
+
+}
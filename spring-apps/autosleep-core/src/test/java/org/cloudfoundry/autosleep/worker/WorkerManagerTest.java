@@ -29,10 +29,14 @@ import org.cloudfoundry.autosleep.access.dao.repositories.BindingRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.util.Bulkhead;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ActivityStreamIngester;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.cloudfoundry.autosleep.worker.sharding.ClusterMembership;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -40,9 +44,13 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Flux;
 
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
 import java.util.regex.Pattern;
@@ -54,6 +62,7 @@ import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -66,6 +75,9 @@ public class WorkerManagerTest {
 
     private static final Duration INTERVAL = Duration.ofMillis(300);
 
+    @Mock
+    private ActivityStreamIngester activityStream;
+
     @Mock
     private ApplicationLocker applicationLocker;
 
@@ -73,11 +85,25 @@ public class WorkerManagerTest {
     private Clock clock;
 
     @Mock
-    private CloudFoundryApiService cloudFoundryApi;
+    private ReactiveCloudFoundryApiService cloudFoundryApi;
+
+    @Mock
+    private ClusterMembership clusterMembership;
 
     @Mock
     private DeployedApplicationConfig.Deployment deployment;
 
+    @Spy
+    private MockEnvironment environment = new MockEnvironment();
+
+    private final Bulkhead executor = Bulkhead.builder().name("test").threads(1).queueSize(10).build();
+
+    @Mock
+    private WorkerExecutors executors;
+
+    @Mock
+    private StartupRamp startupRamp;
+
     @Mock
     private ApplicationRepository mockAppRepo;
 
@@ -85,7 +111,7 @@ public class WorkerManagerTest {
     private BindingRepository mockBindingRepo;
 
     @Mock
-    private CloudFoundryApiService mockRemote;
+    private ReactiveCloudFoundryApiService mockRemote;
 
     @Mock
     private SpaceEnrollerConfigRepository mockServiceRepo;
@@ -102,6 +128,11 @@ public class WorkerManagerTest {
 
     @Before
     public void populateDb() throws CloudFoundryException {
+        when(executors.getCloudFoundryExecutor()).thenReturn(executor);
+        when(executors.getEnrollmentExecutor()).thenReturn(executor);
+        when(executors.getPersistenceExecutor()).thenReturn(executor);
+        when(clusterMembership.isOwner(any())).thenReturn(true);
+
         doAnswer(invocationOnMock -> {
             ((Runnable) invocationOnMock.getArguments()[1]).run();
             return null;
@@ -125,20 +156,26 @@ public class WorkerManagerTest {
         when(mockServiceRepo.findAll()).thenReturn(fakeServices);
 
         when(cloudFoundryApi.listAliveApplications(any(String.class), any(Pattern.class)))
-                .thenReturn(remoteApplications.stream()
+                .thenReturn(Flux.fromIterable(remoteApplications.stream()
                         .map(id -> ApplicationIdentity.builder()
                                 .guid(id.toString())
                                 .name(id.toString())
                                 .build())
-                        .collect(Collectors.toList()));
+                        .collect(Collectors.toList())));
+
+    }
 
+    @After
+    public void shutdownExecutor() {
+        executor.shutdown();
     }
 
     @Test
     public void testInit() {
         spyWatcher.init();
         verify(spyWatcher, times(unattachedBinding.size()))
-                .registerApplicationStopper(any(SpaceEnrollerConfig.class), anyString(), anyString());
+                .registerApplicationStopper(any(SpaceEnrollerConfig.class), anyString(), anyString(),
+                        any(Duration.class));
         verify(spyWatcher, times(serviceIds.size())).registerSpaceEnroller(any(SpaceEnrollerConfig.class));
     }
 
@@ -156,6 +193,67 @@ public class WorkerManagerTest {
         spyWatcher.registerApplicationStopper(config, APPLICATION_ID, "bindingid");
         verify(clock).scheduleTask(anyString(), eq(Duration.ofSeconds(0)),
                 any(ApplicationStopper.class));
+        verify(activityStream).watch(APPLICATION_ID);
+    }
+
+    @Test
+    public void test_sweeper_mode_checks_applications_of_an_instance_together() {
+        //Given the sweeper mode, with nothing enrolled yet
+        environment.setProperty(Config.EnvKey.WORKER_MODE, Config.WorkerMode.SWEEPER);
+        when(mockBindingRepo.findAllByResourceType(Application)).thenReturn(Collections.emptyList());
+        when(mockServiceRepo.findAll()).thenReturn(Collections.emptyList());
+        spyWatcher.init();
+        SpaceEnrollerConfig config = BeanGenerator.createServiceInstance();
+        //When two applications of the same instance are registered
+        spyWatcher.registerApplicationStopper(config, APPLICATION_ID, "bindingid");
+        spyWatcher.registerApplicationStopper(config, "otherApplication", "otherbindingid");
+        //Then no application stopper is scheduled, but the sweeper of the instance
+        verify(clock, never()).scheduleTask(eq("bindingid"), any(Duration.class), any(Runnable.class));
+        verify(clock, times(2)).scheduleTask(eq(config.getId() + SpaceSweeper.TASK_ID_SUFFIX),
+                eq(Duration.ZERO), any(Runnable.class));
+    }
+
+    @Test
+    public void test_restored_tasks_of_stop_start_at_their_planned_time() {
+        //Given the startup ramp delays the first check of a binding
+        Binding binding = BeanGenerator.createBinding("serviceId", "plannedBinding", APPLICATION_ID);
+        when(mockBindingRepo.findAllByResourceType(Application)).thenReturn(Collections.singletonList(binding));
+        when(mockServiceRepo.findAll()).thenReturn(Collections.emptyList());
+        Duration plannedDelay = Duration.ofMinutes(3);
+        when(startupRamp.plan(any())).thenReturn(Collections.singletonMap("plannedBinding", plannedDelay));
+        //When tasks are restored
+        spyWatcher.init();
+        //Then the check is not started at once, but at the planned time
+        verify(clock).scheduleTask(eq("plannedBinding"), eq(plannedDelay), any(ApplicationStopper.class));
+    }
+
+    @Test
+    public void test_rebalance_stops_lost_workers_and_starts_owned_ones() {
+        //Given an owned binding not scheduled yet, and a scheduled one now owned by another instance
+        Binding owned = BeanGenerator.createBinding("serviceId1", "ownedBinding", "ownedApplication");
+        Binding lost = BeanGenerator.createBinding("serviceId1", "lostBinding", "lostApplication");
+        when(mockBindingRepo.findAllByResourceType(Application)).thenReturn(Arrays.asList(owned, lost));
+        when(clusterMembership.isOwner(any())).thenReturn(false);
+        when(clusterMembership.isOwner("ownedApplication")).thenReturn(true);
+        //And an owned service instance not scheduled yet, and a scheduled one now owned by another instance
+        when(clusterMembership.isOwner("serviceId2")).thenReturn(true);
+        when(clock.listTaskIds()).thenReturn(new HashSet<>(Arrays.asList("lostBinding", "serviceId1")));
+        //And the owned binding was due in ten minutes on the instance that handled it
+        Duration plannedDelay = Duration.ofMinutes(10);
+        when(startupRamp.planTakeover(any())).thenReturn(Collections.singletonMap("ownedBinding", plannedDelay));
+        //When workers are rebalanced
+        spyWatcher.rebalance();
+        //Then the lost workers are stopped
+        verify(clock).removeTask("lostBinding");
+        verify(activityStream).unwatch("lostApplication");
+        verify(clock).removeTask("serviceId1");
+        //And the owned ones are started, taken over applications at their persisted next check
+        verify(startupRamp).planTakeover(Collections.singletonMap("ownedBinding", null));
+        verify(startupRamp, never()).plan(any());
+        verify(clock).scheduleTask(eq("ownedBinding"), eq(plannedDelay), any(ApplicationStopper.class));
+        verify(clock).scheduleTask(eq("serviceId2"), any(Duration.class), any(SpaceEnroller.class));
+        verify(clock, never()).scheduleTask(eq("lostBinding"), any(Duration.class), any(Runnable.class));
+        verify(clock, never()).scheduleTask(eq("serviceId1"), any(Duration.class), any(Runnable.class));
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,187 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.worker.sharding;
+
+import org.cloudfoundry.autosleep.access.dao.model.InstanceMember;
+import org.cloudfoundry.autosleep.access.dao.repositories.InstanceMemberRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.util.Bulkhead;
+import org.cloudfoundry.autosleep.util.TimeManager;
+import org.cloudfoundry.autosleep.worker.WorkerExecutors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClusterMembershipTest {
+
+    private static final Duration LEASE = Duration.ofSeconds(30);
+
+    private static final List<String> KEYS = IntStream.range(0, 1000)
+            .mapToObj(i -> "application-" + i)
+            .collect(Collectors.toList());
+
+    @InjectMocks
+    private ClusterMembership clusterMembership;
+
+    @Spy
+    private MockEnvironment environment = new MockEnvironment();
+
+    @Mock
+    private WorkerExecutors executors;
+
+    @Mock
+    private InstanceMemberRepository instanceMemberRepository;
+
+    @Mock
+    private TimeManager timeManager;
+
+    private void givenMembers(String... otherIds) {
+        List<InstanceMember> members = Arrays.stream(otherIds)
+                .map(id -> new InstanceMember(id, System.currentTimeMillis() + LEASE.toMillis()))
+                .collect(Collectors.toList());
+        members.add(new InstanceMember(clusterMembership.getInstanceId(),
+                System.currentTimeMillis() + LEASE.toMillis()));
+        when(instanceMemberRepository.findByLeaseExpiryGreaterThanEqual(anyLong())).thenReturn(members);
+    }
+
+    private void initEnabled() {
+        environment.setProperty(Config.EnvKey.SHARDING_ENABLED, "true");
+        environment.setProperty(Config.EnvKey.SHARDING_LEASE_SECONDS, String.valueOf(LEASE.getSeconds()));
+        clusterMembership.init();
+    }
+
+    private long ownedCount() {
+        return KEYS.stream().filter(clusterMembership::isOwner).count();
+    }
+
+    @Test
+    public void test_disabled_instance_owns_every_id() {
+        //Given sharding is disabled
+        clusterMembership.init();
+        //Then every id is owned, without any heartbeat
+        assertEquals(KEYS.size(), ownedCount());
+        verifyZeroInteractions(instanceMemberRepository, timeManager);
+    }
+
+    @Test
+    public void test_heartbeat_renews_lease_and_shares_ids() {
+        //Given another instance is alive
+        givenMembers("other");
+        //When the instance starts
+        long before = System.currentTimeMillis();
+        initEnabled();
+        //Then it renews its lease
+        ArgumentCaptor<InstanceMember> saved = ArgumentCaptor.forClass(InstanceMember.class);
+        verify(instanceMemberRepository).save(saved.capture());
+        assertEquals(clusterMembership.getInstanceId(), saved.getValue().getId());
+        assertTrue(saved.getValue().getLeaseExpiry() >= before + LEASE.toMillis());
+        //And forgets the expired instances
+        verify(instanceMemberRepository).deleteExpired(anyLong());
+        //And schedules its next heartbeat
+        verify(timeManager).schedule(any(Runnable.class), any(Duration.class));
+        //And owns part of the ids only
+        assertEquals(2, clusterMembership.getMembers().size());
+        long owned = ownedCount();
+        assertTrue("owned " + owned, owned > 0 && owned < KEYS.size());
+    }
+
+    @Test
+    public void test_leaving_member_triggers_a_rebalance() {
+        //Given two instances sharing the ids
+        givenMembers("other");
+        initEnabled();
+        Runnable listener = mock(Runnable.class);
+        clusterMembership.addListener(listener);
+        //When the other instance lease expires
+        givenMembers();
+        clusterMembership.heartbeat();
+        //Then the listener is told to rebalance
+        verify(listener, times(1)).run();
+        //And every id is owned by the remaining instance
+        assertEquals(KEYS.size(), ownedCount());
+    }
+
+    @Test
+    public void test_failed_heartbeat_keeps_owners() {
+        //Given two instances sharing the ids
+        givenMembers("other");
+        initEnabled();
+        long owned = ownedCount();
+        Runnable listener = mock(Runnable.class);
+        clusterMembership.addListener(listener);
+        //When the database cannot be reached
+        when(instanceMemberRepository.save(any(InstanceMember.class))).thenThrow(new IllegalStateException("down"));
+        clusterMembership.heartbeat();
+        //Then owners are kept, and no rebalance is requested
+        assertEquals(owned, ownedCount());
+        verify(listener, never()).run();
+    }
+
+    @Test
+    public void test_heartbeat_does_not_wait_for_check_result_saves() {
+        //Given a started instance
+        givenMembers();
+        initEnabled();
+        Bulkhead heartbeatExecutor = mock(Bulkhead.class);
+        when(executors.getHeartbeatExecutor()).thenReturn(heartbeatExecutor);
+        ArgumentCaptor<Runnable> dueHeartbeat = ArgumentCaptor.forClass(Runnable.class);
+        verify(timeManager).schedule(dueHeartbeat.capture(), any(Duration.class));
+        //When its next heartbeat is due
+        dueHeartbeat.getValue().run();
+        //Then it runs on its own executor, not on the one saving check results
+        verify(heartbeatExecutor, times(1)).execute(any(Runnable.class));
+        verify(executors, never()).getPersistenceExecutor();
+    }
+
+    @Test
+    public void test_shutdown_leaves_the_ring() {
+        //Given a started instance
+        givenMembers();
+        initEnabled();
+        //When it shuts down
+        clusterMembership.shutdown();
+        //Then it leaves without waiting for its lease to expire
+        verify(instanceMemberRepository).delete(clusterMembership.getInstanceId());
+    }
+
+}
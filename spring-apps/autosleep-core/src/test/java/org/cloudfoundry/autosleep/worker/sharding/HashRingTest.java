@@ -0,0 +1,91 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.worker.sharding;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashRingTest {
+
+    private static final List<String> KEYS = IntStream.range(0, 10_000)
+            .mapToObj(i -> "application-" + i)
+            .collect(Collectors.toList());
+
+    private static final int VIRTUAL_NODES = 100;
+
+    private static Map<String, String> owners(HashRing ring) {
+        Map<String, String> owners = new HashMap<>();
+        KEYS.forEach(key -> owners.put(key, ring.getOwner(key)));
+        return owners;
+    }
+
+    @Test
+    public void test_empty_ring_has_no_owner() {
+        assertNull(new HashRing(Collections.emptyList(), VIRTUAL_NODES).getOwner("application"));
+    }
+
+    @Test
+    public void test_keys_are_spread_over_members() {
+        //Given a ring of three members
+        HashRing ring = new HashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        //When the owners of many keys are computed
+        Map<String, Long> counts = owners(ring).values().stream()
+                .collect(Collectors.groupingBy(owner -> owner, Collectors.counting()));
+        //Then each member owns a fair share of them
+        assertEquals(3, counts.size());
+        counts.values().forEach(count -> assertTrue("unbalanced ring " + counts,
+                count > KEYS.size() / 3 / 2 && count < KEYS.size() / 3 * 2));
+    }
+
+    @Test
+    public void test_members_agree_on_owners() {
+        //Given two instances seeing the same members in a different order
+        HashRing ring = new HashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        HashRing other = new HashRing(Arrays.asList("c", "a", "b"), VIRTUAL_NODES);
+        //Then they agree on every owner
+        assertEquals(owners(ring), owners(other));
+    }
+
+    @Test
+    public void test_only_keys_of_a_leaving_member_move() {
+        //Given a ring of three members
+        Map<String, String> before = owners(new HashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES));
+        //When a member leaves
+        Map<String, String> after = owners(new HashRing(Arrays.asList("a", "b"), VIRTUAL_NODES));
+        //Then the keys of the remaining members keep their owner
+        KEYS.stream()
+                .filter(key -> !"c".equals(before.get(key)))
+                .forEach(key -> assertEquals(before.get(key), after.get(key)));
+        //And the keys of the member that left are taken over
+        KEYS.forEach(key -> assertTrue(Arrays.asList("a", "b").contains(after.get(key))));
+    }
+
+}
@@ -20,13 +20,13 @@
 package org.cloudfoundry.autosleep.ui.proxy;
 
 import lombok.extern.slf4j.Slf4j;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
 import org.cloudfoundry.autosleep.config.Config.Path;
 import org.cloudfoundry.autosleep.util.TimeManager;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
@@ -35,8 +35,14 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import javax.annotation.PostConstruct;
 import java.net.URI;
+import java.time.Duration;
 
 @Controller
 @RequestMapping(Path.PROXY_CONTEXT)
@@ -59,37 +65,72 @@ public class ProxyController {
     }
 
     @Autowired
-    CloudFoundryApiService cfApi;
+    ReactiveCloudFoundryApiService cfApi;
+
+    @Autowired
+    private Environment env;
 
     @Autowired
     RestTemplate restTemplate;
 
+    /**
+     * Max time a request waits for its application to start.
+     */
+    Duration startTimeout = Duration.ofSeconds(Config.DEFAULT_APPLICATION_START_TIMEOUT_SECONDS);
+
     @Autowired
     private TimeManager timeManager;
 
+    @PostConstruct
+    void init() {
+        startTimeout = Duration.ofSeconds(env.getProperty(Config.EnvKey.APPLICATION_START_TIMEOUT_SECONDS, Long.class,
+                Config.DEFAULT_APPLICATION_START_TIMEOUT_SECONDS));
+    }
+
     @RequestMapping(value = "/{appGuidToRestart}", headers = {HEADER_FORWARD_URL})
     @ResponseBody
-    ResponseEntity<?> proxify(@PathVariable("appGuidToRestart") String appId, RequestEntity<byte[]> request)
-            throws CloudFoundryException, InterruptedException {
+    DeferredResult<ResponseEntity<?>> proxify(@PathVariable("appGuidToRestart") String appId,
+                                              RequestEntity<byte[]> request) {
 
         log.debug("Incoming HTTP request for app {} : {}", appId, request);
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(startTimeout.toMillis(),
+                WildcardProxy.buildStartingResponse());
+
+        Disposable subscription = cfApi.getApplicationState(appId)
+                .flatMap(applicationState -> {
+                    if (!CloudFoundryAppState.STARTED.equals(applicationState)) {
+                        return cfApi.startApplication(appId)
+                                .then(timeManager.delay(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART));
+                    } else {
+                        return Mono.empty();
+                    }
+                })
+                .then(Mono.defer(() -> waitUntilStarted(appId)))
+                //unqueue traffic, away from the threads answering cloudfoundry as rest template is blocking
+                .then(Mono.<ResponseEntity<?>>fromCallable(() -> {
+                    RequestEntity<?> outgoing = buildOutgoingRequest(request);
+                    log.debug("forwarding traffic to {}", request.getHeaders().get(HEADER_FORWARD_URL));
+                    log.debug("Outgoing Request: {}", outgoing);
+
+                    return this.restTemplate.exchange(outgoing, byte[].class);
+                }).subscribeOn(Schedulers.elastic()))
+                .subscribe(result::setResult, result::setErrorResult);
+        //on timeout, the client is answered that the app is starting, and waiting for it is useless
+        result.onCompletion(subscription::dispose);
+        return result;
+    }
 
-        if (!CloudFoundryAppState.STARTED.equals(cfApi.getApplicationState(appId))) {
-            cfApi.startApplication(appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
-        }
-        while (!CloudFoundryAppState.STARTED.equals(cfApi.getApplicationState(appId))) {
-            log.debug("waiting for app {} restart...", appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
-            //TODO add timeout that would log error and reset semaphore?
-        }
-
-        //unqueue traffic
-        RequestEntity<?> outgoing = buildOutgoingRequest(request);
-        log.debug("forwarding traffic to {}", request.getHeaders().get(HEADER_FORWARD_URL));
-        log.debug("Outgoing Request: {}", outgoing);
-
-        return this.restTemplate.exchange(outgoing, byte[].class);
+    private Mono<Void> waitUntilStarted(String appId) {
+        return cfApi.getApplicationState(appId)
+                .flatMap(applicationState -> {
+                    if (CloudFoundryAppState.STARTED.equals(applicationState)) {
+                        return Mono.empty();
+                    } else {
+                        log.debug("waiting for app {} restart...", appId);
+                        return timeManager.delay(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART)
+                                .then(Mono.defer(() -> waitUntilStarted(appId)));
+                    }
+                });
     }
 
 }
@@ -20,8 +20,8 @@
 package org.cloudfoundry.autosleep.ui.proxy;
 
 import lombok.extern.slf4j.Slf4j;
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
 import org.cloudfoundry.autosleep.config.Config;
@@ -39,7 +39,11 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.HandlerMapping;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
@@ -49,6 +53,7 @@ import java.net.URI;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -64,10 +69,22 @@ public class WildcardProxy {
 
     static final String HEADER_PROTOCOL = "x-forwarded-proto";
 
+    /**
+     * Answer to a request for an application not ready yet.
+     */
+    static ResponseEntity<?> buildStartingResponse() {
+        return new ResponseEntity<>("The app is starting, please retry in few seconds", HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     String proxySignature;
 
+    /**
+     * Max time a request waits for its application to start.
+     */
+    Duration startTimeout = Duration.ofSeconds(Config.DEFAULT_APPLICATION_START_TIMEOUT_SECONDS);
+
     @Autowired
-    private CloudFoundryApiService cfApi;
+    private ReactiveCloudFoundryApiService cfApi;
 
     @Autowired
     private Environment env;
@@ -95,11 +112,6 @@ public class WildcardProxy {
         return new ResponseEntity<>("Error while calling remote api", HttpStatus.INTERNAL_SERVER_ERROR);
     }
 
-    @ExceptionHandler(InterruptedException.class)
-    ResponseEntity<String> handleCloudfoundryException(InterruptedException error) {
-        return new ResponseEntity<>("Internal server error: " + error.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
-    }
-
     @PostConstruct
     void init() throws UnknownHostException, NoSuchAlgorithmException, UnsupportedEncodingException {
         //not stored in Config, because this impl is temporary
@@ -107,14 +119,32 @@ public class WildcardProxy {
         String autosleepHost = InetAddress.getLocalHost().getHostName();
         this.proxySignature = Arrays.toString(MessageDigest.getInstance("MD5")
                 .digest((autosleepHost + securityPass).getBytes("UTF-8")));
+        this.startTimeout = Duration.ofSeconds(env.getProperty(Config.EnvKey.APPLICATION_START_TIMEOUT_SECONDS,
+                Long.class, Config.DEFAULT_APPLICATION_START_TIMEOUT_SECONDS));
+    }
 
+    private Mono<ResponseEntity<?>> forward(String appId, String targetHost, String path,
+                                           RequestEntity<byte[]> incoming) {
+        //database and rest template are blocking, keep them away from the threads answering cloudfoundry
+        return Mono.<ResponseEntity<?>>fromCallable(() -> {
+            //if exist, to prevent exception when two instances started the app in //
+            proxyMap.deleteAppRoutesIfExists(appId);
+            String protocol = incoming.getHeaders().get(HEADER_PROTOCOL).get(0);
+            URI uri = URI.create(protocol + "://" + targetHost + path);
+            RequestEntity<?> outgoing = getOutgoingRequest(incoming, uri);
+            log.debug("Outgoing Request: {}", outgoing);
+
+            //if "outgoing" point to a 404, this will trigger a 500. Is this really a pb?
+            return this.restTemplate.exchange(outgoing, byte[].class);
+        }).subscribeOn(Schedulers.elastic());
     }
 
     @RequestMapping(headers = {HEADER_PROTOCOL, HEADER_HOST})
-    ResponseEntity<?> proxify(@RequestHeader(HEADER_HOST) String targetHost,
-                              RequestEntity<byte[]> incoming,
-                              HttpServletRequest request) throws InterruptedException, CloudFoundryException {
-
+    DeferredResult<ResponseEntity<?>> proxify(@RequestHeader(HEADER_HOST) String targetHost,
+                                              RequestEntity<byte[]> incoming,
+                                              HttpServletRequest request) {
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(startTimeout.toMillis(),
+                buildStartingResponse());
         List<String> alreadyForwardedHeader = incoming.getHeaders().get(HEADER_FORWARDED);
         String path = (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
 
@@ -122,42 +152,58 @@ public class WildcardProxy {
 
         if (alreadyForwardedHeader != null && proxySignature.equals(alreadyForwardedHeader.get(0))) {
             log.error("We've already forwarded this traffic, this should not happen");
-            return new ResponseEntity<>("Infinite loop forwarding error", HttpStatus.INTERNAL_SERVER_ERROR);
+            result.setResult(new ResponseEntity<>("Infinite loop forwarding error", HttpStatus.INTERNAL_SERVER_ERROR));
+            return result;
         }
         ProxyMapEntry mapEntry = proxyMap.findOne(targetHost);
 
         if (mapEntry == null) {
             log.debug("No enrolled application associated with route : {}", targetHost);
-            return new ResponseEntity<>("Sorry, but this page doesn't exist! ", HttpStatus.NOT_FOUND);
+            result.setResult(new ResponseEntity<>("Sorry, but this page doesn't exist! ", HttpStatus.NOT_FOUND));
+            return result;
         }
 
         String appId = mapEntry.getAppId();
 
-        String applicationState = cfApi.getApplicationState(appId);
-        if (CloudFoundryAppState.STARTED.equals(applicationState) && !cfApi.isAppRunning(appId)) {
-            log.info("Rejecting traffic for starting app [{}]", appId);
-            return new ResponseEntity<>("The app is starting, please retry in few seconds", HttpStatus
-                    .SERVICE_UNAVAILABLE);
-        } else if (CloudFoundryAppState.STOPPED.equals(applicationState)) {
-            log.info("Starting app [{}]", appId);
-            cfApi.startApplication(appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
-        }
-        while (!cfApi.isAppRunning(appId)) {
-            log.debug("waiting for app {} restart...", appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
-            //TODO add timeout that would log error and reset mapEntry.isStarting to false
-        }
-        //if exist, to prevent exception when two instances started the app in //
-        proxyMap.deleteAppRoutesIfExists(appId);
-        String protocol = incoming.getHeaders().get(HEADER_PROTOCOL).get(0);
-        URI uri = URI.create(protocol + "://" + targetHost + path);
-        RequestEntity<?> outgoing = getOutgoingRequest(incoming, uri);
-        log.debug("Outgoing Request: {}", outgoing);
-
-        //if "outgoing" point to a 404, this will trigger a 500. Is this really a pb?
-        return this.restTemplate.exchange(outgoing, byte[].class);
+        Disposable subscription = cfApi.getApplicationState(appId)
+                .flatMap(applicationState -> {
+                    if (CloudFoundryAppState.STARTED.equals(applicationState)) {
+                        return cfApi.isAppRunning(appId);
+                    } else if (CloudFoundryAppState.STOPPED.equals(applicationState)) {
+                        log.info("Starting app [{}]", appId);
+                        return cfApi.startApplication(appId)
+                                .then(timeManager.delay(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART))
+                                .then(Mono.just(true));
+                    } else {
+                        return Mono.just(true);
+                    }
+                })
+                .flatMap(acceptTraffic -> {
+                    if (!acceptTraffic) {
+                        log.info("Rejecting traffic for starting app [{}]", appId);
+                        return Mono.<ResponseEntity<?>>just(buildStartingResponse());
+                    } else {
+                        return waitUntilRunning(appId)
+                                .then(forward(appId, targetHost, path, incoming));
+                    }
+                })
+                .subscribe(result::setResult, result::setErrorResult);
+        //on timeout, the client is answered that the app is starting, and waiting for it is useless
+        result.onCompletion(subscription::dispose);
+        return result;
+    }
 
+    private Mono<Void> waitUntilRunning(String appId) {
+        return cfApi.isAppRunning(appId)
+                .flatMap(running -> {
+                    if (running) {
+                        return Mono.empty();
+                    } else {
+                        log.debug("waiting for app {} restart...", appId);
+                        return timeManager.delay(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART)
+                                .then(Mono.defer(() -> waitUntilRunning(appId)));
+                    }
+                });
     }
 
 }
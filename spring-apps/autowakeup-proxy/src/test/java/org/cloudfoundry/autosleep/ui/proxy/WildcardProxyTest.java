@@ -19,8 +19,8 @@
 
 package org.cloudfoundry.autosleep.ui.proxy;
 
-import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.ReactiveCloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
 import org.cloudfoundry.autosleep.config.Config;
@@ -38,13 +38,22 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockAsyncContext;
 import org.springframework.stereotype.Controller;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.client.RestTemplate;
+import reactor.core.publisher.Mono;
+
+import javax.servlet.AsyncListener;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.cloudfoundry.autosleep.ui.proxy.WildcardProxy.HEADER_FORWARDED;
 import static org.cloudfoundry.autosleep.ui.proxy.WildcardProxy.HEADER_HOST;
@@ -59,8 +68,10 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.MediaType.TEXT_PLAIN;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -74,8 +85,8 @@ public class WildcardProxyTest {
     public static class Configuration {
 
         @Bean
-        CloudFoundryApiService cfApi() {
-            return mock(CloudFoundryApiService.class);
+        ReactiveCloudFoundryApiService cfApi() {
+            return mock(ReactiveCloudFoundryApiService.class);
         }
 
         @Bean
@@ -104,7 +115,7 @@ public class WildcardProxyTest {
     private static final String PROTOCOL_TEST_VALUE = "http";
 
     @Autowired
-    private CloudFoundryApiService cfApi;
+    private ReactiveCloudFoundryApiService cfApi;
 
     private MockMvc mockMvc;
 
@@ -125,6 +136,16 @@ public class WildcardProxyTest {
         reset(timeManager, proxyMap, cfApi, restTemplate);
         this.mockMvc = MockMvcBuilders.standaloneSetup(proxy)
                 .build();
+        when(timeManager.delay(any(Duration.class))).thenReturn(Mono.just(0L));
+        when(cfApi.startApplication(APP_ID)).thenReturn(Mono.just(true));
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult pendingResult = this.mockMvc
+                .perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return this.mockMvc.perform(asyncDispatch(pendingResult));
     }
 
     private void mockRemoteExchange(HttpStatus statusCode, MediaType contentType, String body) {
@@ -147,15 +168,14 @@ public class WildcardProxyTest {
                 .appId(APP_ID)
                 .host(HOST_TEST_VALUE)
                 .build());
-        when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STARTED);
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(Mono.just(CloudFoundryAppState.STARTED));
         // is app running will return false the two first times
-        when(cfApi.isAppRunning(APP_ID)).thenReturn(true);
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(Mono.just(true));
         //the return body will return the expected body
         mockRemoteExchange(HttpStatus.OK, MediaType.TEXT_PLAIN, BODY_VALUE);
 
         //WHEN an incoming message target this same route
-        this.mockMvc
-                .perform(get("http://localhost/anything")
+        performAsync(get("http://localhost/anything")
                         .header(HEADER_HOST, HOST_TEST_VALUE)
                         .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
                 //then status code is ok
@@ -168,7 +188,7 @@ public class WildcardProxyTest {
         // and start was not called
         verify(cfApi, never()).startApplication(APP_ID);
         // and we never wait for anything
-        verify(timeManager, never()).sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
+        verify(timeManager, never()).delay(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
         //and we removed the application from repository
         verify(proxyMap, times(1)).deleteAppRoutesIfExists(APP_ID);
     }
@@ -188,8 +208,7 @@ public class WildcardProxyTest {
         //GIVEN that no route map is stored in database
         when(proxyMap.findOne(HOST_TEST_VALUE)).thenReturn(null);
         //WHEN an incoming message contains an unknown route
-        this.mockMvc
-                .perform(get("http://localhost/anything")
+        performAsync(get("http://localhost/anything")
                         .header(HEADER_HOST, HOST_TEST_VALUE)
                         .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
                 .andExpect(status().isNotFound());
@@ -200,8 +219,7 @@ public class WildcardProxyTest {
         //GIVEN
         //WHEN an incoming message contains the signature header with our own signature
         //THEN return 500 error (as this should not happen)
-        this.mockMvc
-                .perform(get("http://localhost/anything")
+        performAsync(get("http://localhost/anything")
                         .header(HEADER_HOST, HOST_TEST_VALUE)
                         .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE)
                         .header(HEADER_FORWARDED, proxy.proxySignature))
@@ -215,9 +233,9 @@ public class WildcardProxyTest {
                 .appId(APP_ID)
                 .host(HOST_TEST_VALUE)
                 .build());
-        when(cfApi.getApplicationState(APP_ID)).thenThrow(CloudFoundryException.class);
-        this.mockMvc
-                .perform(get("http://localhost/anything")
+        when(cfApi.getApplicationState(APP_ID))
+                .thenReturn(Mono.error(new CloudFoundryException(new Exception("Mock call"))));
+        performAsync(get("http://localhost/anything")
                         .header(HEADER_HOST, HOST_TEST_VALUE)
                         .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE)
                         .header(HEADER_FORWARDED, proxy.proxySignature))
@@ -231,13 +249,12 @@ public class WildcardProxyTest {
                 .appId(APP_ID)
                 .host(HOST_TEST_VALUE)
                 .build());
-        when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STARTED);
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(Mono.just(CloudFoundryAppState.STARTED));
         // is app running returns true
-        when(cfApi.isAppRunning(APP_ID)).thenReturn(false);
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(Mono.just(false));
 
         //WHEN an incoming message target this same route
-        this.mockMvc
-                .perform(get("http://localhost/anything")
+        performAsync(get("http://localhost/anything")
                         .header(HEADER_HOST, HOST_TEST_VALUE)
                         .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
                 //then status code is ok
@@ -246,6 +263,41 @@ public class WildcardProxyTest {
         verify(proxyMap, never()).deleteIfExists(HOST_TEST_VALUE);
     }
 
+    @Test
+    public void should_send_service_unavailable_if_application_does_not_start_in_time() throws Exception {
+        //GIVEN that we have a map route in database (for stopped app)
+        when(proxyMap.findOne(HOST_TEST_VALUE)).thenReturn(ProxyMapEntry.builder()
+                .appId(APP_ID)
+                .host(HOST_TEST_VALUE)
+                .build());
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(Mono.just(CloudFoundryAppState.STOPPED));
+        //and its start never ends
+        AtomicBoolean waitCancelled = new AtomicBoolean(false);
+        when(timeManager.delay(any(Duration.class)))
+                .thenReturn(Mono.<Long>never().doOnCancel(() -> waitCancelled.set(true)));
+        MvcResult pendingResult = this.mockMvc
+                .perform(get("http://localhost/anything")
+                        .header(HEADER_HOST, HOST_TEST_VALUE)
+                        .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        //WHEN the request times out
+        MockAsyncContext asyncContext = (MockAsyncContext) pendingResult.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(null);
+        }
+        //THEN the client is asked to retry
+        this.mockMvc.perform(asyncDispatch(pendingResult))
+                .andExpect(status().isServiceUnavailable());
+        //and once the request completes, the start is no longer waited for
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onComplete(null);
+        }
+        assertTrue(waitCancelled.get());
+        verify(restTemplate, never()).exchange(any(RequestEntity.class), eq(byte[].class));
+    }
+
     @Test
     public void should_start_a_stopped_application_and_return_the_body() throws Exception {
         //GIVEN that we have a map route in database (for stopped app)
@@ -253,17 +305,16 @@ public class WildcardProxyTest {
                 .appId(APP_ID)
                 .host(HOST_TEST_VALUE)
                 .build());
-        when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STOPPED);
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(Mono.just(CloudFoundryAppState.STOPPED));
         // is app running will return false the two first times
-        when(cfApi.isAppRunning(APP_ID)).thenReturn(false)
-                .thenReturn(false)
-                .thenReturn(true);
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(Mono.just(false))
+                .thenReturn(Mono.just(false))
+                .thenReturn(Mono.just(true));
         //the return body will return the expected body
         mockRemoteExchange(HttpStatus.OK, MediaType.TEXT_PLAIN, BODY_VALUE);
 
         //WHEN an incoming message target this same route
-        this.mockMvc
-                .perform(get("http://localhost/anything")
+        performAsync(get("http://localhost/anything")
                         .header(HEADER_HOST, HOST_TEST_VALUE)
                         .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
                 //then status code is ok
@@ -275,7 +326,7 @@ public class WildcardProxyTest {
 
         // and start was called
         verify(cfApi, times(1)).startApplication(APP_ID);
-        verify(timeManager, times(3)).sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
+        verify(timeManager, times(3)).delay(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
         //and we removed the application from repository
         verify(proxyMap, times(1)).deleteAppRoutesIfExists(APP_ID);
     }